@@ -28,10 +28,14 @@ import android.util.Log;
 import dalvik.system.DexFile;
 import dalvik.system.PathClassLoader;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -58,6 +62,13 @@ import java.util.stream.Collectors;
  * <p>
  * Including and using this strategy will prune the explicit dependency tree for the App Helper
  * Library and provide a more robust library for use across the Android source tree.
+ * <p>
+ * Implementations listed in the service index of the helper interface, i.e. the
+ * {@code META-INF/services/<interface name>} resources listing one implementation class name per
+ * line, as generated by {@code @AutoService(IFooHelper.class)} with the auto_service_plugin, are
+ * tried first. As not every implementation is indexed, they are followed by the implementations
+ * found in the classes of the dex files, which are scanned once for the lifetime of the manager.
+ * The matching classes are cached by interface and pattern.
  */
 public class HelperManager {
     public static final String NO_MATCH_ERROR_MESSAGE = "No matching implementations";
@@ -118,25 +129,48 @@ public class HelperManager {
         return sInstance;
     }
 
+    private static final String SERVICES_PATH = "META-INF/services/";
+
     private Instrumentation mInstrumentation;
     private List<String> mClasses;
     private ClassLoader mLoader;
+    // Concrete helper classes of the dex files, loaded on the first lookup missing the index.
+    private List<Class<?>> mScannedHelpers;
+    // Classes listed in the service index, by helper interface.
+    private final Map<Class<?>, List<Class<?>>> mIndexedHelpers = new HashMap<>();
+    // Matching classes, by helper interface and pattern.
+    private final Map<Class<?>, Map<String, List<Class<?>>>> mMatchingHelpers = new HashMap<>();
 
     private HelperManager(List<String> paths, Instrumentation instr) {
+        this(
+                listDexClasses(paths),
+                new PathClassLoader(String.join(":", paths), HelperManager.class.getClassLoader()),
+                instr);
+    }
+
+    /**
+     * Creates a manager looking up implementations among the given classes, loaded and indexed
+     * with the given class loader. Visible for testing.
+     */
+    HelperManager(List<String> classes, ClassLoader loader, Instrumentation instr) {
         mInstrumentation = instr;
+        mClasses = classes;
+        mLoader = loader;
+    }
+
+    /** Returns the names of all the classes of the dex files. */
+    private static List<String> listDexClasses(List<String> paths) {
         // Collect all of the available classes
-        mClasses = new ArrayList<String>();
+        List<String> classes = new ArrayList<String>();
         try {
             for (String path : paths) {
                 DexFile dex = new DexFile(path);
-                mClasses.addAll(Collections.list(dex.entries()));
+                classes.addAll(Collections.list(dex.entries()));
             }
-            mLoader =
-                    new PathClassLoader(
-                            String.join(":", paths), HelperManager.class.getClassLoader());
         } catch (IOException e) {
             throw new TestHelperException("Failed to retrieve the dex file.");
         }
+        return classes;
     }
 
     /**
@@ -183,12 +217,13 @@ public class HelperManager {
     }
 
     /**
-     * Returns a concrete implementation of the helper interface supplied, if available.
+     * Returns the first concrete implementation of the helper interface supplied that can be
+     * instantiated, as a single element list.
      *
      * @param base the interface base class to find an implementation for
      * @param keyword a keyword for matching the helper implementation, if multiple exist
      * @throws TestHelperException if no implementation is found
-     * @return a concrete implementation of base
+     * @return a list holding the instantiated implementation of base
      */
     private <T extends ITestHelper> List<T> getAll(Class<T> base, String keyword) {
         Pattern p = Pattern.compile(".*\\Q" + keyword + "\\E.*");
@@ -196,63 +231,53 @@ public class HelperManager {
     }
 
     /**
-     * Returns a concrete implementation of the helper interface supplied, if available.
+     * Returns the first concrete implementation of the helper interface supplied that can be
+     * instantiated, as a single element list.
+     *
+     * <p>The matching classes are instantiated in order until one succeeds, the other ones are
+     * not instantiated.
      *
      * @param base the interface base class to find an implementation for
      * @param regex a regular expression for matching the helper implementation, if multiple exist
-     * @throws TestHelperException if no implementation is found
-     * @return a concrete implementation of base
+     * @throws TestHelperException if no implementation is found, or none could be instantiated
+     * @return a list holding the instantiated implementation of base
      */
     private <T extends ITestHelper> List<T> getAll(Class<T> base, Pattern regex) {
         List<T> implementations = new ArrayList<>();
         Map<Object, Throwable> mappedExceptions = new HashMap<>();
 
-        // Iterate and search for the implementation
-        for (String className : mClasses) {
-            Class<?> clazz = null;
+        for (Class<?> clazz : findMatchingClasses(base, regex)) {
+            String className = clazz.getName();
+            // Instantiate the implementation class and return
             try {
-                clazz = mLoader.loadClass(className);
-                // Skip non-instantiable classes
-                if (isAbstract(clazz.getModifiers()) || isInterface(clazz.getModifiers())) {
-                    continue;
-                }
-            } catch (ClassNotFoundException e) {
-                Log.w(LOG_TAG, String.format("Class not found: %s", className));
-                continue;
-            }
-            if (base.isAssignableFrom(clazz)
-                    && !clazz.equals(base)
-                    && regex.matcher(className).matches()) {
-                // Instantiate the implementation class and return
-                try {
-                    Constructor<?> constructor = clazz.getConstructor(Instrumentation.class);
-                    implementations.add((T)constructor.newInstance(mInstrumentation));
-                } catch (NoSuchMethodException e) {
-                    mappedExceptions.put(
-                            clazz,
-                            wrapThrowable(
-                                    String.format(
-                                            "Failed to find a matching constructor for %s",
-                                            className),
-                                    e));
-                } catch (IllegalAccessException e) {
-                    mappedExceptions.put(
-                            clazz,
-                            wrapThrowable(
-                                    String.format("Failed to access the constructor %s", className),
-                                    e));
-                } catch (InstantiationException e) {
-                    mappedExceptions.put(
-                            clazz,
-                            wrapThrowable(String.format("Failed to instantiate %s", className), e));
-                } catch (InvocationTargetException e) {
-                    mappedExceptions.put(
-                            clazz,
-                            wrapThrowable(
-                                    String.format(
-                                            "Exception encountered instantiating %s", className),
-                                    e));
-                }
+                Constructor<?> constructor = clazz.getConstructor(Instrumentation.class);
+                implementations.add((T) constructor.newInstance(mInstrumentation));
+                break;
+            } catch (NoSuchMethodException e) {
+                mappedExceptions.put(
+                        clazz,
+                        wrapThrowable(
+                                String.format(
+                                        "Failed to find a matching constructor for %s",
+                                        className),
+                                e));
+            } catch (IllegalAccessException e) {
+                mappedExceptions.put(
+                        clazz,
+                        wrapThrowable(
+                                String.format("Failed to access the constructor %s", className),
+                                e));
+            } catch (InstantiationException e) {
+                mappedExceptions.put(
+                        clazz,
+                        wrapThrowable(String.format("Failed to instantiate %s", className), e));
+            } catch (InvocationTargetException e) {
+                mappedExceptions.put(
+                        clazz,
+                        wrapThrowable(
+                                String.format(
+                                        "Exception encountered instantiating %s", className),
+                                e));
             }
         }
 
@@ -284,6 +309,112 @@ public class HelperManager {
         return implementations;
     }
 
+    /**
+     * Returns the concrete implementations of base whose name matches regex, the ones of the
+     * service index first, followed by the other ones of the dex files.
+     */
+    private synchronized List<Class<?>> findMatchingClasses(Class<?> base, Pattern regex) {
+        Map<String, List<Class<?>>> matchingByPattern =
+                mMatchingHelpers.computeIfAbsent(base, k -> new HashMap<>());
+        String patternKey = regex.flags() + ":" + regex.pattern();
+        List<Class<?>> matching = matchingByPattern.get(patternKey);
+        if (matching == null) {
+            matching = filterClasses(getIndexedHelpers(base), base, regex);
+            // The index may only list some of the implementations, so it can't hide the others.
+            for (Class<?> clazz : filterClasses(getScannedHelpers(), base, regex)) {
+                if (!matching.contains(clazz)) {
+                    matching.add(clazz);
+                }
+            }
+            matchingByPattern.put(patternKey, matching);
+        }
+        return matching;
+    }
+
+    private static List<Class<?>> filterClasses(
+            List<Class<?>> classes, Class<?> base, Pattern regex) {
+        List<Class<?>> matching = new ArrayList<>();
+        for (Class<?> clazz : classes) {
+            if (base.isAssignableFrom(clazz)
+                    && !clazz.equals(base)
+                    && regex.matcher(clazz.getName()).matches()) {
+                matching.add(clazz);
+            }
+        }
+        return matching;
+    }
+
+    /** Returns the concrete classes listed in the service index of base. */
+    private List<Class<?>> getIndexedHelpers(Class<?> base) {
+        List<Class<?>> helpers = mIndexedHelpers.get(base);
+        if (helpers != null) {
+            return helpers;
+        }
+        helpers = new ArrayList<>();
+        try {
+            String indexPath = SERVICES_PATH + base.getName();
+            for (URL index : Collections.list(mLoader.getResources(indexPath))) {
+                for (String className : readServiceIndex(index)) {
+                    Class<?> clazz = loadConcreteClass(className);
+                    if (clazz != null && !helpers.contains(clazz)) {
+                        helpers.add(clazz);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to read the service index of %s", base), e);
+        }
+        mIndexedHelpers.put(base, helpers);
+        return helpers;
+    }
+
+    /** Returns the class names of a service index, ignoring comments and blank lines. */
+    private static List<String> readServiceIndex(URL index) throws IOException {
+        List<String> classNames = new ArrayList<>();
+        try (BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String className = (comment < 0 ? line : line.substring(0, comment)).trim();
+                if (!className.isEmpty()) {
+                    classNames.add(className);
+                }
+            }
+        }
+        return classNames;
+    }
+
+    /** Returns the concrete helper classes of the dex files, loading all the classes once. */
+    private List<Class<?>> getScannedHelpers() {
+        if (mScannedHelpers == null) {
+            mScannedHelpers = new ArrayList<>();
+            for (String className : mClasses) {
+                Class<?> clazz = loadConcreteClass(className);
+                if (clazz != null && ITestHelper.class.isAssignableFrom(clazz)) {
+                    mScannedHelpers.add(clazz);
+                }
+            }
+        }
+        return mScannedHelpers;
+    }
+
+    /** Returns the class, or null if it can't be loaded or instantiated. */
+    private Class<?> loadConcreteClass(String className) {
+        try {
+            Class<?> clazz = mLoader.loadClass(className);
+            // Skip non-instantiable classes
+            if (isAbstract(clazz.getModifiers()) || isInterface(clazz.getModifiers())) {
+                return null;
+            }
+            return clazz;
+        } catch (ClassNotFoundException e) {
+            Log.w(LOG_TAG, String.format("Class not found: %s", className));
+            return null;
+        }
+    }
+
     /** Wrap the {@link Throwable} in a {@link TestHelperException} with a custom error message. */
     private TestHelperException wrapThrowable(String message, Throwable t) {
         Throwable causeIfPresent = getCauseIfPresent(t);
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.platform.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.app.Instrumentation;
+import android.platform.helpers.exceptions.TestHelperException;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Unit tests for {@link HelperManager} lookups through the service index, the dex class scan and
+ * the cache of matching classes.
+ *
+ * <p>To run: atest AppHelpersCoreTests:android.platform.helpers.HelperManagerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class HelperManagerTest {
+    private static final String INDEX_PATH = "META-INF/services/" + IFakeHelper.class.getName();
+    // Classes of the fake dex files.
+    private static final List<String> DEX_CLASSES =
+            Arrays.asList(
+                    String.class.getName(),
+                    IFakeHelper.class.getName(),
+                    AbstractFakeHelper.class.getName(),
+                    ScannedFakeHelper.class.getName());
+
+    private final List<File> mIndexFiles = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (File file : mIndexFiles) {
+            file.delete();
+        }
+    }
+
+    /** Test the implementation listed in the service index is tried before the scanned one. */
+    @Test
+    public void testIndexedHelper() throws IOException {
+        FakeClassLoader loader = new FakeClassLoader(
+                writeIndex("# Generated index", IndexedFakeHelper.class.getName(), ""));
+        HelperManager manager = new HelperManager(DEX_CLASSES, loader, getInstrumentation());
+
+        assertThat(manager.get(IFakeHelper.class)).isInstanceOf(IndexedFakeHelper.class);
+    }
+
+    /** Test an implementation missing from the service index is not hidden by an indexed one. */
+    @Test
+    public void testUnindexedHelper() throws IOException {
+        FakeClassLoader loader =
+                new FakeClassLoader(writeIndex(UninstantiableFakeHelper.class.getName()));
+        HelperManager manager = new HelperManager(DEX_CLASSES, loader, getInstrumentation());
+
+        // The indexed implementation can't be instantiated, so the scanned one is used.
+        assertThat(manager.get(IFakeHelper.class)).isInstanceOf(ScannedFakeHelper.class);
+        assertThat(loader.mLoadedClasses)
+                .containsAtLeast(
+                        UninstantiableFakeHelper.class.getName(),
+                        ScannedFakeHelper.class.getName())
+                .inOrder();
+    }
+
+    /** Test the classes of the dex files are scanned when there is no service index. */
+    @Test
+    public void testDexScanFallback() {
+        FakeClassLoader loader = new FakeClassLoader();
+        HelperManager manager = new HelperManager(DEX_CLASSES, loader, getInstrumentation());
+
+        assertThat(manager.get(IFakeHelper.class)).isInstanceOf(ScannedFakeHelper.class);
+        assertThat(loader.mLoadedClasses).containsAtLeastElementsIn(DEX_CLASSES);
+    }
+
+    /** Test the classes of the dex files are scanned when the index has no matching class. */
+    @Test
+    public void testDexScanFallbackWithoutIndexMatch() throws IOException {
+        FakeClassLoader loader =
+                new FakeClassLoader(writeIndex(IndexedFakeHelper.class.getName()));
+        HelperManager manager = new HelperManager(DEX_CLASSES, loader, getInstrumentation());
+
+        assertThat(manager.get(IFakeHelper.class, "Scanned"))
+                .isInstanceOf(ScannedFakeHelper.class);
+    }
+
+    /** Test the matching classes are cached by interface and pattern. */
+    @Test
+    public void testMatchingClassesCached() {
+        FakeClassLoader loader = new FakeClassLoader();
+        HelperManager manager = new HelperManager(DEX_CLASSES, loader, getInstrumentation());
+
+        IFakeHelper helper = manager.get(IFakeHelper.class, "Scanned");
+        int loadedClasses = loader.mLoadedClasses.size();
+        int indexLookups = loader.mIndexLookups;
+        IFakeHelper cachedHelper = manager.get(IFakeHelper.class, "Scanned");
+        assertThat(cachedHelper).isInstanceOf(ScannedFakeHelper.class);
+        // A new instance of the cached class is returned every time.
+        assertThat(cachedHelper).isNotSameInstanceAs(helper);
+        assertThat(loader.mLoadedClasses).hasSize(loadedClasses);
+        assertThat(loader.mIndexLookups).isEqualTo(indexLookups);
+
+        // Another pattern is filtered again, from the classes already scanned.
+        assertThrows(TestHelperException.class, () -> manager.get(IFakeHelper.class, "Missing"));
+        assertThat(loader.mLoadedClasses).hasSize(loadedClasses);
+        assertThat(loader.mIndexLookups).isEqualTo(indexLookups);
+    }
+
+    /** Test an exception is thrown when no class matches. */
+    @Test
+    public void testNoMatch() {
+        HelperManager manager =
+                new HelperManager(DEX_CLASSES, new FakeClassLoader(), getInstrumentation());
+
+        TestHelperException e =
+                assertThrows(
+                        TestHelperException.class,
+                        () -> manager.get(IFakeHelper.class, "Missing"));
+        assertThat(e).hasMessageThat().contains(HelperManager.NO_MATCH_ERROR_MESSAGE);
+    }
+
+    private static Instrumentation getInstrumentation() {
+        return InstrumentationRegistry.getInstrumentation();
+    }
+
+    /** Writes a service index file with the given lines and returns its URL. */
+    private URL writeIndex(String... lines) throws IOException {
+        File index = File.createTempFile("helper-index", null);
+        mIndexFiles.add(index);
+        Files.write(index.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return index.toURI().toURL();
+    }
+
+    /** Class loader serving the given service index and recording the classes loaded. */
+    private static class FakeClassLoader extends ClassLoader {
+        private final List<URL> mIndexes;
+        final List<String> mLoadedClasses = new ArrayList<>();
+        int mIndexLookups = 0;
+
+        FakeClassLoader(URL... indexes) {
+            super(HelperManagerTest.class.getClassLoader());
+            mIndexes = Arrays.asList(indexes);
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name) throws IOException {
+            if (!INDEX_PATH.equals(name)) {
+                return super.getResources(name);
+            }
+            mIndexLookups++;
+            return Collections.enumeration(mIndexes);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            mLoadedClasses.add(name);
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    public interface IFakeHelper extends ITestHelper {}
+
+    public abstract static class AbstractFakeHelper implements IFakeHelper {}
+
+    public static class IndexedFakeHelper implements IFakeHelper {
+        public IndexedFakeHelper(Instrumentation instrumentation) {}
+    }
+
+    public static class UninstantiableFakeHelper implements IFakeHelper {
+        public UninstantiableFakeHelper() {}
+    }
+
+    public static class ScannedFakeHelper extends AbstractFakeHelper {
+        public ScannedFakeHelper(Instrumentation instrumentation) {}
+    }
+}
@@ -17,6 +17,9 @@ package android.platform.helpers;
 
 import android.app.Instrumentation;
 
+import com.google.auto.service.AutoService;
+
+@AutoService(IBusinessCardHelper.class)
 public class BusinessCardHelperImpl extends AbstractStandardAppHelper
         implements IBusinessCardHelper {
     private static final String UI_PACKAGE_NAME = "com.example.android.businesscard";
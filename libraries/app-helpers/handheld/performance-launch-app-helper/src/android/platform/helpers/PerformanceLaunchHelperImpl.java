@@ -17,6 +17,9 @@ package android.platform.helpers;
 
 import android.app.Instrumentation;
 
+import com.google.auto.service.AutoService;
+
+@AutoService(IPerformanceLaunchHelper.class)
 public class PerformanceLaunchHelperImpl extends AbstractStandardAppHelper
         implements IPerformanceLaunchHelper {
     private static final String UI_PACKAGE_NAME = "com.android.performanceLaunch";
@@ -85,6 +85,7 @@ public class AuptTestRunner extends InstrumentationTestRunner {
     private long mFileRetainCount;
     private boolean mGenerateAnr;
     private boolean mRecordMeminfo;
+    private boolean mMemHealthFromProcrank;
     private long mIterations;
     private long mSeed;
 
@@ -109,7 +110,7 @@ public class AuptTestRunner extends InstrumentationTestRunner {
 
     /* Logging */
     private ProcessStatusTracker mProcessTracker;
-    private List<MemHealthRecord> mMemHealthRecords = new ArrayList<>();
+    private final MemHealthRecord mMemHealthRecord = new MemHealthRecord();
     private Map<String, Long> mDumpheapCount = new HashMap<>();
     private Map<String, Long> mLastDumpheap = new HashMap<>();
 
@@ -166,6 +167,10 @@ public class AuptTestRunner extends InstrumentationTestRunner {
             }
         }
 
+        // Option: -e memHealthProcrank true, to sample the PSS of the tracked processes from
+        // procrank instead of their dumpsys meminfo
+        mMemHealthFromProcrank = parseBoolParam("memHealthProcrank", false);
+
         // Option: -e detectKill com.pkg1,...,com.pkg8
         String processes = parseStringParam("detectKill", null);
 
@@ -426,12 +431,12 @@ public class AuptTestRunner extends InstrumentationTestRunner {
             recordMemHealth();
 
             try {
-                MemHealthRecord.saveVerbose(mMemHealthRecords,
+                mMemHealthRecord.saveVerbose(
                         new File(mResultsDirectory, "memory-health.txt").getPath());
-                MemHealthRecord.saveCsv(mMemHealthRecords,
+                mMemHealthRecord.saveCsv(
                         new File(mResultsDirectory, "memory-health-details.txt").getPath());
 
-                mMemHealthRecords.clear();
+                mMemHealthRecord.clear();
             } catch (IOException ioex) {
                 Log.e(LOG_TAG, "Error writing MemHealthRecords", ioex);
             }
@@ -439,11 +444,19 @@ public class AuptTestRunner extends InstrumentationTestRunner {
 
         private void recordMemHealth() {
             try {
-                mMemHealthRecords.addAll(MemHealthRecord.get(
-                      AuptTestRunner.this,
-                      mMemoryTrackedProcesses,
-                      System.currentTimeMillis(),
-                      getForegroundProcs()));
+                if (mMemHealthFromProcrank) {
+                    mMemHealthRecord.recordProcrank(
+                            AuptTestRunner.this,
+                            mMemoryTrackedProcesses,
+                            System.currentTimeMillis(),
+                            getForegroundProcs());
+                } else {
+                    mMemHealthRecord.record(
+                            AuptTestRunner.this,
+                            mMemoryTrackedProcesses,
+                            System.currentTimeMillis(),
+                            getForegroundProcs());
+                }
             } catch (IOException ioex) {
                 Log.e(LOG_TAG, "Error collecting MemHealthRecords", ioex);
             }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+/**
+ * Counts non-negative values in a fixed number of buckets, to estimate their percentiles in a
+ * bounded memory however many values are added.
+ *
+ * <p>Values below 32 have a bucket each. Above, each power of two is split in 32 buckets of the
+ * same width, so that a percentile is within 1/32 of the value it estimates. Values of 2^40 and
+ * more, which are more than a petabyte in kilobytes, share the last bucket.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int VALUE_BITS = 40;
+    // The buckets of the values below 2^VALUE_BITS, and the one of the values above.
+    private static final int BUCKET_COUNT = (VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private int mCount = 0;
+    private long mMin = 0;
+    private long mMax = 0;
+
+    /** Count a value. Negative values are counted as 0. */
+    void add(long value) {
+        long clamped = Math.max(0, value);
+        if (mCount == 0 || clamped < mMin) {
+            mMin = clamped;
+        }
+        if (mCount == 0 || clamped > mMax) {
+            mMax = clamped;
+        }
+        mCounts[bucketOf(clamped)]++;
+        mCount++;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest value at least {@code percent} percent of the values are lower than or
+     * equal to, rounded up to the end of its bucket, and within the smallest and largest values.
+     * Returns -1 if no value was added.
+     */
+    long getPercentile(double percent) {
+        if (mCount == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * mCount));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(mMax, lastValueOf(bucket)));
+            }
+        }
+        return mMax;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= VALUE_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        // The bits after the highest one select the bucket within the power of two.
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lastValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long first = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return first + (1L << shift) - 1;
+    }
+}
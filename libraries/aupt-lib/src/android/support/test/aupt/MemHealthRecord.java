@@ -23,467 +23,246 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * The memory health of the tracked processes, sampled from their dumpsys meminfo or from procrank.
+ *
+ * <p>The samples written to the CSV are kept in columns of primitive values. Every process keeps
+ * running statistics of all its fields, separately in the foreground and in the background, so
+ * that the summaries need neither the samples nor a pass over them. The percentiles of the heaps
+ * and PSS are estimated from a {@link Histogram} of each, whose memory does not grow with the
+ * samples.
+ */
 class MemHealthRecord {
-    // Process State
-    private final String mProcName;
-    private final boolean mInForeground;
-
-    // Memory health state
-    private final long mTimeMs;
-    private final long mDalvikHeap;
-    private final long mNativeHeap;
-    private final long mPss;
-
-    // App summary metrics
-    private final long mAsJavaHeap;
-    private final long mAsNativeHeap;
-    private final long mAsCode;
-    private final long mAsStack;
-    private final long mAsGraphics;
-    private final long mAsOther;
-    private final long mAsSystem;
-    private final long mAsOverallPss;
-
-    public MemHealthRecord(String procName, long timeMs, long dalvikHeap, long nativeHeap, long pss,
-            long asJavaHeap, long asNativeHeap, long asCode, long asStack,
-            long asGraphics, long asOther, long asSystem, long asOverallPss,
-            boolean inForeground) {
-        mProcName = procName;
-        mTimeMs = timeMs;
-        mDalvikHeap = dalvikHeap;
-        mNativeHeap = nativeHeap;
-        mPss = pss;
-        mAsJavaHeap = asJavaHeap;
-        mAsNativeHeap = asNativeHeap;
-        mAsCode = asCode;
-        mAsStack = asStack;
-        mAsGraphics = asGraphics;
-        mAsOther = asOther;
-        mAsSystem = asSystem;
-        mAsOverallPss = asOverallPss;
-        mInForeground = inForeground;
-    }
-
-    public MemHealthRecord(
-            String procName, long timeMs, long dalvikHeap,
-            long nativeHeap, long pss, boolean inForeground) {
-        this(procName, timeMs, dalvikHeap, nativeHeap, pss, 0, 0, 0, 0, 0, 0, 0, 0, inForeground);
-    }
-
-    /* Static methods */
-
-    static List<MemHealthRecord> get(
-            Instrumentation instr,
-            List<String> procNames,
-            long timeMs,
-            List<String> foregroundProcs) throws IOException {
-
-        List<MemHealthRecord> records = new ArrayList<>();
-
-        for (String procName : procNames) {
-            String meminfo = getMeminfoOutput(instr, procName);
-            int nativeHeap = parseMeminfoLine(meminfo, "Native Heap\\s+\\d+\\s+(\\d+)");
-            int dalvikHeap = parseMeminfoLine(meminfo, "Dalvik Heap\\s+\\d+\\s+(\\d+)");
-            int pss = parseMeminfoLine(meminfo, "TOTAL\\s+(\\d+)");
-
-            int asJavaHeap = parseMeminfoLine(meminfo, "Java Heap:\\s+(\\d+)");
-            int asNativeHeap = parseMeminfoLine(meminfo, "Native Heap:\\s+(\\d+)");
-            int asCode = parseMeminfoLine(meminfo, "Code:\\s+(\\d+)");
-            int asStack = parseMeminfoLine(meminfo, "Stack:\\s+(\\d+)");
-            int asGraphics = parseMeminfoLine(meminfo, "Graphics:\\s+(\\d+)");
-            int asOther = parseMeminfoLine(meminfo, "Private Other:\\s+(\\d+)");
-            int asSystem = parseMeminfoLine(meminfo, "System:\\s+(\\d+)");
-            int asOverallPss = parseMeminfoLine(meminfo, "TOTAL:\\s+(\\d+)");
-
-            if (nativeHeap < 0 || dalvikHeap < 0 || pss < 0) {
-                continue;
-            }
-
-            records.add(new MemHealthRecord(
-                    procName, timeMs, dalvikHeap, nativeHeap, pss, asJavaHeap,
-                    asNativeHeap, asCode, asStack, asGraphics, asOther, asSystem,
-                    asOverallPss, foregroundProcs.contains(procName)));
-        }
-
-        return records;
-    }
-
-    static void saveVerbose(Collection<MemHealthRecord> allRecords, String fileName)
-            throws IOException {
-        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
-
-        Map<String, List<MemHealthRecord>> fgRecords = getRecordMap(allRecords, true);
-        Map<String, List<MemHealthRecord>> bgRecords = getRecordMap(allRecords, false);
-
-        out.println("Foreground");
-
-        for (Map.Entry<String, List<MemHealthRecord>> entry : fgRecords.entrySet()) {
-            String procName = entry.getKey();
-            List<MemHealthRecord> records = entry.getValue();
-
-            List<Long> nativeHeap = getForegroundNativeHeap(records);
-            List<Long> dalvikHeap = getForegroundDalvikHeap(records);
-            List<Long> pss = getForegroundPss(records);
-            List<Long> asJavaHeap = getForegroundSummaryJavaHeap(records);
-            List<Long> asNativeHeap = getForegroundSummaryNativeHeap(records);
-            List<Long> asCode = getForegroundSummaryCode(records);
-            List<Long> asStack = getForegroundSummaryStack(records);
-            List<Long> asGraphics = getForegroundSummaryGraphics(records);
-            List<Long> asOther = getForegroundSummaryOther(records);
-            List<Long> asSystem = getForegroundSummarySystem(records);
-            List<Long> asOverallPss = getForegroundSummaryOverallPss(records);
-
-            // nativeHeap, dalvikHeap, and pss all have the same size, just use one
-            if (nativeHeap.isEmpty()) {
-                continue;
-            }
-
-            out.println(procName);
-            out.printf("Average Native Heap: %d\n", getAverage(nativeHeap));
-            out.printf("Average Dalvik Heap: %d\n", getAverage(dalvikHeap));
-            out.printf("Average PSS: %d\n", getAverage(pss));
-            out.printf("Peak Native Heap: %d\n", getMax(nativeHeap));
-            out.printf("Peak Dalvik Heap: %d\n", getMax(dalvikHeap));
-            out.printf("Peak PSS: %d\n", getMax(pss));
-            out.printf("Count %d\n", nativeHeap.size());
-
-            out.printf("Average Summary Java Heap: %d\n", getAverage(asJavaHeap));
-            out.printf("Average Summary Native Heap: %d\n", getAverage(asNativeHeap));
-            out.printf("Average Summary Code: %d\n", getAverage(asCode));
-            out.printf("Average Summary Stack: %d\n", getAverage(asStack));
-            out.printf("Average Summary Graphics: %d\n", getAverage(asGraphics));
-            out.printf("Average Summary Other: %d\n", getAverage(asOther));
-            out.printf("Average Summary System: %d\n", getAverage(asSystem));
-            out.printf("Average Summary Overall Pss: %d\n", getAverage(asOverallPss));
-        }
-
-        out.println("Background");
-        for (Map.Entry<String, List<MemHealthRecord>> entry : bgRecords.entrySet()) {
-            String procName = entry.getKey();
-            List<MemHealthRecord> records = entry.getValue();
-
-            List<Long> nativeHeap = getBackgroundNativeHeap(records);
-            List<Long> dalvikHeap = getBackgroundDalvikHeap(records);
-            List<Long> pss = getBackgroundPss(records);
-            List<Long> asJavaHeap = getBackgroundSummaryJavaHeap(records);
-            List<Long> asNativeHeap = getBackgroundSummaryNativeHeap(records);
-            List<Long> asCode = getBackgroundSummaryCode(records);
-            List<Long> asStack = getBackgroundSummaryStack(records);
-            List<Long> asGraphics = getBackgroundSummaryGraphics(records);
-            List<Long> asOther = getBackgroundSummaryOther(records);
-            List<Long> asSystem = getBackgroundSummarySystem(records);
-            List<Long> asOverallPss = getBackgroundSummaryOverallPss(records);
-
-            // nativeHeap, dalvikHeap, and pss all have the same size, just use one
-            if (nativeHeap.isEmpty()) {
-                continue;
-            }
-
-            out.println(procName);
-            out.printf("Average Native Heap: %d\n", getAverage(nativeHeap));
-            out.printf("Average Dalvik Heap: %d\n", getAverage(dalvikHeap));
-            out.printf("Average PSS: %d\n", getAverage(pss));
-            out.printf("Peak Native Heap: %d\n", getMax(nativeHeap));
-            out.printf("Peak Dalvik Heap: %d\n", getMax(dalvikHeap));
-            out.printf("Peak PSS: %d\n", getMax(pss));
-            out.printf("Count %d\n", nativeHeap.size());
-
-            out.printf("Average Summary Java Heap: %d\n", getAverage(asJavaHeap));
-            out.printf("Average Summary Native Heap: %d\n", getAverage(asNativeHeap));
-            out.printf("Average Summary Code: %d\n", getAverage(asCode));
-            out.printf("Average Summary Stack: %d\n", getAverage(asStack));
-            out.printf("Average Summary Graphics: %d\n", getAverage(asGraphics));
-            out.printf("Average Summary Other: %d\n", getAverage(asOther));
-            out.printf("Average Summary System: %d\n", getAverage(asSystem));
-            out.printf("Average Summary Overall Pss: %d\n", getAverage(asOverallPss));
-        }
-
-        out.close();
-    }
-
-    /**
-     * NOTE (rsloan): I've meaningfully changed this format because the previous iteration was a
-     *                horrific mix of CSV and not-CSV
-     */
-    static void saveCsv(Collection<MemHealthRecord> allRecords, String fileName) throws IOException{
-        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
-
-        out.printf("name,time,native_heap,dalvik_heap,pss,context\n");
-        for (MemHealthRecord record : allRecords) {
-            out.printf("%s,%d,%d,%d,%s\n",
-                    record.mProcName, record.mTimeMs, record.mNativeHeap,
-                    record.mDalvikHeap, record.mInForeground ? "foreground" : "background");
-        }
-
-        out.close();
-    }
-
-    /* Getters defined on a Collection<MemHealthRecord> */
-
-    public static List<Long> getForegroundDalvikHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mDalvikHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundDalvikHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mDalvikHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getForegroundNativeHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mNativeHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundNativeHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mNativeHeap);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getForegroundPss(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mPss);
-            }
-        }
-        return ret;
-    }
-
-    public static List<Long> getBackgroundPss(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mPss);
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The samples, in the order they were recorded.
+    private int mSize = 0;
+    private Summary[] mSummaries = new Summary[INITIAL_CAPACITY];
+    private long[] mTimesMs = new long[INITIAL_CAPACITY];
+    private long[] mNativeHeaps = new long[INITIAL_CAPACITY];
+    private long[] mDalvikHeaps = new long[INITIAL_CAPACITY];
+
+    // The statistics of the processes, in the order they were first sampled.
+    private final Map<String, Summary> mForegroundSummaries = new LinkedHashMap<>();
+    private final Map<String, Summary> mBackgroundSummaries = new LinkedHashMap<>();
+
+    // The fields whose percentiles are saved.
+    private static final int[] HISTOGRAM_FIELDS = {
+        MeminfoParser.NATIVE_HEAP, MeminfoParser.DALVIK_HEAP, MeminfoParser.PSS,
+    };
+
+    /** The running statistics of the samples of a process in the foreground or background. */
+    private static class Summary {
+        private final String mProcName;
+        private final boolean mInForeground;
+        private int mCount = 0;
+        private final long[] mSums = new long[MeminfoParser.FIELD_COUNT];
+        private final long[] mMinima = new long[MeminfoParser.FIELD_COUNT];
+        private final long[] mMaxima = new long[MeminfoParser.FIELD_COUNT];
+        // The histograms of the HISTOGRAM_FIELDS, by field.
+        private final Histogram[] mHistograms = new Histogram[MeminfoParser.FIELD_COUNT];
+
+        Summary(String procName, boolean inForeground) {
+            mProcName = procName;
+            mInForeground = inForeground;
+            for (int field : HISTOGRAM_FIELDS) {
+                mHistograms[field] = new Histogram();
             }
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryJavaHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsJavaHeap);
+        void add(long[] fields) {
+            for (int field = 0; field < fields.length; field++) {
+                mSums[field] += fields[field];
+                if (mCount == 0 || fields[field] < mMinima[field]) {
+                    mMinima[field] = fields[field];
+                }
+                if (mCount == 0 || fields[field] > mMaxima[field]) {
+                    mMaxima[field] = fields[field];
+                }
+                // The missing fields are left out of the percentiles.
+                if (mHistograms[field] != null && fields[field] >= 0) {
+                    mHistograms[field].add(fields[field]);
+                }
             }
+            mCount++;
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryJavaHeap(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsJavaHeap);
-            }
+        long getAverage(int field) {
+            return (long) ((double) mSums[field] / mCount);
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryNativeHeap(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsNativeHeap);
-            }
+        long getMin(int field) {
+            return mMinima[field];
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryNativeHeap(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsNativeHeap);
-            }
+        long getMax(int field) {
+            return mMaxima[field];
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryCode(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsCode);
-            }
+        /** Returns the estimated percentile of one of the HISTOGRAM_FIELDS, or -1 if missing. */
+        long getPercentile(int field, double percent) {
+            return mHistograms[field].getPercentile(percent);
         }
-        return ret;
     }
 
-    public static List<Long> getBackgroundSummaryCode(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsCode);
-            }
-        }
-        return ret;
-    }
+    /**
+     * Sample the memory health of the processes. Processes without the heap and PSS fields are
+     * skipped.
+     */
+    void record(
+            Instrumentation instr,
+            List<String> procNames,
+            long timeMs,
+            List<String> foregroundProcs) throws IOException {
 
-    public static List<Long> getForegroundSummaryStack(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsStack);
-            }
+        // Read all the processes before recording any, as a failure drops the whole sample.
+        List<long[]> samples = new ArrayList<>(procNames.size());
+        for (String procName : procNames) {
+            samples.add(MeminfoParser.parse(getMeminfoOutput(instr, procName)));
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryStack(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsStack);
+        for (int i = 0; i < procNames.size(); i++) {
+            long[] fields = samples.get(i);
+            if (fields[MeminfoParser.NATIVE_HEAP] < 0 || fields[MeminfoParser.DALVIK_HEAP] < 0
+                    || fields[MeminfoParser.PSS] < 0) {
+                continue;
             }
+            String procName = procNames.get(i);
+            add(procName, timeMs, foregroundProcs.contains(procName), fields);
         }
-        return ret;
     }
 
-    public static List<Long> getForegroundSummaryGraphics(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsGraphics);
+    /**
+     * Sample the PSS of the processes from a single procrank run, which is cheaper than a dumpsys
+     * meminfo of each process. The heaps and App Summary fields are missing, and the processes
+     * which are not running are skipped.
+     */
+    void recordProcrank(
+            Instrumentation instr,
+            List<String> procNames,
+            long timeMs,
+            List<String> foregroundProcs) throws IOException {
+        Map<String, long[]> samples =
+                ProcrankParser.parse(getProcessOutput(instr, "procrank"), procNames);
+        for (String procName : procNames) {
+            long[] fields = samples.get(procName);
+            if (fields != null) {
+                add(procName, timeMs, foregroundProcs.contains(procName), fields);
             }
         }
-        return ret;
     }
 
-    public static List<Long> getBackgroundSummaryGraphics(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsGraphics);
-            }
+    /** Record a sample of the fields read by {@link MeminfoParser}. */
+    void add(String procName, long timeMs, boolean inForeground, long[] fields) {
+        Map<String, Summary> summaries =
+                inForeground ? mForegroundSummaries : mBackgroundSummaries;
+        Summary summary = summaries.get(procName);
+        if (summary == null) {
+            summary = new Summary(procName, inForeground);
+            summaries.put(procName, summary);
         }
-        return ret;
-    }
-
-    public static List<Long> getForegroundSummaryOther(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsOther);
-            }
+        summary.add(fields);
+
+        if (mSize == mTimesMs.length) {
+            int capacity = mSize * 2;
+            mSummaries = Arrays.copyOf(mSummaries, capacity);
+            mTimesMs = Arrays.copyOf(mTimesMs, capacity);
+            mNativeHeaps = Arrays.copyOf(mNativeHeaps, capacity);
+            mDalvikHeaps = Arrays.copyOf(mDalvikHeaps, capacity);
         }
-        return ret;
+        mSummaries[mSize] = summary;
+        mTimesMs[mSize] = timeMs;
+        mNativeHeaps[mSize] = fields[MeminfoParser.NATIVE_HEAP];
+        mDalvikHeaps[mSize] = fields[MeminfoParser.DALVIK_HEAP];
+        mSize++;
     }
 
-    public static List<Long> getBackgroundSummaryOther(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsOther);
-            }
-        }
-        return ret;
+    /** Forget all the samples and statistics. */
+    void clear() {
+        mSize = 0;
+        Arrays.fill(mSummaries, null);
+        mForegroundSummaries.clear();
+        mBackgroundSummaries.clear();
     }
 
-    public static List<Long> getForegroundSummarySystem(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsSystem);
-            }
-        }
-        return ret;
-    }
+    void saveVerbose(String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
 
-    public static List<Long> getBackgroundSummarySystem(Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsSystem);
-            }
+        out.println("Foreground");
+        for (Summary summary : mForegroundSummaries.values()) {
+            saveSummary(out, summary);
         }
-        return ret;
-    }
 
-    public static List<Long> getForegroundSummaryOverallPss(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (sample.mInForeground) {
-                ret.add(sample.mAsOverallPss);
-            }
+        out.println("Background");
+        for (Summary summary : mBackgroundSummaries.values()) {
+            saveSummary(out, summary);
         }
-        return ret;
-    }
 
-    public static List<Long> getBackgroundSummaryOverallPss(
-            Collection<MemHealthRecord> samples) {
-        List<Long> ret = new ArrayList<>(samples.size());
-        for (MemHealthRecord sample : samples) {
-            if (!sample.mInForeground) {
-                ret.add(sample.mAsOverallPss);
-            }
-        }
-        return ret;
+        out.close();
     }
 
-    /* Utility Methods */
-
-    private static Long getMax(Collection<Long> samples) {
-        Long max = null;
-        for (Long sample : samples) {
-            if (max == null || sample > max) {
-                max = sample;
-            }
-        }
-        return max;
-    }
+    /**
+     * NOTE (rsloan): I've meaningfully changed this format because the previous iteration was a
+     *                horrific mix of CSV and not-CSV
+     */
+    void saveCsv(String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
 
-    private static Long getAverage(Collection<Long> samples) {
-        if (samples.size() == 0) {
-            return null;
+        out.printf("name,time,native_heap,dalvik_heap,pss,context\n");
+        for (int i = 0; i < mSize; i++) {
+            out.printf("%s,%d,%d,%d,%s\n",
+                    mSummaries[i].mProcName, mTimesMs[i], mNativeHeaps[i], mDalvikHeaps[i],
+                    mSummaries[i].mInForeground ? "foreground" : "background");
         }
 
-        double sum = 0;
-        for (Long sample : samples) {
-            sum += sample;
-        }
-        return (long) (sum / samples.size());
+        out.close();
     }
 
-    private static int parseMeminfoLine(String meminfo, String pattern)
-    {
-        Pattern p = Pattern.compile(pattern);
-        Matcher m = p.matcher(meminfo);
-        if (m.find()) {
-            return Integer.parseInt(m.group(1));
-        } else {
-            return -1;
-        }
+    private static void saveSummary(PrintWriter out, Summary summary) {
+        out.println(summary.mProcName);
+        out.printf("Average Native Heap: %d\n", summary.getAverage(MeminfoParser.NATIVE_HEAP));
+        out.printf("Average Dalvik Heap: %d\n", summary.getAverage(MeminfoParser.DALVIK_HEAP));
+        out.printf("Average PSS: %d\n", summary.getAverage(MeminfoParser.PSS));
+        out.printf("Peak Native Heap: %d\n", summary.getMax(MeminfoParser.NATIVE_HEAP));
+        out.printf("Peak Dalvik Heap: %d\n", summary.getMax(MeminfoParser.DALVIK_HEAP));
+        out.printf("Peak PSS: %d\n", summary.getMax(MeminfoParser.PSS));
+        out.printf("Count %d\n", summary.mCount);
+
+        out.printf("Average Summary Java Heap: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_JAVA_HEAP));
+        out.printf("Average Summary Native Heap: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_NATIVE_HEAP));
+        out.printf("Average Summary Code: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_CODE));
+        out.printf("Average Summary Stack: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_STACK));
+        out.printf("Average Summary Graphics: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_GRAPHICS));
+        out.printf("Average Summary Other: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_OTHER));
+        out.printf("Average Summary System: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_SYSTEM));
+        out.printf("Average Summary Overall Pss: %d\n",
+                summary.getAverage(MeminfoParser.SUMMARY_OVERALL_PSS));
+
+        out.printf("Min Native Heap: %d\n", summary.getMin(MeminfoParser.NATIVE_HEAP));
+        out.printf("Min Dalvik Heap: %d\n", summary.getMin(MeminfoParser.DALVIK_HEAP));
+        out.printf("Min PSS: %d\n", summary.getMin(MeminfoParser.PSS));
+        out.printf("P50 Native Heap: %d\n",
+                summary.getPercentile(MeminfoParser.NATIVE_HEAP, 50));
+        out.printf("P90 Native Heap: %d\n",
+                summary.getPercentile(MeminfoParser.NATIVE_HEAP, 90));
+        out.printf("P50 Dalvik Heap: %d\n",
+                summary.getPercentile(MeminfoParser.DALVIK_HEAP, 50));
+        out.printf("P90 Dalvik Heap: %d\n",
+                summary.getPercentile(MeminfoParser.DALVIK_HEAP, 90));
+        out.printf("P50 PSS: %d\n", summary.getPercentile(MeminfoParser.PSS, 50));
+        out.printf("P90 PSS: %d\n", summary.getPercentile(MeminfoParser.PSS, 90));
     }
 
     public static String getMeminfoOutput(Instrumentation instr, String processName)
@@ -498,24 +277,4 @@ class MemHealthRecord {
         baos.close();
         return baos.toString();
     }
-
-    private static Map<String, List<MemHealthRecord>> getRecordMap(
-            Collection<MemHealthRecord> allRecords,
-            boolean inForeground) {
-
-        Map<String, List<MemHealthRecord>> records = new HashMap<>();
-
-        for (MemHealthRecord record : allRecords) {
-            if (record.mInForeground == inForeground) {
-                if (!records.containsKey(record.mProcName)) {
-                    records.put(record.mProcName, new ArrayList<MemHealthRecord>());
-                }
-
-                records.get(record.mProcName).add(record);
-            }
-        }
-
-        return records;
-    }
-
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import java.util.Arrays;
+
+/**
+ * Reads the fields of a dumpsys meminfo output in a single pass over its lines.
+ *
+ * <p>A field is a number in the columns following a label at the start of a line, e.g. the
+ * private dirty column of the "Native Heap" row of the table, or the value of "Native Heap:" in
+ * the App Summary. The first occurrence of each field is kept, and missing fields are -1. The
+ * overall PSS of the App Summary is read from "TOTAL:", or from "TOTAL PSS:" in newer outputs.
+ */
+class MeminfoParser {
+    static final int NATIVE_HEAP = 0;
+    static final int DALVIK_HEAP = 1;
+    static final int PSS = 2;
+    static final int SUMMARY_JAVA_HEAP = 3;
+    static final int SUMMARY_NATIVE_HEAP = 4;
+    static final int SUMMARY_CODE = 5;
+    static final int SUMMARY_STACK = 6;
+    static final int SUMMARY_GRAPHICS = 7;
+    static final int SUMMARY_OTHER = 8;
+    static final int SUMMARY_SYSTEM = 9;
+    static final int SUMMARY_OVERALL_PSS = 10;
+    static final int FIELD_COUNT = 11;
+
+    // The labels, the field of each label and the number of columns between the label and the
+    // field.
+    private static final String[] LABELS = {
+        "Native Heap", "Dalvik Heap", "TOTAL", "Java Heap:", "Native Heap:", "Code:", "Stack:",
+        "Graphics:", "Private Other:", "System:", "TOTAL:", "TOTAL PSS:",
+    };
+    private static final int[] FIELDS = {
+        NATIVE_HEAP, DALVIK_HEAP, PSS, SUMMARY_JAVA_HEAP, SUMMARY_NATIVE_HEAP, SUMMARY_CODE,
+        SUMMARY_STACK, SUMMARY_GRAPHICS, SUMMARY_OTHER, SUMMARY_SYSTEM, SUMMARY_OVERALL_PSS,
+        SUMMARY_OVERALL_PSS,
+    };
+    private static final int[] SKIPPED_COLUMNS = {1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private MeminfoParser() {}
+
+    /** Returns the fields of the output, indexed by their constants. */
+    static long[] parse(CharSequence meminfo) {
+        long[] fields = new long[FIELD_COUNT];
+        Arrays.fill(fields, -1);
+        int missing = FIELD_COUNT;
+        int length = meminfo.length();
+        int lineStart = 0;
+        while (lineStart < length && missing > 0) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && meminfo.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int labelStart = skipWhitespace(meminfo, lineStart, lineEnd);
+            for (int label = 0; label < LABELS.length; label++) {
+                int field = FIELDS[label];
+                if (fields[field] >= 0 || !startsWith(meminfo, labelStart, lineEnd, label)) {
+                    continue;
+                }
+                fields[field] = parseColumn(
+                        meminfo, labelStart + LABELS[label].length(), lineEnd,
+                        SKIPPED_COLUMNS[label]);
+                if (fields[field] >= 0) {
+                    missing--;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return fields;
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, int label) {
+        String literal = LABELS[label];
+        if (end - start < literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number in the column after {@code skipped} numeric columns, each preceded by
+     * whitespace, or -1 if the columns are not numbers.
+     */
+    private static long parseColumn(CharSequence text, int start, int end, int skipped) {
+        int position = start;
+        for (int column = 0; column <= skipped; column++) {
+            int digitsStart = skipWhitespace(text, position, end);
+            if (digitsStart == position) {
+                return -1;
+            }
+            long value = 0;
+            position = digitsStart;
+            while (position < end && isDigit(text.charAt(position))) {
+                value = value * 10 + (text.charAt(position) - '0');
+                position++;
+            }
+            if (position == digitsStart) {
+                return -1;
+            }
+            if (column == skipped) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipWhitespace(CharSequence text, int start, int end) {
+        int position = start;
+        while (position < end && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the PSS of processes from a procrank output in a single pass over its lines.
+ *
+ * <p>The header gives the columns between the PID and the cmdline, e.g. "PID Vss Rss Pss Uss
+ * cmdline", or with the swap columns of newer outputs. Each row is a PID, a number of kilobytes
+ * with a "K" suffix for each column, and the cmdline. The rows end at the "------" line before the
+ * totals. The PSS of the first row of a process is kept.
+ */
+class ProcrankParser {
+    private static final String PID_LABEL = "PID";
+    private static final String PSS_LABEL = "Pss";
+    private static final String CMDLINE_LABEL = "cmdline";
+
+    private ProcrankParser() {}
+
+    /**
+     * Returns the fields of the processes found in the output, in the layout of {@link
+     * MeminfoParser}. Only the PSS is read; the other fields are -1.
+     */
+    static Map<String, long[]> parse(CharSequence procrank, Collection<String> procNames) {
+        Set<String> missing = new HashSet<>(procNames);
+        Map<String, long[]> samples = new HashMap<>();
+        // The number of columns between the PID and the cmdline, and the one of the PSS.
+        int columns = -1;
+        int pssColumn = -1;
+        int length = procrank.length();
+        int lineStart = 0;
+        while (lineStart < length && !missing.isEmpty()) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && procrank.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int start = skipWhitespace(procrank, lineStart, lineEnd);
+            if (columns < 0) {
+                if (startsWith(procrank, start, lineEnd, PID_LABEL)) {
+                    int[] header = parseHeader(procrank, start, lineEnd);
+                    columns = header[0];
+                    pssColumn = header[1];
+                }
+            } else if (start < lineEnd && procrank.charAt(start) == '-') {
+                break;
+            } else if (pssColumn >= 0) {
+                parseRow(procrank, start, lineEnd, columns, pssColumn, missing, samples);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the number of columns between the PID and the cmdline, and the column of the PSS,
+     * from 1, or -1 if there is none.
+     */
+    private static int[] parseHeader(CharSequence text, int start, int end) {
+        int column = 0;
+        int pssColumn = -1;
+        int position = start + PID_LABEL.length();
+        while (true) {
+            int labelStart = skipWhitespace(text, position, end);
+            if (labelStart == end || startsWith(text, labelStart, end, CMDLINE_LABEL)) {
+                return new int[] {column, pssColumn};
+            }
+            position = skipLabel(text, labelStart, end);
+            column++;
+            if (position - labelStart == PSS_LABEL.length()
+                    && startsWith(text, labelStart, end, PSS_LABEL)) {
+                pssColumn = column;
+            }
+        }
+    }
+
+    /** Read the PSS of the row, if it is the first one of a process looked for. */
+    private static void parseRow(
+            CharSequence text,
+            int start,
+            int end,
+            int columns,
+            int pssColumn,
+            Set<String> missing,
+            Map<String, long[]> samples) {
+        int position = skipDigits(text, start, end);
+        if (position == start) {
+            return;
+        }
+        long pss = -1;
+        for (int column = 1; column <= columns; column++) {
+            int digitsStart = skipWhitespace(text, position, end);
+            if (digitsStart == position) {
+                return;
+            }
+            long value = 0;
+            position = digitsStart;
+            while (position < end && isDigit(text.charAt(position))) {
+                value = value * 10 + (text.charAt(position) - '0');
+                position++;
+            }
+            if (position == digitsStart) {
+                return;
+            }
+            if (position < end && text.charAt(position) == 'K') {
+                position++;
+            }
+            if (column == pssColumn) {
+                pss = value;
+            }
+        }
+        int cmdlineStart = skipWhitespace(text, position, end);
+        int cmdlineEnd = end;
+        while (cmdlineEnd > cmdlineStart
+                && Character.isWhitespace(text.charAt(cmdlineEnd - 1))) {
+            cmdlineEnd--;
+        }
+        String procName = text.subSequence(cmdlineStart, cmdlineEnd).toString();
+        if (missing.remove(procName)) {
+            long[] fields = new long[MeminfoParser.FIELD_COUNT];
+            Arrays.fill(fields, -1);
+            fields[MeminfoParser.PSS] = pss;
+            samples.put(procName, fields);
+        }
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, String literal) {
+        if (end - start < literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipDigits(CharSequence text, int start, int end) {
+        int position = start;
+        while (position < end && isDigit(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipLabel(CharSequence text, int start, int end) {
+        int position = start;
+        while (position < end && !Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipWhitespace(CharSequence text, int start, int end) {
+        int position = start;
+        while (position < end && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for the percentiles estimated by {@link Histogram}.
+ *
+ * <p>To run: atest AuptLibTests:android.support.test.aupt.HistogramTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class HistogramTest {
+    /** Test there is no percentile without values. */
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(-1, histogram.getPercentile(50));
+    }
+
+    /** Test the values below 32 are counted exactly. */
+    @Test
+    public void testSmallValues() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 10; value++) {
+            histogram.add(value);
+        }
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(9, histogram.getPercentile(90));
+        assertEquals(10, histogram.getPercentile(100));
+    }
+
+    /** Test the percentiles of many values are within 1/32 above them, and within the values. */
+    @Test
+    public void testLargeValues() {
+        Histogram histogram = new Histogram();
+        for (long value = 100000; value >= 1; value--) {
+            histogram.add(value * 10);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertWithinBucket(500000, histogram.getPercentile(50));
+        assertWithinBucket(900000, histogram.getPercentile(90));
+        assertWithinBucket(990000, histogram.getPercentile(99));
+        assertEquals(10, histogram.getPercentile(0));
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    /**
+     * Test the negative values are counted as 0, and the values beyond the buckets are estimated as
+     * the largest value.
+     */
+    @Test
+    public void testOutOfRangeValues() {
+        Histogram histogram = new Histogram();
+        histogram.add(-1);
+        histogram.add(1L << 50);
+        histogram.add(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected + " + 1/32", actual <= expected + expected / 32);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for the summaries and samples saved by {@link MemHealthRecord}.
+ *
+ * <p>To run: atest AuptLibTests:android.support.test.aupt.MemHealthRecordTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemHealthRecordTest {
+    private static final String LAUNCHER = "com.google.android.apps.nexuslauncher";
+    private static final String SYSTEMUI = "com.android.systemui";
+
+    private MemHealthRecord mRecord;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        long[] total = MeminfoParser.parse(MeminfoParserTest.readFixture("meminfo_total.txt"));
+        long[] totalPss =
+                MeminfoParser.parse(MeminfoParserTest.readFixture("meminfo_total_pss.txt"));
+        mRecord = new MemHealthRecord();
+        mRecord.add(LAUNCHER, 1000, true, total);
+        mRecord.add(SYSTEMUI, 1000, false, totalPss);
+        mRecord.add(LAUNCHER, 2000, true, totalPss);
+        mRecord.add(LAUNCHER, 3000, false, total);
+        mOutput = File.createTempFile("memory-health", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        mOutput.delete();
+    }
+
+    /**
+     * Test the averages, peaks, minima and percentiles of each process, in the foreground and in
+     * the background, in the order the processes were first sampled. The percentiles are rounded
+     * up to the end of their histogram bucket.
+     */
+    @Test
+    public void testSaveVerbose() throws IOException {
+        mRecord.saveVerbose(mOutput.getPath());
+
+        assertEquals(
+                Arrays.asList(
+                        "Foreground",
+                        LAUNCHER,
+                        "Average Native Heap: 28108",
+                        "Average Dalvik Heap: 11102",
+                        "Average PSS: 129518",
+                        "Peak Native Heap: 32364",
+                        "Peak Dalvik Heap: 13792",
+                        "Peak PSS: 147774",
+                        "Count 2",
+                        "Average Summary Java Heap: 18978",
+                        "Average Summary Native Heap: 28108",
+                        "Average Summary Code: 22692",
+                        "Average Summary Stack: 498",
+                        "Average Summary Graphics: 46810",
+                        "Average Summary Other: 4706",
+                        "Average Summary System: 7870",
+                        "Average Summary Overall Pss: 129518",
+                        "Min Native Heap: 23852",
+                        "Min Dalvik Heap: 8412",
+                        "Min PSS: 111263",
+                        "P50 Native Heap: 24063",
+                        "P90 Native Heap: 32364",
+                        "P50 Dalvik Heap: 8447",
+                        "P90 Dalvik Heap: 13792",
+                        "P50 PSS: 112639",
+                        "P90 PSS: 147774",
+                        "Background",
+                        SYSTEMUI,
+                        "Average Native Heap: 32364",
+                        "Average Dalvik Heap: 13792",
+                        "Average PSS: 147774",
+                        "Peak Native Heap: 32364",
+                        "Peak Dalvik Heap: 13792",
+                        "Peak PSS: 147774",
+                        "Count 1",
+                        "Average Summary Java Heap: 23056",
+                        "Average Summary Native Heap: 32364",
+                        "Average Summary Code: 23804",
+                        "Average Summary Stack: 932",
+                        "Average Summary Graphics: 52660",
+                        "Average Summary Other: 6036",
+                        "Average Summary System: 9209",
+                        "Average Summary Overall Pss: 147774",
+                        "Min Native Heap: 32364",
+                        "Min Dalvik Heap: 13792",
+                        "Min PSS: 147774",
+                        "P50 Native Heap: 32364",
+                        "P90 Native Heap: 32364",
+                        "P50 Dalvik Heap: 13792",
+                        "P90 Dalvik Heap: 13792",
+                        "P50 PSS: 147774",
+                        "P90 PSS: 147774",
+                        LAUNCHER,
+                        "Average Native Heap: 23852",
+                        "Average Dalvik Heap: 8412",
+                        "Average PSS: 111263",
+                        "Peak Native Heap: 23852",
+                        "Peak Dalvik Heap: 8412",
+                        "Peak PSS: 111263",
+                        "Count 1",
+                        "Average Summary Java Heap: 14900",
+                        "Average Summary Native Heap: 23852",
+                        "Average Summary Code: 21580",
+                        "Average Summary Stack: 64",
+                        "Average Summary Graphics: 40960",
+                        "Average Summary Other: 3376",
+                        "Average Summary System: 6531",
+                        "Average Summary Overall Pss: 111263",
+                        "Min Native Heap: 23852",
+                        "Min Dalvik Heap: 8412",
+                        "Min PSS: 111263",
+                        "P50 Native Heap: 23852",
+                        "P90 Native Heap: 23852",
+                        "P50 Dalvik Heap: 8412",
+                        "P90 Dalvik Heap: 8412",
+                        "P50 PSS: 111263",
+                        "P90 PSS: 111263"),
+                Files.readAllLines(mOutput.toPath()));
+    }
+
+    /** Test the percentiles of many samples are within 1/32 above the exact percentiles. */
+    @Test
+    public void testPercentiles() throws IOException {
+        MemHealthRecord record = new MemHealthRecord();
+        for (int i = 1000; i >= 1; i--) {
+            record.add(SYSTEMUI, i, true, ProcrankParserTest.pssFields(i * 100));
+        }
+        record.saveVerbose(mOutput.getPath());
+
+        List<String> lines = Files.readAllLines(mOutput.toPath());
+        assertTrue(lines.contains("Min PSS: 100"));
+        assertTrue(lines.contains("Peak PSS: 100000"));
+        assertTrue(lines.contains("Average PSS: 50050"));
+        assertTrue(lines.contains("P50 PSS: 50175"));
+        assertTrue(lines.contains("P90 PSS: 90111"));
+    }
+
+    /** Test the heaps of the samples read from procrank are missing from the summaries. */
+    @Test
+    public void testProcrankSamples() throws IOException {
+        MemHealthRecord record = new MemHealthRecord();
+        record.add(SYSTEMUI, 1000, false, ProcrankParserTest.pssFields(147774));
+        record.add(SYSTEMUI, 2000, false, ProcrankParserTest.pssFields(111263));
+        record.saveVerbose(mOutput.getPath());
+        record.saveCsv(mOutput.getPath());
+
+        List<String> lines = Files.readAllLines(mOutput.toPath());
+        assertTrue(lines.contains("Average Native Heap: -1"));
+        assertTrue(lines.contains("Average PSS: 129518"));
+        assertTrue(lines.contains("Min Native Heap: -1"));
+        assertTrue(lines.contains("P50 Native Heap: -1"));
+        assertTrue(lines.contains("P50 PSS: 112639"));
+        assertTrue(lines.contains(SYSTEMUI + ",2000,-1,-1,background"));
+    }
+
+    /** Test every sample is saved, in the order it was recorded. */
+    @Test
+    public void testSaveCsv() throws IOException {
+        mRecord.saveCsv(mOutput.getPath());
+
+        assertEquals(
+                Arrays.asList(
+                        "name,time,native_heap,dalvik_heap,pss,context",
+                        LAUNCHER + ",1000,23852,8412,foreground",
+                        SYSTEMUI + ",1000,32364,13792,background",
+                        LAUNCHER + ",2000,32364,13792,foreground",
+                        LAUNCHER + ",3000,23852,8412,background"),
+                Files.readAllLines(mOutput.toPath()));
+    }
+
+    /** Test nothing is saved once the record is cleared. */
+    @Test
+    public void testClear() throws IOException {
+        mRecord.clear();
+        mRecord.saveVerbose(mOutput.getPath());
+        mRecord.saveCsv(mOutput.getPath());
+
+        assertEquals(
+                Arrays.asList(
+                        "Foreground", "Background", "name,time,native_heap,dalvik_heap,pss,context"),
+                Files.readAllLines(mOutput.toPath()));
+    }
+}
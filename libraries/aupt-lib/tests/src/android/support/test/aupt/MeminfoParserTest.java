@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link MeminfoParser} over dumpsys meminfo outputs.
+ *
+ * <p>To run: atest AuptLibTests:android.support.test.aupt.MeminfoParserTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class MeminfoParserTest {
+    // The fields of the fixtures, in the order of the MeminfoParser constants.
+    static final long[] TOTAL_FIELDS = {
+        23852, 8412, 111263, 14900, 23852, 21580, 64, 40960, 3376, 6531, 111263,
+    };
+    static final long[] TOTAL_PSS_FIELDS = {
+        32364, 13792, 147774, 23056, 32364, 23804, 932, 52660, 6036, 9209, 147774,
+    };
+
+    /** Test the fields of an output whose App Summary ends with "TOTAL:". */
+    @Test
+    public void testTotalSummary() throws IOException {
+        assertArrayEquals(
+                TOTAL_FIELDS, MeminfoParser.parse(readFixture("meminfo_total.txt")));
+    }
+
+    /** Test the fields of an output whose App Summary ends with "TOTAL PSS:" and "TOTAL RSS:". */
+    @Test
+    public void testTotalPssSummary() throws IOException {
+        assertArrayEquals(
+                TOTAL_PSS_FIELDS, MeminfoParser.parse(readFixture("meminfo_total_pss.txt")));
+    }
+
+    /** Test all the fields are missing from the output of a process which is not running. */
+    @Test
+    public void testMissingFields() {
+        long[] missing = new long[MeminfoParser.FIELD_COUNT];
+        Arrays.fill(missing, -1);
+        assertArrayEquals(
+                missing,
+                MeminfoParser.parse(
+                        "Applications Memory Usage (in Kilobytes):\n"
+                                + "Uptime: 8132471 Realtime: 8132471\n"
+                                + "No process found for: com.android.missing\n"));
+    }
+
+    /** Returns the content of a meminfo fixture. */
+    static String readFixture(String name) throws IOException {
+        return readResource("/meminfo/" + name);
+    }
+
+    /** Returns the content of a fixture of the test resources. */
+    static String readResource(String path) throws IOException {
+        try (InputStream in = MeminfoParserTest.class.getResourceAsStream(path)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+}
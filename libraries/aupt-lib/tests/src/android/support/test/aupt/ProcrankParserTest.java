@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.test.aupt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ProcrankParser} over procrank outputs.
+ *
+ * <p>To run: atest AuptLibTests:android.support.test.aupt.ProcrankParserTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcrankParserTest {
+    private static final String LAUNCHER = "com.google.android.apps.nexuslauncher";
+    private static final String SYSTEMUI = "com.android.systemui";
+
+    /** Test the PSS of the processes of an output with the swap columns. */
+    @Test
+    public void testSwapColumns() throws IOException {
+        Map<String, long[]> samples =
+                ProcrankParser.parse(
+                        readFixture("procrank.txt"),
+                        Arrays.asList(LAUNCHER, SYSTEMUI, "/system/bin/surfaceflinger"));
+
+        assertEquals(3, samples.size());
+        assertArrayEquals(pssFields(147774), samples.get(SYSTEMUI));
+        // The first row of the launcher, not the one of its other process or of its wallpaper.
+        assertArrayEquals(pssFields(111263), samples.get(LAUNCHER));
+        assertArrayEquals(pssFields(2150), samples.get("/system/bin/surfaceflinger"));
+    }
+
+    /** Test the PSS of the processes of an output without the swap columns. */
+    @Test
+    public void testNoSwapColumns() {
+        Map<String, long[]> samples =
+                ProcrankParser.parse(
+                        "  PID       Vss      Rss      Pss      Uss  cmdline\n"
+                                + " 1563  1396580K  305024K  147774K  128604K  " + SYSTEMUI + "\n"
+                                + " 2204  1389354K  231784K  111263K   96244K  " + LAUNCHER + "\n"
+                                + "                          ------   ------  ------\n"
+                                + "                          259037K  224848K  TOTAL\n",
+                        Arrays.asList(LAUNCHER, SYSTEMUI));
+
+        assertEquals(2, samples.size());
+        assertArrayEquals(pssFields(147774), samples.get(SYSTEMUI));
+        assertArrayEquals(pssFields(111263), samples.get(LAUNCHER));
+    }
+
+    /** Test the processes which are not running, and the totals, are not read. */
+    @Test
+    public void testMissingProcesses() throws IOException {
+        assertTrue(
+                ProcrankParser.parse(
+                                readFixture("procrank.txt"),
+                                Arrays.asList("com.android.missing", "TOTAL"))
+                        .isEmpty());
+        assertTrue(
+                ProcrankParser.parse("procrank: not found\n", Collections.singletonList(SYSTEMUI))
+                        .isEmpty());
+    }
+
+    /** Returns the fields read from procrank for a process of the given PSS. */
+    static long[] pssFields(long pss) {
+        long[] fields = new long[MeminfoParser.FIELD_COUNT];
+        Arrays.fill(fields, -1);
+        fields[MeminfoParser.PSS] = pss;
+        return fields;
+    }
+
+    private static String readFixture(String name) throws IOException {
+        return MeminfoParserTest.readResource("/procrank/" + name);
+    }
+}
@@ -26,10 +26,8 @@ import com.android.server.am.nano.MemInfoDumpProto;
 
 import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -100,7 +98,7 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
         final String cmd = String.format(DUMPSYS_MEMINFO_CMD, processName);
         ParcelFileDescriptor pfd = mUiAutomation.executeShellCommand(cmd);
         try (FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
-            return readInputStreamFully(fis);
+            return ShellCommandExecutor.readFully(fis);
         } catch (IOException e) {
             Log.e(TAG, "Failed to execute command. " + cmd, e);
             return null;
@@ -176,20 +174,4 @@ public class DumpsysMeminfoHelper implements ICollectorHelper<Long> {
                         METRIC_SOURCE, heapName, metricName, METRIC_UNIT, processName),
                 value);
     }
-
-    /** Copied from {@link com.android.compatibility.common.util.FileUtils#readInputStreamFully}. */
-    private static byte[] readInputStreamFully(InputStream is) {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        byte[] buffer = new byte[32768];
-        int count;
-        try {
-            while ((count = is.read(buffer)) != -1) {
-                os.write(buffer, 0, count);
-            }
-            is.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return os.toByteArray();
-    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the snapshots written by {@link MemorySnapshotWriter}.
+ *
+ * <p>Any snapshot can be reconstructed by replaying the deltas from the baseline. Sequential
+ * access only replays the deltas in between, so walking a whole run is linear in the file size.
+ * A snapshot left incomplete at the end of the file, e.g. when the device rebooted while writing,
+ * is ignored.
+ */
+public class MemorySnapshotReader {
+
+    /** Deltas of one snapshot. */
+    private static class Delta {
+        final long timestamp;
+        final List<Long> setKeys = new ArrayList<>();
+        final List<long[]> setValues = new ArrayList<>();
+        final List<Long> removedKeys = new ArrayList<>();
+
+        Delta(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final int mColumnCount;
+    private final List<String> mStrings = new ArrayList<>();
+    private final List<Delta> mDeltas = new ArrayList<>();
+
+    // Last reconstructed state, to make sequential access incremental.
+    private Map<Long, long[]> mState = new HashMap<>();
+    private int mStateIndex = -1;
+
+    private MemorySnapshotReader(int columnCount) {
+        mColumnCount = columnCount;
+    }
+
+    /**
+     * Read all the snapshots of the stream.
+     *
+     * @param in stream written by {@link MemorySnapshotWriter}.
+     */
+    public static MemorySnapshotReader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MemorySnapshotWriter.MAGIC) {
+            throw new IOException("Not a memory snapshot file.");
+        }
+        int version = data.readInt();
+        if (version != MemorySnapshotWriter.VERSION) {
+            throw new IOException("Unsupported memory snapshot version " + version);
+        }
+        MemorySnapshotReader reader = new MemorySnapshotReader(data.readInt());
+        reader.readRecords(data);
+        return reader;
+    }
+
+    /** Returns the number of values of each entry. */
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /** Returns the number of complete snapshots. */
+    public int getSnapshotCount() {
+        return mDeltas.size();
+    }
+
+    /** Returns the timestamp of the snapshot, in ms. */
+    public long getTimestamp(int index) {
+        return mDeltas.get(index).timestamp;
+    }
+
+    /**
+     * Reconstruct a snapshot.
+     *
+     * @param index snapshot index, 0 being the baseline.
+     * @return process name to object path to sizes.
+     */
+    public Map<String, Map<String, long[]>> getSnapshot(int index) {
+        Map<String, Map<String, long[]>> snapshot = new HashMap<>();
+        for (Map.Entry<Long, long[]> entry : replay(index).entrySet()) {
+            long key = entry.getKey();
+            snapshot.computeIfAbsent(mStrings.get((int) (key >>> 32)), k -> new HashMap<>())
+                    .put(mStrings.get((int) key), entry.getValue().clone());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the sizes of each process in the snapshot, summed over all its objects.
+     *
+     * @param index snapshot index, 0 being the baseline.
+     */
+    public Map<String, long[]> getProcessTotals(int index) {
+        Map<String, long[]> totals = new HashMap<>();
+        for (Map.Entry<Long, long[]> entry : replay(index).entrySet()) {
+            long[] processTotals = totals.computeIfAbsent(
+                    mStrings.get((int) (entry.getKey() >>> 32)), k -> new long[mColumnCount]);
+            long[] values = entry.getValue();
+            for (int i = 0; i < mColumnCount; i++) {
+                processTotals[i] += values[i];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Compute the growth of each process between two snapshots. Processes missing from one of
+     * the snapshots count as zero there.
+     *
+     * @param from index of the first snapshot.
+     * @param to index of the second snapshot.
+     * @param column index of the value to compare.
+     * @return process name to the difference of the value from {@code from} to {@code to}.
+     */
+    public Map<String, Long> getGrowth(int from, int to, int column) {
+        Map<String, long[]> fromTotals = getProcessTotals(from);
+        Map<String, long[]> toTotals = getProcessTotals(to);
+        Set<String> processes = new HashSet<>(fromTotals.keySet());
+        processes.addAll(toTotals.keySet());
+        Map<String, Long> growth = new HashMap<>();
+        for (String process : processes) {
+            long[] fromValues = fromTotals.get(process);
+            long[] toValues = toTotals.get(process);
+            growth.put(process, (toValues == null ? 0 : toValues[column])
+                    - (fromValues == null ? 0 : fromValues[column]));
+        }
+        return growth;
+    }
+
+    /** Returns the state after applying the deltas up to {@code index}. Not to be modified. */
+    private Map<Long, long[]> replay(int index) {
+        if (index < 0 || index >= mDeltas.size()) {
+            throw new IndexOutOfBoundsException("No snapshot " + index);
+        }
+        if (index < mStateIndex) {
+            mState = new HashMap<>();
+            mStateIndex = -1;
+        }
+        while (mStateIndex < index) {
+            Delta delta = mDeltas.get(++mStateIndex);
+            for (Long key : delta.removedKeys) {
+                mState.remove(key);
+            }
+            for (int i = 0; i < delta.setKeys.size(); i++) {
+                mState.put(delta.setKeys.get(i), delta.setValues.get(i));
+            }
+        }
+        return mState;
+    }
+
+    private void readRecords(DataInputStream data) throws IOException {
+        Delta current = null;
+        try {
+            while (true) {
+                int tag = data.read();
+                if (tag < 0) {
+                    break;
+                }
+                switch (tag) {
+                    case MemorySnapshotWriter.TAG_STRING:
+                        int id = data.readInt();
+                        String value = data.readUTF();
+                        while (mStrings.size() <= id) {
+                            mStrings.add(null);
+                        }
+                        mStrings.set(id, value);
+                        break;
+                    case MemorySnapshotWriter.TAG_SNAPSHOT:
+                        current = new Delta(data.readLong());
+                        break;
+                    case MemorySnapshotWriter.TAG_SET:
+                        long setKey = readKey(data);
+                        long[] values = new long[mColumnCount];
+                        for (int i = 0; i < mColumnCount; i++) {
+                            values[i] = data.readLong();
+                        }
+                        current.setKeys.add(setKey);
+                        current.setValues.add(values);
+                        break;
+                    case MemorySnapshotWriter.TAG_REMOVE:
+                        current.removedKeys.add(readKey(data));
+                        break;
+                    case MemorySnapshotWriter.TAG_END:
+                        mDeltas.add(current);
+                        current = null;
+                        break;
+                    default:
+                        throw new IOException("Unknown memory snapshot record " + tag);
+                }
+            }
+        } catch (EOFException e) {
+            // Incomplete trailing snapshot, keep the complete ones.
+        }
+    }
+
+    private static long readKey(DataInputStream data) throws IOException {
+        long processId = data.readInt();
+        long objectId = data.readInt() & 0xffffffffL;
+        return (processId << 32) | objectId;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a series of memory snapshots as a baseline followed by per-mapping deltas.
+ *
+ * <p>A snapshot is a set of (process, object, sizes) entries, e.g. the showmap rows of every
+ * process or the pinned files of every pinner group. The first snapshot is written in full and
+ * every following snapshot only records the entries that were added, changed or removed since the
+ * previous one. Process and object names are interned and written once per file. Use
+ * {@link MemorySnapshotReader} to reconstruct any snapshot.
+ *
+ * <p>File format, all integers big endian:
+ * <pre>
+ * header:   int MAGIC, int VERSION, int column count
+ * records:  byte TAG_STRING   int id, UTF value
+ *           byte TAG_SNAPSHOT long timestamp
+ *           byte TAG_SET      int process id, int object id, long[column count] values
+ *           byte TAG_REMOVE   int process id, int object id
+ *           byte TAG_END
+ * </pre>
+ */
+public class MemorySnapshotWriter implements Closeable {
+
+    static final int MAGIC = 0x4d534e50;
+    static final int VERSION = 1;
+
+    static final byte TAG_STRING = 1;
+    static final byte TAG_SNAPSHOT = 2;
+    static final byte TAG_SET = 3;
+    static final byte TAG_REMOVE = 4;
+    static final byte TAG_END = 5;
+
+    private final DataOutputStream mOut;
+    private final int mColumnCount;
+
+    private final Map<String, Integer> mStringIds = new HashMap<>();
+    private final List<String> mPendingStrings = new ArrayList<>();
+    // Entries are keyed by (process id << 32 | object id).
+    private Map<Long, long[]> mPrevious = new HashMap<>();
+    private Map<Long, long[]> mCurrent = null;
+    private long mTimestamp;
+    private int mSnapshotCount = 0;
+
+    /**
+     * @param out stream to write the snapshots to.
+     * @param columnCount number of values of each entry.
+     */
+    public MemorySnapshotWriter(OutputStream out, int columnCount) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mColumnCount = columnCount;
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeInt(columnCount);
+    }
+
+    /**
+     * Start a new snapshot.
+     *
+     * @param timestamp time of the snapshot, in ms.
+     */
+    public void beginSnapshot(long timestamp) {
+        if (mCurrent != null) {
+            throw new IllegalStateException("Previous snapshot was not ended.");
+        }
+        mCurrent = new HashMap<>();
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Add the sizes of an object mapped by a process to the current snapshot. Sizes of entries
+     * added more than once for the same process and object are summed.
+     *
+     * @param process name of the process or group owning the object.
+     * @param object path of the mapped object.
+     * @param values sizes of the object, of the column count given at construction.
+     */
+    public void add(String process, String object, long[] values) {
+        if (mCurrent == null) {
+            throw new IllegalStateException("No snapshot was started.");
+        }
+        long key = ((long) intern(process) << 32) | (intern(object) & 0xffffffffL);
+        long[] sizes = mCurrent.get(key);
+        if (sizes == null) {
+            mCurrent.put(key, Arrays.copyOf(values, mColumnCount));
+            return;
+        }
+        for (int i = 0; i < mColumnCount && i < values.length; i++) {
+            sizes[i] += values[i];
+        }
+    }
+
+    /**
+     * Write the differences between the current and the previous snapshot.
+     *
+     * @return the number of entries that were written for this snapshot.
+     */
+    public int endSnapshot() throws IOException {
+        if (mCurrent == null) {
+            throw new IllegalStateException("No snapshot was started.");
+        }
+        for (String value : mPendingStrings) {
+            mOut.writeByte(TAG_STRING);
+            mOut.writeInt(mStringIds.get(value));
+            mOut.writeUTF(value);
+        }
+        mPendingStrings.clear();
+
+        int deltaCount = 0;
+        mOut.writeByte(TAG_SNAPSHOT);
+        mOut.writeLong(mTimestamp);
+        for (Map.Entry<Long, long[]> entry : mCurrent.entrySet()) {
+            long[] previous = mPrevious.remove(entry.getKey());
+            if (previous != null && Arrays.equals(previous, entry.getValue())) {
+                continue;
+            }
+            mOut.writeByte(TAG_SET);
+            writeKey(entry.getKey());
+            for (long value : entry.getValue()) {
+                mOut.writeLong(value);
+            }
+            deltaCount++;
+        }
+        // Whatever is left from the previous snapshot was unmapped.
+        for (Long key : mPrevious.keySet()) {
+            mOut.writeByte(TAG_REMOVE);
+            writeKey(key);
+            deltaCount++;
+        }
+        mOut.writeByte(TAG_END);
+        mOut.flush();
+
+        mPrevious = mCurrent;
+        mCurrent = null;
+        mSnapshotCount++;
+        return deltaCount;
+    }
+
+    /**
+     * Discard the current snapshot, if one was started and not ended, e.g. after a failure to
+     * collect or write it. The next snapshot is compared with the last one that was ended.
+     */
+    public void abortSnapshot() {
+        mCurrent = null;
+    }
+
+    /** Returns the number of snapshots written so far. */
+    public int getSnapshotCount() {
+        return mSnapshotCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeKey(long key) throws IOException {
+        mOut.writeInt((int) (key >>> 32));
+        mOut.writeInt((int) key);
+    }
+
+    private int intern(String value) {
+        Integer id = mStringIds.get(value);
+        if (id == null) {
+            id = mStringIds.size();
+            mStringIds.put(value, id);
+            mPendingStrings.add(value);
+        }
+        return id;
+    }
+}
@@ -23,6 +23,7 @@ import androidx.test.InstrumentationRegistry;
 import androidx.test.uiautomator.UiDevice;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
@@ -44,8 +45,11 @@ public class PinnerHelper implements ICollectorHelper<String> {
     public static final String TOTAL_FILE_COUNT_KEY = "pinner_total_files_count";
     public static final String OUTPUT_FILE_PATH_KEY = "pinner_output_file";
     public static final String PINNER_FILES_COUNT_SUFFIX = "files_count";
+    public static final String DELTA_FILE_EXTENSION = "msnp";
     private String mTestOutputDir = null;
     private String mTestOutputFile = null;
+    private boolean mDeltaSnapshots = false;
+    private MemorySnapshotWriter mSnapshotWriter;
 
     // Map to maintain pinned files memory usage.
     private Map<String, String> mPinnerMap = new HashMap<>();
@@ -62,8 +66,8 @@ public class PinnerHelper implements ICollectorHelper<String> {
         }
 
         File directory = new File(mTestOutputDir);
-        String filePath = String.format("%s/pinner_snapshot%d.txt", mTestOutputDir,
-                UUID.randomUUID().hashCode());
+        String filePath = String.format("%s/pinner_snapshot%d.%s", mTestOutputDir,
+                UUID.randomUUID().hashCode(), mDeltaSnapshots ? DELTA_FILE_EXTENSION : "txt");
         File file = new File(filePath);
 
         // Make sure directory exists and file does not
@@ -94,6 +98,16 @@ public class PinnerHelper implements ICollectorHelper<String> {
             return false;
         }
 
+        if (mDeltaSnapshots) {
+            try {
+                // One value per pinned file: its size in bytes.
+                mSnapshotWriter = new MemorySnapshotWriter(new FileOutputStream(file), 1);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Failed to open snapshot file %s", filePath), e);
+                return false;
+            }
+        }
+
         mTestOutputFile = filePath;
         return true;
     }
@@ -111,8 +125,8 @@ public class PinnerHelper implements ICollectorHelper<String> {
         }
 
         // Write the pinner output to a file and update the output metrics with the
-        // path to the file.
-        if (mTestOutputFile != null) {
+        // path to the file. Delta snapshots are written while parsing.
+        if (mTestOutputFile != null && mSnapshotWriter == null) {
             try {
                 FileWriter writer = new FileWriter(new File(mTestOutputFile), true);
                 storeToFile(mTestOutputFile, pinnerOutput, writer);
@@ -124,16 +138,49 @@ public class PinnerHelper implements ICollectorHelper<String> {
         }
 
         // Parse the per file memory usage and files count from the pinner details.
-        parseAndUpdatePinnerInfo(pinnerOutput);
+        if (mSnapshotWriter != null) {
+            mSnapshotWriter.beginSnapshot(System.currentTimeMillis());
+        }
+        try {
+            parseAndUpdatePinnerInfo(pinnerOutput);
+            if (mSnapshotWriter != null) {
+                mSnapshotWriter.endSnapshot();
+                mPinnerMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Failed to write output file %s", mTestOutputFile), e);
+        } finally {
+            // Keep the next snapshots working after a failure.
+            if (mSnapshotWriter != null) {
+                mSnapshotWriter.abortSnapshot();
+            }
+        }
 
         return mPinnerMap;
     }
 
     @Override
     public boolean stopCollecting() {
+        if (mSnapshotWriter != null) {
+            try {
+                mSnapshotWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Failed to close snapshot file %s", mTestOutputFile), e);
+            }
+            mSnapshotWriter = null;
+        }
         return true;
     }
 
+    /**
+     * Store the pinned files as a baseline followed by the changed files of every snapshot,
+     * see {@link MemorySnapshotWriter}, instead of the raw dumpsys output. Must be called before
+     * {@link #startCollecting()}.
+     */
+    public void setDeltaSnapshots(boolean deltaSnapshots) {
+        mDeltaSnapshots = deltaSnapshots;
+    }
+
     /**
      * Store dumpsys raw output in a text file.
      *
@@ -201,6 +248,10 @@ public class PinnerHelper implements ICollectorHelper<String> {
                 mPinnerMap.put(
                         String.format("%s_%s_bytes", headerName, pinnerDetails.get(0).trim()),
                         pinnerDetails.get(1).trim());
+                if (mSnapshotWriter != null) {
+                    addToSnapshot(headerName, pinnerDetails.get(0).trim(),
+                            pinnerDetails.get(1).trim());
+                }
                 currentHeaderFilesCount++;
                 totalFilesCount++;
             }
@@ -209,6 +260,15 @@ public class PinnerHelper implements ICollectorHelper<String> {
         mPinnerMap.put(String.format(TOTAL_FILE_COUNT_KEY), String.valueOf(totalFilesCount));
     }
 
+    /** Add one pinned file to the current delta snapshot. */
+    private void addToSnapshot(String headerName, String fileName, String size) {
+        try {
+            mSnapshotWriter.add(headerName, fileName, new long[] {Long.parseLong(size)});
+        } catch (NumberFormatException e) {
+            Log.w(TAG, String.format("Unexpected size %s for pinned file %s", size, fileName));
+        }
+    }
+
     /* Execute a shell command and return its output. */
     @VisibleForTesting
     public String executeShellCommand(String command) throws IOException {
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads process and memory information directly from procfs instead of running ps, pidof and
+ * showmap.
+ *
+ * <p>File content is read into one reusable buffer, so repeated snapshots do not allocate per
+ * process. The procfs root is configurable so the reader can be exercised against fixture
+ * directories on any Linux host.
+ */
+public class ProcfsMemoryReader {
+
+    private static final String SMAPS_ROLLUP = "smaps_rollup";
+    private static final String SMAPS = "smaps";
+    private static final String CMDLINE = "cmdline";
+    private static final String STAT = "stat";
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /** Basic information of a process found in procfs. */
+    public static class ProcessInfo {
+        public final int pid;
+        public final int ppid;
+        public final String name;
+
+        public ProcessInfo(int pid, int ppid, String name) {
+            this.pid = pid;
+            this.ppid = ppid;
+            this.name = name;
+        }
+    }
+
+    private final File mProcRoot;
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    // Number of valid bytes in mBuffer from the last read.
+    private int mLength;
+
+    public ProcfsMemoryReader() {
+        this(new File("/proc"));
+    }
+
+    public ProcfsMemoryReader(File procRoot) {
+        mProcRoot = procRoot;
+    }
+
+    /**
+     * List the user space processes. Kernel threads, which have an empty command line, are
+     * skipped like the bracketed entries of "ps -A".
+     *
+     * @return processes sorted by the order of the procfs directory listing.
+     */
+    public List<ProcessInfo> listProcesses() {
+        return listProcesses(listPids(), new ArrayList<>());
+    }
+
+    /**
+     * List the user space processes among the pids, e.g. listed by a shell which can see the
+     * processes of the other users when procfs is mounted with hidepid.
+     *
+     * @param pids pids of the processes to list.
+     * @param unreadablePids updated with the pids whose cmdline or stat cannot be read by the
+     *     instrumentation, see {@link #parseProcess} to read them otherwise.
+     * @return the readable processes, in the order of the pids.
+     */
+    public List<ProcessInfo> listProcesses(List<Integer> pids, List<Integer> unreadablePids) {
+        List<ProcessInfo> processes = new ArrayList<>();
+        for (int pid : pids) {
+            File processDir = new File(mProcRoot, Integer.toString(pid));
+            if (!read(new File(processDir, CMDLINE))) {
+                unreadablePids.add(pid);
+                continue;
+            }
+            String name = parseProcessName(mBuffer, mLength);
+            if (name == null) {
+                continue;
+            }
+            if (!read(new File(processDir, STAT))) {
+                unreadablePids.add(pid);
+                continue;
+            }
+            int ppid = parseParentPid(mBuffer, mLength);
+            if (ppid < 0) {
+                continue;
+            }
+            processes.add(new ProcessInfo(pid, ppid, name));
+        }
+        return processes;
+    }
+
+    /** List the pids visible to the instrumentation in procfs. */
+    public List<Integer> listPids() {
+        String[] entries = mProcRoot.list();
+        return entries == null ? new ArrayList<>() : parsePids(entries);
+    }
+
+    /** Returns the pids among the entries of a procfs directory listing. */
+    public static List<Integer> parsePids(String... entries) {
+        List<Integer> pids = new ArrayList<>();
+        for (String entry : entries) {
+            if (isNumeric(entry)) {
+                pids.add(Integer.parseInt(entry));
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Returns the process described by the content of its cmdline and stat files, or null for
+     * kernel threads and content which cannot be parsed, e.g. when the process has exited.
+     */
+    public static ProcessInfo parseProcess(int pid, byte[] cmdline, byte[] stat) {
+        String name = parseProcessName(cmdline, cmdline.length);
+        int ppid = parseParentPid(stat, stat.length);
+        return name == null || ppid < 0 ? null : new ProcessInfo(pid, ppid, name);
+    }
+
+    /**
+     * Read the memory totals of the process from smaps_rollup, or from smaps if the rollup is
+     * not available or the virtual size is needed, which the rollup does not report.
+     *
+     * @param pid process id.
+     * @param needVirtualSize whether {@link SmapsParser#VIRTUAL_SIZE} must be accounted.
+     * @param totals array updated with the totals in kB, see {@link SmapsParser}.
+     * @return false if the process memory information could not be read.
+     */
+    public boolean readSmaps(int pid, boolean needVirtualSize, long[] totals) {
+        File processDir = new File(mProcRoot, Integer.toString(pid));
+        boolean hasRead = !needVirtualSize && read(new File(processDir, SMAPS_ROLLUP));
+        if (!hasRead && !read(new File(processDir, SMAPS))) {
+            return false;
+        }
+        return SmapsParser.parse(mBuffer, mLength, totals) > 0;
+    }
+
+    /**
+     * Write the content of the last file read by {@link #readSmaps} to the stream.
+     */
+    public void writeLastRead(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Add the mappings of the last smaps read by {@link #readSmaps} to the snapshot writer.
+     */
+    public void addLastReadMappings(String process, MemorySnapshotWriter writer) {
+        SmapsParser.addMappings(mBuffer, mLength, process, writer);
+    }
+
+    /** Returns the base name of argv[0] in the cmdline, or null for kernel threads. */
+    private static String parseProcessName(byte[] cmdline, int length) {
+        int end = 0;
+        while (end < length && cmdline[end] != 0) {
+            end++;
+        }
+        int start = end;
+        while (start > 0 && cmdline[start - 1] != '/') {
+            start--;
+        }
+        return end > start ? new String(cmdline, start, end - start, StandardCharsets.UTF_8)
+                : null;
+    }
+
+    /** Returns the parent pid from the content of a stat file, or -1 on failure. */
+    private static int parseParentPid(byte[] stat, int length) {
+        // Format is "pid (comm) state ppid ...". comm may contain spaces and parentheses.
+        int pos = length - 1;
+        while (pos >= 0 && stat[pos] != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            return -1;
+        }
+        // Skip ") <state> ".
+        pos += 2;
+        while (pos < length && stat[pos] != ' ') {
+            pos++;
+        }
+        pos++;
+        if (pos >= length || stat[pos] < '0' || stat[pos] > '9') {
+            return -1;
+        }
+        int ppid = 0;
+        while (pos < length && stat[pos] >= '0' && stat[pos] <= '9') {
+            ppid = ppid * 10 + (stat[pos] - '0');
+            pos++;
+        }
+        return ppid;
+    }
+
+    /** Read the whole file into the shared buffer, growing it if needed. */
+    private boolean read(File file) {
+        mLength = 0;
+        try (FileInputStream is = new FileInputStream(file)) {
+            int count;
+            while ((count = is.read(mBuffer, mLength, mBuffer.length - mLength)) > 0) {
+                mLength += count;
+                if (mLength == mBuffer.length) {
+                    byte[] grown = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                    mBuffer = grown;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // Process exited or is not readable by the instrumentation.
+            mLength = 0;
+            return false;
+        }
+    }
+
+    private static boolean isNumeric(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,14 +20,20 @@ import static com.android.helpers.MetricUtility.constructKey;
 
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.uiautomator.UiDevice;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InputMismatchException;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -35,6 +41,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Helper to collect memory information for a list of processes from showmap.
@@ -47,9 +54,18 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
     public static final String ALL_PROCESSES_CMD = "ps -A";
     private static final String SHOWMAP_CMD = "showmap -v %d";
     private static final String CHILD_PROCESSES_CMD = "ps -A --ppid %d";
+    private static final String CAT_SMAPS_CMD =
+            "cat /proc/%1$d/smaps_rollup 2>/dev/null || cat /proc/%1$d/smaps";
+    private static final String CAT_FULL_SMAPS_CMD = "cat /proc/%d/smaps";
+    private static final String LIST_PROC_CMD = "ls /proc";
+    private static final String CAT_CMDLINE_CMD = "cat /proc/%d/cmdline";
+    private static final String CAT_STAT_CMD = "cat /proc/%d/stat";
+    private static final String SHOWMAP_FLAGS_PATTERN = "[r-][w-][x-][ps-]";
+    private static final String SHOWMAP_TOTAL = "TOTAL";
 
     public static final String OUTPUT_METRIC_PATTERN = "showmap_%s_bytes";
     public static final String OUTPUT_FILE_PATH_KEY = "showmap_output_file";
+    public static final String DELTA_FILE_EXTENSION = "msnp";
     public static final String PROCESS_COUNT = "process_count";
     public static final String CHILD_PROCESS_COUNT_PREFIX = "child_processes_count";
     public static final String OUTPUT_CHILD_PROCESS_COUNT_KEY = CHILD_PROCESS_COUNT_PREFIX + "_%s";
@@ -62,7 +78,14 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
 
     private int mDropCacheOption;
     private boolean mCollectForAllProcesses = false;
+    private boolean mCollectShellLatency = false;
+    private boolean mUseProcfs = false;
+    private boolean mStoreRawDumps = true;
+    private boolean mDeltaSnapshots = false;
+    private MemorySnapshotWriter mSnapshotWriter;
     private UiDevice mUiDevice;
+    private ShellCommandExecutor mShellCommandExecutor;
+    private ProcfsMemoryReader mProcfsReader = new ProcfsMemoryReader();
 
     // Map to maintain per-process memory info
     private Map<String, String> mMemoryMap = new HashMap<>();
@@ -76,6 +99,8 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
         mTestOutputDir = testOutputDir;
         mDropCacheOption = 0;
         mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mShellCommandExecutor = new ShellCommandExecutor(
+                InstrumentationRegistry.getInstrumentation().getUiAutomation());
     }
 
     @Override
@@ -86,8 +111,9 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
         }
 
         File directory = new File(mTestOutputDir);
-        String filePath = String.format("%s/showmap_snapshot%d.txt", mTestOutputDir,
-                UUID.randomUUID().hashCode());
+        // Raw dumps read from procfs are compressed.
+        String filePath = String.format("%s/showmap_snapshot%d.%s", mTestOutputDir,
+                UUID.randomUUID().hashCode(), getOutputFileExtension());
         File file = new File(filePath);
 
         // Make sure directory exists and file does not
@@ -104,6 +130,12 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
             }
         }
 
+        // Delta snapshots are stored even without the raw dumps, which they replace.
+        if (!mStoreRawDumps && !mDeltaSnapshots) {
+            mTestOutputFile = null;
+            return true;
+        }
+
         // Create an empty file to fail early in case there are no write permissions
         try {
             if (!file.createNewFile()) {
@@ -117,10 +149,27 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
             return false;
         }
 
+        if (mDeltaSnapshots) {
+            try {
+                mSnapshotWriter = new MemorySnapshotWriter(new FileOutputStream(file),
+                        SmapsParser.COLUMN_COUNT);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Failed to open snapshot file %s", filePath), e);
+                return false;
+            }
+        }
+
         mTestOutputFile = filePath;
         return true;
     }
 
+    private String getOutputFileExtension() {
+        if (mDeltaSnapshots) {
+            return DELTA_FILE_EXTENSION;
+        }
+        return mUseProcfs ? "txt.gz" : "txt";
+    }
+
     @Override
     public Map<String, String> getMetrics() {
         try {
@@ -129,6 +178,11 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
                 dropCache(mDropCacheOption);
             }
 
+            if (mUseProcfs) {
+                collectFromProcfs();
+                return mMemoryMap;
+            }
+
             if (mCollectForAllProcesses) {
                 Log.i(TAG, "Collecting memory metrics for all processes.");
                 mProcessNames = getAllProcessNames();
@@ -138,48 +192,83 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
                 // No processes specified, just return empty map
                 return mMemoryMap;
             }
+            beginSnapshot();
 
-            FileWriter writer = new FileWriter(new File(mTestOutputFile), true);
+            // Raw showmap output is only stored as text when not stored as delta snapshots.
+            FileWriter writer = mStoreRawDumps && mSnapshotWriter == null
+                    ? new FileWriter(new File(mTestOutputFile), true) : null;
+            // Resolve the pids of all the processes through batched shell sessions.
+            List<String> pidofCommands = new ArrayList<>();
             for (String processName : mProcessNames) {
-                List<Integer> pids = new ArrayList<>();
+                pidofCommands.add(String.format(PIDOF_CMD, processName));
+            }
+            List<String> pidofOutputs = executeCommands(pidofCommands);
+            List<String> processNames = new ArrayList<>();
+            List<Integer> pids = new ArrayList<>();
+            for (int i = 0; i < mProcessNames.length; i++) {
+                try {
+                    for (Integer pid : parsePids(mProcessNames[i], pidofOutputs.get(i))) {
+                        processNames.add(mProcessNames[i]);
+                        pids.add(pid);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, e.getMessage(), e.getCause());
+                    // Skip this process and continue with the next one
+                    continue;
+                }
+            }
 
-                // Collect required data
+            // Run showmap and the child processes command for every pid in one go. Outputs are
+            // interleaved as [showmap pid0, ps pid0, showmap pid1, ps pid1, ...].
+            List<String> pidCommands = new ArrayList<>();
+            for (Integer pid : pids) {
+                pidCommands.add(String.format(SHOWMAP_CMD, pid));
+                pidCommands.add(String.format(CHILD_PROCESSES_CMD, pid));
+            }
+            List<String> pidOutputs = executeCommands(pidCommands);
+            for (int i = 0; i < pids.size(); i++) {
+                String processName = processNames.get(i);
+                int pid = pids.get(i);
                 try {
-                    pids = getPids(processName);
-                    for (Integer pid : pids) {
-                        String showmapOutput = execShowMap(processName, pid);
-                        parseAndUpdateMemoryInfo(processName, showmapOutput);
-                        // Store showmap output into file. If there are more than one process
-                        // with same name write the individual showmap associated with pid.
+                    String showmapOutput = pidOutputs.get(2 * i);
+                    parseAndUpdateMemoryInfo(processName, showmapOutput);
+                    // Store showmap output into file. If there are more than one process
+                    // with same name write the individual showmap associated with pid.
+                    if (writer != null) {
                         storeToFile(mTestOutputFile, processName, pid, showmapOutput, writer);
-                        // Parse number of child processes for the given pid and update the
-                        // total number of child process count for the process name that pid
-                        // is associated with.
-                        updateChildProcessesCount(processName, pid);
+                    } else if (mSnapshotWriter != null) {
+                        addShowmapMappings(processName, showmapOutput);
                     }
+                    // Parse number of child processes for the given pid and update the
+                    // total number of child process count for the process name that pid
+                    // is associated with.
+                    updateChildProcessesCount(processName, pid, pidOutputs.get(2 * i + 1));
                 } catch (RuntimeException e) {
                     Log.e(TAG, e.getMessage(), e.getCause());
                     // Skip this process and continue with the next one
                     continue;
                 }
             }
-            // To track total number of process with child processes.
-            if (mMemoryMap.size() != 0) {
-                Set<String> parentWithChildProcessSet = mMemoryMap.keySet()
-                        .stream()
-                        .filter(s -> s.startsWith(CHILD_PROCESS_COUNT_PREFIX))
-                        .collect(Collectors.toSet());
-                mMemoryMap.put(PROCESS_WITH_CHILD_PROCESS_COUNT,
-                        Long.toString(parentWithChildProcessSet.size()));
-            }
+            addShellLatencyMetrics();
+            updateProcessWithChildProcessCount();
             // Store the unique process count. -1 to exclude the "ps" process name.
             mMemoryMap.put(PROCESS_COUNT, Integer.toString(mProcessNames.length - 1));
-            writer.close();
-            mMemoryMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
+            if (writer != null) {
+                writer.close();
+            }
+            endSnapshot();
+            if (mTestOutputFile != null) {
+                mMemoryMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
+            }
         } catch (RuntimeException e) {
             Log.e(TAG, e.getMessage(), e.getCause());
         } catch (IOException e) {
             Log.e(TAG, String.format("Failed to write output file %s", mTestOutputFile), e);
+        } finally {
+            // Drop the snapshot of a failed collection, so that the next ones can still start.
+            if (mSnapshotWriter != null) {
+                mSnapshotWriter.abortSnapshot();
+            }
         }
 
         return mMemoryMap;
@@ -187,9 +276,268 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
 
     @Override
     public boolean stopCollecting() {
+        if (mShellCommandExecutor != null) {
+            mShellCommandExecutor.shutdown();
+        }
+        if (mSnapshotWriter != null) {
+            try {
+                mSnapshotWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Failed to close snapshot file %s", mTestOutputFile), e);
+            }
+            mSnapshotWriter = null;
+        }
+        return true;
+    }
+
+    /** Start a snapshot, if delta snapshots are enabled. */
+    private void beginSnapshot() {
+        if (mSnapshotWriter != null) {
+            mSnapshotWriter.beginSnapshot(System.currentTimeMillis());
+        }
+    }
+
+    /** Write the delta of the current snapshot, if delta snapshots are enabled. */
+    private void endSnapshot() throws IOException {
+        if (mSnapshotWriter != null) {
+            int deltaCount = mSnapshotWriter.endSnapshot();
+            Log.i(TAG, String.format("Stored %d changed mappings in snapshot %d", deltaCount,
+                    mSnapshotWriter.getSnapshotCount()));
+        }
+    }
+
+    /**
+     * Add every mapping row of the showmap -v output to the current delta snapshot.
+     *
+     * @param processName name of the process
+     * @param showmapOutput showmap command output
+     */
+    private void addShowmapMappings(String processName, String showmapOutput) {
+        // Rows are the summary columns followed by optional flags and the object name.
+        // 4 0 0 0 0 0 0 0 0 r--p /system/lib64/libc.so
+        long[] sizes = new long[SmapsParser.COLUMN_COUNT];
+        for (String line : showmapOutput.split("\\n")) {
+            String[] tokens = line.trim().split("\\s+");
+            int numberCount = 0;
+            while (numberCount < tokens.length && isNumber(tokens[numberCount])) {
+                numberCount++;
+            }
+            if (numberCount < SmapsParser.COLUMN_COUNT || numberCount == tokens.length) {
+                // Header, separator or incomplete line.
+                continue;
+            }
+            int objectStart = numberCount;
+            if (tokens[objectStart].matches(SHOWMAP_FLAGS_PATTERN)
+                    && objectStart + 1 < tokens.length) {
+                objectStart++;
+            }
+            String object = String.join(" ",
+                    Arrays.copyOfRange(tokens, objectStart, tokens.length));
+            if (SHOWMAP_TOTAL.equals(object)) {
+                continue;
+            }
+            for (int i = 0; i < SmapsParser.COLUMN_COUNT; i++) {
+                sizes[i] = Long.parseLong(tokens[i]);
+            }
+            mSnapshotWriter.add(processName, object, sizes);
+        }
+    }
+
+    private static boolean isNumber(String token) {
+        if (token.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (!Character.isDigit(token.charAt(i))) {
+                return false;
+            }
+        }
         return true;
     }
 
+    /**
+     * Collect the memory metrics by reading procfs. Processes whose smaps cannot be read by the
+     * instrumentation are read through one batched shell session instead.
+     */
+    private void collectFromProcfs() throws IOException {
+        Set<String> requestedNames = mCollectForAllProcesses ? null
+                : new HashSet<>(Arrays.asList(mProcessNames));
+        if (requestedNames != null && requestedNames.isEmpty()) {
+            // No processes specified, just return empty map
+            return;
+        }
+        List<ProcfsMemoryReader.ProcessInfo> processes = listProcfsProcesses();
+        if (processes.isEmpty()) {
+            Log.e(TAG, "Unable to list the processes in procfs.");
+            return;
+        }
+        beginSnapshot();
+
+        Map<Integer, Integer> childProcessCounts = new HashMap<>();
+        for (ProcfsMemoryReader.ProcessInfo process : processes) {
+            childProcessCounts.merge(process.ppid, 1, Integer::sum);
+        }
+
+        // Delta snapshots need the individual mappings, which only the full smaps has.
+        boolean needFullSmaps = mMetricNameIndexMap.containsKey(SmapsParser.VIRTUAL_SIZE)
+                || mSnapshotWriter != null;
+        Set<String> collectedNames = new HashSet<>();
+        List<ProcfsMemoryReader.ProcessInfo> unreadable = new ArrayList<>();
+        long[] totals = new long[SmapsParser.COLUMN_COUNT];
+        try (OutputStream rawDump = mStoreRawDumps && mSnapshotWriter == null
+                ? new GZIPOutputStream(new FileOutputStream(mTestOutputFile, true)) : null) {
+            for (ProcfsMemoryReader.ProcessInfo process : processes) {
+                if (requestedNames != null && !requestedNames.contains(process.name)) {
+                    continue;
+                }
+                collectedNames.add(process.name);
+                addChildProcessesCount(process.name,
+                        childProcessCounts.getOrDefault(process.pid, 0));
+                Arrays.fill(totals, 0);
+                if (!mProcfsReader.readSmaps(process.pid, needFullSmaps, totals)) {
+                    unreadable.add(process);
+                    continue;
+                }
+                updateMemoryInfo(process.name, totals);
+                if (mSnapshotWriter != null) {
+                    mProcfsReader.addLastReadMappings(process.name, mSnapshotWriter);
+                } else if (rawDump != null) {
+                    writeDumpHeader(rawDump, process.name, process.pid);
+                    mProcfsReader.writeLastRead(rawDump);
+                }
+            }
+
+            List<String> commands = new ArrayList<>();
+            for (ProcfsMemoryReader.ProcessInfo process : unreadable) {
+                commands.add(String.format(
+                        needFullSmaps ? CAT_FULL_SMAPS_CMD : CAT_SMAPS_CMD, process.pid));
+            }
+            List<String> outputs = executeCommands(commands);
+            for (int i = 0; i < unreadable.size(); i++) {
+                ProcfsMemoryReader.ProcessInfo process = unreadable.get(i);
+                byte[] smaps = outputs.get(i).getBytes(StandardCharsets.UTF_8);
+                Arrays.fill(totals, 0);
+                if (SmapsParser.parse(smaps, smaps.length, totals) == 0) {
+                    Log.w(TAG, String.format("Unable to read smaps of %s (%d)", process.name,
+                            process.pid));
+                    continue;
+                }
+                updateMemoryInfo(process.name, totals);
+                if (mSnapshotWriter != null) {
+                    SmapsParser.addMappings(smaps, smaps.length, process.name, mSnapshotWriter);
+                } else if (rawDump != null) {
+                    writeDumpHeader(rawDump, process.name, process.pid);
+                    rawDump.write(smaps);
+                }
+            }
+        }
+        addShellLatencyMetrics();
+        updateProcessWithChildProcessCount();
+        mMemoryMap.put(PROCESS_COUNT, Integer.toString(collectedNames.size()));
+        endSnapshot();
+        if (mTestOutputFile != null) {
+            mMemoryMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
+        }
+    }
+
+    /**
+     * List the processes in procfs. The pids are listed by the shell, which can see the
+     * processes of all the users when procfs is mounted with hidepid, and the cmdline and stat
+     * files the instrumentation cannot read are read through one batched shell session.
+     */
+    private List<ProcfsMemoryReader.ProcessInfo> listProcfsProcesses() {
+        List<Integer> pids = new ArrayList<>();
+        try {
+            pids = ProcfsMemoryReader.parsePids(
+                    mShellCommandExecutor.execute(LIST_PROC_CMD).split("\\s+"));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to list the processes in procfs through the shell.", e);
+        }
+        if (pids.isEmpty()) {
+            pids = mProcfsReader.listPids();
+        }
+
+        List<Integer> unreadablePids = new ArrayList<>();
+        List<ProcfsMemoryReader.ProcessInfo> processes =
+                mProcfsReader.listProcesses(pids, unreadablePids);
+        List<String> commands = new ArrayList<>();
+        for (int pid : unreadablePids) {
+            commands.add(String.format(CAT_CMDLINE_CMD, pid));
+            commands.add(String.format(CAT_STAT_CMD, pid));
+        }
+        List<String> outputs = executeCommands(commands);
+        for (int i = 0; i < unreadablePids.size(); i++) {
+            // Processes which exited since the listing have empty outputs and are skipped.
+            ProcfsMemoryReader.ProcessInfo process = ProcfsMemoryReader.parseProcess(
+                    unreadablePids.get(i),
+                    outputs.get(2 * i).getBytes(StandardCharsets.UTF_8),
+                    outputs.get(2 * i + 1).getBytes(StandardCharsets.UTF_8));
+            if (process != null) {
+                processes.add(process);
+            }
+        }
+        return processes;
+    }
+
+    /**
+     * Add the smaps totals of one pid to the metrics of the process with {@code processName}.
+     *
+     * @param processName name of the process
+     * @param totals sizes in kB indexed by the showmap summary columns
+     */
+    private void updateMemoryInfo(String processName, long[] totals) {
+        for (Map.Entry<Integer, String> entry : mMetricNameIndexMap.entrySet()) {
+            if (entry.getKey() < 0 || entry.getKey() >= totals.length) {
+                continue;
+            }
+            addMemoryMetric(processName, entry.getValue(), totals[entry.getKey()] * 1024);
+        }
+    }
+
+    /**
+     * Add the memory metric value, summing the values of all the pids with the same process
+     * name.
+     */
+    private void addMemoryMetric(String processName, String metricName, long bytes) {
+        String metricKey = constructKey(String.format(OUTPUT_METRIC_PATTERN, metricName),
+                processName);
+        String currValue = mMemoryMap.get(metricKey);
+        mMemoryMap.put(metricKey,
+                Long.toString(currValue == null ? bytes : Long.parseLong(currValue) + bytes));
+    }
+
+    private static void writeDumpHeader(OutputStream out, String processName, int pid)
+            throws IOException {
+        out.write(String.format(">>> %s (%d) <<<\n", processName, pid)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** To track total number of process with child processes. */
+    private void updateProcessWithChildProcessCount() {
+        if (mMemoryMap.size() != 0) {
+            Set<String> parentWithChildProcessSet = mMemoryMap.keySet()
+                    .stream()
+                    .filter(s -> s.startsWith(CHILD_PROCESS_COUNT_PREFIX))
+                    .collect(Collectors.toSet());
+            mMemoryMap.put(PROCESS_WITH_CHILD_PROCESS_COUNT,
+                    Long.toString(parentWithChildProcessSet.size()));
+        }
+    }
+
+    /**
+     * Report the shell latency of this collection and clear the counters so the next collection
+     * only reports its own commands.
+     */
+    private void addShellLatencyMetrics() {
+        if (mCollectShellLatency) {
+            for (Map.Entry<String, Long> entry :
+                    mShellCommandExecutor.getLatencyMetrics().entrySet()) {
+                mMemoryMap.put(entry.getKey(), Long.toString(entry.getValue()));
+            }
+        }
+        mShellCommandExecutor.resetLatencyMetrics();
+    }
+
     /**
      * Set drop cache option.
      *
@@ -220,46 +568,43 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
     }
 
     /**
-     * Get pid's of the process with {@code processName} name.
+     * Execute the given independent commands through the shared batched shell executor.
+     *
+     * @param commands shell commands to execute
+     * @return output of each command in the same order
+     */
+    private List<String> executeCommands(List<String> commands) throws RuntimeException {
+        try {
+            return mShellCommandExecutor.executeParallel(commands);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to execute showmap snapshot commands", e);
+        }
+    }
+
+    /**
+     * Parse pid's of the process with {@code processName} name from the pidof output.
      *
      * @param processName name of the process to get pid
+     * @param pidofOutput output of the pidof command for the process
      * @return pid's of the specified process
      */
-    private List<Integer> getPids(String processName) throws RuntimeException {
+    private List<Integer> parsePids(String processName, String pidofOutput)
+            throws RuntimeException {
         try {
-            String pidofOutput = mUiDevice
-                    .executeShellCommand(String.format(PIDOF_CMD, processName));
-
             // Sample output for the process with more than 1 pid.
             // Sample command : "pidof init"
             // Sample output : 1 559
-            String[] pids = pidofOutput.split("\\s+");
+            String[] pids = pidofOutput.trim().split("\\s+");
             List<Integer> pidList = new ArrayList<>();
             for (String pid : pids) {
                 pidList.add(Integer.parseInt(pid.trim()));
             }
             return pidList;
-        } catch (IOException e) {
+        } catch (NumberFormatException e) {
             throw new RuntimeException(String.format("Unable to get pid of %s ", processName), e);
         }
     }
 
-    /**
-     * Executes showmap command for the process with {@code processName} name and {@code pid} pid.
-     *
-     * @param processName name of the process to run showmap for
-     * @param pid pid of the process to run showmap for
-     * @return the output of showmap command
-     */
-    private String execShowMap(String processName, long pid) throws IOException {
-        try {
-            return mUiDevice.executeShellCommand(String.format(SHOWMAP_CMD, pid));
-        } catch (IOException e) {
-            throw new RuntimeException(
-                    String.format("Unable to execute showmap command for %s ", processName), e);
-        }
-    }
-
     /**
      * Extract memory metrics from showmap command output for the process with {@code processName}
      * name.
@@ -283,19 +628,10 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
             String summarySplit[] = showmapOutput.substring(pos).trim().split("\\s+");
 
             for (Map.Entry<Integer, String> entry : mMetricNameIndexMap.entrySet()) {
-                String metricKey = constructKey(
-                        String.format(OUTPUT_METRIC_PATTERN, entry.getValue()),
-                        processName);
-                // If there are multiple pids associated with the process name then update the
-                // existing entry in the map otherwise add new entry in the map.
-                if (mMemoryMap.containsKey(metricKey)) {
-                    long currValue = Long.parseLong(mMemoryMap.get(metricKey));
-                    mMemoryMap.put(metricKey, Long.toString(currValue +
-                            (Long.parseLong(summarySplit[entry.getKey() + 1]) * 1024)));
-                } else {
-                    mMemoryMap.put(metricKey, Long.toString(Long.parseLong(
-                            summarySplit[entry.getKey() + 1]) * 1024));
-                }
+                // If there are multiple pids associated with the process name then the existing
+                // entry in the map is updated, otherwise a new entry is added.
+                addMemoryMetric(processName, entry.getValue(),
+                        Long.parseLong(summarySplit[entry.getKey() + 1]) * 1024);
             }
         } catch (IndexOutOfBoundsException | InputMismatchException e) {
             throw new RuntimeException(
@@ -343,36 +679,83 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
     }
 
     /**
-     * Retrieves the number of child processes for the given process id and updates the total
+     * Parses the number of child processes for the given process id and updates the total
      * process count for the process name that pid is associated with.
      *
      * @param processName
      * @param pid
+     * @param childProcessesStr output of the child processes command for the pid
      */
-    private void updateChildProcessesCount(String processName, long pid) {
-        try {
-            Log.i(TAG,
-                    String.format("Retrieving child processes count for process name: %s with"
-                            + " process id %d.", processName, pid));
-            String childProcessesStr = mUiDevice
-                    .executeShellCommand(String.format(CHILD_PROCESSES_CMD, pid));
-            Log.i(TAG, String.format("Child processes cmd output: %s", childProcessesStr));
-            String[] childProcessStrSplit = childProcessesStr.split("\\n");
-            // To discard the header line in the command output.
-            int childProcessCount = childProcessStrSplit.length - 1;
-            String childCountMetricKey = String.format(OUTPUT_CHILD_PROCESS_COUNT_KEY, processName);
-
-            if (childProcessCount > 0) {
-                mMemoryMap.put(childCountMetricKey,
-                        Long.toString(
-                                Long.parseLong(mMemoryMap.getOrDefault(childCountMetricKey, "0"))
-                                        + childProcessCount));
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to run child process count command.", e);
+    private void updateChildProcessesCount(String processName, long pid,
+            String childProcessesStr) {
+        Log.i(TAG,
+                String.format("Retrieving child processes count for process name: %s with"
+                        + " process id %d.", processName, pid));
+        Log.i(TAG, String.format("Child processes cmd output: %s", childProcessesStr));
+        String[] childProcessStrSplit = childProcessesStr.split("\\n");
+        // To discard the header line in the command output.
+        addChildProcessesCount(processName, childProcessStrSplit.length - 1);
+    }
+
+    /**
+     * Add to the total child process count of the process name.
+     *
+     * @param processName
+     * @param childProcessCount number of child processes of one pid of the process
+     */
+    private void addChildProcessesCount(String processName, int childProcessCount) {
+        String childCountMetricKey = String.format(OUTPUT_CHILD_PROCESS_COUNT_KEY, processName);
+
+        if (childProcessCount > 0) {
+            mMemoryMap.put(childCountMetricKey,
+                    Long.toString(
+                            Long.parseLong(mMemoryMap.getOrDefault(childCountMetricKey, "0"))
+                                    + childProcessCount));
         }
     }
 
+    /**
+     * Enables reporting of the shell command latencies along with the memory metrics.
+     */
+    public void setCollectShellLatency(boolean collectShellLatency) {
+        mCollectShellLatency = collectShellLatency;
+    }
+
+    /**
+     * Read the memory information from procfs (smaps_rollup, falling back to smaps) instead of
+     * running showmap, and enumerate processes from procfs instead of ps. Must be called before
+     * {@link #startCollecting()}.
+     */
+    public void setUseProcfs(boolean useProcfs) {
+        mUseProcfs = useProcfs;
+    }
+
+    /**
+     * Whether the raw memory dumps are stored in the output file. Has no effect with delta
+     * snapshots, which are stored instead of the raw dumps. Must be called before
+     * {@link #startCollecting()}.
+     */
+    public void setStoreRawDumps(boolean storeRawDumps) {
+        mStoreRawDumps = storeRawDumps;
+    }
+
+    /**
+     * Store the memory dumps as a baseline followed by the changed mappings of every snapshot,
+     * see {@link MemorySnapshotWriter}, instead of the raw text dumps. Must be called before
+     * {@link #startCollecting()}.
+     */
+    public void setDeltaSnapshots(boolean deltaSnapshots) {
+        mDeltaSnapshots = deltaSnapshots;
+    }
+
+    /**
+     * Set the procfs reader. Exposed for testing.
+     */
+    @VisibleForTesting
+    public void setProcfsMemoryReader(ProcfsMemoryReader procfsReader) {
+        mProcfsReader = procfsReader;
+    }
+
     /**
      * Enables memory collection for all processes.
      */
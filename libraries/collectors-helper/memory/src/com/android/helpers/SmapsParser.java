@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the content of /proc/[pid]/smaps or /proc/[pid]/smaps_rollup into the totals reported
+ * by the showmap summary line.
+ *
+ * <p>The totals are accumulated in a long array indexed like the showmap summary columns, so the
+ * metric-name-index option of {@link ShowmapSnapshotHelper} (e.g. "rss:1,pss:2,privatedirty:6")
+ * maps to the same values. {@link #parse} works directly on the bytes and does not allocate.
+ */
+public final class SmapsParser {
+
+    // Columns of the showmap summary line.
+    public static final int VIRTUAL_SIZE = 0;
+    public static final int RSS = 1;
+    public static final int PSS = 2;
+    public static final int SHARED_CLEAN = 3;
+    public static final int SHARED_DIRTY = 4;
+    public static final int PRIVATE_CLEAN = 5;
+    public static final int PRIVATE_DIRTY = 6;
+    public static final int SWAP = 7;
+    public static final int SWAP_PSS = 8;
+    public static final int COLUMN_COUNT = 9;
+
+    public static final String ANONYMOUS_OBJECT = "[anon]";
+
+    // smaps field names in the same order as the columns above.
+    private static final byte[][] FIELD_NAMES = {
+        bytes("Size"),
+        bytes("Rss"),
+        bytes("Pss"),
+        bytes("Shared_Clean"),
+        bytes("Shared_Dirty"),
+        bytes("Private_Clean"),
+        bytes("Private_Dirty"),
+        bytes("Swap"),
+        bytes("SwapPss"),
+    };
+
+    private SmapsParser() {}
+
+    /**
+     * Add the sizes found in the smaps content to {@code totals}.
+     *
+     * @param buf smaps or smaps_rollup content.
+     * @param length number of valid bytes in {@code buf}.
+     * @param totals array of at least {@link #COLUMN_COUNT} entries updated with the sizes in kB.
+     * @return the number of fields that were accounted.
+     */
+    public static int parse(byte[] buf, int length, long[] totals) {
+        int fieldCount = 0;
+        int pos = 0;
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            // Field lines start with an upper case name, mapping header lines with an address.
+            if (buf[pos] >= 'A' && buf[pos] <= 'Z') {
+                int colon = pos;
+                while (colon < lineEnd && buf[colon] != ':') {
+                    colon++;
+                }
+                int column = findColumn(buf, pos, colon - pos);
+                if (column >= 0) {
+                    totals[column] += parseNumber(buf, colon + 1, lineEnd);
+                    fieldCount++;
+                }
+            }
+            pos = lineEnd + 1;
+        }
+        return fieldCount;
+    }
+
+    /**
+     * Add the sizes of every mapping of a full smaps file to the current snapshot of the writer.
+     * Mappings of the same object are summed, anonymous mappings are added as "[anon]".
+     *
+     * @param buf smaps content.
+     * @param length number of valid bytes in {@code buf}.
+     * @param process name of the process the smaps belongs to.
+     * @param writer snapshot writer with a started snapshot.
+     */
+    public static void addMappings(byte[] buf, int length, String process,
+            MemorySnapshotWriter writer) {
+        long[] sizes = new long[COLUMN_COUNT];
+        String object = null;
+        int pos = 0;
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (buf[pos] >= 'A' && buf[pos] <= 'Z') {
+                int colon = pos;
+                while (colon < lineEnd && buf[colon] != ':') {
+                    colon++;
+                }
+                int column = findColumn(buf, pos, colon - pos);
+                if (column >= 0 && object != null) {
+                    sizes[column] += parseNumber(buf, colon + 1, lineEnd);
+                }
+            } else if (lineEnd > pos) {
+                // Mapping header: "address perms offset dev inode [path]".
+                if (object != null) {
+                    writer.add(process, object, sizes);
+                    Arrays.fill(sizes, 0);
+                }
+                object = parseObject(buf, pos, lineEnd);
+            }
+            pos = lineEnd + 1;
+        }
+        if (object != null) {
+            writer.add(process, object, sizes);
+        }
+    }
+
+    /** Returns the path of the mapping header line in {@code buf[start, end)}. */
+    private static String parseObject(byte[] buf, int start, int end) {
+        int pos = start;
+        // Skip the address, perms, offset, dev and inode fields.
+        for (int field = 0; field < 5; field++) {
+            while (pos < end && buf[pos] != ' ') {
+                pos++;
+            }
+            while (pos < end && buf[pos] == ' ') {
+                pos++;
+            }
+        }
+        int objectEnd = end;
+        while (objectEnd > pos && (buf[objectEnd - 1] == ' ' || buf[objectEnd - 1] == '\r')) {
+            objectEnd--;
+        }
+        return objectEnd > pos ? new String(buf, pos, objectEnd - pos, StandardCharsets.UTF_8)
+                : ANONYMOUS_OBJECT;
+    }
+
+    /** Returns the column of the field name at {@code buf[start, start + length)} or -1. */
+    private static int findColumn(byte[] buf, int start, int length) {
+        for (int column = 0; column < FIELD_NAMES.length; column++) {
+            byte[] name = FIELD_NAMES[column];
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buf[start + i] == name[i]) {
+                i++;
+            }
+            if (i == length) {
+                return column;
+            }
+        }
+        return -1;
+    }
+
+    /** Parses the first decimal number in {@code buf[start, end)}, skipping leading spaces. */
+    private static long parseNumber(byte[] buf, int start, int end) {
+        int pos = start;
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+            pos++;
+        }
+        long value = 0;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            value = value * 10 + (buf[pos] - '0');
+            pos++;
+        }
+        return value;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
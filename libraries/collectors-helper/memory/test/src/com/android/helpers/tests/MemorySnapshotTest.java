@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.MemorySnapshotReader;
+import com.android.helpers.MemorySnapshotWriter;
+import com.android.helpers.SmapsParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link MemorySnapshotWriter} and {@link MemorySnapshotReader}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.MemorySnapshotTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemorySnapshotTest {
+
+    private static final String LIBC = "/system/lib64/libc.so";
+    private static final String HEAP = "[anon:libc_malloc]";
+
+    /** Test only the changed mappings are written after the baseline. */
+    @Test
+    public void testDeltasOnlyContainChanges() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, 2);
+
+        writer.beginSnapshot(1000);
+        writer.add("system_server", LIBC, new long[] {100, 50});
+        writer.add("system_server", HEAP, new long[] {2000, 2000});
+        writer.add("surfaceflinger", LIBC, new long[] {100, 40});
+        assertEquals(3, writer.endSnapshot());
+
+        writer.beginSnapshot(2000);
+        writer.add("system_server", LIBC, new long[] {100, 50});
+        writer.add("system_server", HEAP, new long[] {2500, 2500});
+        writer.add("surfaceflinger", LIBC, new long[] {100, 40});
+        assertEquals(1, writer.endSnapshot());
+
+        writer.beginSnapshot(3000);
+        writer.add("system_server", LIBC, new long[] {100, 50});
+        writer.add("system_server", HEAP, new long[] {2500, 2500});
+        assertEquals(1, writer.endSnapshot());
+        writer.close();
+
+        MemorySnapshotReader reader = read(out);
+        assertEquals(3, reader.getSnapshotCount());
+        assertEquals(2, reader.getColumnCount());
+        assertEquals(2000, reader.getTimestamp(1));
+
+        Map<String, Map<String, long[]>> baseline = reader.getSnapshot(0);
+        assertTrue(Arrays.equals(new long[] {2000, 2000}, baseline.get("system_server").get(HEAP)));
+        assertTrue(baseline.containsKey("surfaceflinger"));
+
+        Map<String, Map<String, long[]>> last = reader.getSnapshot(2);
+        assertTrue(Arrays.equals(new long[] {2500, 2500}, last.get("system_server").get(HEAP)));
+        assertFalse(last.containsKey("surfaceflinger"));
+
+        // Random access backwards replays from the baseline.
+        assertTrue(reader.getSnapshot(1).containsKey("surfaceflinger"));
+    }
+
+    /** Test an aborted snapshot is dropped and the next one is compared with the last ended. */
+    @Test
+    public void testAbortedSnapshot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, 1);
+        writer.beginSnapshot(1000);
+        writer.add("app", LIBC, new long[] {4});
+        writer.endSnapshot();
+
+        writer.beginSnapshot(2000);
+        writer.add("app", HEAP, new long[] {8});
+        writer.abortSnapshot();
+
+        writer.beginSnapshot(3000);
+        writer.add("app", LIBC, new long[] {4});
+        writer.add("app", HEAP, new long[] {16});
+        assertEquals(1, writer.endSnapshot());
+        writer.close();
+
+        MemorySnapshotReader reader = read(out);
+        assertEquals(2, reader.getSnapshotCount());
+        assertEquals(3000, reader.getTimestamp(1));
+        assertEquals(16, reader.getSnapshot(1).get("app").get(HEAP)[0]);
+    }
+
+    /** Test entries added more than once for the same object are summed. */
+    @Test
+    public void testSameObjectIsSummed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, 1);
+        writer.beginSnapshot(0);
+        writer.add("app", LIBC, new long[] {4});
+        writer.add("app", LIBC, new long[] {8});
+        writer.endSnapshot();
+        writer.close();
+
+        assertEquals(12, read(out).getSnapshot(0).get("app").get(LIBC)[0]);
+    }
+
+    /** Test the growth per process between two arbitrary snapshots. */
+    @Test
+    public void testGrowth() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, 1);
+        for (int i = 0; i < 10; i++) {
+            writer.beginSnapshot(i);
+            writer.add("leaky", HEAP, new long[] {100 + 10 * i});
+            writer.add("leaky", LIBC, new long[] {50});
+            writer.add("stable", HEAP, new long[] {70});
+            if (i >= 5) {
+                writer.add("late", HEAP, new long[] {30});
+            }
+            writer.endSnapshot();
+        }
+        writer.close();
+
+        MemorySnapshotReader reader = read(out);
+        Map<String, Long> growth = reader.getGrowth(2, 9, 0);
+        assertEquals(70L, (long) growth.get("leaky"));
+        assertEquals(0L, (long) growth.get("stable"));
+        assertEquals(30L, (long) growth.get("late"));
+        assertEquals(240L, reader.getProcessTotals(9).get("leaky")[0]);
+    }
+
+    /** Test an incomplete trailing snapshot is ignored. */
+    @Test
+    public void testTruncatedFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, 1);
+        writer.beginSnapshot(0);
+        writer.add("app", LIBC, new long[] {4});
+        writer.endSnapshot();
+        int completeLength = out.size();
+        writer.beginSnapshot(1);
+        writer.add("app", LIBC, new long[] {8});
+        writer.endSnapshot();
+        writer.close();
+
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), completeLength + 5);
+        MemorySnapshotReader reader =
+                MemorySnapshotReader.read(new ByteArrayInputStream(truncated));
+        assertEquals(1, reader.getSnapshotCount());
+    }
+
+    /** Test every smaps mapping is added to the snapshot under its object path. */
+    @Test
+    public void testAddSmapsMappings() throws IOException {
+        String smaps = "7000000000-7000001000 r--p 00000000 fd:00 1234    /system/lib64/libc.so\n"
+                + "Size:                  4 kB\n"
+                + "Rss:                   4 kB\n"
+                + "Pss:                   2 kB\n"
+                + "7000001000-7000002000 r-xp 00001000 fd:00 1234    /system/lib64/libc.so\n"
+                + "Size:                  4 kB\n"
+                + "Rss:                   4 kB\n"
+                + "Pss:                   1 kB\n"
+                + "7100000000-7100100000 rw-p 00000000 00:00 0\n"
+                + "Size:               1024 kB\n"
+                + "Rss:                 512 kB\n"
+                + "Pss:                 512 kB\n";
+        byte[] bytes = smaps.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemorySnapshotWriter writer = new MemorySnapshotWriter(out, SmapsParser.COLUMN_COUNT);
+        writer.beginSnapshot(0);
+        SmapsParser.addMappings(bytes, bytes.length, "app", writer);
+        writer.endSnapshot();
+        writer.close();
+
+        Map<String, long[]> mappings = read(out).getSnapshot(0).get("app");
+        assertEquals(2, mappings.size());
+        assertEquals(3, mappings.get(LIBC)[SmapsParser.PSS]);
+        assertEquals(1024, mappings.get(SmapsParser.ANONYMOUS_OBJECT)[SmapsParser.VIRTUAL_SIZE]);
+    }
+
+    private static MemorySnapshotReader read(ByteArrayOutputStream out) throws IOException {
+        return MemorySnapshotReader.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.ProcfsMemoryReader;
+import com.android.helpers.SmapsParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ProcfsMemoryReader} and {@link SmapsParser}. They only rely on procfs
+ * fixtures and run on any Linux host as well as on device.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.ProcfsMemoryReaderTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcfsMemoryReaderTest {
+
+    private static final String SMAPS_ROLLUP =
+            "12c00000-ffffffffff601000 ---p 00000000 00:00 0                          [rollup]\n"
+            + "Rss:              143204 kB\n"
+            + "Pss:               52131 kB\n"
+            + "Pss_Anon:          30480 kB\n"
+            + "Pss_File:          21592 kB\n"
+            + "Shared_Clean:      81236 kB\n"
+            + "Shared_Dirty:      12960 kB\n"
+            + "Private_Clean:      7880 kB\n"
+            + "Private_Dirty:     41128 kB\n"
+            + "Referenced:       139124 kB\n"
+            + "Anonymous:         41680 kB\n"
+            + "Swap:               1024 kB\n"
+            + "SwapPss:             512 kB\n"
+            + "Locked:                0 kB\n";
+
+    private static final String SMAPS =
+            "5e4f2b3000-5e4f2b5000 r--p 00000000 fd:00 1234                       /system/bin/app\n"
+            + "Size:                  8 kB\n"
+            + "Rss:                   8 kB\n"
+            + "Pss:                   4 kB\n"
+            + "Shared_Clean:          8 kB\n"
+            + "Private_Dirty:         0 kB\n"
+            + "VmFlags: rd mr mw me dw\n"
+            + "7ffd1c2a1000-7ffd1c2c2000 rw-p 00000000 00:00 0                          [stack]\n"
+            + "Size:                132 kB\n"
+            + "Rss:                  20 kB\n"
+            + "Pss:                  20 kB\n"
+            + "Private_Dirty:        20 kB\n"
+            + "Swap:                  4 kB\n"
+            + "SwapPss:               4 kB\n"
+            + "VmFlags: rd wr mr mw me gd ac\n";
+
+    private File mProcRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mProcRoot = Files.createTempDirectory("proc").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mProcRoot);
+    }
+
+    /** Test the rollup totals are mapped to the showmap summary columns. */
+    @Test
+    public void testParseSmapsRollup() {
+        long[] totals = parse(SMAPS_ROLLUP);
+        assertEquals(0, totals[SmapsParser.VIRTUAL_SIZE]);
+        assertEquals(143204, totals[SmapsParser.RSS]);
+        assertEquals(52131, totals[SmapsParser.PSS]);
+        assertEquals(81236, totals[SmapsParser.SHARED_CLEAN]);
+        assertEquals(12960, totals[SmapsParser.SHARED_DIRTY]);
+        assertEquals(7880, totals[SmapsParser.PRIVATE_CLEAN]);
+        assertEquals(41128, totals[SmapsParser.PRIVATE_DIRTY]);
+        assertEquals(1024, totals[SmapsParser.SWAP]);
+        assertEquals(512, totals[SmapsParser.SWAP_PSS]);
+    }
+
+    /** Test the per mapping sizes of smaps are summed up. */
+    @Test
+    public void testParseSmaps() {
+        long[] totals = parse(SMAPS);
+        assertEquals(140, totals[SmapsParser.VIRTUAL_SIZE]);
+        assertEquals(28, totals[SmapsParser.RSS]);
+        assertEquals(24, totals[SmapsParser.PSS]);
+        assertEquals(8, totals[SmapsParser.SHARED_CLEAN]);
+        assertEquals(20, totals[SmapsParser.PRIVATE_DIRTY]);
+        assertEquals(4, totals[SmapsParser.SWAP]);
+        assertEquals(4, totals[SmapsParser.SWAP_PSS]);
+    }
+
+    /** Test nothing is accounted for content that is not smaps. */
+    @Test
+    public void testParseInvalid() {
+        long[] totals = new long[SmapsParser.COLUMN_COUNT];
+        byte[] content =
+                "cat: /proc/1/smaps: Permission denied\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(0, SmapsParser.parse(content, content.length, totals));
+    }
+
+    /** Test processes are listed from procfs and kernel threads are skipped. */
+    @Test
+    public void testListProcesses() throws IOException {
+        createProcess(1, 0, "/system/bin/init\0second_stage\0", "init");
+        createProcess(2, 0, "", "kthreadd");
+        createProcess(450, 1, "system_server\0", "system_server");
+        createProcess(1200, 450, "com.android.systemui\0", "ndroid.systemui) R (x");
+
+        List<ProcfsMemoryReader.ProcessInfo> processes =
+                new ProcfsMemoryReader(mProcRoot).listProcesses();
+        assertEquals(3, processes.size());
+        for (ProcfsMemoryReader.ProcessInfo process : processes) {
+            switch (process.pid) {
+                case 1:
+                    assertEquals("init", process.name);
+                    assertEquals(0, process.ppid);
+                    break;
+                case 450:
+                    assertEquals("system_server", process.name);
+                    assertEquals(1, process.ppid);
+                    break;
+                case 1200:
+                    assertEquals("com.android.systemui", process.name);
+                    assertEquals(450, process.ppid);
+                    break;
+                default:
+                    throw new AssertionError("Unexpected pid " + process.pid);
+            }
+        }
+    }
+
+    /**
+     * Test pids listed by the shell are read in procfs, and the ones hidden from the
+     * instrumentation are reported as unreadable.
+     */
+    @Test
+    public void testListProcessesOfPids() throws IOException {
+        createProcess(1, 0, "/system/bin/init\0second_stage\0", "init");
+        createProcess(2, 0, "", "kthreadd");
+        List<Integer> unreadablePids = new ArrayList<>();
+
+        List<ProcfsMemoryReader.ProcessInfo> processes =
+                new ProcfsMemoryReader(mProcRoot).listProcesses(
+                        ProcfsMemoryReader.parsePids("1", "2", "450", "self", "meminfo"),
+                        unreadablePids);
+        assertEquals(1, processes.size());
+        assertEquals(1, processes.get(0).pid);
+        assertEquals(Arrays.asList(450), unreadablePids);
+    }
+
+    /** Test the cmdline and stat read through the shell are parsed like the procfs files. */
+    @Test
+    public void testParseProcess() {
+        ProcfsMemoryReader.ProcessInfo process = ProcfsMemoryReader.parseProcess(1200,
+                "com.android.systemui\0".getBytes(StandardCharsets.UTF_8),
+                "1200 (ndroid.systemui) S 450 1200 0 0 -1\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1200, process.pid);
+        assertEquals(450, process.ppid);
+        assertEquals("com.android.systemui", process.name);
+
+        // Process exited before the shell read its files.
+        assertNull(ProcfsMemoryReader.parseProcess(1201, new byte[0], new byte[0]));
+        // Kernel thread.
+        assertNull(ProcfsMemoryReader.parseProcess(2, new byte[0],
+                "2 (kthreadd) S 0 0 0 0 -1\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Test smaps_rollup is preferred and smaps is used when the virtual size is needed. */
+    @Test
+    public void testReadSmaps() throws IOException {
+        File processDir = createProcess(450, 1, "system_server\0", "system_server");
+        write(new File(processDir, "smaps_rollup"), SMAPS_ROLLUP);
+        write(new File(processDir, "smaps"), SMAPS);
+        ProcfsMemoryReader reader = new ProcfsMemoryReader(mProcRoot);
+
+        long[] totals = new long[SmapsParser.COLUMN_COUNT];
+        assertTrue(reader.readSmaps(450, false, totals));
+        assertEquals(52131, totals[SmapsParser.PSS]);
+
+        totals = new long[SmapsParser.COLUMN_COUNT];
+        assertTrue(reader.readSmaps(450, true, totals));
+        assertEquals(24, totals[SmapsParser.PSS]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.writeLastRead(out);
+        assertEquals(SMAPS, out.toString("UTF-8"));
+
+        assertFalse(reader.readSmaps(451, false, totals));
+    }
+
+    /** Test reading the smaps of the test process itself from the real procfs. */
+    @Test
+    public void testReadSelf() throws IOException {
+        long[] totals = new long[SmapsParser.COLUMN_COUNT];
+        int pid = Integer.parseInt(new File("/proc/self").getCanonicalFile().getName());
+        assertTrue(new ProcfsMemoryReader().readSmaps(pid, false, totals));
+        assertTrue(totals[SmapsParser.RSS] > 0);
+    }
+
+    private static long[] parse(String content) {
+        long[] totals = new long[SmapsParser.COLUMN_COUNT];
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        assertTrue(SmapsParser.parse(bytes, bytes.length, totals) > 0);
+        return totals;
+    }
+
+    private File createProcess(int pid, int ppid, String cmdline, String comm)
+            throws IOException {
+        File processDir = new File(mProcRoot, Integer.toString(pid));
+        processDir.mkdirs();
+        write(new File(processDir, "cmdline"), cmdline);
+        write(new File(processDir, "stat"),
+                String.format("%d (%s) S %d %d 0 0 -1 4194560 100 0 0 0\n", pid, comm, ppid, pid));
+        return processDir;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -215,6 +215,28 @@ public class ShowmapSnapshotHelperTest {
         assertTrue(metrics.containsKey(ShowmapSnapshotHelper.CHILD_PROCESS_COUNT_PREFIX + "_init"));
     }
 
+    /**
+     * Test delta snapshots keep being stored after a collection without processes, and without
+     * the raw dumps.
+     */
+    @Test
+    public void testGetMetrics_DeltaSnapshotsAfterEmptyCollection() {
+        mShowmapSnapshotHelper.setUp(VALID_OUTPUT_DIR, EMPTY_PROCESS_LIST);
+        mShowmapSnapshotHelper.setMetricNameIndex(METRIC_INDEX_STR);
+        mShowmapSnapshotHelper.setStoreRawDumps(false);
+        mShowmapSnapshotHelper.setDeltaSnapshots(true);
+        assertTrue(mShowmapSnapshotHelper.startCollecting());
+        assertTrue(mShowmapSnapshotHelper.getMetrics().isEmpty());
+
+        mShowmapSnapshotHelper.setUp(VALID_OUTPUT_DIR, ONE_PROCESS_LIST);
+        Map<String, String> metrics = mShowmapSnapshotHelper.getMetrics();
+        assertTrue(metrics.containsKey(constructKey(String.format(
+                ShowmapSnapshotHelper.OUTPUT_METRIC_PATTERN, "rss"), ONE_PROCESS_LIST[0])));
+        assertTrue(metrics.get(ShowmapSnapshotHelper.OUTPUT_FILE_PATH_KEY)
+                .endsWith(ShowmapSnapshotHelper.DELTA_FILE_EXTENSION));
+        assertTrue(mShowmapSnapshotHelper.stopCollecting());
+    }
+
     private boolean verifyDefaultMetrics(Map<String, String> metrics) {
         if(metrics.size() == 0) {
             return false;
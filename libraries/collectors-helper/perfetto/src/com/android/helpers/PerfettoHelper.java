@@ -16,20 +16,45 @@
 
 package com.android.helpers;
 
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.uiautomator.UiDevice;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * PerfettoHelper is used to start and stop the perfetto tracing and move the
  * output perfetto trace file to destination folder.
+ *
+ * <p>Instead of a trace per test, a continuous session can trace a whole run: the session is
+ * started once with {@link #startContinuousCollecting}, the start and end of every test are
+ * marked in the trace, and {@link #saveTestSlice} cuts the trace of the last test out of the
+ * session output while it keeps running. The config of such a session should use ring buffers
+ * and stream the trace to the output file with write_into_file, with a file_write_period_ms (and
+ * flush_period_ms) shorter than the wait time given to {@link #saveTestSlice}.
+ *
+ * <p>The output file of a continuous session grows on /data for the whole run, so its config must
+ * set max_file_size_bytes. Perfetto stops writing the trace once the file reaches that size, and
+ * the trace of the tests after that point is lost: {@link #saveTestSlice} then fails.
  */
 public class PerfettoHelper {
 
@@ -37,7 +62,7 @@ public class PerfettoHelper {
     // Command to start the perfetto tracing in the background.
     // perfetto -b -c /data/misc/perfetto-traces/trace_config.pb -o
     // /data/misc/perfetto-traces/trace_output.pb
-    private static final String PERFETTO_START_CMD = "perfetto --background -c %s%s -o %s";
+    private static final String PERFETTO_START_CMD = "%s --background -c %s%s -o %s";
     private static final String PERFETTO_TMP_OUTPUT_FILE =
             "/data/misc/perfetto-traces/trace_output.pb";
     // Additional arg to indicate that the perfetto config file is text format.
@@ -46,19 +71,54 @@ public class PerfettoHelper {
     private static final String PERFETTO_STOP_CMD = "pkill -INT perfetto";
     // Command to check the perfetto process id.
     private static final String PERFETTO_PROC_ID_CMD = "pidof perfetto";
+    // Command to stop only the perfetto process started by the helper.
+    private static final String PERFETTO_STOP_PID_CMD = "kill -INT %d";
+    // Command to check if the perfetto process started by the helper is running.
+    private static final String PERFETTO_PID_RUNNING_CMD = "ps -o pid= -p %d";
+    // Command to read the trace output file from the given offset, when it is not readable
+    // by the test process.
+    private static final String READ_FROM_OFFSET_CMD = "tail -c +%d %s";
     // Remove the trace output file /data/misc/perfetto-traces/trace_output.pb
     private static final String REMOVE_CMD = "rm %s";
     // Command to move the perfetto output trace file to given folder.
     private static final String MOVE_CMD = "mv %s %s";
-    // Max wait count for checking if perfetto is stopped successfully
-    private static final int PERFETTO_KILL_WAIT_COUNT = 12;
-    // Check if perfetto is stopped every 5 secs.
-    private static final long PERFETTO_KILL_WAIT_TIME = 5000;
+    // Max time to wait for perfetto to stop.
+    private static final long PERFETTO_KILL_TIMEOUT_MS = 60000;
+    // Check if perfetto stopped with a backoff, from 50 msecs up to every second.
+    private static final long PERFETTO_KILL_MIN_POLL_MS = 50;
+    private static final long PERFETTO_KILL_MAX_POLL_MS = 1000;
+    // Check if the trace of a test was written with a backoff, up to every second.
+    private static final long SLICE_MIN_POLL_MS = 50;
+    private static final long SLICE_MAX_POLL_MS = 1000;
+    // Files the test markers are written to, visible in the trace with the ftrace/print event.
+    private static final String[] TRACE_MARKER_FILES = {
+        "/sys/kernel/tracing/trace_marker", "/sys/kernel/debug/tracing/trace_marker"
+    };
+    private static final String TEST_MARKER_PREFIX = "test:";
+    // TraceConfig.max_file_size_bytes
+    private static final int MAX_FILE_SIZE_BYTES_FIELD = 10;
+    private static final Pattern MAX_FILE_SIZE_BYTES_PATTERN =
+            Pattern.compile("max_file_size_bytes\\s*:\\s*(\\d+)");
 
     private UiDevice mUIDevice;
 
     private String mConfigRootDir;
 
+    private String mPerfettoBinary = "perfetto";
+    private String mTraceOutputFile = PERFETTO_TMP_OUTPUT_FILE;
+    // Whether to stop and check only the perfetto process started by the helper, instead of all
+    // the perfetto processes.
+    private boolean mStopByPid = false;
+    // Pid of the perfetto process started by the helper, -1 if unknown.
+    private long mPerfettoPid = -1;
+
+    // State of the continuous session.
+    private PerfettoTraceSlicer mSlicer;
+    private long mTraceOffset;
+    private long mMaxFileSizeBytes;
+    private long mTestStartNs = -1;
+    private long mTestEndNs = -1;
+
     /**
      * Start the perfetto tracing in background using the given config file and write the ouput to
      * /data/misc/perfetto-traces/trace_output.pb. Perfetto has access only to
@@ -70,7 +130,6 @@ public class PerfettoHelper {
      * @return true if trace collection started successfully otherwise return false.
      */
     public boolean startCollecting(String configFileName, boolean isTextProtoConfig) {
-        mUIDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
         if (configFileName == null || configFileName.isEmpty()) {
             Log.e(LOG_TAG, "Perfetto config file name is null or empty.");
             return false;
@@ -92,12 +151,11 @@ public class PerfettoHelper {
             }
 
             // Remove already existing temporary output trace file if any.
-            String output = mUIDevice.executeShellCommand(String.format(REMOVE_CMD,
-                    PERFETTO_TMP_OUTPUT_FILE));
+            String output = executeShellCommand(String.format(REMOVE_CMD, mTraceOutputFile));
             Log.i(LOG_TAG, String.format("Perfetto output file cleanup - %s", output));
 
             String perfettoCmd = String.format(PERFETTO_START_CMD,
-                    mConfigRootDir, configFileName, PERFETTO_TMP_OUTPUT_FILE);
+                    mPerfettoBinary, mConfigRootDir, configFileName, mTraceOutputFile);
 
             if(isTextProtoConfig) {
                perfettoCmd = perfettoCmd + PERFETTO_TXT_PROTO_ARG;
@@ -105,8 +163,14 @@ public class PerfettoHelper {
 
             // Start perfetto tracing.
             Log.i(LOG_TAG, "Starting perfetto tracing.");
-            String startOutput = mUIDevice.executeShellCommand(perfettoCmd);
+            String startOutput = executeShellCommand(perfettoCmd);
             Log.i(LOG_TAG, String.format("Perfetto start command output - %s", startOutput));
+            // Perfetto prints the pid of the background process.
+            try {
+                mPerfettoPid = Long.parseLong(startOutput.trim());
+            } catch (NumberFormatException e) {
+                mPerfettoPid = -1;
+            }
             // TODO : Once the output status is available use that for additional validation.
             if (!isPerfettoRunning()) {
                 Log.e(LOG_TAG, "Perfetto tracing failed to start.");
@@ -158,20 +222,25 @@ public class PerfettoHelper {
      * @return true if perfetto is stopped successfully.
      */
     public boolean stopPerfetto() throws IOException {
-        String stopOutput = mUIDevice.executeShellCommand(PERFETTO_STOP_CMD);
+        String stopCommand =
+                isStoppedByPid()
+                        ? String.format(PERFETTO_STOP_PID_CMD, mPerfettoPid)
+                        : PERFETTO_STOP_CMD;
+        String stopOutput = executeShellCommand(stopCommand);
         Log.i(LOG_TAG, String.format("Perfetto stop command output - %s", stopOutput));
-        int waitCount = 0;
+        long waitedMs = 0;
+        long pollMs = PERFETTO_KILL_MIN_POLL_MS;
         while (isPerfettoRunning()) {
             // 60 secs timeout for perfetto shutdown.
-            if (waitCount < PERFETTO_KILL_WAIT_COUNT) {
-                // Check every 5 secs if perfetto stopped successfully.
-                SystemClock.sleep(PERFETTO_KILL_WAIT_TIME);
-                waitCount++;
-                continue;
+            if (waitedMs >= PERFETTO_KILL_TIMEOUT_MS) {
+                return false;
             }
-            return false;
+            SystemClock.sleep(pollMs);
+            waitedMs += pollMs;
+            pollMs = Math.min(pollMs * 2, PERFETTO_KILL_MAX_POLL_MS);
         }
-        Log.e(LOG_TAG, "Perfetto stopped successfully.");
+        mPerfettoPid = -1;
+        Log.i(LOG_TAG, String.format("Perfetto stopped successfully in %d msecs.", waitedMs));
         return true;
     }
 
@@ -182,9 +251,13 @@ public class PerfettoHelper {
      */
     private boolean isPerfettoRunning() {
         try {
-            String perfettoProcId = mUIDevice.executeShellCommand(PERFETTO_PROC_ID_CMD);
+            String perfettoProcId =
+                    executeShellCommand(
+                            isStoppedByPid()
+                                    ? String.format(PERFETTO_PID_RUNNING_CMD, mPerfettoPid)
+                                    : PERFETTO_PROC_ID_CMD);
             Log.i(LOG_TAG, String.format("Perfetto process id - %s", perfettoProcId));
-            if (perfettoProcId.isEmpty()) {
+            if (perfettoProcId.trim().isEmpty()) {
                 return false;
             }
         } catch (IOException ioe) {
@@ -194,6 +267,11 @@ public class PerfettoHelper {
         return true;
     }
 
+    /** Returns true if only the perfetto process started by the helper is stopped and checked. */
+    private boolean isStoppedByPid() {
+        return mStopByPid && mPerfettoPid > 0;
+    }
+
     /**
      * Copy the temporary perfetto trace output file from /data/misc/perfetto-traces/ to given
      * destinationFile.
@@ -202,6 +280,32 @@ public class PerfettoHelper {
      * @return true if the trace file copied successfully otherwise false.
      */
     private boolean copyFileOutput(String destinationFile) {
+        if (!createParentDirectory(destinationFile)) {
+            return false;
+        }
+
+        // Copy the collected trace from /data/misc/perfetto-traces/trace_output.pb to
+        // destinationFile
+        try {
+            String moveResult = executeShellCommand(String.format(
+                    MOVE_CMD, mTraceOutputFile, destinationFile));
+            if (!moveResult.isEmpty()) {
+                Log.e(LOG_TAG, String.format(
+                        "Unable to move perfetto output file from %s to %s due to %s",
+                        mTraceOutputFile, destinationFile, moveResult));
+                return false;
+            }
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG,
+                    "Unable to move the perfetto trace file to destination file."
+                            + ioe.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /** Create the directory of the destination file if it does not exist yet. */
+    private boolean createParentDirectory(String destinationFile) {
         Path path = Paths.get(destinationFile);
         String destDirectory = path.getParent().toString();
         // Check if the directory already exists
@@ -214,27 +318,248 @@ public class PerfettoHelper {
                 return false;
             }
         }
+        return true;
+    }
 
-        // Copy the collected trace from /data/misc/perfetto-traces/trace_output.pb to
-        // destinationFile
+    /**
+     * Start a perfetto session tracing all the tests of a run, see {@link #startCollecting}. The
+     * config must set max_file_size_bytes to bound the output file.
+     *
+     * @return true if trace collection started successfully otherwise return false.
+     */
+    public boolean startContinuousCollecting(String configFileName, boolean isTextProtoConfig) {
+        mSlicer = null;
+        long maxFileSizeBytes = readMaxFileSizeBytes(configFileName, isTextProtoConfig);
+        if (maxFileSizeBytes <= 0) {
+            Log.e(LOG_TAG, String.format(
+                    "The config %s of a continuous session must set max_file_size_bytes.",
+                    configFileName));
+            return false;
+        }
+        if (!startCollecting(configFileName, isTextProtoConfig)) {
+            return false;
+        }
+        mSlicer = new PerfettoTraceSlicer();
+        mMaxFileSizeBytes = maxFileSizeBytes;
+        mTraceOffset = 0;
+        mTestStartNs = -1;
+        mTestEndNs = -1;
+        return true;
+    }
+
+    /** Mark the start of a test in the continuous session. */
+    public void markTestStart(String testName) {
+        mTestStartNs = elapsedRealtimeNanos();
+        mTestEndNs = -1;
+        // Shown as a slice named after the test on the thread of the test in the trace.
+        writeTraceMarker(String.format("B|%d|%s%s", Process.myPid(), TEST_MARKER_PREFIX, testName));
+    }
+
+    /** Mark the end of the test started last in the continuous session. */
+    public void markTestEnd(String testName) {
+        writeTraceMarker(String.format("E|%d", Process.myPid()));
+        mTestEndNs = elapsedRealtimeNanos();
+    }
+
+    /**
+     * Save the trace of the last test marked in the continuous session to the destination file.
+     * The session keeps running.
+     *
+     * <p>Waits until the session wrote packets past the end of the test to its output file, for at
+     * most the given time; trace written later is missing from the saved trace. Fails once the
+     * output file reached the max_file_size_bytes of the config, as perfetto stopped writing it.
+     *
+     * @param maxWaitTimeInMsecs max time to wait for the trace of the test to be written.
+     * @param destinationFile file to save the trace of the test.
+     * @return true if the trace of the test was saved successfully otherwise false.
+     */
+    public boolean saveTestSlice(long maxWaitTimeInMsecs, String destinationFile) {
+        if (mSlicer == null) {
+            Log.e(LOG_TAG, "No continuous perfetto session is running.");
+            return false;
+        }
+        if (mTestStartNs < 0 || mTestEndNs < 0) {
+            Log.e(LOG_TAG, "The start and end of the test were not marked.");
+            return false;
+        }
+        if (mTraceOffset >= mMaxFileSizeBytes) {
+            Log.e(LOG_TAG, String.format(
+                    "The session output reached max_file_size_bytes %d, the trace of the test is "
+                            + "lost.",
+                    mMaxFileSizeBytes));
+            return false;
+        }
+        if (!createParentDirectory(destinationFile)) {
+            return false;
+        }
+        long waitedMs = 0;
+        long pollMs = SLICE_MIN_POLL_MS;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(destinationFile))) {
+            mSlicer.startSlice(mTestStartNs, mTestEndNs, out);
+            try {
+                while (true) {
+                    try (InputStream in = openTrace(mTraceOffset)) {
+                        mTraceOffset += mSlicer.read(in);
+                    }
+                    if (mSlicer.getLatestTimestampNs() >= mTestEndNs) {
+                        break;
+                    }
+                    if (waitedMs >= maxWaitTimeInMsecs || !isPerfettoRunning()) {
+                        Log.w(LOG_TAG, String.format(
+                                "The trace was written up to %d ns, the test ended at %d ns.",
+                                mSlicer.getLatestTimestampNs(), mTestEndNs));
+                        break;
+                    }
+                    sleep(pollMs);
+                    waitedMs += pollMs;
+                    pollMs = Math.min(pollMs * 2, SLICE_MAX_POLL_MS);
+                }
+            } finally {
+                mSlicer.finishSlice();
+            }
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Unable to save the trace of the test due to " + ioe.getMessage());
+            return false;
+        }
+        Log.i(LOG_TAG, String.format("Saved %d packets to %s after waiting %d msecs.",
+                mSlicer.getSlicePacketCount(), destinationFile, waitedMs));
+        return true;
+    }
+
+    /**
+     * Stop the continuous session and move its whole trace to the destination file, or remove
+     * it if the destination file is null.
+     *
+     * @return true if the session stopped successfully otherwise false.
+     */
+    public boolean stopContinuousCollecting(String destinationFile) {
+        mSlicer = null;
         try {
-            String moveResult = mUIDevice.executeShellCommand(String.format(
-                    MOVE_CMD, PERFETTO_TMP_OUTPUT_FILE, destinationFile));
-            if (!moveResult.isEmpty()) {
-                Log.e(LOG_TAG, String.format(
-                        "Unable to move perfetto output file from %s to %s due to %s",
-                        PERFETTO_TMP_OUTPUT_FILE, destinationFile, moveResult));
+            if (!stopPerfetto()) {
+                Log.e(LOG_TAG, "Perfetto failed to stop.");
                 return false;
             }
+            if (destinationFile != null) {
+                return copyFileOutput(destinationFile);
+            }
+            executeShellCommand(String.format(REMOVE_CMD, mTraceOutputFile));
         } catch (IOException ioe) {
-            Log.e(LOG_TAG,
-                    "Unable to move the perfetto trace file to destination file."
-                            + ioe.getMessage());
+            Log.e(LOG_TAG, "Unable to stop the perfetto tracing due to " + ioe.getMessage());
             return false;
         }
         return true;
     }
 
+    /** Write a marker to the trace, ignored if tracing is not accessible to the test. */
+    private void writeTraceMarker(String marker) {
+        for (String markerFile : TRACE_MARKER_FILES) {
+            try (Writer writer = new FileWriter(markerFile)) {
+                writer.write(marker);
+                return;
+            } catch (IOException e) {
+                // Try the next location.
+            }
+        }
+        Log.w(LOG_TAG, "Unable to write the test marker to the trace.");
+    }
+
+    /**
+     * Returns the max_file_size_bytes set by the perfetto config, or 0 if it is not set or the
+     * config can not be read.
+     */
+    private long readMaxFileSizeBytes(String configFileName, boolean isTextProtoConfig) {
+        String configFile = mConfigRootDir + configFileName;
+        byte[] config;
+        try (InputStream in = openFile(configFile, 0)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            config = out.toByteArray();
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, String.format(
+                    "Unable to read the config %s due to %s", configFile, ioe.getMessage()));
+            return 0;
+        }
+        if (isTextProtoConfig) {
+            Matcher matcher =
+                    MAX_FILE_SIZE_BYTES_PATTERN.matcher(
+                            new String(config, StandardCharsets.UTF_8));
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+        }
+        ProtoCursor cursor = new ProtoCursor(config);
+        while (cursor.next()) {
+            if (cursor.getField() == MAX_FILE_SIZE_BYTES_FIELD
+                    && cursor.getWireType() == ProtoCursor.WIRE_TYPE_VARINT) {
+                return cursor.getLong();
+            }
+        }
+        return 0;
+    }
+
+    /** Open the trace output file from the given offset. */
+    @VisibleForTesting
+    protected InputStream openTrace(long offset) throws IOException {
+        return openFile(mTraceOutputFile, offset);
+    }
+
+    /** Open a file of the perfetto directory from the given offset. */
+    private InputStream openFile(String path, long offset) throws IOException {
+        File file = new File(path);
+        if (file.canRead()) {
+            FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return in;
+        }
+        // The trace directory is usually only accessible to the shell.
+        ParcelFileDescriptor pfd =
+                InstrumentationRegistry.getInstrumentation()
+                        .getUiAutomation()
+                        .executeShellCommand(
+                                String.format(READ_FROM_OFFSET_CMD, offset + 1, path));
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+    }
+
+    @VisibleForTesting
+    protected String executeShellCommand(String command) throws IOException {
+        if (mUIDevice == null) {
+            mUIDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        }
+        return mUIDevice.executeShellCommand(command);
+    }
+
+    /** Returns the time on the default clock of perfetto traces, CLOCK_BOOTTIME. */
+    @VisibleForTesting
+    protected long elapsedRealtimeNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @VisibleForTesting
+    protected void sleep(long ms) {
+        SystemClock.sleep(ms);
+    }
+
+    /** Set the perfetto command, e.g. to run a fake perfetto in tests. */
+    @VisibleForTesting
+    public void setPerfettoBinary(String perfettoBinary) {
+        mPerfettoBinary = perfettoBinary;
+    }
+
+    @VisibleForTesting
+    public void setTraceOutputFile(String traceOutputFile) {
+        mTraceOutputFile = traceOutputFile;
+    }
+
+    /**
+     * Stop and check only the perfetto process started by the helper, found from the pid printed
+     * by perfetto, instead of all the perfetto processes. Off by default.
+     */
+    public void setStopByPid(boolean stopByPid) {
+        mStopByPid = stopByPid;
+    }
+
     public void setPerfettoConfigRootDir(String rootDir) {
         mConfigRootDir = rootDir;
     }
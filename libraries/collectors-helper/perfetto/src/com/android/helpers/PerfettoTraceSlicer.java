@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * PerfettoTraceSlicer cuts time windows out of a perfetto trace which is still being written, e.g.
+ * the trace of one test out of a session tracing the whole run.
+ *
+ * <p>The trace is read incrementally with {@link #read}, as a stream of TracePackets. A packet is
+ * written to the current slice if its timestamp, or the timestamps of its ftrace events, overlap
+ * the window. Packets without a timestamp are given the time of the packet before them in the
+ * file. Packets after the window are kept until the next slice, since the trace file is not
+ * ordered by time, and packets before it are dropped.
+ *
+ * <p>Each slice starts with the packets the rest of the trace depends on, so that it opens on its
+ * own: the trace config and system info, the latest clock snapshot, and the incremental state of
+ * each packet sequence. The incremental state is the interned data, descriptors and packet
+ * defaults written since the sequence was last cleared, kept without the events of their packets.
+ * It is bounded per sequence and in total; a sequence over the bound is not replayed until it is
+ * cleared again, and the least recently written sequences are dropped first.
+ */
+public class PerfettoTraceSlicer {
+    private static final String LOG_TAG = PerfettoTraceSlicer.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_SEQUENCE_STATE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_STATE_SIZE = 8 * 1024 * 1024;
+
+    // Trace.packet
+    private static final int TRACE_PACKET_FIELD = 1;
+    // TracePacket fields.
+    private static final int FTRACE_EVENTS_FIELD = 1;
+    private static final int TRUSTED_UID_FIELD = 3;
+    private static final int CLOCK_SNAPSHOT_FIELD = 6;
+    private static final int TIMESTAMP_FIELD = 8;
+    private static final int TRUSTED_PACKET_SEQUENCE_ID_FIELD = 10;
+    private static final int INTERNED_DATA_FIELD = 12;
+    private static final int SEQUENCE_FLAGS_FIELD = 13;
+    private static final int TRACE_CONFIG_FIELD = 33;
+    private static final int PREVIOUS_PACKET_DROPPED_FIELD = 42;
+    private static final int PROCESS_DESCRIPTOR_FIELD = 43;
+    private static final int THREAD_DESCRIPTOR_FIELD = 44;
+    private static final int SYSTEM_INFO_FIELD = 45;
+    private static final int TRACE_PACKET_DEFAULTS_FIELD = 59;
+    private static final int TRACK_DESCRIPTOR_FIELD = 60;
+    private static final int TRUSTED_PID_FIELD = 79;
+    private static final int FIRST_PACKET_ON_SEQUENCE_FIELD = 87;
+    // TracePacket.SequenceFlags.SEQ_INCREMENTAL_STATE_CLEARED
+    private static final int SEQ_INCREMENTAL_STATE_CLEARED = 1;
+    // FtraceEventBundle.event
+    private static final int FTRACE_EVENT_FIELD = 2;
+    // FtraceEvent.timestamp
+    private static final int FTRACE_EVENT_TIMESTAMP_FIELD = 1;
+
+    private static final int WIRE_TYPE_VARINT = ProtoCursor.WIRE_TYPE_VARINT;
+    private static final int WIRE_TYPE_FIXED64 = ProtoCursor.WIRE_TYPE_FIXED64;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = ProtoCursor.WIRE_TYPE_LENGTH_DELIMITED;
+    private static final int WIRE_TYPE_FIXED32 = ProtoCursor.WIRE_TYPE_FIXED32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Largest packet accepted, larger lengths mean the trace is corrupted.
+    private static final int MAX_PACKET_SIZE = 64 * 1024 * 1024;
+
+    /** A packet of the trace, with the time range it covers. */
+    private static final class Packet {
+        final byte[] mHeader;
+        final byte[] mPayload;
+        final long mStartNs;
+        final long mEndNs;
+
+        Packet(byte[] header, byte[] payload, long startNs, long endNs) {
+            mHeader = header;
+            mPayload = payload;
+            mStartNs = startNs;
+            mEndNs = endNs;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(mHeader);
+            out.write(mPayload);
+        }
+
+        int size() {
+            return mHeader.length + mPayload.length;
+        }
+    }
+
+    /** The incremental state of a packet sequence since it was last cleared. */
+    private static final class SequenceState {
+        final List<Packet> mPackets = new ArrayList<>();
+        long mSize = 0;
+        // The state went over the bound and is incomplete until the sequence is cleared.
+        boolean mDropped = false;
+    }
+
+    private final long mMaxSequenceStateSize;
+    private final long mMaxStateSize;
+    // Trace config and system info packets, in trace order.
+    private final List<Packet> mGlobalPackets = new ArrayList<>();
+    private final Set<ByteBuffer> mGlobalPayloads = new HashSet<>();
+    private Packet mClockSnapshot;
+    // State of the packet sequences by id, the least recently written first.
+    private final Map<Long, SequenceState> mSequences = new LinkedHashMap<>(16, 0.75f, true);
+    private long mStateSize = 0;
+    // Packets read before their window.
+    private final List<Packet> mPendingPackets = new ArrayList<>();
+    private final ProtoCursor mPacketCursor = new ProtoCursor();
+    private final ProtoCursor mBundleCursor = new ProtoCursor();
+    private final ProtoCursor mEventCursor = new ProtoCursor();
+    // Bytes of a packet which was not completely written yet.
+    private byte[] mPartial = new byte[0];
+    private long mLatestTimestampNs = 0;
+
+    private OutputStream mSliceOutput;
+    private long mSliceStartNs;
+    private long mSliceEndNs;
+    private int mSlicePacketCount;
+
+    public PerfettoTraceSlicer() {
+        this(DEFAULT_MAX_SEQUENCE_STATE_SIZE, DEFAULT_MAX_STATE_SIZE);
+    }
+
+    /**
+     * @param maxSequenceStateSize the most bytes of incremental state kept for one sequence.
+     * @param maxStateSize the most bytes of incremental state kept for all the sequences.
+     */
+    public PerfettoTraceSlicer(long maxSequenceStateSize, long maxStateSize) {
+        mMaxSequenceStateSize = maxSequenceStateSize;
+        mMaxStateSize = maxStateSize;
+    }
+
+    /**
+     * Start writing the packets between the given timestamps to the output, beginning with the
+     * packets already read.
+     */
+    public void startSlice(long startNs, long endNs, OutputStream out) throws IOException {
+        mSliceOutput = out;
+        mSliceStartNs = startNs;
+        mSliceEndNs = endNs;
+        mSlicePacketCount = 0;
+        for (Packet packet : mGlobalPackets) {
+            writeToSlice(packet);
+        }
+        if (mClockSnapshot != null) {
+            writeToSlice(mClockSnapshot);
+        }
+        for (SequenceState state : mSequences.values()) {
+            for (Packet packet : state.mPackets) {
+                writeToSlice(packet);
+            }
+        }
+        Iterator<Packet> pending = mPendingPackets.iterator();
+        while (pending.hasNext()) {
+            Packet packet = pending.next();
+            if (packet.mEndNs < startNs) {
+                pending.remove();
+            } else if (packet.mStartNs <= endNs) {
+                writeToSlice(packet);
+                pending.remove();
+            }
+        }
+    }
+
+    /** Stop writing to the output of the current slice. */
+    public void finishSlice() {
+        mSliceOutput = null;
+    }
+
+    /** Returns the number of packets written to the current or last slice. */
+    public int getSlicePacketCount() {
+        return mSlicePacketCount;
+    }
+
+    /** Returns the bytes of incremental state kept for the next slices. */
+    public long getStateSize() {
+        return mStateSize;
+    }
+
+    /** Returns the latest timestamp read from the trace. */
+    public long getLatestTimestampNs() {
+        return mLatestTimestampNs;
+    }
+
+    /**
+     * Read the packets of the trace until the end of the stream. A packet cut by the end of the
+     * stream is completed by the next read.
+     *
+     * @return the number of bytes read from the stream.
+     */
+    public long read(InputStream in) throws IOException {
+        CountingInputStream counter = new CountingInputStream(in);
+        InputStream stream =
+                new BufferedInputStream(
+                        new SequenceInputStream(new ByteArrayInputStream(mPartial), counter),
+                        BUFFER_SIZE);
+        ByteArrayHeader header = new ByteArrayHeader();
+        while (true) {
+            header.reset();
+            long tag = readVarint(stream, header);
+            if (tag < 0) {
+                break;
+            }
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+            if (wireType != WIRE_TYPE_LENGTH_DELIMITED) {
+                // Not a packet, skip the value.
+                if (!skipValue(stream, wireType, header)) {
+                    break;
+                }
+                continue;
+            }
+            long length = readVarint(stream, header);
+            if (length < 0) {
+                break;
+            }
+            if (length > MAX_PACKET_SIZE) {
+                throw new IOException(String.format("Invalid packet size %d.", length));
+            }
+            byte[] payload = new byte[(int) length];
+            int read = readFully(stream, payload);
+            if (read < length) {
+                header.append(payload, read);
+                break;
+            }
+            if (field == TRACE_PACKET_FIELD) {
+                onPacket(header.toByteArray(), payload);
+            }
+            header.reset();
+        }
+        mPartial = header.toByteArray();
+        return counter.getCount();
+    }
+
+    private void onPacket(byte[] header, byte[] payload) throws IOException {
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        boolean isGlobalState = false;
+        boolean isClockSnapshot = false;
+        boolean isIncrementalState = false;
+        boolean isCleared = false;
+        long sequenceId = 0;
+        ProtoCursor packetCursor = mPacketCursor.reset(payload, 0, payload.length);
+        while (packetCursor.next()) {
+            int field = packetCursor.getField();
+            if (packetCursor.isLengthDelimited()) {
+                if (field == FTRACE_EVENTS_FIELD) {
+                    readFtraceTimestamps(packetCursor, range);
+                } else if (field == CLOCK_SNAPSHOT_FIELD) {
+                    isClockSnapshot = true;
+                } else if (field == TRACE_CONFIG_FIELD || field == SYSTEM_INFO_FIELD) {
+                    isGlobalState = true;
+                } else if (isIncrementalStateField(field)) {
+                    isIncrementalState = true;
+                }
+            } else if (field == TIMESTAMP_FIELD) {
+                extend(range, packetCursor.getLong());
+            } else if (field == TRUSTED_PACKET_SEQUENCE_ID_FIELD) {
+                sequenceId = packetCursor.getLong();
+            } else if (field == SEQUENCE_FLAGS_FIELD
+                    && (packetCursor.getLong() & SEQ_INCREMENTAL_STATE_CLEARED) != 0) {
+                isCleared = true;
+            }
+        }
+
+        long startNs;
+        long endNs;
+        if (range[0] > range[1]) {
+            // No timestamp, the packet was written around the previous one.
+            startNs = endNs = mLatestTimestampNs;
+        } else {
+            startNs = range[0];
+            endNs = range[1];
+            mLatestTimestampNs = Math.max(mLatestTimestampNs, endNs);
+        }
+        Packet packet = new Packet(header, payload, startNs, endNs);
+
+        if (isGlobalState) {
+            if (mGlobalPayloads.add(ByteBuffer.wrap(payload))) {
+                mGlobalPackets.add(packet);
+                writeToSlice(packet);
+            }
+            return;
+        }
+        if (isClockSnapshot) {
+            mClockSnapshot = packet;
+            writeToSlice(packet);
+            return;
+        }
+
+        boolean written = false;
+        if (mSliceOutput == null || startNs > mSliceEndNs) {
+            mPendingPackets.add(packet);
+        } else if (endNs >= mSliceStartNs) {
+            writeToSlice(packet);
+            written = true;
+        }
+        if (isIncrementalState || isCleared) {
+            Packet state = stripEvents(payload, startNs, endNs);
+            addSequenceState(sequenceId, isCleared, state);
+            // The packets of the slice after this one may depend on it.
+            if (!written) {
+                writeToSlice(state);
+            }
+        }
+    }
+
+    /** Keep the incremental state of a sequence, within the bounds. */
+    private void addSequenceState(long sequenceId, boolean isCleared, Packet packet) {
+        SequenceState state = mSequences.get(sequenceId);
+        if (state == null || isCleared) {
+            if (state != null) {
+                mStateSize -= state.mSize;
+            }
+            state = new SequenceState();
+            mSequences.put(sequenceId, state);
+        }
+        if (state.mDropped) {
+            return;
+        }
+        if (state.mSize + packet.size() > mMaxSequenceStateSize) {
+            Log.w(LOG_TAG, String.format(
+                    "Incremental state of sequence %d is over %d bytes, it is not replayed until "
+                            + "the sequence is cleared.",
+                    sequenceId, mMaxSequenceStateSize));
+            dropSequenceState(state);
+            return;
+        }
+        state.mPackets.add(packet);
+        state.mSize += packet.size();
+        mStateSize += packet.size();
+        Iterator<Map.Entry<Long, SequenceState>> eldest = mSequences.entrySet().iterator();
+        while (mStateSize > mMaxStateSize && eldest.hasNext()) {
+            Map.Entry<Long, SequenceState> entry = eldest.next();
+            if (entry.getValue().mSize > 0) {
+                Log.w(LOG_TAG, String.format(
+                        "Incremental state is over %d bytes, dropping the state of sequence %d.",
+                        mMaxStateSize, entry.getKey()));
+                dropSequenceState(entry.getValue());
+            }
+        }
+    }
+
+    private void dropSequenceState(SequenceState state) {
+        mStateSize -= state.mSize;
+        state.mPackets.clear();
+        state.mSize = 0;
+        state.mDropped = true;
+    }
+
+    /** Returns a copy of the packet with only its incremental state and sequence fields. */
+    private Packet stripEvents(byte[] payload, long startNs, long endNs) {
+        ByteArrayHeader stripped = new ByteArrayHeader();
+        ProtoCursor packetCursor = mPacketCursor.reset(payload, 0, payload.length);
+        while (packetCursor.next()) {
+            if (isIncrementalStateField(packetCursor.getField())
+                    || isSequenceField(packetCursor.getField())) {
+                int start = packetCursor.getFieldStart();
+                stripped.append(payload, start, packetCursor.getFieldEnd() - start);
+            }
+        }
+        byte[] strippedPayload = stripped.toByteArray();
+        ByteArrayHeader header = new ByteArrayHeader();
+        header.append((byte) ((TRACE_PACKET_FIELD << 3) | WIRE_TYPE_LENGTH_DELIMITED));
+        long length = strippedPayload.length;
+        while ((length & ~0x7fL) != 0) {
+            header.append((byte) ((length & 0x7f) | 0x80));
+            length >>>= 7;
+        }
+        header.append((byte) length);
+        return new Packet(header.toByteArray(), strippedPayload, startNs, endNs);
+    }
+
+    private void writeToSlice(Packet packet) throws IOException {
+        if (mSliceOutput != null) {
+            packet.writeTo(mSliceOutput);
+            mSlicePacketCount++;
+        }
+    }
+
+    /** Returns whether the field holds state which later packets of the sequence refer to. */
+    private static boolean isIncrementalStateField(int field) {
+        switch (field) {
+            case INTERNED_DATA_FIELD:
+            case PROCESS_DESCRIPTOR_FIELD:
+            case THREAD_DESCRIPTOR_FIELD:
+            case TRACE_PACKET_DEFAULTS_FIELD:
+            case TRACK_DESCRIPTOR_FIELD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns whether the field identifies or flags the sequence of the packet. */
+    private static boolean isSequenceField(int field) {
+        switch (field) {
+            case TRUSTED_UID_FIELD:
+            case TRUSTED_PACKET_SEQUENCE_ID_FIELD:
+            case SEQUENCE_FLAGS_FIELD:
+            case PREVIOUS_PACKET_DROPPED_FIELD:
+            case TRUSTED_PID_FIELD:
+            case FIRST_PACKET_ON_SEQUENCE_FIELD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Extend the range with the timestamps of the events of an ftrace bundle. */
+    private void readFtraceTimestamps(ProtoCursor packetCursor, long[] range) {
+        ProtoCursor bundleCursor = mBundleCursor.resetToValue(packetCursor);
+        while (bundleCursor.next()) {
+            if (bundleCursor.getField() != FTRACE_EVENT_FIELD
+                    || !bundleCursor.isLengthDelimited()) {
+                continue;
+            }
+            ProtoCursor eventCursor = mEventCursor.resetToValue(bundleCursor);
+            while (eventCursor.next()) {
+                if (eventCursor.getField() == FTRACE_EVENT_TIMESTAMP_FIELD
+                        && eventCursor.getWireType() == WIRE_TYPE_VARINT) {
+                    extend(range, eventCursor.getLong());
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void extend(long[] range, long timestampNs) {
+        range[0] = Math.min(range[0], timestampNs);
+        range[1] = Math.max(range[1], timestampNs);
+    }
+
+    /**
+     * Read a varint from the stream, keeping its bytes in the header.
+     *
+     * @return the value, or -1 if the stream ended first.
+     */
+    private static long readVarint(InputStream stream, ByteArrayHeader header) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = stream.read();
+            if (b < 0) {
+                return -1;
+            }
+            header.append((byte) b);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the trace.");
+    }
+
+    /** Skip a value which is not length delimited, returns false if the stream ended first. */
+    private static boolean skipValue(InputStream stream, int wireType, ByteArrayHeader header)
+            throws IOException {
+        int size;
+        switch (wireType) {
+            case WIRE_TYPE_VARINT:
+                return readVarint(stream, header) >= 0;
+            case WIRE_TYPE_FIXED64:
+                size = 8;
+                break;
+            case WIRE_TYPE_FIXED32:
+                size = 4;
+                break;
+            default:
+                throw new IOException(String.format("Unexpected wire type %d.", wireType));
+        }
+        byte[] value = new byte[size];
+        int read = readFully(stream, value);
+        header.append(value, read);
+        return read == size;
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = stream.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /** A growing array of bytes, e.g. the bytes read for the packet being parsed. */
+    private static final class ByteArrayHeader {
+        private byte[] mBytes = new byte[16];
+        private int mSize = 0;
+
+        void reset() {
+            mSize = 0;
+        }
+
+        void append(byte b) {
+            ensureCapacity(mSize + 1);
+            mBytes[mSize++] = b;
+        }
+
+        void append(byte[] bytes, int length) {
+            append(bytes, 0, length);
+        }
+
+        void append(byte[] bytes, int offset, int length) {
+            ensureCapacity(mSize + length);
+            System.arraycopy(bytes, offset, mBytes, mSize, length);
+            mSize += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(capacity, mBytes.length * 2));
+            }
+        }
+    }
+
+    /** Counts the bytes read from the underlying stream. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * PerfettoTraceSummarizer computes summary metrics of a perfetto trace in one pass over the
+ * trace file, without loading the trace in memory:
+ *
+ * <ul>
+ *   <li>perfetto_cpu_time_ms_[thread]_[tid]: time the thread was running on a cpu, from the
+ *       sched_switch ftrace events, for the threads using the most cpu time.
+ *   <li>perfetto_slice_[name]_{count,total_ms,max_ms,avg_ms}: durations of the slices of each
+ *       name, from atrace and track events.
+ *   <li>perfetto_counter_[name]_{min,max,avg}: values of each counter, from atrace and track
+ *       events.
+ * </ul>
+ *
+ * <p>The number of slice and counter names is bounded, so the memory used does not depend on the
+ * length of the trace. The number of metrics reported is bounded too, keeping the threads with
+ * the most cpu time, the slices with the longest total duration and the counters with the most
+ * values. Names are reported with the characters other than letters, digits, '.', '-' and '_'
+ * replaced by '_'.
+ */
+public class PerfettoTraceSummarizer {
+    private static final String LOG_TAG = PerfettoTraceSummarizer.class.getSimpleName();
+
+    public static final String CPU_TIME_PREFIX = "perfetto_cpu_time_ms_";
+    public static final String SLICE_PREFIX = "perfetto_slice_";
+    public static final String COUNTER_PREFIX = "perfetto_counter_";
+
+    private static final int DEFAULT_MAX_THREADS = 20;
+    public static final int DEFAULT_MAX_METRICS = 100;
+    // Max number of slice and counter names summarized, the others are ignored.
+    private static final int MAX_NAMES = 1000;
+    // Max depth of nested slices on a track.
+    private static final int MAX_SLICE_DEPTH = 256;
+
+    // Trace.packet
+    private static final int TRACE_PACKET_FIELD = 1;
+    // TracePacket fields.
+    private static final int FTRACE_EVENTS_FIELD = 1;
+    private static final int TIMESTAMP_FIELD = 8;
+    private static final int SEQUENCE_ID_FIELD = 10;
+    private static final int TRACK_EVENT_FIELD = 11;
+    private static final int INTERNED_DATA_FIELD = 12;
+    private static final int SEQUENCE_FLAGS_FIELD = 13;
+    private static final int TRACK_DESCRIPTOR_FIELD = 60;
+    private static final int SEQ_INCREMENTAL_STATE_CLEARED = 1;
+    // FtraceEventBundle fields.
+    private static final int BUNDLE_CPU_FIELD = 1;
+    private static final int BUNDLE_EVENT_FIELD = 2;
+    private static final int BUNDLE_COMPACT_SCHED_FIELD = 4;
+    // FtraceEvent fields.
+    private static final int EVENT_TIMESTAMP_FIELD = 1;
+    private static final int EVENT_PID_FIELD = 2;
+    private static final int EVENT_PRINT_FIELD = 3;
+    private static final int EVENT_SCHED_SWITCH_FIELD = 4;
+    // PrintFtraceEvent.buf
+    private static final int PRINT_BUF_FIELD = 2;
+    // SchedSwitchFtraceEvent fields.
+    private static final int SWITCH_NEXT_COMM_FIELD = 5;
+    private static final int SWITCH_NEXT_PID_FIELD = 6;
+    // CompactSched fields.
+    private static final int COMPACT_SWITCH_TIMESTAMP_FIELD = 1;
+    private static final int COMPACT_SWITCH_NEXT_PID_FIELD = 3;
+    private static final int COMPACT_INTERN_TABLE_FIELD = 5;
+    private static final int COMPACT_SWITCH_NEXT_COMM_INDEX_FIELD = 6;
+    // TrackEvent fields.
+    private static final int TRACK_EVENT_TYPE_FIELD = 9;
+    private static final int TRACK_EVENT_NAME_IID_FIELD = 10;
+    private static final int TRACK_EVENT_TRACK_UUID_FIELD = 11;
+    private static final int TRACK_EVENT_NAME_FIELD = 23;
+    private static final int TRACK_EVENT_COUNTER_VALUE_FIELD = 30;
+    private static final int TRACK_EVENT_DOUBLE_COUNTER_VALUE_FIELD = 44;
+    private static final int TYPE_SLICE_BEGIN = 1;
+    private static final int TYPE_SLICE_END = 2;
+    private static final int TYPE_COUNTER = 4;
+    // InternedData.event_names, EventName fields.
+    private static final int INTERNED_EVENT_NAMES_FIELD = 2;
+    private static final int EVENT_NAME_IID_FIELD = 1;
+    private static final int EVENT_NAME_NAME_FIELD = 2;
+    // TrackDescriptor fields.
+    private static final int TRACK_UUID_FIELD = 1;
+    private static final int TRACK_NAME_FIELD = 2;
+
+    private static final byte[] ATRACE_BEGIN = {'B', '|'};
+    private static final byte[] ATRACE_END = {'E'};
+    private static final byte[] ATRACE_COUNTER = {'C', '|'};
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PACKET_SIZE = 64 * 1024 * 1024;
+
+    private static final Pattern INVALID_NAME_CHARS = Pattern.compile("[^A-Za-z0-9._-]");
+
+    private int mMaxThreads = DEFAULT_MAX_THREADS;
+    private int mMaxMetrics = DEFAULT_MAX_METRICS;
+
+    /** Set the max number of threads reported, the ones using the most cpu time. */
+    public void setMaxThreads(int maxThreads) {
+        mMaxThreads = maxThreads;
+    }
+
+    /** Set the max number of metrics reported for a trace. */
+    public void setMaxMetrics(int maxMetrics) {
+        mMaxMetrics = maxMetrics;
+    }
+
+    /** Returns the summary metrics of the trace file. */
+    public Map<String, Double> summarize(File traceFile) throws IOException {
+        try (InputStream in = new FileInputStream(traceFile)) {
+            return summarize(in);
+        }
+    }
+
+    /** Returns the summary metrics of the trace read from the stream. */
+    public Map<String, Double> summarize(InputStream in) throws IOException {
+        Summary summary = new Summary();
+        InputStream stream = new BufferedInputStream(in, BUFFER_SIZE);
+        byte[] packet = new byte[BUFFER_SIZE];
+        while (true) {
+            long tag = readVarint(stream);
+            if (tag < 0) {
+                break;
+            }
+            if ((tag & 0x7) != ProtoCursor.WIRE_TYPE_LENGTH_DELIMITED) {
+                throw new IOException(String.format("Unexpected trace field %d.", tag >>> 3));
+            }
+            long length = readVarint(stream);
+            if (length < 0 || length > MAX_PACKET_SIZE) {
+                throw new IOException(String.format("Invalid packet size %d.", length));
+            }
+            if (packet.length < length) {
+                packet = new byte[(int) Math.max(length, packet.length * 2L)];
+            }
+            if (readFully(stream, packet, (int) length) < length) {
+                Log.w(LOG_TAG, "The trace ends with a truncated packet.");
+                break;
+            }
+            if ((tag >>> 3) == TRACE_PACKET_FIELD) {
+                summary.onPacket(packet, (int) length);
+            }
+        }
+        return summary.getMetrics();
+    }
+
+    /** Time spent by a thread on the cpus. */
+    private static final class ThreadStats {
+        String mName;
+        long mCpuTimeNs;
+    }
+
+    /** Thread running on a cpu. */
+    private static final class CpuState {
+        int mTid;
+        long mSinceNs;
+    }
+
+    private static final class SliceStats {
+        long mCount;
+        long mTotalNs;
+        long mMaxNs;
+    }
+
+    private static final class CounterStats {
+        double mMin = Double.MAX_VALUE;
+        double mMax = -Double.MAX_VALUE;
+        double mSum;
+        long mCount;
+
+        void add(double value) {
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+            mSum += value;
+            mCount++;
+        }
+    }
+
+    /** An open slice. */
+    private static final class OpenSlice {
+        final String mName;
+        final long mStartNs;
+
+        OpenSlice(String name, long startNs) {
+            mName = name;
+            mStartNs = startNs;
+        }
+    }
+
+    /** The state of one pass over a trace. */
+    private final class Summary {
+        private final Map<Integer, ThreadStats> mThreads = new HashMap<>();
+        private final Map<Integer, CpuState> mCpus = new HashMap<>();
+        private final Map<String, SliceStats> mSlices = new HashMap<>();
+        private final Map<String, CounterStats> mCounters = new HashMap<>();
+        // Open atrace slices by tid, and track event slices by track.
+        private final Map<Integer, Deque<OpenSlice>> mAtraceSlices = new HashMap<>();
+        private final Map<Long, Deque<OpenSlice>> mTrackSlices = new HashMap<>();
+        // Interned event names by sequence.
+        private final Map<Integer, Map<Long, String>> mEventNames = new HashMap<>();
+        private final Map<Long, String> mTrackNames = new HashMap<>();
+        private long mLatestTimestampNs = 0;
+
+        private final ProtoCursor mPacket = new ProtoCursor();
+        private final ProtoCursor mMessage = new ProtoCursor();
+        private final ProtoCursor mNested = new ProtoCursor();
+        private final ProtoCursor mInner = new ProtoCursor();
+        private long[] mTimestamps = new long[64];
+        private long[] mPids = new long[64];
+        private long[] mCommIndexes = new long[64];
+        private final int[] mCount = new int[1];
+
+        void onPacket(byte[] buffer, int length) {
+            long timestampNs = -1;
+            int sequenceId = 0;
+            boolean cleared = false;
+            mPacket.reset(buffer, 0, length);
+            while (mPacket.next()) {
+                switch (mPacket.getField()) {
+                    case TIMESTAMP_FIELD:
+                        timestampNs = mPacket.getLong();
+                        break;
+                    case SEQUENCE_ID_FIELD:
+                        sequenceId = (int) mPacket.getLong();
+                        break;
+                    case SEQUENCE_FLAGS_FIELD:
+                        cleared = (mPacket.getLong() & SEQ_INCREMENTAL_STATE_CLEARED) != 0;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (cleared) {
+                mEventNames.remove(sequenceId);
+            }
+            if (timestampNs >= 0) {
+                mLatestTimestampNs = Math.max(mLatestTimestampNs, timestampNs);
+            }
+
+            mPacket.reset(buffer, 0, length);
+            while (mPacket.next()) {
+                if (!mPacket.isLengthDelimited()) {
+                    continue;
+                }
+                switch (mPacket.getField()) {
+                    case FTRACE_EVENTS_FIELD:
+                        onFtraceBundle();
+                        break;
+                    case INTERNED_DATA_FIELD:
+                        onInternedData(sequenceId);
+                        break;
+                    case TRACK_DESCRIPTOR_FIELD:
+                        onTrackDescriptor();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            // Track events last, once the names of the packet are interned.
+            mPacket.reset(buffer, 0, length);
+            while (mPacket.next()) {
+                if (mPacket.getField() == TRACK_EVENT_FIELD && mPacket.isLengthDelimited()) {
+                    onTrackEvent(sequenceId, timestampNs);
+                }
+            }
+        }
+
+        private void onFtraceBundle() {
+            int cpu = 0;
+            boolean hasCompactSched = false;
+            ProtoCursor bundle = mMessage.resetToValue(mPacket);
+            while (bundle.next()) {
+                if (bundle.getField() == BUNDLE_CPU_FIELD && !bundle.isLengthDelimited()) {
+                    cpu = (int) bundle.getLong();
+                } else if (bundle.getField() == BUNDLE_COMPACT_SCHED_FIELD) {
+                    hasCompactSched = true;
+                }
+            }
+            bundle = mMessage.resetToValue(mPacket);
+            while (bundle.next()) {
+                if (!bundle.isLengthDelimited()) {
+                    continue;
+                }
+                if (bundle.getField() == BUNDLE_EVENT_FIELD) {
+                    onFtraceEvent(cpu);
+                } else if (hasCompactSched && bundle.getField() == BUNDLE_COMPACT_SCHED_FIELD) {
+                    onCompactSched(cpu);
+                }
+            }
+        }
+
+        private void onFtraceEvent(int cpu) {
+            long timestampNs = 0;
+            int pid = 0;
+            ProtoCursor event = mNested.resetToValue(mMessage);
+            // The timestamp and pid come before the event.
+            while (event.next()) {
+                int field = event.getField();
+                if (field == EVENT_TIMESTAMP_FIELD) {
+                    timestampNs = event.getLong();
+                    mLatestTimestampNs = Math.max(mLatestTimestampNs, timestampNs);
+                } else if (field == EVENT_PID_FIELD) {
+                    pid = (int) event.getLong();
+                } else if (field == EVENT_SCHED_SWITCH_FIELD && event.isLengthDelimited()) {
+                    onSchedSwitch(cpu, timestampNs);
+                } else if (field == EVENT_PRINT_FIELD && event.isLengthDelimited()) {
+                    onPrint(pid, timestampNs);
+                }
+            }
+        }
+
+        private void onSchedSwitch(int cpu, long timestampNs) {
+            String nextComm = null;
+            int nextPid = 0;
+            ProtoCursor sched = mInner.resetToValue(mNested);
+            while (sched.next()) {
+                if (sched.getField() == SWITCH_NEXT_COMM_FIELD && sched.isLengthDelimited()) {
+                    nextComm = sched.getString();
+                } else if (sched.getField() == SWITCH_NEXT_PID_FIELD) {
+                    nextPid = (int) sched.getLong();
+                }
+            }
+            switchTo(cpu, timestampNs, nextPid, nextComm);
+        }
+
+        private void onCompactSched(int cpu) {
+            List<String> internTable = new ArrayList<>();
+            int timestampCount = 0;
+            int pidCount = 0;
+            int commCount = 0;
+            ProtoCursor compact = mNested.resetToValue(mMessage);
+            while (compact.next()) {
+                switch (compact.getField()) {
+                    case COMPACT_INTERN_TABLE_FIELD:
+                        internTable.add(compact.getString());
+                        break;
+                    case COMPACT_SWITCH_TIMESTAMP_FIELD:
+                        mTimestamps = compact.getPackedVarints(mTimestamps, mCount);
+                        timestampCount = mCount[0];
+                        break;
+                    case COMPACT_SWITCH_NEXT_PID_FIELD:
+                        mPids = compact.getPackedVarints(mPids, mCount);
+                        pidCount = mCount[0];
+                        break;
+                    case COMPACT_SWITCH_NEXT_COMM_INDEX_FIELD:
+                        mCommIndexes = compact.getPackedVarints(mCommIndexes, mCount);
+                        commCount = mCount[0];
+                        break;
+                    default:
+                        break;
+                }
+            }
+            // The timestamps are delta encoded.
+            long timestampNs = 0;
+            int count = Math.min(timestampCount, pidCount);
+            for (int i = 0; i < count; i++) {
+                timestampNs += mTimestamps[i];
+                int commIndex = i < commCount ? (int) mCommIndexes[i] : -1;
+                String comm =
+                        commIndex >= 0 && commIndex < internTable.size()
+                                ? internTable.get(commIndex)
+                                : null;
+                mLatestTimestampNs = Math.max(mLatestTimestampNs, timestampNs);
+                switchTo(cpu, timestampNs, (int) mPids[i], comm);
+            }
+        }
+
+        private void switchTo(int cpu, long timestampNs, int nextTid, String nextComm) {
+            CpuState state = mCpus.get(cpu);
+            if (state == null) {
+                state = new CpuState();
+                mCpus.put(cpu, state);
+            } else {
+                addCpuTime(state.mTid, timestampNs - state.mSinceNs);
+            }
+            state.mTid = nextTid;
+            state.mSinceNs = timestampNs;
+            if (nextTid != 0 && nextComm != null) {
+                getThread(nextTid).mName = nextComm;
+            }
+        }
+
+        private void addCpuTime(int tid, long durationNs) {
+            // The idle threads are not summarized.
+            if (tid != 0 && durationNs > 0) {
+                getThread(tid).mCpuTimeNs += durationNs;
+            }
+        }
+
+        private ThreadStats getThread(int tid) {
+            ThreadStats thread = mThreads.get(tid);
+            if (thread == null) {
+                thread = new ThreadStats();
+                mThreads.put(tid, thread);
+            }
+            return thread;
+        }
+
+        /** Handle the atrace events written to trace_marker. */
+        private void onPrint(int tid, long timestampNs) {
+            ProtoCursor print = mInner.resetToValue(mNested);
+            while (print.next()) {
+                if (print.getField() != PRINT_BUF_FIELD || !print.isLengthDelimited()) {
+                    continue;
+                }
+                if (print.valueStartsWith(ATRACE_BEGIN)) {
+                    // B|pid|name
+                    String[] parts = print.getString().trim().split("\\|", 3);
+                    if (parts.length == 3) {
+                        beginSlice(mAtraceSlices, tid, parts[2], timestampNs);
+                    }
+                } else if (print.valueStartsWith(ATRACE_END)) {
+                    endSlice(mAtraceSlices, tid, timestampNs);
+                } else if (print.valueStartsWith(ATRACE_COUNTER)) {
+                    // C|pid|name|value
+                    String[] parts = print.getString().trim().split("\\|", 4);
+                    if (parts.length == 4) {
+                        try {
+                            addCounterValue(parts[2], Double.parseDouble(parts[3]));
+                        } catch (NumberFormatException e) {
+                            // Not a counter.
+                        }
+                    }
+                }
+            }
+        }
+
+        private void onInternedData(int sequenceId) {
+            ProtoCursor internedData = mMessage.resetToValue(mPacket);
+            while (internedData.next()) {
+                if (internedData.getField() != INTERNED_EVENT_NAMES_FIELD
+                        || !internedData.isLengthDelimited()) {
+                    continue;
+                }
+                long iid = 0;
+                String name = null;
+                ProtoCursor eventName = mNested.resetToValue(internedData);
+                while (eventName.next()) {
+                    if (eventName.getField() == EVENT_NAME_IID_FIELD) {
+                        iid = eventName.getLong();
+                    } else if (eventName.getField() == EVENT_NAME_NAME_FIELD
+                            && eventName.isLengthDelimited()) {
+                        name = eventName.getString();
+                    }
+                }
+                if (name != null) {
+                    Map<Long, String> names = mEventNames.get(sequenceId);
+                    if (names == null) {
+                        names = new HashMap<>();
+                        mEventNames.put(sequenceId, names);
+                    }
+                    names.put(iid, name);
+                }
+            }
+        }
+
+        private void onTrackDescriptor() {
+            long uuid = 0;
+            String name = null;
+            ProtoCursor descriptor = mMessage.resetToValue(mPacket);
+            while (descriptor.next()) {
+                if (descriptor.getField() == TRACK_UUID_FIELD) {
+                    uuid = descriptor.getLong();
+                } else if (descriptor.getField() == TRACK_NAME_FIELD
+                        && descriptor.isLengthDelimited()) {
+                    name = descriptor.getString();
+                }
+            }
+            if (name != null && (mTrackNames.size() < MAX_NAMES || mTrackNames.containsKey(uuid))) {
+                mTrackNames.put(uuid, name);
+            }
+        }
+
+        private void onTrackEvent(int sequenceId, long timestampNs) {
+            int type = 0;
+            long trackUuid = 0;
+            long nameIid = -1;
+            String name = null;
+            double counterValue = Double.NaN;
+            ProtoCursor event = mMessage.resetToValue(mPacket);
+            while (event.next()) {
+                switch (event.getField()) {
+                    case TRACK_EVENT_TYPE_FIELD:
+                        type = (int) event.getLong();
+                        break;
+                    case TRACK_EVENT_TRACK_UUID_FIELD:
+                        trackUuid = event.getLong();
+                        break;
+                    case TRACK_EVENT_NAME_IID_FIELD:
+                        nameIid = event.getLong();
+                        break;
+                    case TRACK_EVENT_NAME_FIELD:
+                        if (event.isLengthDelimited()) {
+                            name = event.getString();
+                        }
+                        break;
+                    case TRACK_EVENT_COUNTER_VALUE_FIELD:
+                        counterValue = event.getLong();
+                        break;
+                    case TRACK_EVENT_DOUBLE_COUNTER_VALUE_FIELD:
+                        counterValue = event.getDouble();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (name == null && nameIid >= 0) {
+                Map<Long, String> names = mEventNames.get(sequenceId);
+                name = names != null ? names.get(nameIid) : null;
+            }
+            // Events without a track are on the default track of their sequence.
+            long track = trackUuid != 0 ? trackUuid : -1L - sequenceId;
+            switch (type) {
+                case TYPE_SLICE_BEGIN:
+                    beginSlice(mTrackSlices, track, name, timestampNs);
+                    break;
+                case TYPE_SLICE_END:
+                    endSlice(mTrackSlices, track, timestampNs);
+                    break;
+                case TYPE_COUNTER:
+                    if (!Double.isNaN(counterValue)) {
+                        String trackName = mTrackNames.get(trackUuid);
+                        addCounterValue(
+                                trackName != null ? trackName : "track_" + trackUuid,
+                                counterValue);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private <K> void beginSlice(
+                Map<K, Deque<OpenSlice>> openSlices, K key, String name, long timestampNs) {
+            Deque<OpenSlice> stack = openSlices.get(key);
+            if (stack == null) {
+                stack = new ArrayDeque<>();
+                openSlices.put(key, stack);
+            }
+            if (stack.size() < MAX_SLICE_DEPTH) {
+                stack.push(new OpenSlice(name, timestampNs));
+            }
+        }
+
+        private <K> void endSlice(Map<K, Deque<OpenSlice>> openSlices, K key, long timestampNs) {
+            Deque<OpenSlice> stack = openSlices.get(key);
+            if (stack == null || stack.isEmpty()) {
+                return;
+            }
+            OpenSlice slice = stack.pop();
+            if (slice.mName == null) {
+                return;
+            }
+            SliceStats stats = mSlices.get(slice.mName);
+            if (stats == null) {
+                if (mSlices.size() >= MAX_NAMES) {
+                    return;
+                }
+                stats = new SliceStats();
+                mSlices.put(slice.mName, stats);
+            }
+            long durationNs = Math.max(0, timestampNs - slice.mStartNs);
+            stats.mCount++;
+            stats.mTotalNs += durationNs;
+            stats.mMaxNs = Math.max(stats.mMaxNs, durationNs);
+        }
+
+        private void addCounterValue(String name, double value) {
+            CounterStats stats = mCounters.get(name);
+            if (stats == null) {
+                if (mCounters.size() >= MAX_NAMES) {
+                    return;
+                }
+                stats = new CounterStats();
+                mCounters.put(name, stats);
+            }
+            stats.add(value);
+        }
+
+        Map<String, Double> getMetrics() {
+            // The threads still running at the end of the trace ran until its last event.
+            for (CpuState state : mCpus.values()) {
+                addCpuTime(state.mTid, mLatestTimestampNs - state.mSinceNs);
+            }
+            Map<String, Double> metrics = new HashMap<>();
+            int skipped = 0;
+            List<Map.Entry<Integer, ThreadStats>> threads = new ArrayList<>(mThreads.entrySet());
+            threads.sort((a, b) -> Long.compare(b.getValue().mCpuTimeNs, a.getValue().mCpuTimeNs));
+            int threadCount = 0;
+            for (Map.Entry<Integer, ThreadStats> thread : threads) {
+                if (threadCount >= mMaxThreads || thread.getValue().mCpuTimeNs == 0) {
+                    break;
+                }
+                if (metrics.size() >= mMaxMetrics) {
+                    skipped++;
+                    continue;
+                }
+                metrics.put(
+                        String.format("%s%s_%d", CPU_TIME_PREFIX,
+                                toMetricName(thread.getValue().mName), thread.getKey()),
+                        toMs(thread.getValue().mCpuTimeNs));
+                threadCount++;
+            }
+            List<Map.Entry<String, SliceStats>> slices = new ArrayList<>(mSlices.entrySet());
+            slices.sort((a, b) -> Long.compare(b.getValue().mTotalNs, a.getValue().mTotalNs));
+            for (Map.Entry<String, SliceStats> slice : slices) {
+                String prefix = SLICE_PREFIX + toMetricName(slice.getKey());
+                if (metrics.size() + 4 > mMaxMetrics || metrics.containsKey(prefix + "_count")) {
+                    skipped++;
+                    continue;
+                }
+                SliceStats stats = slice.getValue();
+                metrics.put(prefix + "_count", (double) stats.mCount);
+                metrics.put(prefix + "_total_ms", toMs(stats.mTotalNs));
+                metrics.put(prefix + "_max_ms", toMs(stats.mMaxNs));
+                metrics.put(prefix + "_avg_ms", toMs(stats.mTotalNs) / stats.mCount);
+            }
+            List<Map.Entry<String, CounterStats>> counters =
+                    new ArrayList<>(mCounters.entrySet());
+            counters.sort((a, b) -> Long.compare(b.getValue().mCount, a.getValue().mCount));
+            for (Map.Entry<String, CounterStats> counter : counters) {
+                String prefix = COUNTER_PREFIX + toMetricName(counter.getKey());
+                if (metrics.size() + 3 > mMaxMetrics || metrics.containsKey(prefix + "_min")) {
+                    skipped++;
+                    continue;
+                }
+                CounterStats stats = counter.getValue();
+                metrics.put(prefix + "_min", stats.mMin);
+                metrics.put(prefix + "_max", stats.mMax);
+                metrics.put(prefix + "_avg", stats.mSum / stats.mCount);
+            }
+            if (skipped > 0) {
+                Log.i(LOG_TAG, String.format(
+                        "Skipped %d threads, slices and counters over %d metrics or with the same "
+                                + "name.",
+                        skipped, mMaxMetrics));
+            }
+            return metrics;
+        }
+    }
+
+    /** Returns the name usable in a metric key. */
+    private static String toMetricName(String name) {
+        return INVALID_NAME_CHARS.matcher(String.valueOf(name)).replaceAll("_");
+    }
+
+    private static double toMs(long ns) {
+        return ns / 1e6;
+    }
+
+    /** Returns the next varint of the stream, or -1 at the end of the stream. */
+    private static long readVarint(InputStream stream) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = stream.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the trace.");
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = stream.read(buffer, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
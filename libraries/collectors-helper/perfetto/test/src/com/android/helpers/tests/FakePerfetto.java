@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fake perfetto process and the trace packets it writes, to test the perfetto helpers without
+ * tracing.
+ *
+ * <p>Started like perfetto in the background, the fake appends the chunk files of its directory
+ * to its output one at a time until it is killed, and prints its pid.
+ */
+public class FakePerfetto {
+
+    private static final String SCRIPT =
+            "while [ $# -gt 0 ]; do\n"
+                    + "  if [ \"$1\" = \"-o\" ]; then out=\"$2\"; fi\n"
+                    + "  shift\n"
+                    + "done\n"
+                    + "dir=$(dirname \"$0\")\n"
+                    + "(\n"
+                    + "  i=0\n"
+                    + "  while true; do\n"
+                    + "    if [ -f \"$dir/chunk_$i\" ]; then\n"
+                    + "      cat \"$dir/chunk_$i\" >> \"$out\"\n"
+                    + "      i=$((i + 1))\n"
+                    + "    fi\n"
+                    + "    sleep 0.02\n"
+                    + "  done\n"
+                    + ") > /dev/null 2>&1 < /dev/null &\n"
+                    + "echo $!\n";
+
+    private final File mDirectory;
+    private int mChunkCount = 0;
+
+    /** Create the fake in a new directory under the given one. */
+    public FakePerfetto(File parent) throws IOException {
+        mDirectory = Files.createTempDirectory(parent.toPath(), "fake_perfetto").toFile();
+        Files.write(new File(mDirectory, "perfetto.sh").toPath(), SCRIPT.getBytes());
+    }
+
+    /** Returns the command running the fake. */
+    public String getCommand() {
+        return "sh " + new File(mDirectory, "perfetto.sh").getAbsolutePath();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** Add a chunk of packets to write, after the chunks added before. */
+    public void addChunk(byte[]... packets) throws IOException {
+        // Write then rename, so that the fake does not read a chunk being written.
+        File temp = new File(mDirectory, "tmp_chunk");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            for (byte[] packet : packets) {
+                out.write(packet);
+            }
+        }
+        if (!temp.renameTo(new File(mDirectory, "chunk_" + mChunkCount++))) {
+            throw new IOException("Failed to add the chunk.");
+        }
+    }
+
+    /** Runs a command with sh, as the shell of the device would. */
+    public static String runShellCommand(String command) throws IOException {
+        java.lang.Process process = new ProcessBuilder("sh", "-c", command).start();
+        try (InputStream in = process.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            process.waitFor();
+            return out.toString();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Returns a TracePacket with a timestamp and a marker value, framed as in a trace file. */
+    public static byte[] packet(long timestampNs, int marker) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        // timestamp = 8
+        writeVarint(payload, 8 << 3);
+        writeVarint(payload, timestampNs);
+        // trusted_uid = 3, used as the marker.
+        writeVarint(payload, 3 << 3);
+        writeVarint(payload, marker);
+        return frame(payload.toByteArray());
+    }
+
+    /** Returns a TracePacket without timestamp with a marker value. */
+    public static byte[] timelessPacket(int marker) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, 3 << 3);
+        writeVarint(payload, marker);
+        return frame(payload.toByteArray());
+    }
+
+    /** Returns a TracePacket with a clock snapshot, needed by every slice of the trace. */
+    public static byte[] clockSnapshotPacket(int marker) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, 3 << 3);
+        writeVarint(payload, marker);
+        // clock_snapshot = 6, empty.
+        writeVarint(payload, (6 << 3) | 2);
+        writeVarint(payload, 0);
+        return frame(payload.toByteArray());
+    }
+
+    /** Returns a TracePacket of ftrace events with the given timestamps. */
+    public static byte[] ftracePacket(int marker, long... timestampsNs) {
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        for (long timestampNs : timestampsNs) {
+            ByteArrayOutputStream event = new ByteArrayOutputStream();
+            // FtraceEvent.timestamp = 1
+            writeVarint(event, 1 << 3);
+            writeVarint(event, timestampNs);
+            // FtraceEventBundle.event = 2
+            writeVarint(bundle, (2 << 3) | 2);
+            writeVarint(bundle, event.size());
+            bundle.write(event.toByteArray(), 0, event.size());
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, 3 << 3);
+        writeVarint(payload, marker);
+        // ftrace_events = 1
+        writeVarint(payload, (1 << 3) | 2);
+        writeVarint(payload, bundle.size());
+        payload.write(bundle.toByteArray(), 0, bundle.size());
+        return frame(payload.toByteArray());
+    }
+
+    /**
+     * Returns a TracePacket of a track event on a sequence, with the interned name of the event
+     * for the later packets of the sequence.
+     */
+    public static byte[] internedPacket(
+            long timestampNs, int marker, int sequenceId, boolean cleared) {
+        ByteArrayOutputStream eventName = new ByteArrayOutputStream();
+        // EventName.iid = 1, EventName.name = 2
+        writeVarint(eventName, 1 << 3);
+        writeVarint(eventName, marker);
+        writeVarint(eventName, (2 << 3) | 2);
+        writeVarint(eventName, 5);
+        eventName.write("event".getBytes(), 0, 5);
+        ByteArrayOutputStream internedData = new ByteArrayOutputStream();
+        // InternedData.event_names = 2
+        writeVarint(internedData, (2 << 3) | 2);
+        writeVarint(internedData, eventName.size());
+        internedData.write(eventName.toByteArray(), 0, eventName.size());
+
+        ByteArrayOutputStream payload = trackEventPayload(timestampNs, marker, sequenceId);
+        // interned_data = 12
+        writeVarint(payload, (12 << 3) | 2);
+        writeVarint(payload, internedData.size());
+        payload.write(internedData.toByteArray(), 0, internedData.size());
+        if (cleared) {
+            // sequence_flags = 13, SEQ_INCREMENTAL_STATE_CLEARED
+            writeVarint(payload, 13 << 3);
+            writeVarint(payload, 1);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    /** Returns a TracePacket of a track event on a sequence, named by its interned data. */
+    public static byte[] trackEventPacket(long timestampNs, int marker, int sequenceId) {
+        return frame(trackEventPayload(timestampNs, marker, sequenceId).toByteArray());
+    }
+
+    private static ByteArrayOutputStream trackEventPayload(
+            long timestampNs, int marker, int sequenceId) {
+        ByteArrayOutputStream trackEvent = new ByteArrayOutputStream();
+        // TrackEvent.name_iid = 10
+        writeVarint(trackEvent, 10 << 3);
+        writeVarint(trackEvent, marker);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, 8 << 3);
+        writeVarint(payload, timestampNs);
+        writeVarint(payload, 3 << 3);
+        writeVarint(payload, marker);
+        // trusted_packet_sequence_id = 10
+        writeVarint(payload, 10 << 3);
+        writeVarint(payload, sequenceId);
+        // track_event = 11
+        writeVarint(payload, (11 << 3) | 2);
+        writeVarint(payload, trackEvent.size());
+        payload.write(trackEvent.toByteArray(), 0, trackEvent.size());
+        return payload;
+    }
+
+    /** Returns the number of fields with the given number in the packets of a trace. */
+    public static int countFields(byte[] trace, int field) {
+        int count = 0;
+        int[] position = {0};
+        while (position[0] < trace.length) {
+            readVarint(trace, position);
+            int end = (int) readVarint(trace, position) + position[0];
+            while (position[0] < end) {
+                long tag = readVarint(trace, position);
+                if ((tag >>> 3) == field) {
+                    count++;
+                }
+                if ((tag & 0x7) == 2) {
+                    int length = (int) readVarint(trace, position);
+                    position[0] += length;
+                } else {
+                    readVarint(trace, position);
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Returns the markers of the packets of a trace, in order. */
+    public static List<Integer> readMarkers(byte[] trace) {
+        List<Integer> markers = new ArrayList<>();
+        int[] position = {0};
+        while (position[0] < trace.length) {
+            readVarint(trace, position);
+            int end = (int) readVarint(trace, position) + position[0];
+            while (position[0] < end) {
+                long tag = readVarint(trace, position);
+                if ((tag & 0x7) == 2) {
+                    int length = (int) readVarint(trace, position);
+                    position[0] += length;
+                } else {
+                    long value = readVarint(trace, position);
+                    if ((tag >>> 3) == 3) {
+                        markers.add((int) value);
+                    }
+                }
+            }
+        }
+        return markers;
+    }
+
+    private static byte[] frame(byte[] payload) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        // Trace.packet = 1
+        writeVarint(packet, (1 << 3) | 2);
+        writeVarint(packet, payload.length);
+        packet.write(payload, 0, payload.length);
+        return packet.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] buffer, int[] position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
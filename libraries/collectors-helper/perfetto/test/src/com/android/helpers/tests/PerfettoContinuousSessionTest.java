@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static com.android.helpers.tests.FakePerfetto.clockSnapshotPacket;
+import static com.android.helpers.tests.FakePerfetto.packet;
+import static com.android.helpers.tests.FakePerfetto.readMarkers;
+import static com.android.helpers.tests.FakePerfetto.timelessPacket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.PerfettoHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Android Unit tests for the continuous session of {@link PerfettoHelper}, run with a fake
+ * perfetto process writing scripted packets.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.PerfettoContinuousSessionTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class PerfettoContinuousSessionTest {
+
+    private static final long MS = 1000000;
+    private static final String CONFIG = "trace_config.textproto";
+
+    private FakePerfetto mFakePerfetto;
+    private File mOutput;
+    private PerfettoHelper mHelper;
+    private long mNowNs = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        File cacheDir = InstrumentationRegistry.getInstrumentation().getContext().getCacheDir();
+        mFakePerfetto = new FakePerfetto(cacheDir);
+        mOutput = new File(mFakePerfetto.getDirectory(), "trace_output.pb");
+        mHelper =
+                new PerfettoHelper() {
+                    @Override
+                    protected String executeShellCommand(String command) throws IOException {
+                        return FakePerfetto.runShellCommand(command);
+                    }
+
+                    @Override
+                    protected long elapsedRealtimeNanos() {
+                        return mNowNs;
+                    }
+                };
+        mHelper.setPerfettoBinary(mFakePerfetto.getCommand());
+        // The fake is not named perfetto, so it is only found from its pid.
+        mHelper.setStopByPid(true);
+        mHelper.setTraceOutputFile(mOutput.getAbsolutePath());
+        mHelper.setPerfettoConfigRootDir(mFakePerfetto.getDirectory().getAbsolutePath() + "/");
+        writeConfig("max_file_size_bytes: 100000000");
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.stopContinuousCollecting(null);
+    }
+
+    /** Test the trace of every test is saved while the session keeps running. */
+    @Test
+    public void testSaveTestSlices() throws Exception {
+        mFakePerfetto.addChunk(clockSnapshotPacket(1), packet(10 * MS, 2));
+        mFakePerfetto.addChunk(packet(30 * MS, 3), timelessPacket(4));
+        mFakePerfetto.addChunk(packet(50 * MS, 5), packet(70 * MS, 6));
+        assertTrue(mHelper.startContinuousCollecting(CONFIG, true));
+
+        mNowNs = 25 * MS;
+        mHelper.markTestStart("test1");
+        mNowNs = 45 * MS;
+        mHelper.markTestEnd("test1");
+        File test1 = new File(mFakePerfetto.getDirectory(), "test1/trace.pb");
+        assertTrue(mHelper.saveTestSlice(5000, test1.getPath()));
+        assertEquals(Arrays.asList(1, 3, 4), readMarkers(Files.readAllBytes(test1.toPath())));
+
+        // Written by the session after the first test was saved.
+        mFakePerfetto.addChunk(packet(90 * MS, 7), packet(110 * MS, 8));
+        mNowNs = 65 * MS;
+        mHelper.markTestStart("test2");
+        mNowNs = 95 * MS;
+        mHelper.markTestEnd("test2");
+        File test2 = new File(mFakePerfetto.getDirectory(), "test2/trace.pb");
+        assertTrue(mHelper.saveTestSlice(5000, test2.getPath()));
+        assertEquals(Arrays.asList(1, 6, 7), readMarkers(Files.readAllBytes(test2.toPath())));
+
+        assertTrue(mHelper.stopContinuousCollecting(null));
+        assertFalse(mOutput.exists());
+    }
+
+    /** Test the wait for the trace of a test is bounded. */
+    @Test
+    public void testSaveTestSliceTimeout() throws Exception {
+        mFakePerfetto.addChunk(packet(10 * MS, 1));
+        assertTrue(mHelper.startContinuousCollecting(CONFIG, true));
+
+        mNowNs = 5 * MS;
+        mHelper.markTestStart("test");
+        mNowNs = 500 * MS;
+        mHelper.markTestEnd("test");
+        File test = new File(mFakePerfetto.getDirectory(), "test/trace.pb");
+        long start = System.currentTimeMillis();
+        assertTrue(mHelper.saveTestSlice(500, test.getPath()));
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(Arrays.asList(1), readMarkers(Files.readAllBytes(test.toPath())));
+    }
+
+    /** Test a continuous session does not start without a bound on its output file. */
+    @Test
+    public void testSessionRequiresMaxFileSize() throws Exception {
+        writeConfig("write_into_file: true");
+        assertFalse(mHelper.startContinuousCollecting(CONFIG, true));
+    }
+
+    /** Test saving a test fails once the output file reached its max size. */
+    @Test
+    public void testSaveTestSliceAfterMaxFileSize() throws Exception {
+        writeConfig("max_file_size_bytes: 10");
+        mFakePerfetto.addChunk(packet(10 * MS, 1), packet(50 * MS, 2));
+        assertTrue(mHelper.startContinuousCollecting(CONFIG, true));
+
+        mNowNs = 5 * MS;
+        mHelper.markTestStart("test1");
+        mNowNs = 45 * MS;
+        mHelper.markTestEnd("test1");
+        File test1 = new File(mFakePerfetto.getDirectory(), "test1/trace.pb");
+        assertTrue(mHelper.saveTestSlice(5000, test1.getPath()));
+        assertEquals(Arrays.asList(1), readMarkers(Files.readAllBytes(test1.toPath())));
+
+        mNowNs = 55 * MS;
+        mHelper.markTestStart("test2");
+        mNowNs = 65 * MS;
+        mHelper.markTestEnd("test2");
+        File test2 = new File(mFakePerfetto.getDirectory(), "test2/trace.pb");
+        assertFalse(mHelper.saveTestSlice(500, test2.getPath()));
+    }
+
+    /** Test saving a test fails without a session. */
+    @Test
+    public void testSaveTestSliceWithoutSession() throws Exception {
+        mHelper.markTestStart("test");
+        mHelper.markTestEnd("test");
+        File test = new File(mFakePerfetto.getDirectory(), "test/trace.pb");
+        assertFalse(mHelper.saveTestSlice(500, test.getPath()));
+    }
+
+    private void writeConfig(String config) throws IOException {
+        Files.write(new File(mFakePerfetto.getDirectory(), CONFIG).toPath(), config.getBytes());
+    }
+}
@@ -30,6 +30,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Android Unit tests for {@link PerfettoHelper}.
@@ -153,4 +155,54 @@ public class PerfettoHelperTest {
         assertFalse(mPerfettoHelper.startCollecting("trace_config.textproto", true));
     }
 
+    /** Test all the perfetto processes are stopped and checked by default. */
+    @Test
+    public void testStopAllPerfettoProcesses() throws Exception {
+        RecordingPerfettoHelper helper = new RecordingPerfettoHelper();
+        assertTrue(helper.startCollecting("trace_config.textproto", true));
+        assertTrue(helper.stopPerfetto());
+        assertTrue(helper.mCommands.contains("pkill -INT perfetto"));
+        assertTrue(helper.mCommands.contains("pidof perfetto"));
+        assertFalse(helper.mCommands.contains("kill -INT 1234"));
+    }
+
+    /** Test only the perfetto process started by the helper is stopped when stopping by pid. */
+    @Test
+    public void testStopPerfettoByPid() throws Exception {
+        RecordingPerfettoHelper helper = new RecordingPerfettoHelper();
+        helper.setStopByPid(true);
+        assertTrue(helper.startCollecting("trace_config.textproto", true));
+        assertTrue(helper.stopPerfetto());
+        assertTrue(helper.mCommands.contains("kill -INT 1234"));
+        assertTrue(helper.mCommands.contains("ps -o pid= -p 1234"));
+        assertFalse(helper.mCommands.contains("pkill -INT perfetto"));
+        assertFalse(helper.mCommands.contains("pidof perfetto"));
+    }
+
+    /** A helper recording its shell commands, with a perfetto of pid 1234 running until killed. */
+    private static class RecordingPerfettoHelper extends PerfettoHelper {
+        final List<String> mCommands = new ArrayList<>();
+        private boolean mRunning = false;
+
+        RecordingPerfettoHelper() {
+            setPerfettoConfigRootDir("/data/misc/perfetto-traces/");
+        }
+
+        @Override
+        protected String executeShellCommand(String command) {
+            mCommands.add(command);
+            if (command.startsWith("perfetto ")) {
+                mRunning = true;
+                return "1234\n";
+            }
+            if (command.contains("kill")) {
+                mRunning = false;
+                return "";
+            }
+            if (command.startsWith("pidof") || command.startsWith("ps ")) {
+                return mRunning ? "1234\n" : "";
+            }
+            return "";
+        }
+    }
 }
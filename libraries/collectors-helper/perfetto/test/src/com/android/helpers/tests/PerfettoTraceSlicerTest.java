@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static com.android.helpers.tests.FakePerfetto.clockSnapshotPacket;
+import static com.android.helpers.tests.FakePerfetto.countFields;
+import static com.android.helpers.tests.FakePerfetto.ftracePacket;
+import static com.android.helpers.tests.FakePerfetto.internedPacket;
+import static com.android.helpers.tests.FakePerfetto.packet;
+import static com.android.helpers.tests.FakePerfetto.readMarkers;
+import static com.android.helpers.tests.FakePerfetto.timelessPacket;
+import static com.android.helpers.tests.FakePerfetto.trackEventPacket;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.PerfettoTraceSlicer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Android Unit tests for {@link PerfettoTraceSlicer}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.PerfettoTraceSlicerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class PerfettoTraceSlicerTest {
+    // TracePacket fields.
+    private static final int TRACK_EVENT_FIELD = 11;
+    private static final int INTERNED_DATA_FIELD = 12;
+
+    /** Test only the packets in the window are sliced, with the packets needed by all. */
+    @Test
+    public void testSlice() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slicer.startSlice(100, 200, slice);
+        slicer.read(trace(
+                clockSnapshotPacket(1),
+                packet(50, 2),
+                packet(100, 3),
+                timelessPacket(4),
+                packet(200, 5),
+                packet(201, 6)));
+        slicer.finishSlice();
+
+        assertEquals(Arrays.asList(1, 3, 4, 5), readMarkers(slice.toByteArray()));
+        assertEquals(4, slicer.getSlicePacketCount());
+        assertEquals(201, slicer.getLatestTimestampNs());
+    }
+
+    /** Test packets read after a window are written to the next one. */
+    @Test
+    public void testPacketsAfterWindowAreKept() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        slicer.startSlice(0, 100, first);
+        slicer.read(trace(clockSnapshotPacket(1), packet(50, 2), packet(150, 3), packet(250, 4)));
+        slicer.finishSlice();
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        slicer.startSlice(200, 300, second);
+        slicer.read(trace(packet(260, 5), packet(310, 6)));
+        slicer.finishSlice();
+
+        assertEquals(Arrays.asList(1, 2), readMarkers(first.toByteArray()));
+        assertEquals(Arrays.asList(1, 4, 5), readMarkers(second.toByteArray()));
+    }
+
+    /** Test a packet cut by the end of the data is completed by the next read. */
+    @Test
+    public void testPartialPacket() throws IOException {
+        byte[] data = concat(packet(10, 1), packet(20, 2));
+        int cut = data.length - 3;
+
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slicer.startSlice(0, 100, slice);
+        assertEquals(cut, slicer.read(new ByteArrayInputStream(data, 0, cut)));
+        assertEquals(Collections.singletonList(1), readMarkers(slice.toByteArray()));
+        assertEquals(3, slicer.read(new ByteArrayInputStream(data, cut, 3)));
+        slicer.finishSlice();
+        assertEquals(Arrays.asList(1, 2), readMarkers(slice.toByteArray()));
+    }
+
+    /** Test ftrace bundles are sliced on the timestamps of their events. */
+    @Test
+    public void testFtraceBundles() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slicer.startSlice(100, 200, slice);
+        slicer.read(trace(
+                ftracePacket(1, 10, 20),
+                ftracePacket(2, 90, 110),
+                ftracePacket(3, 150),
+                ftracePacket(4, 190, 260),
+                ftracePacket(5, 300)));
+        slicer.finishSlice();
+
+        assertEquals(Arrays.asList(2, 3, 4), readMarkers(slice.toByteArray()));
+    }
+
+    /** Test only the latest clock snapshot is written at the start of the slices. */
+    @Test
+    public void testLatestClockSnapshotIsKept() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        slicer.read(trace(clockSnapshotPacket(1), clockSnapshotPacket(1), clockSnapshotPacket(2)));
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slicer.startSlice(0, 100, slice);
+        slicer.finishSlice();
+
+        assertEquals(Collections.singletonList(2), readMarkers(slice.toByteArray()));
+    }
+
+    /**
+     * Test a slice starts with the interned data of the earlier tests, without their track events.
+     */
+    @Test
+    public void testInternedDataOfEarlierTests() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        slicer.startSlice(0, 100, first);
+        slicer.read(trace(
+                internedPacket(10, 1, 1, true),
+                internedPacket(50, 2, 1, false),
+                trackEventPacket(60, 3, 1)));
+        slicer.finishSlice();
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        slicer.startSlice(200, 300, second);
+        slicer.read(trace(
+                trackEventPacket(150, 4, 1),
+                trackEventPacket(250, 5, 1),
+                internedPacket(260, 6, 1, false),
+                trackEventPacket(270, 7, 1)));
+        slicer.finishSlice();
+
+        assertEquals(Arrays.asList(1, 2, 3), readMarkers(first.toByteArray()));
+        assertEquals(3, countFields(first.toByteArray(), TRACK_EVENT_FIELD));
+        // The interned data of 1 and 2 without their events, then the events of the window.
+        assertEquals(Arrays.asList(1, 2, 5, 6, 7), readMarkers(second.toByteArray()));
+        assertEquals(3, countFields(second.toByteArray(), TRACK_EVENT_FIELD));
+        assertEquals(3, countFields(second.toByteArray(), INTERNED_DATA_FIELD));
+    }
+
+    /** Test the interned data of a sequence is dropped when the sequence is cleared. */
+    @Test
+    public void testClearedSequenceDropsInternedData() throws IOException {
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer();
+        slicer.read(trace(
+                internedPacket(10, 1, 1, true),
+                internedPacket(20, 2, 2, true),
+                internedPacket(30, 3, 1, true)));
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        slicer.startSlice(100, 200, slice);
+        slicer.finishSlice();
+
+        assertEquals(Arrays.asList(2, 3), readMarkers(slice.toByteArray()));
+        assertEquals(0, countFields(slice.toByteArray(), TRACK_EVENT_FIELD));
+    }
+
+    /** Test the interned data is bounded per sequence and in total. */
+    @Test
+    public void testInternedDataIsBounded() throws IOException {
+        // The interned data of a packet takes 21 bytes when it clears the sequence, 19 otherwise.
+        PerfettoTraceSlicer slicer = new PerfettoTraceSlicer(50, 65);
+        slicer.read(trace(
+                internedPacket(10, 1, 1, true),
+                internedPacket(20, 2, 1, false),
+                internedPacket(30, 3, 2, true),
+                internedPacket(40, 4, 2, false)));
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        slicer.startSlice(100, 200, first);
+        slicer.finishSlice();
+        // Sequence 1 was written least recently and is dropped to fit the total.
+        assertEquals(Arrays.asList(3, 4), readMarkers(first.toByteArray()));
+        assertEquals(40, slicer.getStateSize());
+
+        slicer.read(trace(internedPacket(210, 5, 2, false), internedPacket(220, 6, 1, false)));
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        slicer.startSlice(300, 400, second);
+        slicer.finishSlice();
+        // Sequence 2 is over its own bound, and sequence 1 is incomplete until it is cleared.
+        assertEquals(Collections.emptyList(), readMarkers(second.toByteArray()));
+        assertEquals(0, slicer.getStateSize());
+
+        slicer.read(trace(internedPacket(410, 7, 1, true)));
+        ByteArrayOutputStream third = new ByteArrayOutputStream();
+        slicer.startSlice(500, 600, third);
+        slicer.finishSlice();
+        assertEquals(Collections.singletonList(7), readMarkers(third.toByteArray()));
+    }
+
+    private static ByteArrayInputStream trace(byte[]... packets) {
+        return new ByteArrayInputStream(concat(packets));
+    }
+
+    private static byte[] concat(byte[]... packets) {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            trace.write(packet, 0, packet.length);
+        }
+        return trace.toByteArray();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.PerfettoTraceSummarizer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Android Unit tests for {@link PerfettoTraceSummarizer}.
+ *
+ * <p>perfetto/summary_trace.pb has:
+ *
+ * <ul>
+ *   <li>sched_switch events: RenderThread (101) running 1-4 ms on cpu 0, main (100) running
+ *       4-6 ms on cpu 0 and 2-5 ms on cpu 1, and compact sched events with compact (200)
+ *       running 7-9 ms on cpu 2.
+ *   <li>atrace events of tid 100: inflate slices 1.5-2.5 ms and 3-4 ms, with a nested measure
+ *       slice 3.2-3.7 ms, and a queue counter set to 3, 5 and 1.
+ *   <li>track events: a doFrame slice 10-14 ms with an interned name, an inline_slice slice
+ *       20-21 ms, and an fps counter track set to 60 and 30.
+ * </ul>
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.PerfettoTraceSummarizerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class PerfettoTraceSummarizerTest {
+
+    private static final String TRACE = "/perfetto/summary_trace.pb";
+
+    /** Test the cpu time of the threads is computed from the scheduling events. */
+    @Test
+    public void testCpuTimePerThread() throws IOException {
+        Map<String, Double> metrics = summarize(new PerfettoTraceSummarizer());
+        assertEquals(3.0, metrics.get("perfetto_cpu_time_ms_RenderThread_101"), 0.0001);
+        assertEquals(5.0, metrics.get("perfetto_cpu_time_ms_main_100"), 0.0001);
+        assertEquals(2.0, metrics.get("perfetto_cpu_time_ms_compact_200"), 0.0001);
+        // The idle threads are not reported.
+        assertFalse(metrics.keySet().stream().anyMatch(key -> key.contains("swapper")));
+    }
+
+    /** Test only the threads using the most cpu time are reported. */
+    @Test
+    public void testMaxThreads() throws IOException {
+        PerfettoTraceSummarizer summarizer = new PerfettoTraceSummarizer();
+        summarizer.setMaxThreads(1);
+        Map<String, Double> metrics = summarize(summarizer);
+        assertTrue(metrics.containsKey("perfetto_cpu_time_ms_main_100"));
+        assertFalse(metrics.containsKey("perfetto_cpu_time_ms_RenderThread_101"));
+        assertFalse(metrics.containsKey("perfetto_cpu_time_ms_compact_200"));
+    }
+
+    /** Test the durations of atrace and track event slices are summarized by name. */
+    @Test
+    public void testSliceDurations() throws IOException {
+        Map<String, Double> metrics = summarize(new PerfettoTraceSummarizer());
+        assertEquals(2.0, metrics.get("perfetto_slice_inflate_count"), 0);
+        assertEquals(2.0, metrics.get("perfetto_slice_inflate_total_ms"), 0.0001);
+        assertEquals(1.0, metrics.get("perfetto_slice_inflate_max_ms"), 0.0001);
+        assertEquals(1.0, metrics.get("perfetto_slice_inflate_avg_ms"), 0.0001);
+        assertEquals(1.0, metrics.get("perfetto_slice_measure_count"), 0);
+        assertEquals(0.5, metrics.get("perfetto_slice_measure_max_ms"), 0.0001);
+        assertEquals(4.0, metrics.get("perfetto_slice_doFrame_total_ms"), 0.0001);
+        assertEquals(1.0, metrics.get("perfetto_slice_inline_slice_total_ms"), 0.0001);
+    }
+
+    /** Test the values of atrace and track event counters are summarized by name. */
+    @Test
+    public void testCounters() throws IOException {
+        Map<String, Double> metrics = summarize(new PerfettoTraceSummarizer());
+        assertEquals(1.0, metrics.get("perfetto_counter_queue_min"), 0);
+        assertEquals(5.0, metrics.get("perfetto_counter_queue_max"), 0);
+        assertEquals(3.0, metrics.get("perfetto_counter_queue_avg"), 0.0001);
+        assertEquals(30.0, metrics.get("perfetto_counter_fps_min"), 0);
+        assertEquals(60.0, metrics.get("perfetto_counter_fps_max"), 0);
+        assertEquals(45.0, metrics.get("perfetto_counter_fps_avg"), 0.0001);
+    }
+
+    /**
+     * Test the metrics are bounded, keeping the slices with the longest total duration and the
+     * counters with the most values.
+     */
+    @Test
+    public void testMaxMetrics() throws IOException {
+        PerfettoTraceSummarizer summarizer = new PerfettoTraceSummarizer();
+        // The 3 threads, the doFrame slice and the queue counter.
+        summarizer.setMaxMetrics(10);
+        Map<String, Double> metrics = summarize(summarizer);
+        assertEquals(10, metrics.size());
+        assertTrue(metrics.containsKey("perfetto_cpu_time_ms_compact_200"));
+        assertTrue(metrics.containsKey("perfetto_slice_doFrame_total_ms"));
+        assertFalse(metrics.containsKey("perfetto_slice_inflate_total_ms"));
+        assertTrue(metrics.containsKey("perfetto_counter_queue_avg"));
+        assertFalse(metrics.containsKey("perfetto_counter_fps_avg"));
+    }
+
+    /** Test the names of slices and counters are reported without special characters. */
+    @Test
+    public void testMetricNames() throws IOException {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        // A counter track named "heap size|java/native" set to 5.
+        writePacket(trace, 1000, 60, message(field(1, 7), field(2, "heap size|java/native")));
+        writePacket(trace, 2000, 11, message(field(9, 4), field(11, 7), field(30, 5)));
+        Map<String, Double> metrics =
+                new PerfettoTraceSummarizer()
+                        .summarize(new ByteArrayInputStream(trace.toByteArray()));
+        assertEquals(5.0, metrics.get("perfetto_counter_heap_size_java_native_max"), 0);
+    }
+
+    /** Test a trace cut in the middle of a packet is summarized up to the cut. */
+    @Test
+    public void testTruncatedTrace() throws IOException {
+        byte[] trace = readFixture();
+        Map<String, Double> metrics =
+                new PerfettoTraceSummarizer()
+                        .summarize(new ByteArrayInputStream(trace, 0, trace.length - 5));
+        assertEquals(3.0, metrics.get("perfetto_cpu_time_ms_RenderThread_101"), 0.0001);
+        assertFalse(metrics.containsKey("perfetto_slice_inline_slice_count"));
+    }
+
+    private Map<String, Double> summarize(PerfettoTraceSummarizer summarizer)
+            throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(TRACE)) {
+            return summarizer.summarize(in);
+        }
+    }
+
+    /** Write a TracePacket with a timestamp and the given message field. */
+    private static void writePacket(
+            ByteArrayOutputStream trace, long timestampNs, int field, byte[] value) {
+        byte[] packet = message(field(8, timestampNs), field(field, value));
+        byte[] framed = field(1, packet);
+        trace.write(framed, 0, framed.length);
+    }
+
+    private static byte[] message(byte[]... fields) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (byte[] field : fields) {
+            message.write(field, 0, field.length);
+        }
+        return message.toByteArray();
+    }
+
+    private static byte[] field(int field, long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, field << 3);
+        writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    private static byte[] field(int field, String value) {
+        return field(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] field(int field, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, (field << 3) | 2);
+        writeVarint(out, value.length);
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private byte[] readFixture() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(TRACE)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.protobuf.nano.MessageNano;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks of the decoding of the CpuTimePerUid gauge reports of {@link CpuUsageHelper}, with
+ * the number of uids of a device and the buckets of a long test. The allocations are reported
+ * with the times.
+ *
+ * To run:
+ * atest StatsdHelperBenchmark:com.android.helpers.StatsdReportDecoderBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdReportDecoderBenchmark {
+
+    private static final int UID_COUNT = 2000;
+    private static final int BUCKET_COUNT = 10;
+    private static final long METRIC_ID = 1;
+
+    private static final byte[] REPORTS = buildReports();
+
+    @Rule public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    /** Nano protos and a multimap of boxed values with a key per atom, as before the decoder. */
+    @Test
+    public void timeNanoReports() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            StatsLog.ConfigMetricsReportList reportList =
+                    StatsLog.ConfigMetricsReportList.parseFrom(REPORTS);
+            ListMultimap<String, Long> cpuUsageMap = ArrayListMultimap.create();
+            for (StatsLog.StatsLogReport metric : reportList.reports[0].metrics) {
+                for (StatsLog.GaugeMetricData gaugeMetric : metric.getGaugeMetrics().data) {
+                    for (StatsLog.GaugeBucketInfo bucket : gaugeMetric.bucketInfo) {
+                        for (AtomsProto.Atom atom : bucket.atom) {
+                            int uid = atom.getCpuTimePerUid().uid;
+                            String name = String.valueOf(uid);
+                            cpuUsageMap.put(
+                                    MetricUtility.constructKey(
+                                            "cpu_usage_pkg_or_uid", name, "user_time",
+                                            String.valueOf(uid)),
+                                    atom.getCpuTimePerUid().userTimeMicros / 1000);
+                            cpuUsageMap.put(
+                                    MetricUtility.constructKey(
+                                            "cpu_usage_pkg_or_uid", name, "system_time",
+                                            String.valueOf(uid)),
+                                    atom.getCpuTimePerUid().sysTimeMicros / 1000);
+                        }
+                    }
+                }
+            }
+            Map<String, Long> usage = new HashMap<>();
+            for (String key : cpuUsageMap.keySet()) {
+                List<Long> values = cpuUsageMap.get(key);
+                usage.put(key, values.get(values.size() - 1) - values.get(0));
+            }
+        }
+    }
+
+    /** The streaming decoder, primitive accumulators and a key per uid. */
+    @Test
+    public void timeStreamingDecoder() throws Exception {
+        FirstLastAccumulator cpuTimes = new FirstLastAccumulator(2);
+        int[] atom = new int[1];
+        long[] times = new long[2];
+        StatsdReportDecoder decoder =
+                new StatsdReportDecoder(
+                                new StatsdReportDecoder.AtomVisitor() {
+                                    @Override
+                                    public void onLongField(int atomId, int field, long value) {
+                                        if (field == 1) {
+                                            atom[0] = (int) value;
+                                        } else {
+                                            times[field - 2] = value;
+                                        }
+                                    }
+
+                                    @Override
+                                    public void onAtomEnd(int atomId) {
+                                        cpuTimes.add(atom[0], 0, times[0] / 1000);
+                                        cpuTimes.add(atom[0], 1, times[1] / 1000);
+                                    }
+                                })
+                        .addFields(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER, 1, 2, 3);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            StatsdReportDecoder.forEachMetricData(
+                    REPORTS, (metricId, gauge, data) -> decoder.visitMetricData(data, gauge));
+            Map<String, Long> usage = new HashMap<>();
+            for (int i = 0; i < cpuTimes.size(); i++) {
+                String name = String.valueOf(cpuTimes.getKey(i));
+                usage.put(
+                        MetricUtility.constructKey("cpu_usage_pkg_or_uid", name, "user_time"),
+                        cpuTimes.getLast(i, 0) - cpuTimes.getFirst(i, 0));
+                usage.put(
+                        MetricUtility.constructKey("cpu_usage_pkg_or_uid", name, "system_time"),
+                        cpuTimes.getLast(i, 1) - cpuTimes.getFirst(i, 1));
+            }
+            cpuTimes.clear();
+        }
+    }
+
+    /** Build a report of a gauge metric with the cpu times of every uid in every bucket. */
+    private static byte[] buildReports() {
+        StatsLog.GaugeMetricData gaugeData = new StatsLog.GaugeMetricData();
+        gaugeData.bucketInfo = new StatsLog.GaugeBucketInfo[BUCKET_COUNT];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            StatsLog.GaugeBucketInfo bucketInfo = new StatsLog.GaugeBucketInfo();
+            bucketInfo.atom = new AtomsProto.Atom[UID_COUNT];
+            for (int i = 0; i < UID_COUNT; i++) {
+                AtomsProto.CpuTimePerUid cpuTime = new AtomsProto.CpuTimePerUid();
+                cpuTime.uid = 10000 + i;
+                cpuTime.userTimeMicros = (bucket + 1) * 1000000L + i;
+                cpuTime.sysTimeMicros = (bucket + 1) * 500000L + i;
+                bucketInfo.atom[i] = new AtomsProto.Atom();
+                bucketInfo.atom[i].setCpuTimePerUid(cpuTime);
+            }
+            gaugeData.bucketInfo[bucket] = bucketInfo;
+        }
+        StatsLog.StatsLogReport.GaugeMetricDataWrapper wrapper =
+                new StatsLog.StatsLogReport.GaugeMetricDataWrapper();
+        wrapper.data = new StatsLog.GaugeMetricData[] {gaugeData};
+        StatsLog.StatsLogReport metric = new StatsLog.StatsLogReport();
+        metric.metricId = METRIC_ID;
+        metric.setGaugeMetrics(wrapper);
+        StatsLog.ConfigMetricsReport report = new StatsLog.ConfigMetricsReport();
+        report.metrics = new StatsLog.StatsLogReport[] {metric};
+        StatsLog.ConfigMetricsReportList reportList = new StatsLog.ConfigMetricsReportList();
+        reportList.reports = new StatsLog.ConfigMetricsReport[] {report};
+        return MessageNano.toByteArray(reportList);
+    }
+}
@@ -19,10 +19,6 @@ package com.android.helpers;
 import android.util.Log;
 
 import com.android.os.nano.AtomsProto;
-import com.android.os.nano.StatsLog;
-
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -36,6 +32,9 @@ import java.util.regex.Pattern;
  * cpu usage configs in statsd to track the cpu usage related
  * metrics and retrieve the necessary information from statsd
  * using the config id.
+ *
+ * <p>The CpuTimePerUid atoms are streamed from the statsd reports into a
+ * {@link FirstLastAccumulator}, without building the nano protos of the reports.
  */
 public class CpuUsageHelper implements ICollectorHelper<Long> {
 
@@ -47,6 +46,15 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private static final String TOTAL_CPU_TIME = "total_cpu_time";
     private static final String CPU_UTILIZATION = "cpu_utilization_average_per_core_percent";
 
+    // Fields of the CpuTimePerUid atom.
+    private static final int UID_FIELD = 1;
+    private static final int USER_TIME_MICROS_FIELD = 2;
+    private static final int SYS_TIME_MICROS_FIELD = 3;
+    // Columns of the accumulated cpu times, in milliseconds.
+    private static final int USER_TIME_COLUMN = 0;
+    private static final int SYSTEM_TIME_COLUMN = 1;
+    private static final String[] COLUMN_NAMES = {USER_TIME, SYSTEM_TIME};
+
     private StatsdHelper mStatsdHelper = new StatsdHelper();
     private boolean isPerPkgDisabled;
     private boolean isTotalPkgDisabled;
@@ -55,6 +63,48 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private long mEndTime;
     private Integer mCpuCores = null;
 
+    // First and last cpu times of every uid since the config was added.
+    private final FirstLastAccumulator mCpuTimes = new FirstLastAccumulator(COLUMN_NAMES.length);
+    private final StatsdReportDecoder mDecoder =
+            new StatsdReportDecoder(new CpuTimeVisitor())
+                    .addFields(
+                            AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER,
+                            UID_FIELD,
+                            USER_TIME_MICROS_FIELD,
+                            SYS_TIME_MICROS_FIELD);
+
+    /** Adds the cpu times of the CpuTimePerUid atoms to {@link #mCpuTimes}. */
+    private class CpuTimeVisitor implements StatsdReportDecoder.AtomVisitor {
+        private int mUid;
+        private long mUserTimeMicros;
+        private long mSysTimeMicros;
+
+        @Override
+        public void onAtomStart(int atomId) {
+            mUid = 0;
+            mUserTimeMicros = 0;
+            mSysTimeMicros = 0;
+        }
+
+        @Override
+        public void onLongField(int atomId, int field, long value) {
+            if (field == UID_FIELD) {
+                mUid = (int) value;
+            } else if (field == USER_TIME_MICROS_FIELD) {
+                mUserTimeMicros = value;
+            } else {
+                mSysTimeMicros = value;
+            }
+        }
+
+        @Override
+        public void onAtomEnd(int atomId) {
+            // Convert to milliseconds to compare with CpuTimePerFreq
+            mCpuTimes.add(mUid, USER_TIME_COLUMN, mUserTimeMicros / 1000);
+            mCpuTimes.add(mUid, SYSTEM_TIME_COLUMN, mSysTimeMicros / 1000);
+        }
+    }
+
     @Override
     public boolean startCollecting() {
         Log.i(LOG_TAG, "Adding CpuUsage config to statsd.");
@@ -66,93 +116,60 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
             mStartTime = System.currentTimeMillis();
         }
 
-        return mStatsdHelper.addGaugeConfig(atomIdList);
+        mCpuTimes.clear();
+        return mStatsdHelper.addGaugeConfig(atomIdList, mDecoder);
     }
 
     @Override
     public Map<String, Long> getMetrics() {
         Map<String, Long> cpuUsageFinalMap = new HashMap<>();
 
-        List<StatsLog.GaugeMetricData> gaugeMetricList = mStatsdHelper.getGaugeMetrics();
+        if (!mStatsdHelper.collectMetrics()) {
+            Log.e(LOG_TAG, "Failed to collect the cpu usage.");
+        }
 
         if (isCpuUtilizationEnabled) {
             mEndTime = System.currentTimeMillis();
         }
 
-        ListMultimap<String, Long> cpuUsageMap = ArrayListMultimap.create();
-
-        for (StatsLog.GaugeMetricData gaugeMetric : gaugeMetricList) {
-            Log.v(LOG_TAG, "Bucket Size: " + gaugeMetric.bucketInfo.length);
-            for (StatsLog.GaugeBucketInfo gaugeBucketInfo : gaugeMetric.bucketInfo) {
-                for (AtomsProto.Atom atom : gaugeBucketInfo.atom) {
-                    // Track CPU usage in user time and system time per package or UID
-                    if (atom.hasCpuTimePerUid()) {
-                        int uId = atom.getCpuTimePerUid().uid;
-                        String packageName = mStatsdHelper.getPackageName(uId);
-                        // Convert to milliseconds to compare with CpuTimePerFreq
-                        long userTimeMillis = atom.getCpuTimePerUid().userTimeMicros / 1000;
-                        long sysTimeMillis = atom.getCpuTimePerUid().sysTimeMicros / 1000;
-                        Log.v(
-                                LOG_TAG,
-                                String.format(
-                                        "Uid:%d, Pkg Name: %s, User_Time: %d," + " System_Time: %d",
-                                        uId, packageName, userTimeMillis, sysTimeMillis));
-
-                        // Use the package name if exist for the UID otherwise use the UID.
-                        // Note: UID for the apps will be different across the builds.
-
-                        // It is possible to have multiple bucket info. Track all the gauge info
-                        // and take the difference of the first and last to compute the
-                        // final usage.
-
-                        // Add uid suffix to CPU_USAGE_PKG_UID type of key to tell apart processes
-                        // with the same package name but different uid in multi-user situations,
-                        // so that cpu gauge info won't get mixed up when taking the difference. All
-                        // uid suffix will be removed subsequently in final result.
-
-                        String UserTimeKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID,
-                                (packageName == null) ? String.valueOf(uId) : packageName,
-                                USER_TIME, String.valueOf(uId));
-                        String SystemTimeKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID,
-                                (packageName == null) ? String.valueOf(uId) : packageName,
-                                SYSTEM_TIME, String.valueOf(uId));
-                        cpuUsageMap.put(UserTimeKey, userTimeMillis);
-                        cpuUsageMap.put(SystemTimeKey, sysTimeMillis);
-                    }
-                }
-            }
-        }
-
         // Compute the final result map
         Long totalCpuUsage = 0L;
-        for (String key : cpuUsageMap.keySet()) {
-            List<Long> cpuUsageList = cpuUsageMap.get(key);
-            if (cpuUsageList.size() > 1) {
-                // Compute the total usage by taking the difference of last and first value.
-                Long cpuUsage = cpuUsageList.get(cpuUsageList.size() - 1)
-                        - cpuUsageList.get(0);
+        for (int index = 0; index < mCpuTimes.size(); index++) {
+            int uId = mCpuTimes.getKey(index);
+            // The package name of the uid, looked up once for all its samples.
+            String pkgOrUid = null;
+            for (int column = 0; column < COLUMN_NAMES.length; column++) {
+                // It is possible to have multiple bucket info. Track all the gauge info
+                // and take the difference of the first and last to compute the
+                // final usage.
+                if (mCpuTimes.getCount(index, column) < 2) {
+                    continue;
+                }
+                long cpuUsage =
+                        mCpuTimes.getLast(index, column) - mCpuTimes.getFirst(index, column);
                 // Add the final result only if the cpu usage is greater than 0.
-                if (cpuUsage > 0) {
-                    if (key.startsWith(CPU_USAGE_PKG_UID)
-                            && !isPerPkgDisabled) {
-                        // remove uid suffix from key.
-                        String finalKey = key.substring(0, key.lastIndexOf('_'));
-                        if (cpuUsageFinalMap.containsKey(finalKey)) {
-                            // accumulate cpu time of the same package from different uid.
-                            cpuUsageFinalMap.put(
-                                    finalKey, cpuUsage + cpuUsageFinalMap.get(finalKey));
-                        } else {
-                            cpuUsageFinalMap.put(finalKey, cpuUsage);
-                        }
+                if (cpuUsage > 0 && !isPerPkgDisabled) {
+                    if (pkgOrUid == null) {
+                        // Use the package name if exist for the UID otherwise use the UID.
+                        // Note: UID for the apps will be different across the builds.
+                        String packageName = mStatsdHelper.getPackageName(uId);
+                        pkgOrUid = (packageName == null) ? String.valueOf(uId) : packageName;
                     }
+                    // Processes with the same package name but different uid in multi-user
+                    // situations are accumulated under the same key.
+                    String finalKey =
+                            MetricUtility.constructKey(
+                                    CPU_USAGE_PKG_UID, pkgOrUid, COLUMN_NAMES[column]);
+                    cpuUsageFinalMap.merge(finalKey, cpuUsage, Long::sum);
                 }
                 // Add the CPU time to their respective (usage or frequency) total metric.
-                if (key.startsWith(CPU_USAGE_PKG_UID)
-                        && !isTotalPkgDisabled) {
+                if (!isTotalPkgDisabled) {
                     totalCpuUsage += cpuUsage;
                 }
             }
         }
+        // Like the gauge data, every sample is used by a single collection.
+        mCpuTimes.clear();
         // Put the total results into the final result map.
         if (!isTotalPkgDisabled) {
             cpuUsageFinalMap.put(TOTAL_CPU_USAGE, totalCpuUsage);
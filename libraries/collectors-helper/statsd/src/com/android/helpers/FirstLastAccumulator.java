@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the first and last samples of a few long columns per int key, e.g. the cpu times of every
+ * uid in the gauge buckets before and after a test, in primitive arrays.
+ *
+ * <p>Keys are indexed in the order they were first added, from 0 to {@link #size()} - 1.
+ */
+public class FirstLastAccumulator {
+    private static final int EMPTY = -1;
+
+    private final int mColumns;
+    // Open addressing table from the keys to their index.
+    private int[] mTableKeys = new int[64];
+    private int[] mTableIndexes = new int[64];
+    private int[] mKeys = new int[32];
+    private int mSize = 0;
+    // Samples of the columns of every index, at index * columns + column.
+    private int[] mCounts = new int[0];
+    private long[] mFirst = new long[0];
+    private long[] mLast = new long[0];
+
+    public FirstLastAccumulator(int columns) {
+        mColumns = columns;
+        Arrays.fill(mTableIndexes, EMPTY);
+        growSamples(mKeys.length);
+    }
+
+    /** Add a sample of the column of the key. */
+    public void add(int key, int column, long value) {
+        int offset = indexOf(key) * mColumns + column;
+        if (mCounts[offset]++ == 0) {
+            mFirst[offset] = value;
+        }
+        mLast[offset] = value;
+    }
+
+    /** Returns the number of keys. */
+    public int size() {
+        return mSize;
+    }
+
+    public int getKey(int index) {
+        return mKeys[index];
+    }
+
+    /** Returns the number of samples of the column of the key at the index. */
+    public int getCount(int index, int column) {
+        return mCounts[index * mColumns + column];
+    }
+
+    public long getFirst(int index, int column) {
+        return mFirst[index * mColumns + column];
+    }
+
+    public long getLast(int index, int column) {
+        return mLast[index * mColumns + column];
+    }
+
+    /** Remove all the keys, keeping the allocated arrays. */
+    public void clear() {
+        Arrays.fill(mTableIndexes, EMPTY);
+        Arrays.fill(mCounts, 0, mSize * mColumns, 0);
+        mSize = 0;
+    }
+
+    /** Returns the index of the key, adding it if needed. */
+    private int indexOf(int key) {
+        int mask = mTableKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (mTableIndexes[slot] != EMPTY) {
+            if (mTableKeys[slot] == key) {
+                return mTableIndexes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            growSamples(mKeys.length);
+        }
+        int index = mSize++;
+        mKeys[index] = key;
+        mTableKeys[slot] = key;
+        mTableIndexes[slot] = index;
+        if (mSize * 2 > mTableKeys.length) {
+            growTable();
+        }
+        return index;
+    }
+
+    private void growSamples(int capacity) {
+        mCounts = Arrays.copyOf(mCounts, capacity * mColumns);
+        mFirst = Arrays.copyOf(mFirst, capacity * mColumns);
+        mLast = Arrays.copyOf(mLast, capacity * mColumns);
+    }
+
+    private void growTable() {
+        mTableKeys = new int[mTableKeys.length * 2];
+        mTableIndexes = new int[mTableKeys.length];
+        Arrays.fill(mTableIndexes, EMPTY);
+        int mask = mTableKeys.length - 1;
+        for (int index = 0; index < mSize; index++) {
+            int slot = mix(mKeys[index]) & mask;
+            while (mTableIndexes[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            mTableKeys[slot] = mKeys[index];
+            mTableIndexes[slot] = index;
+        }
+    }
+
+    /** Spread the bits of sequential keys such as uids over the table. */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.StatsManager;
+import android.app.StatsManager.StatsUnavailableException;
+import android.content.Context;
+import android.util.StatsLog;
+
+import androidx.test.InstrumentationRegistry;
+
+/** Calls {@link StatsManager} with the shell permission identity. */
+class StatsManagerReportSource implements StatsdReportSource {
+    private StatsManager mStatsManager;
+
+    @Override
+    public void addConfig(long configId, byte[] config) throws StatsUnavailableException {
+        StatsdHelper.adoptShellIdentity();
+        try {
+            getStatsManager().addConfig(configId, config);
+        } finally {
+            StatsdHelper.dropShellIdentity();
+        }
+    }
+
+    @Override
+    public byte[] getReports(long configId) throws StatsUnavailableException {
+        StatsdHelper.adoptShellIdentity();
+        try {
+            return getStatsManager().getReports(configId);
+        } finally {
+            StatsdHelper.dropShellIdentity();
+        }
+    }
+
+    @Override
+    public void removeConfig(long configId) throws StatsUnavailableException {
+        StatsdHelper.adoptShellIdentity();
+        try {
+            getStatsManager().removeConfig(configId);
+        } finally {
+            StatsdHelper.dropShellIdentity();
+        }
+    }
+
+    @Override
+    public void logTriggerEvent(int label) {
+        StatsdHelper.adoptShellIdentity();
+        try {
+            StatsLog.logEvent(label);
+        } finally {
+            StatsdHelper.dropShellIdentity();
+        }
+    }
+
+    /** Gets {@code StatsManager}, used to configure, collect and remove the statsd configs. */
+    private StatsManager getStatsManager() {
+        if (mStatsManager == null) {
+            mStatsManager = (StatsManager) InstrumentationRegistry.getTargetContext().
+                    getSystemService(Context.STATS_MANAGER);
+        }
+        return mStatsManager;
+    }
+}
@@ -16,37 +16,52 @@
 
 package com.android.helpers;
 
-import android.app.StatsManager;
-import android.app.StatsManager.StatsUnavailableException;
-import android.content.Context;
-import android.os.SystemClock;
 import android.util.Log;
-import android.util.StatsLog;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
 import com.android.internal.os.nano.StatsdConfigProto;
 import com.android.os.nano.AtomsProto;
 
-import com.google.protobuf.nano.CodedOutputByteBufferNano;
-import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
-
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * StatsdHelper consist of basic utilities that will be used to setup statsd
  * config, parse the collected information and remove the statsd config.
+ *
+ * <p>The atoms of all the helpers are collected through the {@link StatsdSession} shared by the
+ * process, so they register one config and pull one report per collection.
  */
 public class StatsdHelper {
     private static final String LOG_TAG = StatsdHelper.class.getSimpleName();
-    private static final long MAX_ATOMS = 2000;
-    private static final long METRIC_DELAY_MS = 3000;
-    private long mConfigId = -1;
-    private StatsManager mStatsManager;
+    private StatsdSession mSession;
+    private boolean mSubscribed = false;
+    // Decoder streaming the atoms of this helper, null to keep the parsed data.
+    private StatsdReportDecoder mDecoder;
+    // Data routed to this helper by the session and not returned yet.
+    private List<com.android.os.nano.StatsLog.EventMetricData> mEventData = new ArrayList<>();
+    private List<com.android.os.nano.StatsLog.GaugeMetricData> mGaugeData = new ArrayList<>();
+
+    private final StatsdSession.Consumer mConsumer =
+            new StatsdSession.Consumer() {
+                @Override
+                public void onEventMetricData(com.android.os.nano.StatsLog.EventMetricData data) {
+                    mEventData.add(data);
+                }
+
+                @Override
+                public void onGaugeMetricData(com.android.os.nano.StatsLog.GaugeMetricData data) {
+                    mGaugeData.add(data);
+                }
+
+                @Override
+                public StatsdReportDecoder getDecoder() {
+                    return mDecoder;
+                }
+            };
 
     /**
      * Add simple event configurations using a list of atom ids.
@@ -55,100 +70,49 @@ public class StatsdHelper {
      * @return true if the configuration is added successfully, otherwise false.
      */
     public boolean addEventConfig(List<Integer> atomIdList) {
-        long configId = System.currentTimeMillis();
-        StatsdConfigProto.StatsdConfig config = getSimpleSources(configId);
-        List<StatsdConfigProto.EventMetric> metrics = new ArrayList<>(atomIdList.size());
-        List<StatsdConfigProto.AtomMatcher> atomMatchers = new ArrayList<>(atomIdList.size());
-        for (Integer atomId : atomIdList) {
-            int atomUniqueId = getUniqueId();
-            StatsdConfigProto.EventMetric metric = new StatsdConfigProto.EventMetric();
-            metric.id = getUniqueId();
-            metric.what = atomUniqueId;
-            metrics.add(metric);
-            atomMatchers.add(getSimpleAtomMatcher(atomUniqueId, atomId));
-        }
-        config.eventMetric = metrics.toArray(new StatsdConfigProto.EventMetric[0]);
-        config.atomMatcher = atomMatchers.toArray(new StatsdConfigProto.AtomMatcher[0]);
-        try {
-            adoptShellIdentity();
-            getStatsManager().addConfig(configId, toByteArray(config));
-            dropShellIdentity();
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Not able to setup the event config.", e);
-            return false;
-        }
-        Log.i(LOG_TAG, "Successfully added config with config-id:" + configId);
-        setConfigId(configId);
-        return true;
+        mDecoder = null;
+        return subscribe(atomIdList, Collections.emptyList());
     }
 
     /**
      * Build gauge metric config based on trigger events (i.e AppBreadCrumbReported).
      * Whenever the events are triggered via StatsLog.logEvent() collect the gauge metrics.
-     * It doesn't matter what the log event is. It could be 0 or 1.
+     * The label of the event is unique to the helper, so that only its gauges are pulled.
      * In order to capture the usage during the test take the difference of gauge metrics
      * before and after the test.
      *
+     * <p>The gauges are flushed once before returning, see {@link #getGaugeMetrics()}.
+     *
      * @param atomIdList List of atoms to be collected in gauge metrics.
      * @return if the config is added successfully otherwise false.
      */
     public boolean addGaugeConfig(List<Integer> atomIdList) {
-        long configId = System.currentTimeMillis();
-        StatsdConfigProto.StatsdConfig config = getSimpleSources(configId);
-        int appBreadCrumbUniqueId = getUniqueId();
-        config.whitelistedAtomIds =
-                new int[] {AtomsProto.Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER};
-        List<StatsdConfigProto.AtomMatcher> matchers = new ArrayList<>(atomIdList.size());
-        List<StatsdConfigProto.GaugeMetric> gaugeMetrics = new ArrayList<>();
-        // Needed for collecting gauge metric based on trigger events.
-        matchers.add(
-                getSimpleAtomMatcher(
-                        appBreadCrumbUniqueId,
-                        AtomsProto.Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER));
-        for (Integer atomId : atomIdList) {
-            int atomUniqueId = getUniqueId();
-            // Build Gauge metric config.
-            StatsdConfigProto.GaugeMetric gaugeMetric = new StatsdConfigProto.GaugeMetric();
-            gaugeMetric.id = getUniqueId();
-            gaugeMetric.what = atomUniqueId;
-            StatsdConfigProto.FieldFilter fieldFilter = new StatsdConfigProto.FieldFilter();
-            fieldFilter.includeAll = true;
-            gaugeMetric.gaugeFieldsFilter = fieldFilter;
-            gaugeMetric.maxNumGaugeAtomsPerBucket = MAX_ATOMS;
-            gaugeMetric.samplingType = StatsdConfigProto.GaugeMetric.FIRST_N_SAMPLES;
-            gaugeMetric.triggerEvent = appBreadCrumbUniqueId;
-            gaugeMetric.bucket = StatsdConfigProto.CTS;
-            matchers.add(getSimpleAtomMatcher(atomUniqueId, atomId));
-            gaugeMetrics.add(gaugeMetric);
-        }
-        config.atomMatcher = matchers.toArray(new StatsdConfigProto.AtomMatcher[0]);
-        config.gaugeMetric = gaugeMetrics.toArray(new StatsdConfigProto.GaugeMetric[0]);
-        try {
-            adoptShellIdentity();
-            getStatsManager().addConfig(configId, toByteArray(config));
-            StatsLog.logEvent(0);
-            // Dump the counters before the test started.
-            SystemClock.sleep(METRIC_DELAY_MS);
-            dropShellIdentity();
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Not able to setup the gauge config.", e);
-            return false;
-        }
+        mDecoder = null;
+        return subscribe(Collections.emptyList(), atomIdList);
+    }
 
-        Log.i(LOG_TAG, "Successfully added config with config-id:" + configId);
-        setConfigId(configId);
-        return true;
+    /**
+     * Same as {@link #addGaugeConfig(List)}, but the atoms are streamed to the decoder on every
+     * collection, see {@link #collectMetrics()}, instead of being returned as nano protos.
+     *
+     * @param atomIdList List of atoms to be collected in gauge metrics.
+     * @param decoder the decoder visiting the atoms, with the fields it needs.
+     * @return if the config is added successfully otherwise false.
+     */
+    public boolean addGaugeConfig(List<Integer> atomIdList, StatsdReportDecoder decoder) {
+        mDecoder = decoder;
+        return subscribe(Collections.emptyList(), atomIdList);
     }
 
-    /** Create simple atom matcher with the given id and the field id. */
-    private StatsdConfigProto.AtomMatcher getSimpleAtomMatcher(int id, int fieldId) {
-        StatsdConfigProto.AtomMatcher atomMatcher = new StatsdConfigProto.AtomMatcher();
-        atomMatcher.id = id;
-        StatsdConfigProto.SimpleAtomMatcher simpleAtomMatcher =
-                new StatsdConfigProto.SimpleAtomMatcher();
-        simpleAtomMatcher.atomId = fieldId;
-        atomMatcher.setSimpleAtomMatcher(simpleAtomMatcher);
-        return atomMatcher;
+    private boolean subscribe(List<Integer> eventAtomIds, List<Integer> gaugeAtomIds) {
+        mEventData.clear();
+        mGaugeData.clear();
+        if (!getSession().subscribe(mConsumer, eventAtomIds, gaugeAtomIds)) {
+            return false;
+        }
+        mSubscribed = true;
+        Log.i(LOG_TAG, "Successfully added atoms to config-id:" + getSession().getConfigId());
+        return true;
     }
 
     /**
@@ -156,7 +120,7 @@ public class StatsdHelper {
      *
      * @param configId unique id of the configuration tracked by StatsManager.
      */
-    private static StatsdConfigProto.StatsdConfig getSimpleSources(long configId) {
+    static StatsdConfigProto.StatsdConfig getSimpleSources(long configId) {
         StatsdConfigProto.StatsdConfig config = new StatsdConfigProto.StatsdConfig();
         config.id = configId;
         String[] allowedLogSources =
@@ -184,88 +148,55 @@ public class StatsdHelper {
 
     /** Returns the list of EventMetricData tracked under the config. */
     public List<com.android.os.nano.StatsLog.EventMetricData> getEventMetrics() {
-        List<com.android.os.nano.StatsLog.EventMetricData> eventData = new ArrayList<>();
-        com.android.os.nano.StatsLog.ConfigMetricsReportList reportList = null;
-        try {
-            if (getConfigId() != -1) {
-                adoptShellIdentity();
-                byte[] serializedReports = getStatsManager().getReports(getConfigId());
-                reportList =
-                        com.android.os.nano.StatsLog.ConfigMetricsReportList.parseFrom(
-                                serializedReports);
-                dropShellIdentity();
-            }
-        } catch (InvalidProtocolBufferNanoException | StatsUnavailableException se) {
-            Log.e(LOG_TAG, "Retreiving event metrics failed.", se);
-            return eventData;
-        }
-
-        if (reportList != null && reportList.reports.length > 0) {
-            com.android.os.nano.StatsLog.ConfigMetricsReport configReport = reportList.reports[0];
-            for (com.android.os.nano.StatsLog.StatsLogReport metric : configReport.metrics) {
-                com.android.os.nano.StatsLog.StatsLogReport.EventMetricDataWrapper
-                        eventMetricDataWrapper = metric.getEventMetrics();
-                if (eventMetricDataWrapper != null) {
-                    eventData.addAll(Arrays.asList(eventMetricDataWrapper.data));
-                }
-            }
+        if (mSubscribed && !getSession().collect(mConsumer)) {
+            Log.e(LOG_TAG, "Retreiving event metrics failed.");
         }
+        List<com.android.os.nano.StatsLog.EventMetricData> eventData = mEventData;
+        mEventData = new ArrayList<>();
         Log.i(LOG_TAG, "Number of events: " + eventData.size());
         return eventData;
     }
 
-    /** Returns the list of GaugeMetric data tracked under the config. */
+    /**
+     * Returns the list of GaugeMetric data tracked under the config.
+     *
+     * <p>Triggers the gauge pulls and waits until the report has a new bucket for every gauge
+     * metric of the config, at most 3 seconds. The returned list also contains the data dumped
+     * when the config was added.
+     */
     public List<com.android.os.nano.StatsLog.GaugeMetricData> getGaugeMetrics() {
-        com.android.os.nano.StatsLog.ConfigMetricsReportList reportList = null;
-        List<com.android.os.nano.StatsLog.GaugeMetricData> gaugeData = new ArrayList<>();
-        try {
-            if (getConfigId() != -1) {
-                adoptShellIdentity();
-                StatsLog.logEvent(0);
-                // Dump the the counters after the test completed.
-                SystemClock.sleep(METRIC_DELAY_MS);
-                reportList =
-                        com.android.os.nano.StatsLog.ConfigMetricsReportList.parseFrom(
-                                getStatsManager().getReports(getConfigId()));
-                dropShellIdentity();
-            }
-        } catch (InvalidProtocolBufferNanoException | StatsUnavailableException se) {
-            Log.e(LOG_TAG, "Retreiving gauge metrics failed.", se);
-            return gaugeData;
-        }
-
-        if (reportList != null && reportList.reports.length > 0) {
-            com.android.os.nano.StatsLog.ConfigMetricsReport configReport = reportList.reports[0];
-            for (com.android.os.nano.StatsLog.StatsLogReport metric : configReport.metrics) {
-                com.android.os.nano.StatsLog.StatsLogReport.GaugeMetricDataWrapper
-                        gaugeMetricDataWrapper = metric.getGaugeMetrics();
-                if (gaugeMetricDataWrapper != null) {
-                    gaugeData.addAll(Arrays.asList(gaugeMetricDataWrapper.data));
-                }
-            }
+        // Dump the the counters after the test completed.
+        if (mSubscribed && !getSession().collect(mConsumer)) {
+            Log.e(LOG_TAG, "Retreiving gauge metrics failed.");
         }
+        List<com.android.os.nano.StatsLog.GaugeMetricData> gaugeData = mGaugeData;
+        mGaugeData = new ArrayList<>();
         Log.i(LOG_TAG, "Number of Gauge data: " + gaugeData.size());
         return gaugeData;
     }
 
     /**
-     * Remove the existing config tracked in the statsd.
+     * Collect the metrics of a config added with a {@link StatsdReportDecoder}, whose atoms are
+     * streamed to it before returning. The gauges are flushed like in {@link #getGaugeMetrics()}.
+     *
+     * @return true if the metrics were collected successfully, otherwise false.
+     */
+    public boolean collectMetrics() {
+        return mSubscribed && getSession().collect(mConsumer);
+    }
+
+    /**
+     * Remove the atoms of this helper from the shared config, and the config once no helper uses
+     * it anymore.
      *
      * @return true if the config is removed successfully otherwise false.
      */
     public boolean removeStatsConfig() {
-        Log.i(LOG_TAG, "Removing statsd config-id: " + getConfigId());
-        try {
-            adoptShellIdentity();
-            getStatsManager().removeConfig(getConfigId());
-            dropShellIdentity();
-            Log.i(LOG_TAG, "Successfully removed config-id: " + getConfigId());
-            return true;
-        } catch (StatsUnavailableException e) {
-            Log.e(LOG_TAG, String.format("Not able to remove the config-id: %d due to %s ",
-                    getConfigId(), e.getMessage()));
-            return false;
-        }
+        Log.i(LOG_TAG, "Removing atoms from statsd config-id: " + getSession().getConfigId());
+        mSubscribed = false;
+        mEventData.clear();
+        mGaugeData.clear();
+        return getSession().unsubscribe(mConsumer);
     }
 
     /** Returns the package name for the UID if it is available. Otherwise return null. */
@@ -280,42 +211,16 @@ public class StatsdHelper {
         return pkgName;
     }
 
-    /** Gets {@code StatsManager}, used to configure, collect and remove the statsd configs. */
-    private StatsManager getStatsManager() {
-        if (mStatsManager == null) {
-            mStatsManager = (StatsManager) InstrumentationRegistry.getTargetContext().
-                    getSystemService(Context.STATS_MANAGER);
+    private StatsdSession getSession() {
+        if (mSession == null) {
+            mSession = StatsdSession.getInstance();
         }
-        return mStatsManager;
-    }
-
-    /** Returns the package name associated with this UID if available, or null otherwise. */
-    /**
-     * Serializes a {@link StatsdConfigProto.StatsdConfig}.
-     *
-     * @return byte[]
-     */
-    private static byte[] toByteArray(StatsdConfigProto.StatsdConfig config) throws IOException {
-        byte[] serialized = new byte[config.getSerializedSize()];
-        CodedOutputByteBufferNano outputByteBufferNano =
-                CodedOutputByteBufferNano.newInstance(serialized);
-        config.writeTo(outputByteBufferNano);
-        return serialized;
-    }
-
-    /** Sets the statsd config id currently tracked by this class. */
-    private void setConfigId(long configId) {
-        mConfigId = configId;
-    }
-
-    /** Returns the statsd config id currently tracked by this class. */
-    private long getConfigId() {
-        return mConfigId;
+        return mSession;
     }
 
-    /** Returns a unique identifier using a {@code UUID}'s hashcode. */
-    private static int getUniqueId() {
-        return UUID.randomUUID().hashCode();
+    @VisibleForTesting
+    void setSession(StatsdSession session) {
+        mSession = session;
     }
 
     /**
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * StatsdReportDecoder streams the atoms of serialized statsd reports to an {@link AtomVisitor}
+ * without building the nano proto objects of the reports.
+ *
+ * <p>Only the fields added with {@link #addFields} are visited, as primitives. String fields are
+ * interned from their bytes, so the package names repeated in every bucket are only allocated
+ * once. Atoms reported as aggregated atom info are visited once per timestamp, like the atoms of
+ * older reports.
+ */
+public class StatsdReportDecoder {
+    // Field numbers of ConfigMetricsReportList, ConfigMetricsReport and StatsLogReport.
+    private static final int REPORT_LIST_REPORTS = 2;
+    private static final int REPORT_METRICS = 1;
+    private static final int METRIC_ID = 1;
+    private static final int METRIC_EVENT_METRICS = 4;
+    private static final int METRIC_GAUGE_METRICS = 8;
+    // Field number of the data of EventMetricDataWrapper and GaugeMetricDataWrapper.
+    private static final int WRAPPER_DATA = 1;
+    // Field numbers of EventMetricData.
+    private static final int EVENT_ATOM = 2;
+    private static final int EVENT_AGGREGATED_ATOM = 4;
+    // Field numbers of GaugeMetricData and GaugeBucketInfo.
+    private static final int GAUGE_BUCKET_INFO = 3;
+    private static final int BUCKET_ATOM = 3;
+    private static final int BUCKET_AGGREGATED_ATOM = 9;
+    // Field numbers of AggregatedAtomInfo.
+    private static final int AGGREGATED_ATOM = 1;
+    private static final int AGGREGATED_TIMESTAMPS = 2;
+
+    private static final int MAX_FIELD = 63;
+    private static final int MAX_INTERNED_STRINGS = 4096;
+
+    /** Receives the subscribed fields of the atoms, in the order of the report. */
+    public interface AtomVisitor {
+        /** Called before the fields of every atom of a subscribed id. */
+        default void onAtomStart(int atomId) {}
+
+        /** Called for the varint fields, e.g. int, long, bool and enum fields. */
+        default void onLongField(int atomId, int field, long value) {}
+
+        /** Called for the float and double fields. */
+        default void onDoubleField(int atomId, int field, double value) {}
+
+        /** Called for the string fields, with an interned string. */
+        default void onStringField(int atomId, int field, String value) {}
+
+        /** Called after the fields of every atom of a subscribed id. */
+        default void onAtomEnd(int atomId) {}
+    }
+
+    /** Receives the event and gauge metric data of the reports. */
+    public interface MetricDataHandler {
+        /**
+         * Called for every EventMetricData or GaugeMetricData of the reports.
+         *
+         * @param data a cursor on the length delimited data, e.g. to {@link #visitMetricData}.
+         */
+        void onMetricData(long metricId, boolean gauge, ProtoCursor data) throws IOException;
+    }
+
+    private final AtomVisitor mVisitor;
+    // Subscribed atom ids, and the bit mask of their subscribed fields.
+    private int[] mAtomIds = new int[0];
+    private long[] mFieldMasks = new long[0];
+
+    // Cursors of the nested messages, reused for every report.
+    private final ProtoCursor mDataCursor = new ProtoCursor();
+    private final ProtoCursor mBucketCursor = new ProtoCursor();
+    private final ProtoCursor mAggregatedCursor = new ProtoCursor();
+    private final ProtoCursor mAtomCursor = new ProtoCursor();
+    private final ProtoCursor mFieldCursor = new ProtoCursor();
+    private long[] mTimestamps = new long[16];
+    private final int[] mTimestampCount = new int[1];
+
+    // Open addressing table of the interned strings, with their bytes.
+    private byte[][] mInternedBytes = new byte[64][];
+    private String[] mInternedStrings = new String[64];
+    private int mInternedCount = 0;
+
+    public StatsdReportDecoder(AtomVisitor visitor) {
+        mVisitor = visitor;
+    }
+
+    /**
+     * Subscribe the visitor to fields of an atom.
+     *
+     * @param atomId the atom id, which is its field number in the Atom message.
+     * @param fields the field numbers to visit, at most 63.
+     */
+    public StatsdReportDecoder addFields(int atomId, int... fields) {
+        long mask = 0;
+        for (int field : fields) {
+            if (field < 1 || field > MAX_FIELD) {
+                throw new IllegalArgumentException(
+                        String.format("Field %d of atom %d can't be decoded.", field, atomId));
+            }
+            mask |= 1L << field;
+        }
+        int index = indexOfAtom(atomId);
+        if (index < 0) {
+            index = mAtomIds.length;
+            mAtomIds = Arrays.copyOf(mAtomIds, index + 1);
+            mFieldMasks = Arrays.copyOf(mFieldMasks, index + 1);
+            mAtomIds[index] = atomId;
+        }
+        mFieldMasks[index] |= mask;
+        return this;
+    }
+
+    /**
+     * Call the handler for the event and gauge metric data of a serialized
+     * ConfigMetricsReportList.
+     */
+    public static void forEachMetricData(byte[] reports, MetricDataHandler handler)
+            throws IOException {
+        ProtoCursor reportList = new ProtoCursor(reports);
+        ProtoCursor report = new ProtoCursor();
+        ProtoCursor metric = new ProtoCursor();
+        ProtoCursor wrapper = new ProtoCursor();
+        while (reportList.next()) {
+            if (reportList.getField() != REPORT_LIST_REPORTS || !reportList.isLengthDelimited()) {
+                continue;
+            }
+            report.resetToValue(reportList);
+            while (report.next()) {
+                if (report.getField() != REPORT_METRICS || !report.isLengthDelimited()) {
+                    continue;
+                }
+                // The metric id is written before the data, but don't rely on it.
+                long metricId = 0;
+                metric.resetToValue(report);
+                while (metric.next()) {
+                    if (metric.getField() == METRIC_ID && !metric.isLengthDelimited()) {
+                        metricId = metric.getLong();
+                        break;
+                    }
+                }
+                metric.resetToValue(report);
+                while (metric.next()) {
+                    boolean gauge = metric.getField() == METRIC_GAUGE_METRICS;
+                    if (!(gauge || metric.getField() == METRIC_EVENT_METRICS)
+                            || !metric.isLengthDelimited()) {
+                        continue;
+                    }
+                    wrapper.resetToValue(metric);
+                    while (wrapper.next()) {
+                        if (wrapper.getField() == WRAPPER_DATA && wrapper.isLengthDelimited()) {
+                            handler.onMetricData(metricId, gauge, wrapper);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the subscribed atoms of an EventMetricData or GaugeMetricData.
+     *
+     * @param data a cursor on the length delimited data.
+     * @return the number of atoms in the data, subscribed or not.
+     */
+    public int visitMetricData(ProtoCursor data, boolean gauge) {
+        int atomCount = 0;
+        mDataCursor.resetToValue(data);
+        while (mDataCursor.next()) {
+            if (!mDataCursor.isLengthDelimited()) {
+                continue;
+            }
+            if (gauge) {
+                if (mDataCursor.getField() == GAUGE_BUCKET_INFO) {
+                    atomCount += visitBucket();
+                }
+            } else if (mDataCursor.getField() == EVENT_ATOM) {
+                visitAtom(mDataCursor, 1);
+                atomCount++;
+            } else if (mDataCursor.getField() == EVENT_AGGREGATED_ATOM) {
+                atomCount += visitAggregatedAtom(mDataCursor);
+            }
+        }
+        return atomCount;
+    }
+
+    private int visitBucket() {
+        int atomCount = 0;
+        mBucketCursor.resetToValue(mDataCursor);
+        while (mBucketCursor.next()) {
+            if (!mBucketCursor.isLengthDelimited()) {
+                continue;
+            }
+            if (mBucketCursor.getField() == BUCKET_ATOM) {
+                visitAtom(mBucketCursor, 1);
+                atomCount++;
+            } else if (mBucketCursor.getField() == BUCKET_AGGREGATED_ATOM) {
+                atomCount += visitAggregatedAtom(mBucketCursor);
+            }
+        }
+        return atomCount;
+    }
+
+    /** Visit the atom of an AggregatedAtomInfo once per timestamp. */
+    private int visitAggregatedAtom(ProtoCursor parent) {
+        int timestamps = 0;
+        mAggregatedCursor.resetToValue(parent);
+        while (mAggregatedCursor.next()) {
+            if (mAggregatedCursor.getField() == AGGREGATED_TIMESTAMPS) {
+                mTimestamps = mAggregatedCursor.getPackedVarints(mTimestamps, mTimestampCount);
+                timestamps += mTimestampCount[0];
+            }
+        }
+        timestamps = Math.max(1, timestamps);
+        mAggregatedCursor.resetToValue(parent);
+        while (mAggregatedCursor.next()) {
+            if (mAggregatedCursor.getField() == AGGREGATED_ATOM
+                    && mAggregatedCursor.isLengthDelimited()) {
+                visitAtom(mAggregatedCursor, timestamps);
+            }
+        }
+        return timestamps;
+    }
+
+    /** Visit the subscribed fields of the Atom at the cursor, the given number of times. */
+    private void visitAtom(ProtoCursor parent, int times) {
+        mAtomCursor.resetToValue(parent);
+        // An atom has a single field, whose number is the atom id.
+        if (!mAtomCursor.next() || !mAtomCursor.isLengthDelimited()) {
+            return;
+        }
+        int atomId = mAtomCursor.getField();
+        int index = indexOfAtom(atomId);
+        if (index < 0) {
+            return;
+        }
+        long mask = mFieldMasks[index];
+        for (int i = 0; i < times; i++) {
+            mVisitor.onAtomStart(atomId);
+            mFieldCursor.resetToValue(mAtomCursor);
+            while (mFieldCursor.next()) {
+                int field = mFieldCursor.getField();
+                if (field > MAX_FIELD || (mask & (1L << field)) == 0) {
+                    continue;
+                }
+                switch (mFieldCursor.getWireType()) {
+                    case ProtoCursor.WIRE_TYPE_VARINT:
+                        mVisitor.onLongField(atomId, field, mFieldCursor.getLong());
+                        break;
+                    case ProtoCursor.WIRE_TYPE_FIXED32:
+                        mVisitor.onDoubleField(atomId, field, mFieldCursor.getFloat());
+                        break;
+                    case ProtoCursor.WIRE_TYPE_FIXED64:
+                        mVisitor.onDoubleField(atomId, field, mFieldCursor.getDouble());
+                        break;
+                    case ProtoCursor.WIRE_TYPE_LENGTH_DELIMITED:
+                        mVisitor.onStringField(atomId, field, intern(mFieldCursor));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            mVisitor.onAtomEnd(atomId);
+        }
+    }
+
+    private int indexOfAtom(int atomId) {
+        for (int i = 0; i < mAtomIds.length; i++) {
+            if (mAtomIds[i] == atomId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the interned string of the length delimited value at the cursor. */
+    private String intern(ProtoCursor cursor) {
+        byte[] buffer = cursor.getBuffer();
+        int start = cursor.getValueStart();
+        int length = cursor.getValueLength();
+        int hash = 1;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int mask = mInternedBytes.length - 1;
+        int slot = hash & mask;
+        while (mInternedBytes[slot] != null) {
+            if (equals(mInternedBytes[slot], buffer, start, length)) {
+                return mInternedStrings[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String value = new String(buffer, start, length, StandardCharsets.UTF_8);
+        if (mInternedCount >= MAX_INTERNED_STRINGS) {
+            return value;
+        }
+        mInternedBytes[slot] = Arrays.copyOfRange(buffer, start, start + length);
+        mInternedStrings[slot] = value;
+        if (++mInternedCount * 2 > mInternedBytes.length) {
+            growInternTable();
+        }
+        return value;
+    }
+
+    private static boolean equals(byte[] bytes, byte[] buffer, int start, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != buffer[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growInternTable() {
+        byte[][] oldBytes = mInternedBytes;
+        String[] oldStrings = mInternedStrings;
+        mInternedBytes = new byte[oldBytes.length * 2][];
+        mInternedStrings = new String[oldBytes.length * 2];
+        int mask = mInternedBytes.length - 1;
+        for (int i = 0; i < oldBytes.length; i++) {
+            if (oldBytes[i] == null) {
+                continue;
+            }
+            int hash = 1;
+            for (byte b : oldBytes[i]) {
+                hash = 31 * hash + b;
+            }
+            int slot = hash & mask;
+            while (mInternedBytes[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            mInternedBytes[slot] = oldBytes[i];
+            mInternedStrings[slot] = oldStrings[i];
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.StatsManager.StatsUnavailableException;
+
+/**
+ * The statsd calls used by {@link StatsdHelper}, backed by {@link android.app.StatsManager} on
+ * the device and replaceable by a fake to test the helpers without statsd.
+ */
+public interface StatsdReportSource {
+
+    /** Add or update the serialized {@code StatsdConfig} with the given id. */
+    void addConfig(long configId, byte[] config) throws StatsUnavailableException;
+
+    /**
+     * Returns the serialized {@code ConfigMetricsReportList} of the config. The data in the
+     * returned reports is erased from statsd.
+     */
+    byte[] getReports(long configId) throws StatsUnavailableException;
+
+    /** Remove the config with the given id. */
+    void removeConfig(long configId) throws StatsUnavailableException;
+
+    /**
+     * Log the AppBreadcrumbReported event with the given label, which triggers the pulls of the
+     * gauge metrics matching it.
+     */
+    void logTriggerEvent(int label);
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.StatsManager.StatsUnavailableException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.android.internal.os.nano.StatsdConfigProto;
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * StatsdSession shares a single statsd config between the statsd based helpers.
+ *
+ * <p>Every helper subscribes a {@link Consumer} to the event and gauge atoms it needs, and the
+ * session registers the union of the subscriptions as one config. A collection pulls a single
+ * report for all the subscribers and routes the data of every metric to the consumer which
+ * subscribed to it. Helpers collecting at the same point, e.g. at the end of a test, share the
+ * report of the first one instead of pulling their own.
+ *
+ * <p>The report is walked without parsing it. Only the metric data of the consumers without a
+ * {@link StatsdReportDecoder} is parsed into nano protos.
+ *
+ * <p>Statsd erases the data it reports and may reset the data of an updated config, so the report
+ * is drained to the current subscribers before the config changes.
+ *
+ * <p>The gauges of every subscription are pulled by an AppBreadcrumbReported event with a label
+ * of their own, so that flushing the gauges of a new subscription does not add a bucket to the
+ * gauges of the others.
+ */
+public class StatsdSession {
+    private static final String LOG_TAG = StatsdSession.class.getSimpleName();
+    private static final long MAX_ATOMS = 2000;
+    // AppBreadcrumbReported.label
+    private static final int BREADCRUMB_LABEL_FIELD = 2;
+    // Upper bound of the wait for the gauge pulls triggered by a flush.
+    private static final long METRIC_DELAY_MS = 3000;
+    // The reports are polled with an exponential backoff while waiting for the pulls.
+    private static final long FLUSH_POLL_INITIAL_MS = 20;
+    private static final long FLUSH_POLL_MAX_MS = 500;
+    // Collections within this time of the last pull share its report.
+    @VisibleForTesting static final long COLLECTION_POINT_MS = 1000;
+
+    private static StatsdSession sInstance;
+
+    /** Receives the data of the metrics subscribed to, as it is pulled from statsd. */
+    public interface Consumer {
+        void onEventMetricData(StatsLog.EventMetricData data);
+
+        void onGaugeMetricData(StatsLog.GaugeMetricData data);
+
+        /**
+         * Returns the decoder streaming the atoms of the consumer's metrics instead of the
+         * {@code on*MetricData} calls, or null to receive the parsed data.
+         */
+        default StatsdReportDecoder getDecoder() {
+            return null;
+        }
+    }
+
+    /** The metrics added to the config for a consumer. */
+    private static class Subscription {
+        // Label of the breadcrumb triggering the gauge metrics, and the id of its matcher.
+        final int mTriggerLabel = getUniqueId();
+        final int mTriggerMatcherId = getUniqueId();
+        final List<StatsdConfigProto.AtomMatcher> mAtomMatchers = new ArrayList<>();
+        final List<StatsdConfigProto.EventMetric> mEventMetrics = new ArrayList<>();
+        final List<StatsdConfigProto.GaugeMetric> mGaugeMetrics = new ArrayList<>();
+        // Number of collection pulls when the consumer last collected.
+        long mCollectedPull;
+    }
+
+    private final StatsdReportSource mReportSource;
+    private final Map<Consumer, Subscription> mSubscriptions = new LinkedHashMap<>();
+    // Consumer of every metric id of the config.
+    private final Map<Long, Consumer> mMetricConsumers = new HashMap<>();
+    private long mConfigId = -1;
+    // Number of reports pulled by collections, and the time of the last one.
+    private long mPullCount = 0;
+    private long mLastPullTime = 0;
+
+    /** Returns the session shared by the helpers of the process. */
+    public static synchronized StatsdSession getInstance() {
+        if (sInstance == null) {
+            sInstance = new StatsdSession(new StatsManagerReportSource());
+        }
+        return sInstance;
+    }
+
+    public StatsdSession(StatsdReportSource reportSource) {
+        mReportSource = reportSource;
+    }
+
+    /**
+     * Subscribe the consumer to the given atoms, replacing its previous subscription, and update
+     * the config. The gauges are flushed once before returning, to dump the counters before the
+     * test starts.
+     *
+     * @param eventAtomIds atoms reported as event metrics.
+     * @param gaugeAtomIds atoms pulled as gauge metrics on every collection.
+     * @return true if the config is updated successfully, otherwise false.
+     */
+    public synchronized boolean subscribe(
+            Consumer consumer, List<Integer> eventAtomIds, List<Integer> gaugeAtomIds) {
+        Subscription subscription = new Subscription();
+        // Collect the next report rather than one pulled before subscribing.
+        subscription.mCollectedPull = mPullCount;
+        for (Integer atomId : eventAtomIds) {
+            int atomUniqueId = getUniqueId();
+            StatsdConfigProto.EventMetric metric = new StatsdConfigProto.EventMetric();
+            metric.id = getUniqueId();
+            metric.what = atomUniqueId;
+            subscription.mEventMetrics.add(metric);
+            subscription.mAtomMatchers.add(getSimpleAtomMatcher(atomUniqueId, atomId));
+        }
+        for (Integer atomId : gaugeAtomIds) {
+            int atomUniqueId = getUniqueId();
+            StatsdConfigProto.GaugeMetric gaugeMetric = new StatsdConfigProto.GaugeMetric();
+            gaugeMetric.id = getUniqueId();
+            gaugeMetric.what = atomUniqueId;
+            StatsdConfigProto.FieldFilter fieldFilter = new StatsdConfigProto.FieldFilter();
+            fieldFilter.includeAll = true;
+            gaugeMetric.gaugeFieldsFilter = fieldFilter;
+            gaugeMetric.maxNumGaugeAtomsPerBucket = MAX_ATOMS;
+            gaugeMetric.samplingType = StatsdConfigProto.GaugeMetric.FIRST_N_SAMPLES;
+            gaugeMetric.triggerEvent = subscription.mTriggerMatcherId;
+            gaugeMetric.bucket = StatsdConfigProto.CTS;
+            subscription.mGaugeMetrics.add(gaugeMetric);
+            subscription.mAtomMatchers.add(getSimpleAtomMatcher(atomUniqueId, atomId));
+        }
+
+        Subscription previous = mSubscriptions.put(consumer, subscription);
+        if (!updateConfig()) {
+            if (previous != null) {
+                mSubscriptions.put(consumer, previous);
+            } else {
+                mSubscriptions.remove(consumer);
+            }
+            updateMetricConsumers();
+            return false;
+        }
+        if (!subscription.mGaugeMetrics.isEmpty()) {
+            try {
+                // Dump the counters before the test started.
+                flush(subscription);
+            } catch (IOException | StatsUnavailableException e) {
+                Log.e(LOG_TAG, "Not able to collect the initial gauge metrics.", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the subscription of the consumer, and the config once there are no subscriptions
+     * left.
+     *
+     * @return true if the config is updated or removed successfully, otherwise false.
+     */
+    public synchronized boolean unsubscribe(Consumer consumer) {
+        if (mSubscriptions.remove(consumer) == null) {
+            Log.w(LOG_TAG, "Unsubscribing a consumer which is not subscribed.");
+            return false;
+        }
+        return updateConfig();
+    }
+
+    /**
+     * Deliver the data of the consumer's metrics to it. A report is pulled for all the subscribers
+     * unless another consumer pulled one less than {@link #COLLECTION_POINT_MS} ago, whose data
+     * this consumer already received and has not collected yet.
+     *
+     * @return true if the data was pulled successfully, otherwise false.
+     */
+    public synchronized boolean collect(Consumer consumer) {
+        Subscription subscription = mSubscriptions.get(consumer);
+        if (subscription == null) {
+            return false;
+        }
+        if (subscription.mCollectedPull == mPullCount
+                || uptimeMillis() - mLastPullTime > COLLECTION_POINT_MS) {
+            try {
+                flush(null);
+            } catch (IOException | StatsUnavailableException e) {
+                Log.e(LOG_TAG, "Retrieving the statsd report failed.", e);
+                return false;
+            } finally {
+                mPullCount++;
+                mLastPullTime = uptimeMillis();
+            }
+        }
+        subscription.mCollectedPull = mPullCount;
+        return true;
+    }
+
+    /** Returns the id of the shared config, -1 if there are no subscriptions. */
+    public synchronized long getConfigId() {
+        return mConfigId;
+    }
+
+    /** Returns the number of reports pulled by the collections. */
+    public synchronized long getPullCount() {
+        return mPullCount;
+    }
+
+    /**
+     * Pull the report and route its data to the consumers. If there are gauge metrics, log their
+     * trigger events and poll the reports until every gauge metric got a new bucket, or
+     * {@link #METRIC_DELAY_MS} elapsed.
+     *
+     * @param subscription if not null, only pull and wait for the gauge metrics of this
+     *     subscription.
+     * @return true if all the gauge metrics were flushed before the deadline.
+     */
+    private boolean flush(Subscription subscription)
+            throws IOException, StatsUnavailableException {
+        Set<Long> pendingMetricIds = new HashSet<>();
+        List<Integer> triggerLabels = new ArrayList<>();
+        for (Subscription s : subscription != null
+                ? Collections.singletonList(subscription) : mSubscriptions.values()) {
+            for (StatsdConfigProto.GaugeMetric gaugeMetric : s.mGaugeMetrics) {
+                pendingMetricIds.add(gaugeMetric.id);
+            }
+            if (!s.mGaugeMetrics.isEmpty()) {
+                triggerLabels.add(s.mTriggerLabel);
+            }
+        }
+        if (pendingMetricIds.isEmpty()) {
+            routeReports(mReportSource.getReports(mConfigId), pendingMetricIds);
+            return true;
+        }
+        long startTime = uptimeMillis();
+        long deadline = startTime + METRIC_DELAY_MS;
+        long pollIntervalMs = FLUSH_POLL_INITIAL_MS;
+        for (int label : triggerLabels) {
+            mReportSource.logTriggerEvent(label);
+        }
+        while (true) {
+            long remainingMs = deadline - uptimeMillis();
+            if (remainingMs > 0) {
+                sleep(Math.min(pollIntervalMs, remainingMs));
+            }
+            routeReports(mReportSource.getReports(mConfigId), pendingMetricIds);
+            if (pendingMetricIds.isEmpty()) {
+                Log.i(LOG_TAG, String.format("Flushed the gauge metrics in %d ms.",
+                        uptimeMillis() - startTime));
+                return true;
+            }
+            if (uptimeMillis() >= deadline) {
+                Log.w(LOG_TAG, String.format("%d gauge metrics not flushed after %d ms.",
+                        pendingMetricIds.size(), METRIC_DELAY_MS));
+                return false;
+            }
+            pollIntervalMs = Math.min(pollIntervalMs * 2, FLUSH_POLL_MAX_MS);
+        }
+    }
+
+    /**
+     * Route the data of the serialized reports to the consumers of the metrics, and remove the
+     * gauge metrics with at least one bucket of atoms from the pending ones.
+     */
+    private void routeReports(byte[] serializedReports, Set<Long> pendingMetricIds)
+            throws IOException {
+        StatsdReportDecoder.forEachMetricData(
+                serializedReports,
+                (metricId, gauge, data) -> {
+                    Consumer consumer = mMetricConsumers.get(metricId);
+                    if (consumer == null) {
+                        // The metric of a consumer which unsubscribed.
+                        return;
+                    }
+                    int atomCount = 0;
+                    StatsdReportDecoder decoder = consumer.getDecoder();
+                    if (decoder != null) {
+                        atomCount = decoder.visitMetricData(data, gauge);
+                    } else if (gauge) {
+                        StatsLog.GaugeMetricData gaugeData =
+                                MessageNano.mergeFrom(
+                                        new StatsLog.GaugeMetricData(),
+                                        data.getBuffer(),
+                                        data.getValueStart(),
+                                        data.getValueLength());
+                        consumer.onGaugeMetricData(gaugeData);
+                        for (StatsLog.GaugeBucketInfo bucket : gaugeData.bucketInfo) {
+                            atomCount += bucket.atom.length;
+                        }
+                    } else {
+                        consumer.onEventMetricData(
+                                MessageNano.mergeFrom(
+                                        new StatsLog.EventMetricData(),
+                                        data.getBuffer(),
+                                        data.getValueStart(),
+                                        data.getValueLength()));
+                    }
+                    if (gauge && atomCount > 0) {
+                        pendingMetricIds.remove(metricId);
+                    }
+                });
+    }
+
+    /**
+     * Register the union of the subscriptions as the config, or remove the config if there are
+     * none. The data of the current config is routed to its consumers first.
+     */
+    private boolean updateConfig() {
+        if (mConfigId != -1) {
+            try {
+                routeReports(mReportSource.getReports(mConfigId), new HashSet<>());
+            } catch (IOException | StatsUnavailableException e) {
+                Log.w(LOG_TAG, "Not able to drain the report before updating the config.", e);
+            }
+        }
+        updateMetricConsumers();
+
+        if (mSubscriptions.isEmpty()) {
+            Log.i(LOG_TAG, "Removing statsd config-id: " + mConfigId);
+            try {
+                mReportSource.removeConfig(mConfigId);
+            } catch (StatsUnavailableException e) {
+                Log.e(LOG_TAG, String.format("Not able to remove the config-id: %d due to %s ",
+                        mConfigId, e.getMessage()));
+                return false;
+            } finally {
+                mConfigId = -1;
+            }
+            return true;
+        }
+
+        long configId = mConfigId != -1 ? mConfigId : System.currentTimeMillis();
+        StatsdConfigProto.StatsdConfig config = buildConfig(configId);
+        try {
+            mReportSource.addConfig(configId, MessageNano.toByteArray(config));
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Not able to setup the shared config.", e);
+            return false;
+        }
+        Log.i(LOG_TAG, String.format("Updated config-id: %d with %d metrics of %d subscribers.",
+                configId, mMetricConsumers.size(), mSubscriptions.size()));
+        mConfigId = configId;
+        return true;
+    }
+
+    private void updateMetricConsumers() {
+        mMetricConsumers.clear();
+        for (Map.Entry<Consumer, Subscription> entry : mSubscriptions.entrySet()) {
+            for (StatsdConfigProto.EventMetric metric : entry.getValue().mEventMetrics) {
+                mMetricConsumers.put(metric.id, entry.getKey());
+            }
+            for (StatsdConfigProto.GaugeMetric metric : entry.getValue().mGaugeMetrics) {
+                mMetricConsumers.put(metric.id, entry.getKey());
+            }
+        }
+    }
+
+    /** Build the config with the metrics of all the subscriptions. */
+    private StatsdConfigProto.StatsdConfig buildConfig(long configId) {
+        StatsdConfigProto.StatsdConfig config = StatsdHelper.getSimpleSources(configId);
+        List<StatsdConfigProto.AtomMatcher> matchers = new ArrayList<>();
+        List<StatsdConfigProto.EventMetric> eventMetrics = new ArrayList<>();
+        List<StatsdConfigProto.GaugeMetric> gaugeMetrics = new ArrayList<>();
+        for (Subscription subscription : mSubscriptions.values()) {
+            matchers.addAll(subscription.mAtomMatchers);
+            eventMetrics.addAll(subscription.mEventMetrics);
+            gaugeMetrics.addAll(subscription.mGaugeMetrics);
+            if (!subscription.mGaugeMetrics.isEmpty()) {
+                // Needed for collecting gauge metric based on trigger events.
+                matchers.add(getTriggerMatcher(
+                        subscription.mTriggerMatcherId, subscription.mTriggerLabel));
+            }
+        }
+        if (!gaugeMetrics.isEmpty()) {
+            int[] whitelistedAtomIds = new int[config.whitelistedAtomIds.length + 1];
+            System.arraycopy(config.whitelistedAtomIds, 0, whitelistedAtomIds, 0,
+                    config.whitelistedAtomIds.length);
+            whitelistedAtomIds[config.whitelistedAtomIds.length] =
+                    AtomsProto.Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER;
+            config.whitelistedAtomIds = whitelistedAtomIds;
+        }
+        config.atomMatcher = matchers.toArray(new StatsdConfigProto.AtomMatcher[0]);
+        config.eventMetric = eventMetrics.toArray(new StatsdConfigProto.EventMetric[0]);
+        config.gaugeMetric = gaugeMetrics.toArray(new StatsdConfigProto.GaugeMetric[0]);
+        return config;
+    }
+
+    /** Create simple atom matcher with the given id and the field id. */
+    private static StatsdConfigProto.AtomMatcher getSimpleAtomMatcher(int id, int fieldId) {
+        StatsdConfigProto.AtomMatcher atomMatcher = new StatsdConfigProto.AtomMatcher();
+        atomMatcher.id = id;
+        StatsdConfigProto.SimpleAtomMatcher simpleAtomMatcher =
+                new StatsdConfigProto.SimpleAtomMatcher();
+        simpleAtomMatcher.atomId = fieldId;
+        atomMatcher.setSimpleAtomMatcher(simpleAtomMatcher);
+        return atomMatcher;
+    }
+
+    /** Create the matcher of the breadcrumbs with the given label. */
+    private static StatsdConfigProto.AtomMatcher getTriggerMatcher(int id, int label) {
+        StatsdConfigProto.AtomMatcher atomMatcher =
+                getSimpleAtomMatcher(id, AtomsProto.Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER);
+        StatsdConfigProto.FieldValueMatcher labelMatcher =
+                new StatsdConfigProto.FieldValueMatcher();
+        labelMatcher.field = BREADCRUMB_LABEL_FIELD;
+        labelMatcher.setEqInt(label);
+        atomMatcher.getSimpleAtomMatcher().fieldValueMatcher =
+                new StatsdConfigProto.FieldValueMatcher[] {labelMatcher};
+        return atomMatcher;
+    }
+
+    /** Returns a unique identifier using a {@code UUID}'s hashcode. */
+    private static int getUniqueId() {
+        return UUID.randomUUID().hashCode();
+    }
+
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @VisibleForTesting
+    protected void sleep(long timeMs) {
+        SystemClock.sleep(timeMs);
+    }
+}
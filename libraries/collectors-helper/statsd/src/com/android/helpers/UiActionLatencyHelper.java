@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Helper consisting of helper methods to set system interactions configs in statsd and retrieve the
@@ -54,6 +55,15 @@ public class UiActionLatencyHelper implements ICollectorHelper<StringBuilder> {
     public Map<String, StringBuilder> getMetrics() {
         Log.i(LOG_TAG, "get metrics.");
         Map<String, StringBuilder> latenciesMap = new HashMap<>();
+        collectLatencies((key, latency) -> MetricUtility.addMetric(key, latency, latenciesMap));
+        return latenciesMap;
+    }
+
+    /**
+     * Collect the system actions latency metrics from the statsd, passing each latency in
+     * milliseconds to the consumer with its metric key, in the order they were reported.
+     */
+    public void collectLatencies(ObjLongConsumer<String> consumer) {
         for (StatsLog.EventMetricData dataItem : mStatsdHelper.getEventMetrics()) {
             final AtomsProto.Atom atom = dataItem.atom;
             if (atom.hasUiActionLatencyReported()) {
@@ -61,14 +71,11 @@ public class UiActionLatencyHelper implements ICollectorHelper<StringBuilder> {
                         atom.getUiActionLatencyReported();
                 final String action =
                         LatencyTracker.getNameOfAction(uiActionLatencyReported.action);
-                MetricUtility.addMetric(
+                consumer.accept(
                         MetricUtility.constructKey("latency", action),
-                        uiActionLatencyReported.latencyMillis,
-                        latenciesMap);
+                        uiActionLatencyReported.latencyMillis);
             }
         }
-
-        return latenciesMap;
     }
 
     /** Remove the statsd config. */
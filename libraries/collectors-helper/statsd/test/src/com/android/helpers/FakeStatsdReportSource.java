@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import com.android.internal.os.nano.StatsdConfigProto;
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+import com.google.protobuf.nano.MessageNano;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fake statsd for the {@link StatsdHelper} tests.
+ *
+ * <p>Every trigger event pulls one {@link AtomsProto.CpuTimePerUid} atom for each gauge metric of
+ * the config triggered by its label. The pulled bucket of a metric shows up in the reports after its pull latency, given
+ * as a number of {@link #getReports} calls, and is erased once reported like statsd does. Atoms
+ * logged with {@link #logAtom} show up in the next report of the event metrics matching them.
+ *
+ * <p>Updating the config drops the data which was not reported yet, like statsd did before
+ * partial config updates.
+ */
+public class FakeStatsdReportSource implements StatsdReportSource {
+    private final Map<Integer, Integer> mPullLatencies = new HashMap<>();
+    // Buckets pulled but not reported yet, with the number of reports left before they show up.
+    private final List<Long> mPendingMetricIds = new ArrayList<>();
+    private final List<Integer> mPendingPolls = new ArrayList<>();
+    private final List<Long> mPendingValues = new ArrayList<>();
+    // Event metric data not reported yet, by metric id.
+    private final Map<Long, List<StatsLog.EventMetricData>> mPendingEvents = new HashMap<>();
+
+    private StatsdConfigProto.StatsdConfig mConfig;
+    private int mDefaultPullLatency = 0;
+    private int mTriggerCount = 0;
+    private int mReportCount = 0;
+    private int mAddConfigCount = 0;
+
+    /** Reported buckets show up after the given number of reports, -1 to never report them. */
+    public void setPullLatency(int reports) {
+        mDefaultPullLatency = reports;
+    }
+
+    /** Set the pull latency of the gauge metric at the given index of the config. */
+    public void setPullLatency(int gaugeMetricIndex, int reports) {
+        mPullLatencies.put(gaugeMetricIndex, reports);
+    }
+
+    public StatsdConfigProto.StatsdConfig getConfig() {
+        return mConfig;
+    }
+
+    public int getTriggerCount() {
+        return mTriggerCount;
+    }
+
+    public int getReportCount() {
+        return mReportCount;
+    }
+
+    public int getAddConfigCount() {
+        return mAddConfigCount;
+    }
+
+    /** Log the atom for the event metrics of the config matching its atom id. */
+    public void logAtom(int atomId, AtomsProto.Atom atom) {
+        for (StatsdConfigProto.EventMetric metric : mConfig.eventMetric) {
+            for (StatsdConfigProto.AtomMatcher matcher : mConfig.atomMatcher) {
+                if (matcher.id == metric.what
+                        && matcher.getSimpleAtomMatcher().atomId == atomId) {
+                    StatsLog.EventMetricData data = new StatsLog.EventMetricData();
+                    data.atom = atom;
+                    mPendingEvents.computeIfAbsent(metric.id, id -> new ArrayList<>()).add(data);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addConfig(long configId, byte[] config) {
+        mAddConfigCount++;
+        clearPendingData();
+        try {
+            mConfig = StatsdConfigProto.StatsdConfig.parseFrom(config);
+        } catch (InvalidProtocolBufferNanoException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public byte[] getReports(long configId) {
+        mReportCount++;
+        StatsLog.ConfigMetricsReport report = new StatsLog.ConfigMetricsReport();
+        List<StatsLog.StatsLogReport> metrics = new ArrayList<>();
+        for (Map.Entry<Long, List<StatsLog.EventMetricData>> entry : mPendingEvents.entrySet()) {
+            StatsLog.StatsLogReport.EventMetricDataWrapper wrapper =
+                    new StatsLog.StatsLogReport.EventMetricDataWrapper();
+            wrapper.data = entry.getValue().toArray(new StatsLog.EventMetricData[0]);
+            StatsLog.StatsLogReport metricReport = new StatsLog.StatsLogReport();
+            metricReport.metricId = entry.getKey();
+            metricReport.setEventMetrics(wrapper);
+            metrics.add(metricReport);
+        }
+        mPendingEvents.clear();
+        for (int i = 0; i < mPendingMetricIds.size(); ) {
+            int polls = mPendingPolls.get(i);
+            if (polls != 0) {
+                if (polls > 0) {
+                    mPendingPolls.set(i, polls - 1);
+                }
+                i++;
+                continue;
+            }
+            metrics.add(buildGaugeReport(mPendingMetricIds.remove(i), mPendingValues.remove(i)));
+            mPendingPolls.remove(i);
+        }
+        report.metrics = metrics.toArray(new StatsLog.StatsLogReport[0]);
+        StatsLog.ConfigMetricsReportList reportList = new StatsLog.ConfigMetricsReportList();
+        reportList.reports = new StatsLog.ConfigMetricsReport[] {report};
+        return MessageNano.toByteArray(reportList);
+    }
+
+    @Override
+    public void removeConfig(long configId) {
+        mConfig = null;
+        clearPendingData();
+    }
+
+    @Override
+    public void logTriggerEvent(int label) {
+        mTriggerCount++;
+        for (int i = 0; i < mConfig.gaugeMetric.length; i++) {
+            if (!isTriggeredBy(mConfig.gaugeMetric[i], label)) {
+                continue;
+            }
+            mPendingMetricIds.add(mConfig.gaugeMetric[i].id);
+            Integer latency = mPullLatencies.get(i);
+            mPendingPolls.add(latency != null ? latency : mDefaultPullLatency);
+            // Report an increasing cpu time, 1 ms per trigger.
+            mPendingValues.add(mTriggerCount * 1000L);
+        }
+    }
+
+    /** Returns whether the trigger event of the metric matches the breadcrumb label. */
+    private boolean isTriggeredBy(StatsdConfigProto.GaugeMetric metric, int label) {
+        for (StatsdConfigProto.AtomMatcher matcher : mConfig.atomMatcher) {
+            if (matcher.id != metric.triggerEvent) {
+                continue;
+            }
+            for (StatsdConfigProto.FieldValueMatcher fieldMatcher :
+                    matcher.getSimpleAtomMatcher().fieldValueMatcher) {
+                // AppBreadcrumbReported.label
+                if (fieldMatcher.field == 2 && fieldMatcher.getEqInt() != label) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void clearPendingData() {
+        mPendingMetricIds.clear();
+        mPendingPolls.clear();
+        mPendingValues.clear();
+        mPendingEvents.clear();
+    }
+
+    private static StatsLog.StatsLogReport buildGaugeReport(long metricId, long cpuTimeMicros) {
+        AtomsProto.CpuTimePerUid cpuTime = new AtomsProto.CpuTimePerUid();
+        cpuTime.uid = 1000;
+        cpuTime.userTimeMicros = cpuTimeMicros;
+        cpuTime.sysTimeMicros = cpuTimeMicros;
+        AtomsProto.Atom atom = new AtomsProto.Atom();
+        atom.setCpuTimePerUid(cpuTime);
+        StatsLog.GaugeBucketInfo bucket = new StatsLog.GaugeBucketInfo();
+        bucket.atom = new AtomsProto.Atom[] {atom};
+        StatsLog.GaugeMetricData data = new StatsLog.GaugeMetricData();
+        data.bucketInfo = new StatsLog.GaugeBucketInfo[] {bucket};
+        StatsLog.StatsLogReport.GaugeMetricDataWrapper wrapper =
+                new StatsLog.StatsLogReport.GaugeMetricDataWrapper();
+        wrapper.data = new StatsLog.GaugeMetricData[] {data};
+        StatsLog.StatsLogReport metricReport = new StatsLog.StatsLogReport();
+        metricReport.metricId = metricId;
+        metricReport.setGaugeMetrics(wrapper);
+        return metricReport;
+    }
+}
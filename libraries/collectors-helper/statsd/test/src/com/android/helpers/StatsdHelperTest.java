@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Android Unit tests for the gauge flush of {@link StatsdHelper}, against a fake statsd.
+ *
+ * <p>To run: atest CollectorsHelperTest:com.android.helpers.StatsdHelperTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdHelperTest {
+    private static final long METRIC_DELAY_MS = 3000;
+
+    private FakeStatsdReportSource mReportSource;
+    private FakeClockStatsdSession mSession;
+    private StatsdHelper mStatsdHelper;
+
+    /** Runs the polling of {@link StatsdSession} on a fake clock. */
+    static class FakeClockStatsdSession extends StatsdSession {
+        long mTimeMs = 0;
+
+        FakeClockStatsdSession(StatsdReportSource reportSource) {
+            super(reportSource);
+        }
+
+        @Override
+        protected long uptimeMillis() {
+            return mTimeMs;
+        }
+
+        @Override
+        protected void sleep(long timeMs) {
+            mTimeMs += timeMs;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mReportSource = new FakeStatsdReportSource();
+        mSession = new FakeClockStatsdSession(mReportSource);
+        mStatsdHelper = new StatsdHelper();
+        mStatsdHelper.setSession(mSession);
+    }
+
+    /** Test the flushes return as soon as the pulled buckets are reported. */
+    @Test
+    public void testGaugeFlushEndsWithBuckets() {
+        mReportSource.setPullLatency(2);
+        assertTrue(mStatsdHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER)));
+        long startCost = mSession.mTimeMs;
+        assertTrue(startCost < METRIC_DELAY_MS);
+        assertEquals(3, mReportSource.getReportCount());
+
+        List<StatsLog.GaugeMetricData> gaugeData = mStatsdHelper.getGaugeMetrics();
+        assertTrue(mSession.mTimeMs - startCost < METRIC_DELAY_MS);
+        assertEquals(2, mReportSource.getTriggerCount());
+        // The data dumped when the config was added comes first.
+        assertEquals(2, gaugeData.size());
+        assertEquals(1000L, getUserTimeMicros(gaugeData.get(0)));
+        assertEquals(2000L, getUserTimeMicros(gaugeData.get(1)));
+        assertTrue(mStatsdHelper.removeStatsConfig());
+    }
+
+    /** Test the flush waits for the buckets of every gauge metric of the config. */
+    @Test
+    public void testGaugeFlushWaitsForAllMetrics() {
+        mReportSource.setPullLatency(0, 0);
+        mReportSource.setPullLatency(1, 4);
+        assertTrue(mStatsdHelper.addGaugeConfig(
+                Arrays.asList(
+                        AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER,
+                        AtomsProto.Atom.CPU_TIME_PER_UID_FREQ_FIELD_NUMBER)));
+        assertEquals(5, mReportSource.getReportCount());
+        assertEquals(2, mStatsdHelper.getGaugeMetrics().size());
+    }
+
+    /** Test the flush gives up after the metric delay when no bucket is reported. */
+    @Test
+    public void testGaugeFlushTimesOut() {
+        mReportSource.setPullLatency(-1);
+        assertTrue(mStatsdHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER)));
+        assertEquals(METRIC_DELAY_MS, mSession.mTimeMs);
+        assertEquals(0, mStatsdHelper.getGaugeMetrics().size());
+        assertEquals(2 * METRIC_DELAY_MS, mSession.mTimeMs);
+    }
+
+    /** Test the gauge data is not returned twice. */
+    @Test
+    public void testGaugeDataReturnedOnce() {
+        assertTrue(mStatsdHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER)));
+        assertEquals(2, mStatsdHelper.getGaugeMetrics().size());
+        List<StatsLog.GaugeMetricData> gaugeData = mStatsdHelper.getGaugeMetrics();
+        assertEquals(1, gaugeData.size());
+        assertEquals(3000L, getUserTimeMicros(gaugeData.get(0)));
+    }
+
+    private static long getUserTimeMicros(StatsLog.GaugeMetricData data) {
+        return data.bucketInfo[0].atom[0].getCpuTimePerUid().userTimeMicros;
+    }
+}
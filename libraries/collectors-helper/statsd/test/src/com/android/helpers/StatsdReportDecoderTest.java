@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import com.google.protobuf.nano.MessageNano;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link StatsdReportDecoder} and {@link FirstLastAccumulator}, on
+ * reports serialized from nano protos.
+ *
+ * <p>To run: atest CollectorsHelperTest:com.android.helpers.StatsdReportDecoderTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdReportDecoderTest {
+    private static final long GAUGE_METRIC_ID = 11;
+    private static final long EVENT_METRIC_ID = 22;
+    // Fields of CpuTimePerUid.
+    private static final int UID = 1;
+    private static final int USER_TIME_MICROS = 2;
+    // Field of AppStartOccurred.
+    private static final int PKG_NAME = 2;
+
+    /** Test the metric data of every metric of the reports is found with its id. */
+    @Test
+    public void testForEachMetricData() throws Exception {
+        List<String> metrics = new ArrayList<>();
+        StatsdReportDecoder.forEachMetricData(
+                buildReports(),
+                (metricId, gauge, data) -> metrics.add(metricId + (gauge ? " gauge" : " event")));
+        assertEquals(
+                Arrays.asList("11 gauge", "11 gauge", "22 event", "22 event", "22 event"),
+                metrics);
+    }
+
+    /** Test only the subscribed fields of the subscribed atoms are visited. */
+    @Test
+    public void testVisitSubscribedFields() throws Exception {
+        List<String> visited = new ArrayList<>();
+        StatsdReportDecoder decoder =
+                new StatsdReportDecoder(
+                                new StatsdReportDecoder.AtomVisitor() {
+                                    @Override
+                                    public void onAtomStart(int atomId) {
+                                        visited.add("start " + atomId);
+                                    }
+
+                                    @Override
+                                    public void onLongField(int atomId, int field, long value) {
+                                        visited.add(field + "=" + value);
+                                    }
+                                })
+                        .addFields(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER, UID);
+        int[] atomCount = new int[1];
+        StatsdReportDecoder.forEachMetricData(
+                buildReports(),
+                (metricId, gauge, data) -> atomCount[0] += decoder.visitMetricData(data, gauge));
+
+        int atomId = AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER;
+        assertEquals(
+                Arrays.asList(
+                        "start " + atomId, "1=1000", "start " + atomId, "1=10050",
+                        "start " + atomId, "1=1000", "start " + atomId, "1=10050"),
+                visited);
+        // The atoms which are not subscribed are counted too.
+        assertEquals(7, atomCount[0]);
+    }
+
+    /** Test the string fields are interned. */
+    @Test
+    public void testStringFieldsInterned() throws Exception {
+        List<String> packages = new ArrayList<>();
+        StatsdReportDecoder decoder =
+                new StatsdReportDecoder(
+                                new StatsdReportDecoder.AtomVisitor() {
+                                    @Override
+                                    public void onStringField(
+                                            int atomId, int field, String value) {
+                                        packages.add(value);
+                                    }
+                                })
+                        .addFields(AtomsProto.Atom.APP_START_OCCURRED_FIELD_NUMBER, PKG_NAME);
+        StatsdReportDecoder.forEachMetricData(
+                buildReports(), (metricId, gauge, data) -> decoder.visitMetricData(data, gauge));
+
+        assertEquals(Arrays.asList("com.foo", "com.bar", "com.foo"), packages);
+        assertSame(packages.get(0), packages.get(2));
+    }
+
+    /** Test the fields which can't be subscribed are rejected. */
+    @Test
+    public void testInvalidField() {
+        try {
+            new StatsdReportDecoder(new StatsdReportDecoder.AtomVisitor() {}).addFields(1, 64);
+            fail("Expected an IllegalArgumentException.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /** Test the accumulator keeps the first and last samples of every key and column. */
+    @Test
+    public void testFirstLastAccumulator() {
+        FirstLastAccumulator accumulator = new FirstLastAccumulator(2);
+        // More keys than the initial capacity.
+        for (int sample = 0; sample < 3; sample++) {
+            for (int uid = 10000; uid < 10500; uid++) {
+                accumulator.add(uid, 0, sample * 100 + uid);
+            }
+        }
+        accumulator.add(10001, 1, 5);
+
+        assertEquals(500, accumulator.size());
+        assertEquals(10001, accumulator.getKey(1));
+        assertEquals(3, accumulator.getCount(1, 0));
+        assertEquals(10001, accumulator.getFirst(1, 0));
+        assertEquals(10201, accumulator.getLast(1, 0));
+        assertEquals(1, accumulator.getCount(1, 1));
+        assertEquals(0, accumulator.getCount(0, 1));
+
+        accumulator.clear();
+        assertEquals(0, accumulator.size());
+        accumulator.add(1, 0, 7);
+        assertEquals(1, accumulator.getCount(0, 0));
+    }
+
+    /** Build a gauge metric of two buckets of cpu times, and an event metric of app starts. */
+    private static byte[] buildReports() {
+        StatsLog.GaugeMetricData gaugeData = new StatsLog.GaugeMetricData();
+        gaugeData.bucketInfo =
+                new StatsLog.GaugeBucketInfo[] {
+                    buildBucket(cpuTimeAtom(1000, 1000), cpuTimeAtom(10050, 5000))
+                };
+        StatsLog.GaugeMetricData gaugeData2 = new StatsLog.GaugeMetricData();
+        gaugeData2.bucketInfo =
+                new StatsLog.GaugeBucketInfo[] {
+                    buildBucket(cpuTimeAtom(1000, 3000), cpuTimeAtom(10050, 6000))
+                };
+        StatsLog.StatsLogReport.GaugeMetricDataWrapper gauges =
+                new StatsLog.StatsLogReport.GaugeMetricDataWrapper();
+        gauges.data = new StatsLog.GaugeMetricData[] {gaugeData, gaugeData2};
+        StatsLog.StatsLogReport gaugeReport = new StatsLog.StatsLogReport();
+        gaugeReport.metricId = GAUGE_METRIC_ID;
+        gaugeReport.setGaugeMetrics(gauges);
+
+        StatsLog.StatsLogReport.EventMetricDataWrapper events =
+                new StatsLog.StatsLogReport.EventMetricDataWrapper();
+        events.data =
+                new StatsLog.EventMetricData[] {
+                    appStartEvent("com.foo"), appStartEvent("com.bar"), appStartEvent("com.foo")
+                };
+        StatsLog.StatsLogReport eventReport = new StatsLog.StatsLogReport();
+        eventReport.metricId = EVENT_METRIC_ID;
+        eventReport.setEventMetrics(events);
+
+        StatsLog.ConfigMetricsReport report = new StatsLog.ConfigMetricsReport();
+        report.metrics = new StatsLog.StatsLogReport[] {gaugeReport, eventReport};
+        StatsLog.ConfigMetricsReportList reportList = new StatsLog.ConfigMetricsReportList();
+        reportList.reports = new StatsLog.ConfigMetricsReport[] {report};
+        return MessageNano.toByteArray(reportList);
+    }
+
+    private static StatsLog.GaugeBucketInfo buildBucket(AtomsProto.Atom... atoms) {
+        StatsLog.GaugeBucketInfo bucket = new StatsLog.GaugeBucketInfo();
+        bucket.atom = atoms;
+        return bucket;
+    }
+
+    private static AtomsProto.Atom cpuTimeAtom(int uid, long userTimeMicros) {
+        AtomsProto.CpuTimePerUid cpuTime = new AtomsProto.CpuTimePerUid();
+        cpuTime.uid = uid;
+        cpuTime.userTimeMicros = userTimeMicros;
+        AtomsProto.Atom atom = new AtomsProto.Atom();
+        atom.setCpuTimePerUid(cpuTime);
+        return atom;
+    }
+
+    private static StatsLog.EventMetricData appStartEvent(String packageName) {
+        AtomsProto.AppStartOccurred appStart = new AtomsProto.AppStartOccurred();
+        appStart.pkgName = packageName;
+        AtomsProto.Atom atom = new AtomsProto.Atom();
+        atom.setAppStartOccurred(appStart);
+        StatsLog.EventMetricData data = new StatsLog.EventMetricData();
+        data.atom = atom;
+        return data;
+    }
+}
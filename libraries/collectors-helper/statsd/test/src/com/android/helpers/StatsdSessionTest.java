@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.os.nano.AtomsProto;
+import com.android.os.nano.StatsLog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Android Unit tests for {@link StatsdSession}, sharing a config between helpers on a fake statsd.
+ *
+ * <p>To run: atest CollectorsHelperTest:com.android.helpers.StatsdSessionTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsdSessionTest {
+    private static final int APP_START_ATOM = AtomsProto.Atom.APP_START_OCCURRED_FIELD_NUMBER;
+    private static final int UI_ACTION_ATOM =
+            AtomsProto.Atom.UI_ACTION_LATENCY_REPORTED_FIELD_NUMBER;
+
+    private FakeStatsdReportSource mReportSource;
+    private StatsdHelperTest.FakeClockStatsdSession mSession;
+    private StatsdHelper mAppStartHelper;
+    private StatsdHelper mUiActionHelper;
+    private StatsdHelper mCpuHelper;
+
+    @Before
+    public void setUp() {
+        mReportSource = new FakeStatsdReportSource();
+        mSession = new StatsdHelperTest.FakeClockStatsdSession(mReportSource);
+        mAppStartHelper = newHelper();
+        mUiActionHelper = newHelper();
+        mCpuHelper = newHelper();
+    }
+
+    /** Test the atoms of all the helpers are merged into one config. */
+    @Test
+    public void testSharedConfig() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        long configId = mSession.getConfigId();
+        assertTrue(mUiActionHelper.addEventConfig(Arrays.asList(UI_ACTION_ATOM)));
+        assertTrue(mCpuHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER)));
+
+        assertEquals(configId, mSession.getConfigId());
+        assertEquals(configId, mReportSource.getConfig().id);
+        assertEquals(2, mReportSource.getConfig().eventMetric.length);
+        assertEquals(1, mReportSource.getConfig().gaugeMetric.length);
+        // The atoms of the three helpers and the trigger event.
+        assertEquals(4, mReportSource.getConfig().atomMatcher.length);
+    }
+
+    /** Test a new gauge subscription only pulls its own gauges. */
+    @Test
+    public void testSubscriptionPullsOnlyItsGauges() {
+        assertTrue(mCpuHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER)));
+        StatsdHelper freqHelper = newHelper();
+        assertTrue(freqHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FREQ_FIELD_NUMBER)));
+        assertEquals(2, mReportSource.getTriggerCount());
+
+        // Only the buckets of the subscription and of the collection.
+        List<StatsLog.GaugeMetricData> cpuData = mCpuHelper.getGaugeMetrics();
+        assertEquals(2, cpuData.size());
+        assertEquals(4, mReportSource.getTriggerCount());
+        assertEquals(2, freqHelper.getGaugeMetrics().size());
+    }
+
+    /** Test the helpers collecting at the same point share one report, routed by metric. */
+    @Test
+    public void testOneReportPerCollectionPoint() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        assertTrue(mUiActionHelper.addEventConfig(Arrays.asList(UI_ACTION_ATOM)));
+        mReportSource.logAtom(APP_START_ATOM, new AtomsProto.Atom());
+        mReportSource.logAtom(APP_START_ATOM, new AtomsProto.Atom());
+        mReportSource.logAtom(UI_ACTION_ATOM, new AtomsProto.Atom());
+        int reportCount = mReportSource.getReportCount();
+
+        assertEquals(2, mAppStartHelper.getEventMetrics().size());
+        assertEquals(1, mUiActionHelper.getEventMetrics().size());
+        assertEquals(reportCount + 1, mReportSource.getReportCount());
+        assertEquals(1, mSession.getPullCount());
+    }
+
+    /** Test a collection pulls a new report once the last one is too old to share. */
+    @Test
+    public void testCollectionPointExpires() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        assertTrue(mUiActionHelper.addEventConfig(Arrays.asList(UI_ACTION_ATOM)));
+        assertEquals(0, mAppStartHelper.getEventMetrics().size());
+        mSession.mTimeMs += StatsdSession.COLLECTION_POINT_MS + 1;
+        mReportSource.logAtom(UI_ACTION_ATOM, new AtomsProto.Atom());
+
+        assertEquals(1, mUiActionHelper.getEventMetrics().size());
+        assertEquals(2, mSession.getPullCount());
+    }
+
+    /** Test a helper collecting twice in a row gets a new report. */
+    @Test
+    public void testRepeatedCollectionPulls() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        assertEquals(0, mAppStartHelper.getEventMetrics().size());
+        mReportSource.logAtom(APP_START_ATOM, new AtomsProto.Atom());
+        assertEquals(1, mAppStartHelper.getEventMetrics().size());
+        assertEquals(2, mSession.getPullCount());
+    }
+
+    /** Test the data of the config is not lost when another helper updates it. */
+    @Test
+    public void testDataDrainedBeforeConfigUpdate() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        mReportSource.logAtom(APP_START_ATOM, new AtomsProto.Atom());
+        assertTrue(mUiActionHelper.addEventConfig(Arrays.asList(UI_ACTION_ATOM)));
+        assertEquals(2, mReportSource.getAddConfigCount());
+
+        assertEquals(1, mAppStartHelper.getEventMetrics().size());
+        assertEquals(0, mUiActionHelper.getEventMetrics().size());
+    }
+
+    /** Test the atoms of a helper with a decoder are streamed to it, without nano protos. */
+    @Test
+    public void testAtomsStreamedToDecoder() {
+        List<Long> userTimes = new ArrayList<>();
+        StatsdReportDecoder decoder =
+                new StatsdReportDecoder(
+                                new StatsdReportDecoder.AtomVisitor() {
+                                    @Override
+                                    public void onLongField(int atomId, int field, long value) {
+                                        userTimes.add(value);
+                                    }
+                                })
+                        .addFields(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER, 2);
+        assertTrue(mCpuHelper.addGaugeConfig(
+                Arrays.asList(AtomsProto.Atom.CPU_TIME_PER_UID_FIELD_NUMBER), decoder));
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        mReportSource.logAtom(APP_START_ATOM, new AtomsProto.Atom());
+
+        assertTrue(mCpuHelper.collectMetrics());
+        assertEquals(Arrays.asList(1000L, 2000L), userTimes);
+        assertEquals(0, mCpuHelper.getGaugeMetrics().size());
+        // The other helpers still get their parsed data.
+        assertEquals(1, mAppStartHelper.getEventMetrics().size());
+    }
+
+    /** Test the config is removed with the last helper using it. */
+    @Test
+    public void testConfigRemovedWithLastHelper() {
+        assertTrue(mAppStartHelper.addEventConfig(Arrays.asList(APP_START_ATOM)));
+        assertTrue(mUiActionHelper.addEventConfig(Arrays.asList(UI_ACTION_ATOM)));
+
+        assertTrue(mAppStartHelper.removeStatsConfig());
+        assertNotNull(mReportSource.getConfig());
+        assertEquals(1, mReportSource.getConfig().eventMetric.length);
+        assertTrue(mUiActionHelper.removeStatsConfig());
+        assertNull(mReportSource.getConfig());
+        assertEquals(-1, mSession.getConfigId());
+    }
+
+    private StatsdHelper newHelper() {
+        StatsdHelper helper = new StatsdHelper();
+        helper.setSession(mSession);
+        return helper;
+    }
+}
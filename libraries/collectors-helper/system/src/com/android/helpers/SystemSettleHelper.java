@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.uiautomator.UiDevice;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SystemSettleHelper waits until the device is quiescent instead of sleeping for a fixed time,
+ * e.g. after dropping the caches or before a power measurement.
+ *
+ * <p>The device is sampled every {@link #setIntervalMs(long) interval} with a single shell
+ * command reading /proc/loadavg, /proc/pressure/{cpu,io,memory}, /proc/meminfo and /proc/vmstat.
+ * Two consecutive samples are quiet when, over the time between them:
+ *
+ * <ul>
+ *   <li>the fraction of time some task stalled on cpu, io and memory (from the cumulative
+ *       "total" of the pressure stall information) is below the thresholds. Without PSI, the
+ *       number of runnable tasks from /proc/loadavg is used for the cpu instead.
+ *   <li>the page cache reads and writes (pgpgin + pgpgout) are below the I/O rate threshold.
+ *   <li>the Dirty + Writeback memory is below the dirty threshold.
+ * </ul>
+ *
+ * The device is settled once {@link #setRequiredQuietSamples(int) enough} consecutive intervals
+ * are quiet, or the wait gives up after the timeout. The time waited is reported as a metric.
+ */
+public class SystemSettleHelper implements ICollectorHelper<Double> {
+
+    private static final String LOG_TAG = SystemSettleHelper.class.getSimpleName();
+
+    // One command for all the sources, grep prefixes every line with its file name. Missing
+    // files, e.g. /proc/pressure on kernels without PSI, are skipped.
+    private static final String SAMPLE_CMD = "grep -H . /proc/loadavg /proc/pressure/cpu"
+            + " /proc/pressure/io /proc/pressure/memory /proc/meminfo /proc/vmstat";
+
+    public static final String SETTLE_WAIT_METRIC_KEY = "system_settle_wait_ms";
+    public static final String SETTLED_METRIC_KEY = "system_settle_settled";
+    public static final String SAMPLE_COUNT_METRIC_KEY = "system_settle_sample_count";
+    public static final String LAST_MINUTE_LOAD_METRIC_KEY = "system_settle_loadavg_last_minute";
+    public static final String CPU_STALL_METRIC_KEY = "system_settle_cpu_stall_percent";
+    public static final String IO_STALL_METRIC_KEY = "system_settle_io_stall_percent";
+    public static final String MEMORY_STALL_METRIC_KEY = "system_settle_memory_stall_percent";
+    public static final String IO_RATE_METRIC_KEY = "system_settle_io_kb_per_sec";
+    public static final String DIRTY_METRIC_KEY = "system_settle_dirty_kb";
+
+    private static final String LOADAVG_FILE = "/proc/loadavg";
+    private static final String CPU_PRESSURE_FILE = "/proc/pressure/cpu";
+    private static final String IO_PRESSURE_FILE = "/proc/pressure/io";
+    private static final String MEMORY_PRESSURE_FILE = "/proc/pressure/memory";
+    private static final String MEMINFO_FILE = "/proc/meminfo";
+    private static final String VMSTAT_FILE = "/proc/vmstat";
+
+    /** Runs a shell command and returns its output. */
+    public interface ShellRunner {
+        String execute(String command) throws IOException;
+    }
+
+    private ShellRunner mShellRunner;
+
+    private long mTimeoutMs = 10000;
+    private long mIntervalMs = 250;
+    private int mRequiredQuietSamples = 2;
+    private double mMaxCpuStallPercent = 10;
+    private double mMaxIoStallPercent = 5;
+    private double mMaxMemoryStallPercent = 5;
+    private int mMaxRunnableTasks = 4;
+    private double mMaxIoKbPerSec = 1024;
+    private long mMaxDirtyKb = 8192;
+
+    private final Map<String, Double> mMetrics = new HashMap<>();
+
+    public SystemSettleHelper() {}
+
+    public SystemSettleHelper(ShellRunner shellRunner) {
+        mShellRunner = shellRunner;
+    }
+
+    /** Wait for the device to settle, reports false if the timeout expired first. */
+    @Override
+    public boolean startCollecting() {
+        return waitForSettle();
+    }
+
+    /** Returns how long the last wait took, whether it settled and the last measured activity. */
+    @Override
+    public Map<String, Double> getMetrics() {
+        return new HashMap<>(mMetrics);
+    }
+
+    /** Do nothing, the device is only sampled while waiting. */
+    @Override
+    public boolean stopCollecting() {
+        return true;
+    }
+
+    /**
+     * Wait until the device is quiescent or the timeout expires.
+     *
+     * @return true if the device settled before the timeout.
+     */
+    public boolean waitForSettle() {
+        mMetrics.clear();
+        long startTime = uptimeMillis();
+        // A sample which can't be read is not quiet, the wait goes on until the timeout.
+        Sample previous = readSample();
+        int samples = 1;
+        int quietSamples = 0;
+        boolean settled = false;
+        while (true) {
+            long elapsed = uptimeMillis() - startTime;
+            if (elapsed >= mTimeoutMs) {
+                break;
+            }
+            sleep(Math.min(mIntervalMs, mTimeoutMs - elapsed));
+            Sample current = readSample();
+            samples++;
+            quietSamples = isQuiet(previous, current) ? quietSamples + 1 : 0;
+            previous = current;
+            if (quietSamples >= mRequiredQuietSamples) {
+                settled = true;
+                break;
+            }
+        }
+        long waitTime = uptimeMillis() - startTime;
+        if (settled) {
+            Log.i(LOG_TAG, String.format("System settled after %d ms.", waitTime));
+        } else {
+            Log.w(LOG_TAG, String.format("System did not settle within %d ms.", waitTime));
+        }
+        mMetrics.put(SETTLE_WAIT_METRIC_KEY, (double) waitTime);
+        mMetrics.put(SETTLED_METRIC_KEY, settled ? 1.0 : 0.0);
+        mMetrics.put(SAMPLE_COUNT_METRIC_KEY, (double) samples);
+        return settled;
+    }
+
+    /** Returns true if the activity between the two samples is below all the thresholds. */
+    private boolean isQuiet(Sample previous, Sample current) {
+        if (previous == null || current == null) {
+            return false;
+        }
+        long intervalMs = current.mUptimeMs - previous.mUptimeMs;
+        if (intervalMs <= 0) {
+            return false;
+        }
+        boolean quiet = true;
+        if (current.mLoadAvg >= 0) {
+            mMetrics.put(LAST_MINUTE_LOAD_METRIC_KEY, current.mLoadAvg);
+        }
+        double cpuStall = stallPercent(previous.mCpuStallUs, current.mCpuStallUs, intervalMs);
+        if (cpuStall >= 0) {
+            mMetrics.put(CPU_STALL_METRIC_KEY, cpuStall);
+            quiet &= cpuStall <= mMaxCpuStallPercent;
+        } else if (current.mRunnableTasks >= 0) {
+            quiet &= current.mRunnableTasks <= mMaxRunnableTasks;
+        }
+        double ioStall = stallPercent(previous.mIoStallUs, current.mIoStallUs, intervalMs);
+        if (ioStall >= 0) {
+            mMetrics.put(IO_STALL_METRIC_KEY, ioStall);
+            quiet &= ioStall <= mMaxIoStallPercent;
+        }
+        double memoryStall =
+                stallPercent(previous.mMemoryStallUs, current.mMemoryStallUs, intervalMs);
+        if (memoryStall >= 0) {
+            mMetrics.put(MEMORY_STALL_METRIC_KEY, memoryStall);
+            quiet &= memoryStall <= mMaxMemoryStallPercent;
+        }
+        if (previous.mPagedKb >= 0 && current.mPagedKb >= 0) {
+            double ioRate = (current.mPagedKb - previous.mPagedKb) * 1000.0 / intervalMs;
+            mMetrics.put(IO_RATE_METRIC_KEY, ioRate);
+            quiet &= ioRate <= mMaxIoKbPerSec;
+        }
+        if (current.mDirtyKb >= 0) {
+            mMetrics.put(DIRTY_METRIC_KEY, (double) current.mDirtyKb);
+            quiet &= current.mDirtyKb <= mMaxDirtyKb;
+        }
+        return quiet;
+    }
+
+    /** Returns the percentage of the interval spent stalled, or -1 if PSI is unavailable. */
+    private static double stallPercent(long previousUs, long currentUs, long intervalMs) {
+        if (previousUs < 0 || currentUs < 0) {
+            return -1;
+        }
+        return (currentUs - previousUs) / (intervalMs * 10.0);
+    }
+
+    /** Returns the current sample, or null if the system activity could not be read. */
+    private Sample readSample() {
+        String output;
+        try {
+            output = getShellRunner().execute(SAMPLE_CMD);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to sample the system activity.", e);
+            return null;
+        }
+        Sample sample = parseSample(output);
+        sample.mUptimeMs = uptimeMillis();
+        return sample;
+    }
+
+    /** Parse the output of {@link #SAMPLE_CMD}, values which are not found are left at -1. */
+    private static Sample parseSample(String output) {
+        Sample sample = new Sample();
+        long pgpgin = -1;
+        long pgpgout = -1;
+        long dirty = -1;
+        long writeback = -1;
+        int lineStart = 0;
+        while (lineStart < output.length()) {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            String line = output.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+            int separator = line.indexOf(':');
+            if (separator < 0) {
+                continue;
+            }
+            String file = line.substring(0, separator);
+            String content = line.substring(separator + 1).trim();
+            try {
+                switch (file) {
+                    case LOADAVG_FILE:
+                        // 1.39 1.10 1.21 2/2679 6380
+                        String[] fields = content.split("\\s+");
+                        sample.mLoadAvg = Double.parseDouble(fields[0]);
+                        sample.mRunnableTasks = Integer.parseInt(
+                                fields[3].substring(0, fields[3].indexOf('/')));
+                        break;
+                    case CPU_PRESSURE_FILE:
+                        sample.mCpuStallUs = parseSomeStallTotal(content, sample.mCpuStallUs);
+                        break;
+                    case IO_PRESSURE_FILE:
+                        sample.mIoStallUs = parseSomeStallTotal(content, sample.mIoStallUs);
+                        break;
+                    case MEMORY_PRESSURE_FILE:
+                        sample.mMemoryStallUs =
+                                parseSomeStallTotal(content, sample.mMemoryStallUs);
+                        break;
+                    case MEMINFO_FILE:
+                        // Dirty:               364 kB
+                        if (content.startsWith("Dirty:")) {
+                            dirty = parseMeminfoKb(content);
+                        } else if (content.startsWith("Writeback:")) {
+                            writeback = parseMeminfoKb(content);
+                        }
+                        break;
+                    case VMSTAT_FILE:
+                        // pgpgin 1234567
+                        if (content.startsWith("pgpgin ")) {
+                            pgpgin = Long.parseLong(content.substring(7).trim());
+                        } else if (content.startsWith("pgpgout ")) {
+                            pgpgout = Long.parseLong(content.substring(8).trim());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, String.format("Failed to parse \"%s\".", line), e);
+            }
+        }
+        if (pgpgin >= 0 && pgpgout >= 0) {
+            sample.mPagedKb = pgpgin + pgpgout;
+        }
+        if (dirty >= 0 && writeback >= 0) {
+            sample.mDirtyKb = dirty + writeback;
+        }
+        return sample;
+    }
+
+    /**
+     * Returns the cumulative stall time in us of the "some" line, e.g.
+     * "some avg10=0.00 avg60=0.00 avg300=0.00 total=12345", or the current value for other lines.
+     */
+    private static long parseSomeStallTotal(String content, long current) {
+        if (!content.startsWith("some ")) {
+            return current;
+        }
+        int total = content.indexOf("total=");
+        if (total < 0) {
+            return current;
+        }
+        return Long.parseLong(content.substring(total + 6).trim());
+    }
+
+    private static long parseMeminfoKb(String content) {
+        String value = content.substring(content.indexOf(':') + 1).trim();
+        int unit = value.indexOf(' ');
+        return Long.parseLong(unit < 0 ? value : value.substring(0, unit));
+    }
+
+    /** System activity read from a single sample, -1 when unavailable. */
+    private static final class Sample {
+        long mUptimeMs;
+        double mLoadAvg = -1;
+        int mRunnableTasks = -1;
+        long mCpuStallUs = -1;
+        long mIoStallUs = -1;
+        long mMemoryStallUs = -1;
+        long mPagedKb = -1;
+        long mDirtyKb = -1;
+    }
+
+    /** Returns the clock used to measure the wait. Exposed for testing. */
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /** Sleep between two samples. Exposed for testing. */
+    protected void sleep(long ms) {
+        SystemClock.sleep(ms);
+    }
+
+    private ShellRunner getShellRunner() {
+        if (mShellRunner == null) {
+            UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+            mShellRunner = device::executeShellCommand;
+        }
+        return mShellRunner;
+    }
+
+    /** Sets the maximum time to wait for the device to settle. */
+    public void setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /** Sets the time between two samples. */
+    public void setIntervalMs(long intervalMs) {
+        mIntervalMs = Math.max(1, intervalMs);
+    }
+
+    /** Sets the number of consecutive quiet intervals after which the device is settled. */
+    public void setRequiredQuietSamples(int requiredQuietSamples) {
+        mRequiredQuietSamples = Math.max(1, requiredQuietSamples);
+    }
+
+    /** Sets the maximum percentage of time some task may stall on cpu. */
+    public void setMaxCpuStallPercent(double maxCpuStallPercent) {
+        mMaxCpuStallPercent = maxCpuStallPercent;
+    }
+
+    /** Sets the maximum percentage of time some task may stall on io. */
+    public void setMaxIoStallPercent(double maxIoStallPercent) {
+        mMaxIoStallPercent = maxIoStallPercent;
+    }
+
+    /** Sets the maximum percentage of time some task may stall on memory. */
+    public void setMaxMemoryStallPercent(double maxMemoryStallPercent) {
+        mMaxMemoryStallPercent = maxMemoryStallPercent;
+    }
+
+    /** Sets the maximum number of runnable tasks, only used when PSI is unavailable. */
+    public void setMaxRunnableTasks(int maxRunnableTasks) {
+        mMaxRunnableTasks = maxRunnableTasks;
+    }
+
+    /** Sets the maximum rate of page cache reads and writes, in kB per second. */
+    public void setMaxIoKbPerSec(double maxIoKbPerSec) {
+        mMaxIoKbPerSec = maxIoKbPerSec;
+    }
+
+    /** Sets the maximum amount of Dirty + Writeback memory, in kB. */
+    public void setMaxDirtyKb(long maxDirtyKb) {
+        mMaxDirtyKb = maxDirtyKb;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static com.android.helpers.SystemSettleHelper.CPU_STALL_METRIC_KEY;
+import static com.android.helpers.SystemSettleHelper.DIRTY_METRIC_KEY;
+import static com.android.helpers.SystemSettleHelper.IO_RATE_METRIC_KEY;
+import static com.android.helpers.SystemSettleHelper.SETTLED_METRIC_KEY;
+import static com.android.helpers.SystemSettleHelper.SETTLE_WAIT_METRIC_KEY;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.SystemSettleHelper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Android Unit tests for {@link SystemSettleHelper}. The samples are scripted and the clock only
+ * advances when the helper sleeps.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.SystemSettleHelperTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class SystemSettleHelperTest {
+
+    private static final long INTERVAL_MS = 100;
+
+    /** Test a quiet device settles after the required number of quiet intervals. */
+    @Test
+    public void testSettlesWhenQuiet() {
+        FakeSystem system = new FakeSystem();
+        for (int i = 0; i < 5; i++) {
+            system.addSample(i * 100, 1000 + i * 10, 100, 100 + i * 10);
+        }
+        SystemSettleHelper helper = system.createHelper();
+        assertTrue(helper.startCollecting());
+
+        Map<String, Double> metrics = helper.getMetrics();
+        assertEquals(2 * INTERVAL_MS, metrics.get(SETTLE_WAIT_METRIC_KEY), 0);
+        assertEquals(1.0, metrics.get(SETTLED_METRIC_KEY), 0);
+        // 100 us stalled over 100 ms.
+        assertEquals(0.1, metrics.get(CPU_STALL_METRIC_KEY), 0.0001);
+        assertEquals(100.0, metrics.get(IO_RATE_METRIC_KEY), 0.0001);
+        assertEquals(200.0, metrics.get(DIRTY_METRIC_KEY), 0);
+    }
+
+    /** Test the wait lasts until the I/O and dirty memory calm down. */
+    @Test
+    public void testWaitsForIoToSettle() {
+        FakeSystem system = new FakeSystem();
+        // Heavy writeback for the first samples.
+        system.addSample(0, 0, 20000, 0);
+        system.addSample(100, 50000, 15000, 0);
+        system.addSample(200, 100000, 9000, 0);
+        system.addSample(300, 100010, 100, 0);
+        system.addSample(400, 100020, 100, 0);
+        system.addSample(500, 100030, 100, 0);
+        SystemSettleHelper helper = system.createHelper();
+        assertTrue(helper.waitForSettle());
+        assertEquals(4 * INTERVAL_MS, helper.getMetrics().get(SETTLE_WAIT_METRIC_KEY), 0);
+    }
+
+    /** Test the wait gives up at the timeout on a busy device. */
+    @Test
+    public void testTimeout() {
+        FakeSystem system = new FakeSystem();
+        for (int i = 0; i < 100; i++) {
+            // The cpu is stalled half of the time.
+            system.addSample(i * 50000, 1000, 100, 0);
+        }
+        SystemSettleHelper helper = system.createHelper();
+        helper.setTimeoutMs(1050);
+        assertFalse(helper.waitForSettle());
+
+        Map<String, Double> metrics = helper.getMetrics();
+        assertEquals(1050.0, metrics.get(SETTLE_WAIT_METRIC_KEY), 0);
+        assertEquals(0.0, metrics.get(SETTLED_METRIC_KEY), 0);
+        assertTrue(metrics.get(CPU_STALL_METRIC_KEY) >= 50.0);
+    }
+
+    /** Test the runnable tasks from /proc/loadavg are used when PSI is unavailable. */
+    @Test
+    public void testWithoutPressureStallInformation() {
+        FakeSystem system = new FakeSystem();
+        system.addOutput(loadavg(9) + vmstat(0) + meminfo(0));
+        system.addOutput(loadavg(8) + vmstat(0) + meminfo(0));
+        system.addOutput(loadavg(1) + vmstat(0) + meminfo(0));
+        system.addOutput(loadavg(2) + vmstat(0) + meminfo(0));
+        SystemSettleHelper helper = system.createHelper();
+        assertTrue(helper.waitForSettle());
+        assertEquals(3 * INTERVAL_MS, helper.getMetrics().get(SETTLE_WAIT_METRIC_KEY), 0);
+        assertFalse(helper.getMetrics().containsKey(CPU_STALL_METRIC_KEY));
+    }
+
+    /** Test a failing shell command is not quiet and doesn't end the wait early. */
+    @Test
+    public void testShellFailure() {
+        FakeSystem system = new FakeSystem();
+        system.addFailure();
+        system.addSample(0, 0, 100, 0);
+        system.addFailure();
+        system.addSample(100, 0, 100, 0);
+        system.addSample(200, 0, 100, 0);
+        system.addSample(300, 0, 100, 0);
+        SystemSettleHelper helper = system.createHelper();
+        assertTrue(helper.waitForSettle());
+        assertEquals(5 * INTERVAL_MS, helper.getMetrics().get(SETTLE_WAIT_METRIC_KEY), 0);
+    }
+
+    /** Test the wait times out cleanly when the shell keeps failing. */
+    @Test
+    public void testShellFailureTimeout() {
+        FakeSystem system = new FakeSystem();
+        system.addFailure();
+        SystemSettleHelper helper = system.createHelper();
+        helper.setTimeoutMs(1000);
+        assertFalse(helper.waitForSettle());
+
+        Map<String, Double> metrics = helper.getMetrics();
+        assertEquals(1000.0, metrics.get(SETTLE_WAIT_METRIC_KEY), 0);
+        assertEquals(0.0, metrics.get(SETTLED_METRIC_KEY), 0);
+    }
+
+    private static String loadavg(int runnable) {
+        return String.format("/proc/loadavg:1.39 1.10 1.21 %d/2679 6380\n", runnable);
+    }
+
+    private static String pressure(String resource, long totalUs) {
+        return String.format(
+                "/proc/pressure/%s:some avg10=0.00 avg60=0.00 avg300=0.00 total=%d\n"
+                        + "/proc/pressure/%s:full avg10=0.00 avg60=0.00 avg300=0.00 total=0\n",
+                resource, totalUs, resource);
+    }
+
+    private static String meminfo(long dirtyKb) {
+        return "/proc/meminfo:MemTotal:        3809036 kB\n"
+                + String.format("/proc/meminfo:Dirty:              %d kB\n", dirtyKb)
+                + "/proc/meminfo:Writeback:            100 kB\n";
+    }
+
+    private static String vmstat(long pagedKb) {
+        return String.format("/proc/vmstat:pgpgin %d\n/proc/vmstat:pgpgout 0\n", pagedKb);
+    }
+
+    /** Serves scripted samples to a helper with a virtual clock. */
+    private static class FakeSystem {
+        private final List<String> mOutputs = new ArrayList<>();
+        private long mNow = 0;
+        private int mSample = 0;
+
+        void addSample(long cpuStallUs, long pagedKb, long dirtyKb, long ioStallUs) {
+            addOutput(loadavg(1)
+                    + pressure("cpu", cpuStallUs)
+                    + pressure("io", ioStallUs)
+                    + pressure("memory", 0)
+                    + meminfo(dirtyKb)
+                    + vmstat(pagedKb));
+        }
+
+        void addOutput(String output) {
+            mOutputs.add(output);
+        }
+
+        /** The next sample fails to run its shell command. */
+        void addFailure() {
+            mOutputs.add(null);
+        }
+
+        private String execute() throws IOException {
+            String output = mOutputs.get(Math.min(mSample++, mOutputs.size() - 1));
+            if (output == null) {
+                throw new IOException("Shell failure");
+            }
+            return output;
+        }
+
+        SystemSettleHelper createHelper() {
+            SystemSettleHelper helper =
+                    new SystemSettleHelper(command -> execute()) {
+                        @Override
+                        protected long uptimeMillis() {
+                            return mNow;
+                        }
+
+                        @Override
+                        protected void sleep(long ms) {
+                            mNow += ms;
+                        }
+                    };
+            helper.setIntervalMs(INTERVAL_MS);
+            return helper;
+        }
+    }
+}
@@ -4,7 +4,6 @@ import android.app.Instrumentation;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.DecimalFormat;
@@ -81,16 +80,11 @@ public class MetricUtility {
      */
     public static byte[] executeCommandBlocking(String command, Instrumentation instr) {
         try (InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(instr.getUiAutomation()
-                .executeShellCommand(command));
-                ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            byte[] buf = new byte[BUFFER_SIZE];
-            int length;
+                .executeShellCommand(command))) {
             Log.i(TAG, "Start reading the data");
-            while ((length = is.read(buf)) >= 0) {
-                out.write(buf, 0, length);
-            }
+            byte[] output = ShellCommandExecutor.readFully(is);
             Log.i(TAG, "Stop reading the data");
-            return out.toByteArray();
+            return output;
         } catch (IOException e) {
             Log.e(TAG, "Error executing: " + command, e);
             return null;
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Iterates over the fields of an encoded protobuf message without decoding it into objects, to
+ * read large perfetto traces or statsd reports without generated classes and with few
+ * allocations.
+ *
+ * <p>Malformed input ends the iteration instead of throwing.
+ */
+public final class ProtoCursor {
+    public static final int WIRE_TYPE_VARINT = 0;
+    public static final int WIRE_TYPE_FIXED64 = 1;
+    public static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    public static final int WIRE_TYPE_FIXED32 = 5;
+
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mEnd;
+
+    // Start of the tag of the current field.
+    private int mFieldStart;
+    private int mField;
+    private int mWireType;
+    // Varint and fixed values, or the length of length delimited values.
+    private long mValue;
+    // Start of length delimited values.
+    private int mValueStart;
+
+    public ProtoCursor() {}
+
+    public ProtoCursor(byte[] buffer) {
+        reset(buffer, 0, buffer.length);
+    }
+
+    /** Iterate over the fields of the message between start and end in the buffer. */
+    public ProtoCursor reset(byte[] buffer, int start, int end) {
+        mBuffer = buffer;
+        mPosition = start;
+        mEnd = Math.min(end, buffer.length);
+        return this;
+    }
+
+    /** Iterate over the fields of the current length delimited field. */
+    public ProtoCursor resetToValue(ProtoCursor parent) {
+        return reset(parent.mBuffer, parent.mValueStart, parent.mValueStart + (int) parent.mValue);
+    }
+
+    /** Move to the next field, returns false at the end of the message. */
+    public boolean next() {
+        if (mPosition >= mEnd) {
+            return false;
+        }
+        mFieldStart = mPosition;
+        long tag = readVarint();
+        mField = (int) (tag >>> 3);
+        mWireType = (int) (tag & 0x7);
+        switch (mWireType) {
+            case WIRE_TYPE_VARINT:
+                mValue = readVarint();
+                break;
+            case WIRE_TYPE_FIXED64:
+                mValue = readFixed(8);
+                break;
+            case WIRE_TYPE_LENGTH_DELIMITED:
+                mValue = readVarint();
+                if (mValue < 0 || mValue > mEnd - mPosition) {
+                    mPosition = mEnd;
+                    return false;
+                }
+                mValueStart = mPosition;
+                mPosition += (int) mValue;
+                break;
+            case WIRE_TYPE_FIXED32:
+                mValue = readFixed(4);
+                break;
+            default:
+                // Groups are not used by perfetto.
+                mPosition = mEnd;
+                return false;
+        }
+        if (mPosition > mEnd) {
+            mPosition = mEnd;
+            return false;
+        }
+        return true;
+    }
+
+    public int getField() {
+        return mField;
+    }
+
+    public int getWireType() {
+        return mWireType;
+    }
+
+    public boolean isLengthDelimited() {
+        return mWireType == WIRE_TYPE_LENGTH_DELIMITED;
+    }
+
+    /** Returns a varint or fixed integer value. */
+    public long getLong() {
+        return mValue;
+    }
+
+    /** Returns a fixed64 value as a double. */
+    public double getDouble() {
+        return Double.longBitsToDouble(mValue);
+    }
+
+    /** Returns a fixed32 value as a float. */
+    public float getFloat() {
+        return Float.intBitsToFloat((int) mValue);
+    }
+
+    /** Returns the buffer of the message. */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** Returns the offset of the tag of the current field in the buffer. */
+    public int getFieldStart() {
+        return mFieldStart;
+    }
+
+    /** Returns the offset following the value of the current field in the buffer. */
+    public int getFieldEnd() {
+        return mPosition;
+    }
+
+    /** Returns the offset of the length delimited value in the buffer. */
+    public int getValueStart() {
+        return mValueStart;
+    }
+
+    /** Returns the length of the length delimited value. */
+    public int getValueLength() {
+        return (int) mValue;
+    }
+
+    public String getString() {
+        return new String(mBuffer, mValueStart, (int) mValue, StandardCharsets.UTF_8);
+    }
+
+    /** Returns true if the length delimited value starts with the given ASCII bytes. */
+    public boolean valueStartsWith(byte[] prefix) {
+        if (mValue < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer[mValueStart + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the packed varints of the current field into the array, or the single value of an
+     * unpacked field.
+     *
+     * @return the values, in a new array if the given one is too small.
+     */
+    public long[] getPackedVarints(long[] values, int[] count) {
+        if (mWireType == WIRE_TYPE_VARINT) {
+            values = ensureCapacity(values, 1);
+            values[0] = mValue;
+            count[0] = 1;
+            return values;
+        }
+        int saved = mPosition;
+        int end = mValueStart + (int) mValue;
+        mPosition = mValueStart;
+        int n = 0;
+        while (mPosition < end) {
+            values = ensureCapacity(values, n + 1);
+            values[n++] = readVarint();
+        }
+        mPosition = saved;
+        count[0] = n;
+        return values;
+    }
+
+    private static long[] ensureCapacity(long[] values, int capacity) {
+        if (values.length >= capacity) {
+            return values;
+        }
+        long[] grown = new long[Math.max(capacity, values.length * 2)];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64 && mPosition < mEnd; shift += 7) {
+            byte b = mBuffer[mPosition++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        // Truncated varint.
+        mPosition = mEnd + 1;
+        return 0;
+    }
+
+    private long readFixed(int size) {
+        long value = 0;
+        for (int i = 0; i < size && mPosition < mEnd; i++) {
+            value |= (long) (mBuffer[mPosition++] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+}
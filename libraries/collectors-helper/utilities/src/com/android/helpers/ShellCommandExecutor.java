@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import android.app.UiAutomation;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ShellCommandExecutor runs many shell commands through a single shell session.
+ *
+ * <p>Commands of a batch are written to the stdin of one {@code sh} process, each followed by a
+ * delimiter line carrying the command index and exit code. The combined stdout is streamed
+ * through a large reusable buffer and split back into one output per command. Independent batches
+ * can be run in parallel with {@link #executeBatches(List)}.
+ *
+ * <p>The time between two delimiters is recorded as the latency of the command and aggregated by
+ * command type (the first word of the command, e.g. "showmap"). Commands must not read from stdin,
+ * since it carries the rest of the batch.
+ */
+public class ShellCommandExecutor {
+    private static final String TAG = ShellCommandExecutor.class.getSimpleName();
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public static final String LATENCY_METRIC_PREFIX = "shell_cmd";
+    public static final String LATENCY_COUNT_SUFFIX = "count";
+    public static final String LATENCY_TOTAL_SUFFIX = "total_ms";
+    public static final String LATENCY_MAX_SUFFIX = "max_ms";
+
+    private static final String SHELL_CMD = "sh";
+    private static final byte NEW_LINE = '\n';
+
+    // Read buffers are reused across commands run from the same thread.
+    private static final ThreadLocal<byte[]> sReadBuffer =
+            ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final UiAutomation mUiAutomation;
+    private final int mParallelism;
+    // Unique per executor so that command output can never be mistaken for a delimiter.
+    private final String mDelimiter = "__cmd_end_" + UUID.randomUUID().toString().replace("-", "");
+    private final byte[] mDelimiterBytes = mDelimiter.getBytes(StandardCharsets.UTF_8);
+    // Command type -> {count, total latency in ms, max latency in ms}.
+    private final Map<String, long[]> mLatencies = new HashMap<>();
+
+    private ExecutorService mExecutorService;
+
+    public ShellCommandExecutor(UiAutomation uiAutomation) {
+        this(uiAutomation, DEFAULT_PARALLELISM);
+    }
+
+    public ShellCommandExecutor(UiAutomation uiAutomation, int parallelism) {
+        mUiAutomation = uiAutomation;
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Execute a single shell command.
+     *
+     * @param command shell command to be executed.
+     * @return stdout of the command.
+     */
+    public String execute(String command) throws IOException {
+        return executeBatch(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Execute the given commands sequentially in one shell session.
+     *
+     * @param commands shell commands to be executed.
+     * @return stdout of each command, in the same order as {@code commands}.
+     */
+    public List<String> executeBatch(List<String> commands) throws IOException {
+        if (commands.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            // Start the delimiter on its own line even if the command output does not end with a
+            // new line. The extra new line is stripped again while parsing.
+            script.append(commands.get(i))
+                    .append("\nprintf '\\n%s %d %d\\n' ")
+                    .append(mDelimiter)
+                    .append(' ')
+                    .append(i)
+                    .append(" $?\n");
+        }
+        script.append("exit\n");
+
+        String[] outputs = new String[commands.size()];
+        long startTime = SystemClock.uptimeMillis();
+        try (InputStream is = openShell(script.toString().getBytes(StandardCharsets.UTF_8))) {
+            readOutputs(is, commands, outputs, startTime);
+        }
+        for (int i = 0; i < outputs.length; i++) {
+            if (outputs[i] == null) {
+                throw new IOException(
+                        String.format("Shell session ended before \"%s\" completed.",
+                                commands.get(i)));
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    /**
+     * Execute independent batches of commands in parallel, each in its own shell session.
+     *
+     * @param batches list of command batches.
+     * @return outputs of each batch, in the same order as {@code batches}.
+     */
+    public List<List<String>> executeBatches(List<List<String>> batches) throws IOException {
+        if (batches.size() == 1) {
+            return Collections.singletonList(executeBatch(batches.get(0)));
+        }
+        List<Future<List<String>>> futures = new ArrayList<>();
+        ExecutorService executorService = getExecutorService();
+        for (List<String> batch : batches) {
+            futures.add(executorService.submit(() -> executeBatch(batch)));
+        }
+        List<List<String>> results = new ArrayList<>();
+        for (Future<List<String>> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while executing shell commands.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Split the given commands into at most as many batches as the configured parallelism and
+     * execute them in parallel.
+     *
+     * @param commands independent shell commands to be executed.
+     * @return stdout of each command, in the same order as {@code commands}.
+     */
+    public List<String> executeParallel(List<String> commands) throws IOException {
+        int batchCount = Math.min(mParallelism, commands.size());
+        if (batchCount <= 1) {
+            return executeBatch(commands);
+        }
+        int batchSize = (commands.size() + batchCount - 1) / batchCount;
+        List<List<String>> batches = new ArrayList<>();
+        for (int start = 0; start < commands.size(); start += batchSize) {
+            batches.add(commands.subList(start, Math.min(start + batchSize, commands.size())));
+        }
+        List<String> outputs = new ArrayList<>(commands.size());
+        for (List<String> batchOutputs : executeBatches(batches)) {
+            outputs.addAll(batchOutputs);
+        }
+        return outputs;
+    }
+
+    /**
+     * Returns the latency counters per command type, keyed as
+     * shell_cmd_[type]_count, shell_cmd_[type]_total_ms and shell_cmd_[type]_max_ms.
+     */
+    public Map<String, Long> getLatencyMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        synchronized (mLatencies) {
+            for (Map.Entry<String, long[]> entry : mLatencies.entrySet()) {
+                long[] stats = entry.getValue();
+                metrics.put(MetricUtility.constructKey(
+                        LATENCY_METRIC_PREFIX, entry.getKey(), LATENCY_COUNT_SUFFIX), stats[0]);
+                metrics.put(MetricUtility.constructKey(
+                        LATENCY_METRIC_PREFIX, entry.getKey(), LATENCY_TOTAL_SUFFIX), stats[1]);
+                metrics.put(MetricUtility.constructKey(
+                        LATENCY_METRIC_PREFIX, entry.getKey(), LATENCY_MAX_SUFFIX), stats[2]);
+            }
+        }
+        return metrics;
+    }
+
+    /** Clear the latency counters. */
+    public void resetLatencyMetrics() {
+        synchronized (mLatencies) {
+            mLatencies.clear();
+        }
+    }
+
+    /** Release the threads used for parallel execution. */
+    public synchronized void shutdown() {
+        if (mExecutorService != null) {
+            mExecutorService.shutdownNow();
+            mExecutorService = null;
+        }
+    }
+
+    /**
+     * Start a shell session running the given script and return its stdout. Exposed for testing.
+     *
+     * @param script the commands to be fed to the shell stdin.
+     */
+    protected InputStream openShell(byte[] script) throws IOException {
+        ParcelFileDescriptor[] fds = mUiAutomation.executeShellCommandRw(SHELL_CMD);
+        feedScript(new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]), script);
+        return new ParcelFileDescriptor.AutoCloseInputStream(fds[0]);
+    }
+
+    /**
+     * Write the script to the shell stdin from a separate thread, so a full stdout pipe can never
+     * block the writer while the reader is waiting for it.
+     */
+    protected static void feedScript(OutputStream stdin, byte[] script) {
+        Thread writer = new Thread(() -> {
+            try (OutputStream os = stdin) {
+                os.write(script);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the shell script.", e);
+            }
+        }, TAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Read the stream fully using the large per-thread buffer.
+     *
+     * @param is stream to read.
+     * @return the content of the stream.
+     */
+    public static byte[] readFully(InputStream is) throws IOException {
+        byte[] buf = sReadBuffer.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+        int length;
+        while ((length = is.read(buf)) >= 0) {
+            out.write(buf, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Split the shell output at the delimiter lines and record per command latencies. */
+    private void readOutputs(InputStream is, List<String> commands, String[] outputs,
+            long startTime) throws IOException {
+        byte[] buf = sReadBuffer.get();
+        ByteArrayOutputStream commandOutput = new ByteArrayOutputStream(BUFFER_SIZE);
+        // Bytes of the current line, which is only known to be regular output once complete.
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long lastTime = startTime;
+        int length;
+        while ((length = is.read(buf)) >= 0) {
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (buf[i] != NEW_LINE) {
+                    continue;
+                }
+                line.write(buf, lineStart, i - lineStart);
+                lineStart = i + 1;
+                byte[] lineBytes = line.toByteArray();
+                line.reset();
+                if (!isDelimiter(lineBytes)) {
+                    commandOutput.write(lineBytes, 0, lineBytes.length);
+                    commandOutput.write(NEW_LINE);
+                    continue;
+                }
+                // Delimiter line is "<delimiter> <index> <exit code>".
+                String[] fields = new String(lineBytes, StandardCharsets.UTF_8).split(" ");
+                int index = Integer.parseInt(fields[1]);
+                byte[] outputBytes = commandOutput.toByteArray();
+                // Drop the new line that was injected before the delimiter.
+                int outputLength = Math.max(0, outputBytes.length - 1);
+                outputs[index] = new String(outputBytes, 0, outputLength, StandardCharsets.UTF_8);
+                commandOutput.reset();
+                if (!"0".equals(fields[2])) {
+                    Log.w(TAG, String.format("\"%s\" exited with code %s.", commands.get(index),
+                            fields[2]));
+                }
+                long now = SystemClock.uptimeMillis();
+                recordLatency(commands.get(index), now - lastTime);
+                lastTime = now;
+            }
+            line.write(buf, lineStart, length - lineStart);
+        }
+    }
+
+    private boolean isDelimiter(byte[] line) {
+        if (line.length <= mDelimiterBytes.length || line[mDelimiterBytes.length] != ' ') {
+            return false;
+        }
+        for (int i = 0; i < mDelimiterBytes.length; i++) {
+            if (line[i] != mDelimiterBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recordLatency(String command, long latencyMs) {
+        String type = getCommandType(command);
+        synchronized (mLatencies) {
+            long[] stats = mLatencies.computeIfAbsent(type, k -> new long[3]);
+            stats[0]++;
+            stats[1] += latencyMs;
+            stats[2] = Math.max(stats[2], latencyMs);
+        }
+    }
+
+    /** Returns the first word of the command, without any path. */
+    static String getCommandType(String command) {
+        String trimmed = command.trim();
+        int end = trimmed.indexOf(' ');
+        String executable = end < 0 ? trimmed : trimmed.substring(0, end);
+        return executable.substring(executable.lastIndexOf('/') + 1);
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        if (mExecutorService == null) {
+            mExecutorService = Executors.newFixedThreadPool(mParallelism);
+        }
+        return mExecutorService;
+    }
+}
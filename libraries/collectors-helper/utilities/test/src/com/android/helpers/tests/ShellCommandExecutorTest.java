@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.ShellCommandExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Android Unit tests for {@link ShellCommandExecutor}. The shell session is a local {@code sh}
+ * process so the batching and splitting logic is exercised without the UiAutomation connection.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.ShellCommandExecutorTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShellCommandExecutorTest {
+
+    private ShellCommandExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = new LocalShellCommandExecutor(2);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    /** Test the output of each command in a batch is split at the right place. */
+    @Test
+    public void testExecuteBatch() throws IOException {
+        List<String> outputs = mExecutor.executeBatch(Arrays.asList(
+                "echo first", "printf 'no new line'", "true", "printf 'a\\nb\\n\\n'"));
+        assertEquals(Arrays.asList("first\n", "no new line", "", "a\nb\n\n"), outputs);
+    }
+
+    /** Test a failing command does not affect the next commands of the batch. */
+    @Test
+    public void testExecuteBatchWithFailure() throws IOException {
+        List<String> outputs = mExecutor.executeBatch(Arrays.asList(
+                "ls /this/does/not/exist", "echo after"));
+        assertEquals("", outputs.get(0));
+        assertEquals("after\n", outputs.get(1));
+    }
+
+    /** Test parallel execution keeps the order of the commands. */
+    @Test
+    public void testExecuteParallel() throws IOException {
+        List<String> commands = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            commands.add("echo " + i);
+            expected.add(i + "\n");
+        }
+        assertEquals(expected, mExecutor.executeParallel(commands));
+    }
+
+    /** Test output larger than the read buffer is not truncated. */
+    @Test
+    public void testLargeOutput() throws IOException {
+        String output = mExecutor.execute("seq 1 100000");
+        String[] lines = output.split("\n");
+        assertEquals(100000, lines.length);
+        assertEquals("100000", lines[lines.length - 1]);
+    }
+
+    /** Test the latency counters are aggregated per command type. */
+    @Test
+    public void testLatencyMetrics() throws IOException {
+        mExecutor.executeBatch(Arrays.asList("echo 1", "echo 2", "true"));
+        Map<String, Long> metrics = mExecutor.getLatencyMetrics();
+        assertEquals(2L, (long) metrics.get("shell_cmd_echo_count"));
+        assertEquals(1L, (long) metrics.get("shell_cmd_true_count"));
+        assertTrue(metrics.containsKey("shell_cmd_echo_total_ms"));
+        assertTrue(metrics.containsKey("shell_cmd_echo_max_ms"));
+
+        mExecutor.resetLatencyMetrics();
+        assertTrue(mExecutor.getLatencyMetrics().isEmpty());
+    }
+
+    /** Test reading a stream fully. */
+    @Test
+    public void testReadFully() throws IOException {
+        byte[] data = new byte[ShellCommandExecutor.BUFFER_SIZE * 3 + 7];
+        Arrays.fill(data, (byte) 'x');
+        byte[] read = ShellCommandExecutor.readFully(new ByteArrayInputStream(data));
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    /** Runs the batches with a shell process local to the test. */
+    private static class LocalShellCommandExecutor extends ShellCommandExecutor {
+        LocalShellCommandExecutor(int parallelism) {
+            super(null, parallelism);
+        }
+
+        @Override
+        protected InputStream openShell(byte[] script) throws IOException {
+            Process process = new ProcessBuilder("sh").start();
+            feedScript(process.getOutputStream(), script);
+            return process.getInputStream();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.util;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of a business logic condition run by {@link BusinessLogicExecutor}, with the
+ * resolutions cached by earlier runs, without them, and with the reflection done before the caches.
+ *
+ * To run:
+ * atest CompatibilityCommonUtilBenchmark:com.android.compatibility.common.util.BusinessLogicExecutorBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class BusinessLogicExecutorBenchmark {
+
+    private static final String CONDITION = Rules.class.getName() + ".isInRange";
+    private static final String[] ARGS = {"5", "1", "10"};
+
+    @Rule public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final BenchmarkExecutor mExecutor = new BenchmarkExecutor();
+
+    /** The condition run as by the first test using it. */
+    @Test
+    public void timeExecuteConditionCold() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            BusinessLogicExecutor.clearCaches();
+            mExecutor.executeCondition(CONDITION, ARGS);
+        }
+    }
+
+    /** The condition run again, as by the other tests using it. */
+    @Test
+    public void timeExecuteConditionWarm() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        mExecutor.executeCondition(CONDITION, ARGS);
+        while (state.keepRunning()) {
+            mExecutor.executeCondition(CONDITION, ARGS);
+        }
+    }
+
+    /** The class, method and invocation resolved by reflection on every run, as before. */
+    @Test
+    public void timeExecuteConditionReflection() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Class<?> cls = Class.forName(Rules.class.getName());
+            Object obj = cls.getDeclaredConstructor().newInstance();
+            List<Method> methods = new ArrayList<>();
+            for (Method m : cls.getMethods()) {
+                if ("isInRange".equals(m.getName())) {
+                    methods.add(m);
+                }
+            }
+            methods.get(0).invoke(obj, (Object[]) ARGS);
+        }
+    }
+
+    /** The business logic rules. */
+    public static class Rules {
+        public boolean isInRange(String value, String min, String max) {
+            int v = Integer.parseInt(value);
+            return v >= Integer.parseInt(min) && v <= Integer.parseInt(max);
+        }
+    }
+
+    /** An executor passing the string arguments to the String parameters. */
+    private static class BenchmarkExecutor extends BusinessLogicExecutor {
+        @Override
+        protected String formatExecutionString(String method, String... args) {
+            return String.format("%s(%s)", method, String.join(", ", formatArgs(args)));
+        }
+
+        @Override
+        public void logInfo(String format, Object... args) {}
+
+        @Override
+        public void logDebug(String format, Object... args) {}
+
+        @Override
+        protected Object getTestObject() {
+            return null;
+        }
+
+        @Override
+        protected ResolvedMethod getResolvedMethod(
+                Class cls, String methodName, String... args) {
+            for (Method m : getMethodsWithName(cls, methodName)) {
+                if (m.getParameterCount() == args.length) {
+                    ResolvedMethod rm = new ResolvedMethod(m);
+                    for (String arg : args) {
+                        rm.addArg(arg);
+                    }
+                    return rm;
+                }
+            }
+            throw new RuntimeException("No method " + methodName);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.util;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of {@link CrashUtils#addAllCrashes} on a logcat of concatenated tombstones, each with
+ * its registers, backtrace and memory map, and other logs in between. The allocations are reported
+ * with the times.
+ *
+ * To run:
+ * atest CompatibilityCommonUtilBenchmark:com.android.compatibility.common.util.CrashUtilsBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class CrashUtilsBenchmark {
+
+    private static final int CRASH_COUNT = 200;
+    private static final int REGISTER_LINES = 20;
+    private static final int FRAME_COUNT = 40;
+    private static final int MAP_ENTRIES = 200;
+    private static final int OTHER_LINES = 100;
+
+    // The pattern matching a whole crash, as before the parser.
+    private static final Pattern sCrashBlobPattern =
+            Pattern.compile("DEBUG\\s+?:( [*]{3})+?.*?DEBUG\\s+?:\\s+?backtrace:", Pattern.DOTALL);
+
+    private static final String LOGCAT = buildLogcat();
+
+    @Rule public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    /** The regexes run on the whole logcat, as before the parser. */
+    @Test
+    public void timeCrashBlobRegex() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            addAllCrashBlobs(LOGCAT, new JSONArray());
+        }
+    }
+
+    /** The parser reading the lines of the logcat held in memory. */
+    @Test
+    public void timeParserString() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            CrashUtils.addAllCrashes(LOGCAT, new JSONArray());
+        }
+    }
+
+    /** The parser reading the lines of the logcat from a reader, as from a file or a process. */
+    @Test
+    public void timeParserReader() throws Exception {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            try (BufferedReader reader = new BufferedReader(new StringReader(LOGCAT))) {
+                CrashUtils.addAllCrashes(reader, new JSONArray());
+            }
+        }
+    }
+
+    /** Adds the crashes of the input matched with the regexes of the whole crash text. */
+    private static JSONArray addAllCrashBlobs(String input, JSONArray crashes) {
+        Matcher crashBlobFinder = sCrashBlobPattern.matcher(input);
+        while (crashBlobFinder.find()) {
+            String crashStr = crashBlobFinder.group(0);
+            int tid = 0;
+            int pid = 0;
+            BigInteger faultAddress = null;
+            String name = null;
+            String process = null;
+            String signal = null;
+            String abortMessage = null;
+
+            Matcher pidtidNameMatcher = CrashUtils.sPidtidNamePattern.matcher(crashStr);
+            if (pidtidNameMatcher.find()) {
+                try {
+                    pid = Integer.parseInt(pidtidNameMatcher.group(1));
+                } catch (NumberFormatException e) {}
+                try {
+                    tid = Integer.parseInt(pidtidNameMatcher.group(2));
+                } catch (NumberFormatException e) {}
+                name = pidtidNameMatcher.group(3).trim();
+                process = pidtidNameMatcher.group(4).trim();
+            }
+
+            Matcher faultLineMatcher = CrashUtils.sFaultLinePattern.matcher(crashStr);
+            if (faultLineMatcher.find()) {
+                signal = faultLineMatcher.group(1);
+                String faultAddrMatch = faultLineMatcher.group(2);
+                if (faultAddrMatch != null) {
+                    try {
+                        faultAddress = new BigInteger(faultAddrMatch, 16);
+                    } catch (NumberFormatException e) {}
+                }
+            }
+
+            Matcher abortMessageMatcher = CrashUtils.sAbortMessagePattern.matcher(crashStr);
+            if (abortMessageMatcher.find()) {
+                abortMessage = abortMessageMatcher.group(1);
+            }
+
+            try {
+                JSONObject crash = new JSONObject();
+                crash.put(CrashUtils.PID, pid);
+                crash.put(CrashUtils.TID, tid);
+                crash.put(CrashUtils.NAME, name);
+                crash.put(CrashUtils.PROCESS, process);
+                crash.put(
+                        CrashUtils.FAULT_ADDRESS,
+                        faultAddress == null ? null : faultAddress.toString(16));
+                crash.put(CrashUtils.SIGNAL, signal);
+                crash.put(CrashUtils.ABORT_MESSAGE, abortMessage);
+                crashes.put(crash);
+            } catch (JSONException e) {}
+        }
+        return crashes;
+    }
+
+    /** Build a logcat of tombstones, with other logs between them. */
+    private static String buildLogcat() {
+        StringBuilder logcat = new StringBuilder();
+        for (int i = 0; i < CRASH_COUNT; i++) {
+            int pid = 4000 + i;
+            for (int j = 0; j < OTHER_LINES; j++) {
+                logcat.append(String.format(
+                        "03-23 11:22:02.184  1210  1210 I ActivityManager: Start proc %d:%d\n",
+                        pid, j));
+            }
+            String prefix = String.format("03-23 11:22:02.672  %d  %d F DEBUG   : ", pid, pid);
+            logcat.append(prefix).append("*** *** *** *** *** *** *** *** *** *** *** ***\n");
+            logcat.append(prefix).append("Build fingerprint: 'generic/sdk_gphone_x86_64'\n");
+            logcat.append(prefix).append(String.format(
+                    "pid: %d, tid: %d, name: Binder:%d_2  >>> /system/bin/mediaserver <<<\n",
+                    pid, pid + 1, pid));
+            logcat.append(prefix).append(String.format(
+                    "signal 11 (SIGSEGV), code 1 (SEGV_MAPERR), fault addr 0x%x\n",
+                    0x7f20001000L + i));
+            logcat.append(prefix).append("Abort message: 'FORTIFY: memcpy: prevented write'\n");
+            for (int j = 0; j < REGISTER_LINES; j++) {
+                logcat.append(prefix)
+                        .append("    x0  0000007f20001000  x1  0000000000000000  x2  ")
+                        .append("0000000000000010\n");
+            }
+            logcat.append(prefix).append('\n');
+            logcat.append(prefix).append("backtrace:\n");
+            for (int j = 0; j < FRAME_COUNT; j++) {
+                logcat.append(prefix).append(String.format(
+                        "      #%02d pc %016x  /system/lib64/libc.so (memcpy+%d)\n",
+                        j, 0x4c1a8L + j * 16, j * 4));
+            }
+            logcat.append(prefix).append('\n');
+            logcat.append(prefix).append(String.format("memory map (%d entries):\n", MAP_ENTRIES));
+            for (int j = 0; j < MAP_ENTRIES; j++) {
+                long start = 0x7f1ff00000L + j * 0x100000L;
+                logcat.append(prefix).append(String.format(
+                        "    %08x'%08x-%08x'%08x r--  0  100000  /system/lib64/lib%d.so\n",
+                        start >>> 32, start & 0xffffffffL,
+                        start >>> 32, (start + 0xfffff) & 0xffffffffL, j));
+            }
+        }
+        return logcat.toString();
+    }
+}
@@ -16,18 +16,30 @@
 
 package com.android.compatibility.common.util;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.junit.AssumptionViolatedException;
 
 /**
  * Resolves methods provided by the BusinessLogicService and invokes them
+ *
+ * <p>The classes, constructors, methods and method handles resolved for the business logic are
+ * cached, as the same rules are run for many tests. Failed resolutions are not cached, so that
+ * they fail with the same exceptions every time.
  */
 public abstract class BusinessLogicExecutor {
 
@@ -40,6 +52,14 @@ public abstract class BusinessLogicExecutor {
     private static final String REDACTED_PLACEHOLDER = "[redacted]";
     /* List of regexes indicating a method arg should be redacted in the logs */
     protected List<String> mRedactionRegexes = new ArrayList<>();
+    // The compiled redaction regexes, by regex.
+    private final Map<String, Pattern> mRedactionPatterns = new ConcurrentHashMap<>();
+
+    // Caches of the successful resolutions, shared by all the executors.
+    private static final Map<String, Class<?>> sClasses = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Constructor<?>> sConstructors = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Map<String, List<Method>>> sMethodsByName =
+            new ConcurrentHashMap<>();
 
     /**
      * Execute a business logic condition.
@@ -109,9 +129,8 @@ public abstract class BusinessLogicExecutor {
 
     private String formatArg(String arg) {
         for (String regex : mRedactionRegexes) {
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(arg);
-            if (matcher.find()) {
+            Pattern pattern = mRedactionPatterns.computeIfAbsent(regex, Pattern::compile);
+            if (pattern.matcher(arg).find()) {
                 return REDACTED_PLACEHOLDER;
             }
         }
@@ -139,11 +158,14 @@ public abstract class BusinessLogicExecutor {
                     + "For example, \"com.android.packagename.ClassName.methodName\".", method));
         }
         String className = method.substring(0, index);
-        Class cls = Class.forName(className);
-        Object obj = cls.getDeclaredConstructor().newInstance();
+        Class cls = loadClass(className);
+        Constructor<?> constructor = getConstructor(cls);
+        Object obj;
         if (getTestObject() != null && cls.isAssignableFrom(getTestObject().getClass())) {
             // The given method is a member of the test class, use the known test class instance
             obj = getTestObject();
+        } else {
+            obj = constructor.newInstance();
         }
         ResolvedMethod rm = getResolvedMethod(cls, method.substring(index + 1), args);
         return rm.invoke(obj);
@@ -191,13 +213,47 @@ public abstract class BusinessLogicExecutor {
      * @return a list of method objects
      */
     protected List<Method> getMethodsWithName(Class cls, String name) {
-        List<Method> methodList = new ArrayList<>();
+        Map<String, List<Method>> methodsByName =
+                sMethodsByName.computeIfAbsent(cls, BusinessLogicExecutor::groupMethodsByName);
+        List<Method> methodList = methodsByName.get(name);
+        return methodList == null ? new ArrayList<>() : new ArrayList<>(methodList);
+    }
+
+    private static Map<String, List<Method>> groupMethodsByName(Class<?> cls) {
+        Map<String, List<Method>> methodsByName = new ConcurrentHashMap<>();
         for (Method m : cls.getMethods()) {
-            if (name.equals(m.getName())) {
-                methodList.add(m);
-            }
+            methodsByName.computeIfAbsent(m.getName(), name -> new ArrayList<>()).add(m);
         }
-        return methodList;
+        return methodsByName;
+    }
+
+    /** Returns the class with the given name, throwing the same exception as Class.forName. */
+    private static Class<?> loadClass(String className) throws ClassNotFoundException {
+        Class<?> cls = sClasses.get(className);
+        if (cls == null) {
+            cls = Class.forName(className);
+            sClasses.put(className, cls);
+        }
+        return cls;
+    }
+
+    /** Returns the no-argument constructor of the class, throwing the same exception on a miss. */
+    private static Constructor<?> getConstructor(Class<?> cls) throws NoSuchMethodException {
+        Constructor<?> constructor = sConstructors.get(cls);
+        if (constructor == null) {
+            constructor = cls.getDeclaredConstructor();
+            sConstructors.put(cls, constructor);
+        }
+        return constructor;
+    }
+
+    /** Clear the resolutions cached by all the executors. */
+    @VisibleForTesting
+    static void clearCaches() {
+        sClasses.clear();
+        sConstructors.clear();
+        sMethodsByName.clear();
+        ResolvedMethod.sHandles.clear();
     }
 
     /**
@@ -205,6 +261,12 @@ public abstract class BusinessLogicExecutor {
      * method. The class is also equipped with an "invoke" method for convenience.
      */
     protected static class ResolvedMethod {
+        // The method handles of the methods invoked so far, taking the instance and the
+        // arguments as an array.
+        private static final Map<Method, MethodHandle> sHandles = new ConcurrentHashMap<>();
+        private static final MethodType INVOKER_TYPE =
+                MethodType.methodType(Object.class, Object.class, Object[].class);
+
         private Method mMethod;
         List<Object> mArgs;
 
@@ -221,7 +283,59 @@ public abstract class BusinessLogicExecutor {
         /** Invoke the stored method with the stored args on a given object */
         public Object invoke(Object instance) throws IllegalAccessException,
                 InvocationTargetException {
-            return mMethod.invoke(instance, mArgs.toArray());
+            Object[] args = mArgs.toArray();
+            MethodHandle handle = sHandles.get(mMethod);
+            if (handle == null) {
+                try {
+                    handle = toInvoker(mMethod);
+                } catch (IllegalAccessException e) {
+                    // Let reflection report the access failure.
+                    return mMethod.invoke(instance, args);
+                }
+                sHandles.put(mMethod, handle);
+            }
+            if (!canInvokeExactly(instance, args)) {
+                // Let reflection convert the arguments or report why they don't fit.
+                return mMethod.invoke(instance, args);
+            }
+            try {
+                return handle.invokeExact(instance, args);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        /** Returns whether the handle can take the instance and arguments without conversion. */
+        private boolean canInvokeExactly(Object instance, Object[] args) {
+            if (!Modifier.isStatic(mMethod.getModifiers())
+                    && !mMethod.getDeclaringClass().isInstance(instance)) {
+                return false;
+            }
+            Class<?>[] parameterTypes = mMethod.getParameterTypes();
+            if (args.length != parameterTypes.length) {
+                return false;
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (parameterTypes[i].isPrimitive()) {
+                    if (args[i] == null || MethodType.methodType(parameterTypes[i]).wrap()
+                            .returnType() != args[i].getClass()) {
+                        return false;
+                    }
+                } else if (args[i] != null && !parameterTypes[i].isInstance(args[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns a handle invoking the method with the instance and an array of arguments. */
+        private static MethodHandle toInvoker(Method method) throws IllegalAccessException {
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            if (Modifier.isStatic(method.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            return handle.asSpreader(Object[].class, method.getParameterCount())
+                    .asType(INVOKER_TYPE);
         }
     }
 }
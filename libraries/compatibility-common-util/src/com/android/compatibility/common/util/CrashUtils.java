@@ -16,13 +16,14 @@
 
 package com.android.compatibility.common.util;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -53,19 +54,16 @@ public class CrashUtils {
     public static final String PID = "pid";
     public static final String TID = "tid";
     public static final String FAULT_ADDRESS = "faultaddress";
-    // Matches the smallest blob that has the appropriate header and footer
-    private static final Pattern sCrashBlobPattern =
-            Pattern.compile("DEBUG\\s+?:( [*]{3})+?.*?DEBUG\\s+?:\\s+?backtrace:", Pattern.DOTALL);
     // Matches process id and name line and captures them
-    private static final Pattern sPidtidNamePattern =
+    static final Pattern sPidtidNamePattern =
             Pattern.compile("pid: (\\d+?), tid: (\\d+?), name: ([^\\s]+?\\s+?)*?>>> (.*?) <<<");
     // Matches fault address and signal type line
-    private static final Pattern sFaultLinePattern =
+    static final Pattern sFaultLinePattern =
             Pattern.compile(
                     "\\w+? \\d+? \\((.*?)\\), code -*?\\d+? \\(.*?\\), fault addr "
                             + "(?:0x(\\p{XDigit}+)|-+)");
     // Matches the abort message line
-    private static Pattern sAbortMessagePattern =
+    static final Pattern sAbortMessagePattern =
             Pattern.compile("(?i)Abort message: (.*)");
 
     public static final String SIGSEGV = "SIGSEGV";
@@ -175,61 +173,26 @@ public class CrashUtils {
 
     /** Adds all crashes found in the input as JSONObjects to the given JSONArray */
     public static JSONArray addAllCrashes(String input, JSONArray crashes) {
-        Matcher crashBlobFinder = sCrashBlobPattern.matcher(input);
-        while (crashBlobFinder.find()) {
-            String crashStr = crashBlobFinder.group(0);
-            int tid = 0;
-            int pid = 0;
-            BigInteger faultAddress = null;
-            String name = null;
-            String process = null;
-            String signal = null;
-            String abortMessage = null;
-
-            Matcher pidtidNameMatcher = sPidtidNamePattern.matcher(crashStr);
-            if (pidtidNameMatcher.find()) {
-                try {
-                    pid = Integer.parseInt(pidtidNameMatcher.group(1));
-                } catch (NumberFormatException e) {}
-                try {
-                    tid = Integer.parseInt(pidtidNameMatcher.group(2));
-                } catch (NumberFormatException e) {}
-                name = pidtidNameMatcher.group(3).trim();
-                process = pidtidNameMatcher.group(4).trim();
-            }
-
-            Matcher faultLineMatcher = sFaultLinePattern.matcher(crashStr);
-            if (faultLineMatcher.find()) {
-                signal = faultLineMatcher.group(1);
-                String faultAddrMatch = faultLineMatcher.group(2);
-                if (faultAddrMatch != null) {
-                    try {
-                        faultAddress = new BigInteger(faultAddrMatch, 16);
-                    } catch (NumberFormatException e) {}
-                }
-            }
-
-            Matcher abortMessageMatcher = sAbortMessagePattern.matcher(crashStr);
-            if (abortMessageMatcher.find()) {
-                abortMessage = abortMessageMatcher.group(1);
-            }
+        TombstoneParser.parse(input, crash -> putCrash(crash, crashes));
+        return crashes;
+    }
 
-            try {
-                JSONObject crash = new JSONObject();
-                crash.put(PID, pid);
-                crash.put(TID, tid);
-                crash.put(NAME, name);
-                crash.put(PROCESS, process);
-                crash.put(FAULT_ADDRESS,
-                        faultAddress == null ? null : faultAddress.toString(16));
-                crash.put(SIGNAL, signal);
-                crash.put(ABORT_MESSAGE, abortMessage);
-                crashes.put(crash);
-            } catch (JSONException e) {}
-        }
+    /**
+     * Adds all crashes found in the lines of the reader as JSONObjects to the given JSONArray,
+     * without reading the whole input in memory.
+     */
+    public static JSONArray addAllCrashes(BufferedReader reader, JSONArray crashes)
+            throws IOException {
+        TombstoneParser.parse(reader, crash -> putCrash(crash, crashes));
         return crashes;
     }
 
+    private static void putCrash(TombstoneParser.Crash crash, JSONArray crashes) {
+        try {
+            crashes.put(crash.toJson());
+        } catch (JSONException e) {}
+    }
+
     public static class Config {
         private boolean checkMinAddress;
         private BigInteger minCrashAddress;
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Parses the crashes of a logcat or tombstone text line by line, without holding the whole text.
+ *
+ * <p>A crash spans from a "DEBUG : ***" header to the next "DEBUG : backtrace:" line, as in {@link
+ * CrashUtils#addAllCrashes}, and only the text of the crash being read is held. The header and the
+ * end of a crash may be split over lines, so they are searched in the text held from the last
+ * "DEBUG" which could start them. The fields are read once the end is found, with the patterns of
+ * {@link CrashUtils}. The backtrace frames and the memory map which follow are added to the crash
+ * until the next crash starts.
+ */
+public class TombstoneParser {
+    private static final Pattern sCrashHeaderPattern = Pattern.compile("DEBUG\\s+?:( [*]{3})+?");
+    // Matches a "DEBUG" at the end of the text, which may start a header on the next lines.
+    private static final Pattern sOpenHeaderPattern = Pattern.compile("DEBUG\\s+");
+    // Matches a backtrace frame, e.g. "#00 pc 0004e9c4  /system/lib/libc.so (abort+164)"
+    private static final Pattern sFramePattern =
+            Pattern.compile("#(\\d+)\\s+pc\\s+(\\p{XDigit}+)\\s+(\\S+)(?:\\s+\\((.*?)\\))?");
+    // Matches a memory map entry, e.g. "00000000'12c00000-00000000'2ac00000 rw- ..."
+    private static final Pattern sMapPattern =
+            Pattern.compile(
+                    "(?:--->)?\\p{XDigit}{8}[\\p{XDigit}']*-\\p{XDigit}{8}[\\p{XDigit}']*\\s");
+
+    private enum State {
+        // Looking for the header of a crash.
+        SEARCHING,
+        // Between the header and the backtrace line, reading the fields of the crash.
+        FIELDS,
+        // Reading the frames which follow the backtrace line.
+        FRAMES,
+        // After the frames, looking for the memory map.
+        TAIL,
+        // Reading the entries of the memory map.
+        MAPS,
+    }
+
+    private final Consumer<Crash> mConsumer;
+    private State mState = State.SEARCHING;
+    private Crash mCrash;
+    // The text of the crash being read, or the "DEBUG" which may start the next header.
+    private final StringBuilder mText = new StringBuilder();
+    // Where the end of the crash may start in the text.
+    private int mEndSearchStart;
+    private final Matcher mHeaderMatcher = sCrashHeaderPattern.matcher("");
+    private final Matcher mEndMatcher = CrashUtils.sEndofCrashPattern.matcher("");
+    private final Matcher mFrameMatcher = sFramePattern.matcher("");
+    private final Matcher mMapMatcher = sMapPattern.matcher("");
+    private final Matcher mOpenHeaderMatcher = sOpenHeaderPattern.matcher("");
+
+    /** A frame of the backtrace of a crash. */
+    public static class Frame {
+        private final int mIndex;
+        private final String mPc;
+        private final String mModule;
+        private final String mFunction;
+
+        Frame(int index, String pc, String module, String function) {
+            mIndex = index;
+            mPc = pc;
+            mModule = module;
+            mFunction = function;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** Returns the program counter relative to the module, in hexadecimal. */
+        public String getPc() {
+            return mPc;
+        }
+
+        public String getModule() {
+            return mModule;
+        }
+
+        /** Returns the function and offset, or null if it is unknown. */
+        public String getFunction() {
+            return mFunction;
+        }
+    }
+
+    /** A crash, with the fields reported by {@link CrashUtils} and its backtrace and maps. */
+    public static class Crash {
+        private int mPid = 0;
+        private int mTid = 0;
+        private String mName = null;
+        private String mProcess = null;
+        private BigInteger mFaultAddress = null;
+        private String mSignal = null;
+        private String mAbortMessage = null;
+        private final List<Frame> mBacktrace = new ArrayList<>();
+        private final List<String> mMaps = new ArrayList<>();
+
+        public int getPid() {
+            return mPid;
+        }
+
+        public int getTid() {
+            return mTid;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getProcess() {
+            return mProcess;
+        }
+
+        public BigInteger getFaultAddress() {
+            return mFaultAddress;
+        }
+
+        public String getSignal() {
+            return mSignal;
+        }
+
+        public String getAbortMessage() {
+            return mAbortMessage;
+        }
+
+        public List<Frame> getBacktrace() {
+            return Collections.unmodifiableList(mBacktrace);
+        }
+
+        /** Returns the entries of the memory map, as printed. */
+        public List<String> getMaps() {
+            return Collections.unmodifiableList(mMaps);
+        }
+
+        /** Returns the crash as reported by {@link CrashUtils#addAllCrashes}. */
+        public JSONObject toJson() throws JSONException {
+            JSONObject crash = new JSONObject();
+            crash.put(CrashUtils.PID, mPid);
+            crash.put(CrashUtils.TID, mTid);
+            crash.put(CrashUtils.NAME, mName);
+            crash.put(CrashUtils.PROCESS, mProcess);
+            crash.put(
+                    CrashUtils.FAULT_ADDRESS,
+                    mFaultAddress == null ? null : mFaultAddress.toString(16));
+            crash.put(CrashUtils.SIGNAL, mSignal);
+            crash.put(CrashUtils.ABORT_MESSAGE, mAbortMessage);
+            return crash;
+        }
+    }
+
+    /** Creates a parser passing each crash to the consumer once it is complete. */
+    public TombstoneParser(Consumer<Crash> consumer) {
+        mConsumer = consumer;
+    }
+
+    /** Parse all the lines of the reader and finish the last crash. */
+    public static void parse(BufferedReader reader, Consumer<Crash> consumer) throws IOException {
+        TombstoneParser parser = new TombstoneParser(consumer);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            parser.parseLine(line);
+        }
+        parser.finish();
+    }
+
+    /** Parse all the lines of the text and finish the last crash. */
+    public static void parse(String input, Consumer<Crash> consumer) {
+        TombstoneParser parser = new TombstoneParser(consumer);
+        int length = input.length();
+        int start = 0;
+        // The next line feed and carriage return, searched again only once passed.
+        int lineFeed = input.indexOf('\n');
+        int carriageReturn = input.indexOf('\r');
+        while (start < length) {
+            if (lineFeed >= 0 && lineFeed < start) {
+                lineFeed = input.indexOf('\n', start);
+            }
+            if (carriageReturn >= 0 && carriageReturn < start) {
+                carriageReturn = input.indexOf('\r', start);
+            }
+            int end =
+                    Math.min(
+                            lineFeed < 0 ? length : lineFeed,
+                            carriageReturn < 0 ? length : carriageReturn);
+            parser.parseLine(input.substring(start, end));
+            if (end + 1 < length && input.charAt(end) == '\r' && input.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+        parser.finish();
+    }
+
+    /** Parse the next line, without its line break. */
+    public void parseLine(String line) {
+        // Whether the line is outside of a crash unless it starts one.
+        boolean trailing = mState != State.FIELDS;
+        mText.append(line).append('\n');
+        int position = 0;
+        while (true) {
+            if (mState != State.FIELDS) {
+                if (!findHeader(position)) {
+                    keepOpenHeader(position);
+                    if (trailing) {
+                        parseTrailingLine(line);
+                    }
+                    return;
+                }
+                emitCrash();
+                mCrash = new Crash();
+                mState = State.FIELDS;
+                // The text of the crash starts at the header.
+                mText.delete(0, mHeaderMatcher.start());
+                mEndSearchStart = mHeaderMatcher.end() - mHeaderMatcher.start();
+            }
+            if (!findEnd()) {
+                // Only the last "DEBUG" may start an end continued on the next lines.
+                int debug = lastDebug(mEndSearchStart);
+                mEndSearchStart = debug >= 0 ? debug : mText.length();
+                return;
+            }
+            position = mEndMatcher.end();
+            parseFields(mText.substring(0, position));
+            mState = State.FRAMES;
+        }
+    }
+
+    /** Returns the length of the text held by the parser. */
+    @VisibleForTesting
+    int getHeldLength() {
+        return mText.length();
+    }
+
+    /** Pass the crash being parsed, if any, to the consumer once its backtrace was found. */
+    public void finish() {
+        emitCrash();
+        mText.setLength(0);
+    }
+
+    private void emitCrash() {
+        if (mCrash != null && mState != State.FIELDS) {
+            mConsumer.accept(mCrash);
+        }
+        mCrash = null;
+        mState = State.SEARCHING;
+    }
+
+    private boolean findHeader(int position) {
+        return mText.indexOf("DEBUG", position) >= 0
+                && mText.indexOf(" ***", position) >= 0
+                && find(mHeaderMatcher, mText, position, mText.length());
+    }
+
+    private boolean findEnd() {
+        return mText.indexOf("backtrace:", mEndSearchStart) >= 0
+                && find(mEndMatcher, mText, mEndSearchStart, mText.length());
+    }
+
+    /**
+     * Keep only the "DEBUG" followed by whitespace at the end of the text, which may start a header
+     * on the next lines. Its whitespace is not kept as it cannot hold any field.
+     */
+    private void keepOpenHeader(int position) {
+        int debug = lastDebug(position);
+        boolean open =
+                debug >= 0
+                        && mOpenHeaderMatcher.reset(mText).region(debug, mText.length()).matches();
+        mText.setLength(0);
+        if (open) {
+            mText.append("DEBUG\n");
+        }
+    }
+
+    /** Returns the position of the last "DEBUG" of the text from the start, or -1. */
+    private int lastDebug(int start) {
+        int last = -1;
+        for (int i = mText.indexOf("DEBUG", start); i >= 0; i = mText.indexOf("DEBUG", i + 1)) {
+            last = i;
+        }
+        return last;
+    }
+
+    /** Read the fields of the crash text, keeping the first of each as the baseline regexes did. */
+    private void parseFields(String crashText) {
+        Crash crash = mCrash;
+        Matcher pidtidNameMatcher = CrashUtils.sPidtidNamePattern.matcher(crashText);
+        if (pidtidNameMatcher.find()) {
+            try {
+                crash.mPid = Integer.parseInt(pidtidNameMatcher.group(1));
+            } catch (NumberFormatException e) {}
+            try {
+                crash.mTid = Integer.parseInt(pidtidNameMatcher.group(2));
+            } catch (NumberFormatException e) {}
+            String name = pidtidNameMatcher.group(3);
+            crash.mName = name == null ? null : name.trim();
+            crash.mProcess = pidtidNameMatcher.group(4).trim();
+        }
+        Matcher faultLineMatcher = CrashUtils.sFaultLinePattern.matcher(crashText);
+        if (faultLineMatcher.find()) {
+            crash.mSignal = faultLineMatcher.group(1);
+            String faultAddrMatch = faultLineMatcher.group(2);
+            if (faultAddrMatch != null) {
+                try {
+                    crash.mFaultAddress = new BigInteger(faultAddrMatch, 16);
+                } catch (NumberFormatException e) {}
+            }
+        }
+        Matcher abortMessageMatcher = CrashUtils.sAbortMessagePattern.matcher(crashText);
+        if (abortMessageMatcher.find()) {
+            crash.mAbortMessage = abortMessageMatcher.group(1);
+        }
+    }
+
+    /** Read the frames and memory map which follow the backtrace line. */
+    private void parseTrailingLine(String line) {
+        switch (mState) {
+            case FRAMES:
+                if (find(mFrameMatcher, line, 0, line.length())) {
+                    mCrash.mBacktrace.add(
+                            new Frame(
+                                    Integer.parseInt(mFrameMatcher.group(1)),
+                                    mFrameMatcher.group(2),
+                                    mFrameMatcher.group(3),
+                                    mFrameMatcher.group(4)));
+                    return;
+                }
+                mState = State.TAIL;
+                // Fall through to look for the memory map.
+            case TAIL:
+                if (line.contains("memory map (")) {
+                    mState = State.MAPS;
+                }
+                return;
+            case MAPS:
+                int entry = findMapEntryStart(line);
+                if (entry >= 0 && find(mMapMatcher, line, entry, line.length())) {
+                    mCrash.mMaps.add(line.substring(mMapMatcher.start()));
+                } else if (line.contains("--->")) {
+                    // The position of the fault address between the entries.
+                    mCrash.mMaps.add(line.substring(line.indexOf("--->")));
+                } else {
+                    mState = State.TAIL;
+                }
+                return;
+            default:
+                return;
+        }
+    }
+
+    /**
+     * Returns where a memory map entry may start in the line, or -1 if there is none. An entry
+     * needs a '-' after at least 8 hexadecimal digits or quotes, so the lines without one, and the
+     * text before it, are not searched.
+     */
+    private static int findMapEntryStart(String line) {
+        for (int dash = line.indexOf('-'); dash >= 0; dash = line.indexOf('-', dash + 1)) {
+            int start = dash;
+            while (start > 0 && isMapAddressChar(line.charAt(start - 1))) {
+                start--;
+            }
+            if (dash - start >= 8) {
+                // Leave room for the "--->" marking the entry of the fault address.
+                return Math.max(0, start - 4);
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isMapAddressChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')
+                || c == '\'';
+    }
+
+    private static boolean find(Matcher matcher, CharSequence line, int start, int end) {
+        matcher.reset(line);
+        matcher.region(start, end);
+        return matcher.find();
+    }
+}
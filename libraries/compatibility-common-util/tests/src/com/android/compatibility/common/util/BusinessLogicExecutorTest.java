@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for the resolutions cached by {@link BusinessLogicExecutor}.
+ *
+ * <p>The errors are expected to be the ones of the lookups and reflection calls done for every
+ * method before the caches.
+ */
+@RunWith(JUnit4.class)
+public class BusinessLogicExecutorTest {
+    private static final String RULES = Rules.class.getName();
+    private static final String MISSING_CLASS = RULES + "Missing";
+
+    private TestExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        BusinessLogicExecutor.clearCaches();
+        mExecutor = new TestExecutor();
+        Rules.sReflective = null;
+    }
+
+    /** Test the methods of a class are looked up once, and each lookup gets its own list. */
+    @Test
+    public void testMethodsCached() {
+        List<Method> methods = mExecutor.getMethodsWithName(Rules.class, "isEqual");
+        assertEquals(1, methods.size());
+        methods.clear();
+
+        List<Method> cachedMethods = mExecutor.getMethodsWithName(Rules.class, "isEqual");
+        assertEquals(1, cachedMethods.size());
+        // Class.getMethods() returns new Method objects, so only a cached one is the same.
+        assertSame(
+                cachedMethods.get(0),
+                mExecutor.getMethodsWithName(Rules.class, "isEqual").get(0));
+        assertTrue(mExecutor.getMethodsWithName(Rules.class, "missing").isEmpty());
+    }
+
+    /** Test the methods are invoked through their method handle, the first time and afterwards. */
+    @Test
+    public void testInvokeExact() {
+        assertTrue(mExecutor.executeCondition(RULES + ".isEqual", "a", "a"));
+        assertFalse(Rules.sReflective);
+        assertFalse(mExecutor.executeCondition(RULES + ".isEqual", "a", "b"));
+        assertFalse(Rules.sReflective);
+
+        mExecutor.executeAction(RULES + ".join", "a", "b", "c");
+        assertFalse(Rules.sReflective);
+        assertEquals("a,b,c", Rules.sJoined);
+    }
+
+    /** Test the arguments needing a conversion are passed by reflection, on every call. */
+    @Test
+    public void testReflectionFallback() throws Exception {
+        Method method = Rules.class.getMethod("isPositive", long.class);
+        for (int i = 0; i < 2; i++) {
+            BusinessLogicExecutor.ResolvedMethod rm =
+                    new BusinessLogicExecutor.ResolvedMethod(method);
+            // The Integer is widened to a long by reflection only.
+            rm.addArg(1);
+            assertEquals(true, rm.invoke(new Rules()));
+            assertTrue(Rules.sReflective);
+        }
+
+        BusinessLogicExecutor.ResolvedMethod rm = new BusinessLogicExecutor.ResolvedMethod(method);
+        rm.addArg(1L);
+        assertEquals(true, rm.invoke(new Rules()));
+        assertFalse(Rules.sReflective);
+    }
+
+    /** Test the exceptions of the rules are wrapped as by reflection. */
+    @Test
+    public void testInvokeExactThrows() throws Exception {
+        BusinessLogicExecutor.ResolvedMethod rm =
+                new BusinessLogicExecutor.ResolvedMethod(
+                        Rules.class.getMethod("throwError", String.class));
+        rm.addArg("boom");
+        try {
+            rm.invoke(new Rules());
+            fail("The rule did not throw");
+        } catch (InvocationTargetException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+            assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    /** Test an unknown class fails the same way each time, as it is not cached. */
+    @Test
+    public void testUnknownClass() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                mExecutor.executeCondition(MISSING_CLASS + ".isEqual", "a", "a");
+                fail("The condition did not fail");
+            } catch (RuntimeException e) {
+                assertEquals(
+                        "BusinessLogic: Failed to invoke condition method "
+                                + MISSING_CLASS
+                                + ".isEqual with args: [a, a]",
+                        e.getMessage());
+                assertEquals(ClassNotFoundException.class, e.getCause().getClass());
+                assertEquals(MISSING_CLASS, e.getCause().getMessage());
+            }
+        }
+    }
+
+    /** Test a class without a no-argument constructor fails as before. */
+    @Test
+    public void testMissingConstructor() {
+        String expected = null;
+        try {
+            NoConstructorRules.class.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            expected = e.getMessage();
+        }
+        assertNotNull(expected);
+        for (int i = 0; i < 2; i++) {
+            try {
+                mExecutor.executeAction(NoConstructorRules.class.getName() + ".run");
+                fail("The action did not fail");
+            } catch (RuntimeException e) {
+                assertEquals(NoSuchMethodException.class, e.getCause().getClass());
+                assertEquals(expected, e.getCause().getMessage());
+            }
+        }
+    }
+
+    /** Test an unknown method of a cached class is reported by the executor each time. */
+    @Test
+    public void testUnknownMethod() {
+        assertTrue(mExecutor.executeCondition(RULES + ".isEqual", "a", "a"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                mExecutor.executeCondition(RULES + ".missing", "a");
+                fail("The condition did not fail");
+            } catch (RuntimeException e) {
+                assertEquals("No method missing with args: [a]", e.getMessage());
+            }
+        }
+    }
+
+    /** Test a wrong number of arguments fails with the message of reflection, each time. */
+    @Test
+    public void testWrongArgumentCount() throws Exception {
+        Method method = Rules.class.getMethod("isEqual", String.class, String.class);
+        String expected = null;
+        try {
+            method.invoke(new Rules(), "a");
+        } catch (IllegalArgumentException e) {
+            expected = e.getMessage();
+        }
+        assertNotNull(expected);
+        for (int i = 0; i < 2; i++) {
+            BusinessLogicExecutor.ResolvedMethod rm =
+                    new BusinessLogicExecutor.ResolvedMethod(method);
+            rm.addArg("a");
+            try {
+                rm.invoke(new Rules());
+                fail("The method was invoked with a missing argument");
+            } catch (IllegalArgumentException e) {
+                assertEquals(expected, e.getMessage());
+            }
+            try {
+                mExecutor.executeCondition(RULES + ".isEqual", "a");
+                fail("The condition did not fail");
+            } catch (RuntimeException e) {
+                assertEquals("No method isEqual with args: [a]", e.getMessage());
+            }
+        }
+    }
+
+    /** The business logic rules, recording whether they were called by reflection. */
+    public static class Rules {
+        static Boolean sReflective;
+        static String sJoined;
+
+        public boolean isEqual(String a, String b) {
+            sReflective = isCalledByReflection();
+            return a.equals(b);
+        }
+
+        public static void join(String... values) {
+            sReflective = isCalledByReflection();
+            sJoined = String.join(",", values);
+        }
+
+        public boolean isPositive(long value) {
+            sReflective = isCalledByReflection();
+            return value > 0;
+        }
+
+        public void throwError(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        /** Returns whether Method.invoke was called since the executor, not by the test runner. */
+        private static boolean isCalledByReflection() {
+            for (StackTraceElement element : new Throwable().getStackTrace()) {
+                if (element.getClassName().equals(BusinessLogicExecutor.class.getName())
+                        || element.getClassName()
+                                .equals(BusinessLogicExecutor.ResolvedMethod.class.getName())) {
+                    return false;
+                }
+                if (element.getClassName().equals(Method.class.getName())
+                        && element.getMethodName().equals("invoke")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Rules which cannot be instantiated by the executor. */
+    public static class NoConstructorRules {
+        public NoConstructorRules(String unused) {}
+
+        public static void run() {}
+    }
+
+    /** An executor passing the string arguments to the String and String[] parameters. */
+    private static class TestExecutor extends BusinessLogicExecutor {
+        @Override
+        protected String formatExecutionString(String method, String... args) {
+            return String.format("%s(%s)", method, String.join(", ", formatArgs(args)));
+        }
+
+        @Override
+        public void logInfo(String format, Object... args) {}
+
+        @Override
+        public void logDebug(String format, Object... args) {}
+
+        @Override
+        protected Object getTestObject() {
+            return null;
+        }
+
+        @Override
+        protected ResolvedMethod getResolvedMethod(
+                Class cls, String methodName, String... args) {
+            for (Method m : getMethodsWithName(cls, methodName)) {
+                ResolvedMethod rm = new ResolvedMethod(m);
+                Class<?>[] paramTypes = m.getParameterTypes();
+                if (paramTypes.length == 1 && paramTypes[0].equals(String[].class)) {
+                    rm.addArg(args);
+                    return rm;
+                }
+                if (paramTypes.length == args.length
+                        && Arrays.stream(paramTypes).allMatch(String.class::equals)) {
+                    for (String arg : args) {
+                        rm.addArg(arg);
+                    }
+                    return rm;
+                }
+            }
+            throw new RuntimeException(
+                    String.format(
+                            "No method %s with args: %s", methodName, Arrays.toString(args)));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for {@link TombstoneParser} and the crashes reported by {@link
+ * CrashUtils#addAllCrashes}.
+ *
+ * <p>The expected crashes of each fixture are the output of the regex based addAllCrashes which
+ * the parser replaced.
+ */
+@RunWith(JUnit4.class)
+public class TombstoneParserTest {
+    private static final String FIXTURES = "/tombstones/";
+
+    /** Test the crashes of a logcat with several complete crashes. */
+    @Test
+    public void testMultipleCrashes() throws Exception {
+        assertCrashes("multiple_crashes");
+    }
+
+    /** Test a crash without a backtrace line is merged into the next crash, or dropped. */
+    @Test
+    public void testTruncatedCrashes() throws Exception {
+        assertCrashes("truncated_crash");
+    }
+
+    /** Test several crashes on the same line. */
+    @Test
+    public void testSameLineCrashes() throws Exception {
+        assertCrashes("same_line_crashes");
+    }
+
+    /** Test the headers, the pid lines and the backtrace lines split over several lines. */
+    @Test
+    public void testSplitLines() throws Exception {
+        assertCrashes("split_lines");
+    }
+
+    /** Test the backtrace frames of the crashes. */
+    @Test
+    public void testBacktrace() throws Exception {
+        List<TombstoneParser.Crash> crashes = new ArrayList<>();
+        TombstoneParser.parse(readFixture("multiple_crashes.txt"), crashes::add);
+
+        assertEquals(3, crashes.size());
+        List<TombstoneParser.Frame> frames = crashes.get(0).getBacktrace();
+        assertEquals(3, frames.size());
+        assertEquals(1, frames.get(1).getIndex());
+        assertEquals("00000dc8", frames.get(1).getPc());
+        assertEquals("/system/bin/mediaserver", frames.get(1).getModule());
+        assertEquals("main+152", frames.get(1).getFunction());
+        frames = crashes.get(2).getBacktrace();
+        assertEquals(2, frames.size());
+        assertNull(frames.get(1).getFunction());
+    }
+
+    /** Test the memory map entries, and the fault address between them, are kept by crash. */
+    @Test
+    public void testMemoryMap() throws Exception {
+        List<TombstoneParser.Crash> crashes = new ArrayList<>();
+        TombstoneParser.parse(readFixture("memory_map.txt"), crashes::add);
+
+        assertEquals(2, crashes.size());
+        assertEquals(
+                Arrays.asList(
+                        "0000007f'1ff00000-0000007f'1fffffff rw-         0    100000  "
+                                + "[anon:libc_malloc]",
+                        "--->Fault address falls at 0000007f'20001000 between mapped regions",
+                        "0000007f'20002000-0000007f'20003fff r--         0      2000  "
+                                + "/system/lib64/libmpeg2extractor.so",
+                        "--->0000007f'4a3c1000-0000007f'4a40bfff r-x     4b000     4b000  "
+                                + "/system/lib64/libc.so"),
+                crashes.get(0).getMaps());
+        assertEquals(2, crashes.get(0).getBacktrace().size());
+        // An entry printed outside of a memory map is not part of it.
+        assertEquals(Collections.emptyList(), crashes.get(1).getMaps());
+        assertEquals("'Out of memory'", crashes.get(1).getAbortMessage());
+    }
+
+    /**
+     * Test the parser only holds the text of the crash being read: each crash is passed on once
+     * the next one starts, and the lines of the backtraces and between the crashes are dropped.
+     */
+    @Test
+    public void testStreaming() {
+        final int crashCount = 20;
+        final int registerLines = 2000;
+        final int otherLines = 2000;
+        String other = "03-23 11:22:02.730  1835  1862 I ActivityManager: Start proc";
+        List<TombstoneParser.Crash> crashes = new ArrayList<>();
+        List<Integer> linesReadByCrash = new ArrayList<>();
+        int[] linesRead = {0};
+        TombstoneParser parser =
+                new TombstoneParser(
+                        crash -> {
+                            crashes.add(crash);
+                            linesReadByCrash.add(linesRead[0]);
+                        });
+        int maxHeldOutsideCrash = 0;
+        for (int i = 0; i < crashCount; i++) {
+            List<String> lines = new ArrayList<>();
+            lines.add(debugLine("*** *** *** *** *** *** *** *** *** *** *** *** ***"));
+            lines.add(debugLine("pid: " + (1000 + i) + ", tid: 1, name: crasher  >>> crasher <<<"));
+            for (int j = 0; j < registerLines; j++) {
+                lines.add(debugLine("    x0  0000000000000000  x1  0000007f20001000"));
+            }
+            lines.add(debugLine("signal 6 (SIGABRT), code -1 (SI_QUEUE), fault addr --------"));
+            lines.add(debugLine("Abort message: 'crash " + i + "'"));
+            lines.add(debugLine("backtrace:"));
+            for (String line : lines) {
+                parser.parseLine(line);
+                linesRead[0]++;
+            }
+            for (int j = 0; j < 2 * otherLines; j++) {
+                parser.parseLine(
+                        j < otherLines
+                                ? debugLine("      #" + j + " pc 0008a3f0  /system/lib/libc.so")
+                                : other);
+                linesRead[0]++;
+                maxHeldOutsideCrash = Math.max(maxHeldOutsideCrash, parser.getHeldLength());
+            }
+        }
+        parser.finish();
+
+        assertEquals(crashCount, crashes.size());
+        for (int i = 0; i < crashCount; i++) {
+            TombstoneParser.Crash crash = crashes.get(i);
+            assertEquals(1000 + i, crash.getPid());
+            assertEquals("SIGABRT", crash.getSignal());
+            assertEquals("'crash " + i + "'", crash.getAbortMessage());
+            assertEquals(otherLines, crash.getBacktrace().size());
+        }
+        // Each crash is passed on at the header of the next one, before the end of the input.
+        for (int i = 0; i + 1 < crashCount; i++) {
+            int headerOfNextCrash = (i + 1) * (registerLines + 5 + 2 * otherLines);
+            assertEquals(headerOfNextCrash, (int) linesReadByCrash.get(i));
+        }
+        // Nothing is held once a crash ended, until the next one starts.
+        assertEquals(0, maxHeldOutsideCrash);
+    }
+
+    private static String debugLine(String text) {
+        return "03-23 11:22:02.672  4120  4120 F DEBUG   : " + text;
+    }
+
+    /**
+     * Assert the crashes found in the text fixture, read as a string and as lines, are the ones of
+     * the JSON fixture.
+     */
+    private void assertCrashes(String fixture) throws Exception {
+        JSONArray expected = new JSONArray(readFixture(fixture + ".json"));
+        String input = readFixture(fixture + ".txt");
+        assertCrashesEqual(expected, CrashUtils.addAllCrashes(input, new JSONArray()));
+        try (BufferedReader reader = new BufferedReader(new StringReader(input))) {
+            assertCrashesEqual(expected, CrashUtils.addAllCrashes(reader, new JSONArray()));
+        }
+    }
+
+    private static void assertCrashesEqual(JSONArray expected, JSONArray actual)
+            throws JSONException {
+        assertEquals(expected.length(), actual.length());
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(toMap(expected.getJSONObject(i)), toMap(actual.getJSONObject(i)));
+        }
+    }
+
+    /** Returns the fields of the crash as strings, as the JSON numbers may be of any type. */
+    private static Map<String, String> toMap(JSONObject crash) {
+        Map<String, String> fields = new HashMap<>();
+        for (Iterator<?> keys = crash.keys(); keys.hasNext(); ) {
+            String key = (String) keys.next();
+            fields.put(key, String.valueOf(crash.opt(key)));
+        }
+        return fields;
+    }
+
+    private String readFixture(String name) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(FIXTURES + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.MetricUtility;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmarks of {@link DataRecord} with the number of metrics of a high-cardinality collector,
+ * e.g. showmap or statsd metrics for every process of the device.
+ *
+ * To run:
+ * atest CollectorDeviceLibBenchmark:android.device.collectors.DataRecordBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataRecordBenchmark {
+
+    private static final int METRIC_COUNT = 5000;
+    private static final int SAMPLE_COUNT = 20;
+
+    private static final String[] KEYS = new String[METRIC_COUNT];
+
+    static {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            KEYS[i] = "showmap_pss_bytes_process_" + i;
+        }
+    }
+
+    @Rule public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    /** Metrics converted to strings by the collector, as before the typed metrics. */
+    @Test
+    public void timeStringMetrics() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            DataRecord record = new DataRecord();
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                record.addStringMetric(KEYS[i], Long.toString(i * 4096L));
+            }
+            record.createBundleFromMetrics();
+        }
+    }
+
+    /** Primitive metrics reported in their string form. */
+    @Test
+    public void timeLongMetrics() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            DataRecord record = new DataRecord();
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                record.addLongMetric(KEYS[i], i * 4096L);
+            }
+            record.createBundleFromMetrics();
+        }
+    }
+
+    /** Primitive metrics reported with their type. */
+    @Test
+    public void timeTypedLongMetrics() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            DataRecord record = new DataRecord();
+            record.setTypedBundle(true);
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                record.addLongMetric(KEYS[i], i * 4096L);
+            }
+            record.createBundleFromMetrics();
+        }
+    }
+
+    /** Repeated samples joined in a StringBuilder with {@link MetricUtility#addMetric}. */
+    @Test
+    public void timeRepeatedStringMetrics() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Map<String, StringBuilder> metrics = new HashMap<>();
+            for (int sample = 0; sample < SAMPLE_COUNT; sample++) {
+                for (int i = 0; i < METRIC_COUNT; i++) {
+                    MetricUtility.addMetric(KEYS[i], sample * 1.5, metrics);
+                }
+            }
+            DataRecord record = new DataRecord();
+            for (Map.Entry<String, StringBuilder> entry : metrics.entrySet()) {
+                record.addStringMetric(entry.getKey(), entry.getValue().toString());
+            }
+            record.createBundleFromMetrics();
+        }
+    }
+
+    /** Repeated samples kept as a double[] per key. */
+    @Test
+    public void timeRepeatedTypedMetrics() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            DataRecord record = new DataRecord();
+            record.setTypedBundle(true);
+            for (int sample = 0; sample < SAMPLE_COUNT; sample++) {
+                for (int i = 0; i < METRIC_COUNT; i++) {
+                    record.addRepeatedDoubleMetric(KEYS[i], sample * 1.5);
+                }
+            }
+            record.createBundleFromMetrics();
+        }
+    }
+}
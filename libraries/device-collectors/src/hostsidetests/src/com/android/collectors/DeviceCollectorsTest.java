@@ -17,6 +17,7 @@ package com.android.collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -36,8 +37,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Map.Entry;
 
 /**
@@ -198,6 +202,66 @@ public class DeviceCollectorsTest extends BaseHostJUnit4Test {
         }
     }
 
+    /**
+     * Test that the metrics written as a protobuf file by the base metric listener decode to the
+     * same metrics as the ones reported as strings.
+     */
+    @Test
+    public void testBaseListenerRuns_withMetricsProtoFile() throws Exception {
+        mTestRunner.addInstrumentationArg("listener", STUB_BASE_COLLECTOR);
+        mTestRunner.addInstrumentationArg("metrics-proto", "file");
+        mTestRunner.setClassName("android.device.collectors.BaseMetricListenerInstrumentedTest");
+        CollectingTestListener listener = new CollectingTestListener();
+        assertTrue(getDevice().runInstrumentationTests(mTestRunner, listener));
+        Collection<TestRunResult> results = listener.getRunResults();
+        assertEquals(1, results.size());
+        TestRunResult result = results.iterator().next();
+        assertFalse(result.isRunFailure());
+        assertFalse(result.hasFailedTests());
+
+        // Only the path of the proto is reported.
+        assertEquals(1, result.getRunMetrics().size());
+        Map<String, String> runMetrics =
+                pullMetricsProto(result.getRunMetrics(), STUB_BASE_COLLECTOR);
+        assertTrue(runMetrics.containsKey("run_start"));
+        assertEquals("run_end", runMetrics.get("run_end"));
+        for (Entry<TestDescription, TestResult> testResult : result.getTestResults().entrySet()) {
+            assertEquals(1, testResult.getValue().getMetrics().size());
+            Map<String, String> testMetrics =
+                    pullMetricsProto(testResult.getValue().getMetrics(), STUB_BASE_COLLECTOR);
+            assertEquals("test_start" + testResult.getKey().getTestName(),
+                    testMetrics.get("test_start"));
+            assertTrue(testMetrics.containsKey("test_end"));
+        }
+    }
+
+    /**
+     * Test that the metrics protos of several listeners are all reported, each under the key of
+     * its listener.
+     */
+    @Test
+    public void testListenersRun_withMetricsProtoFile() throws Exception {
+        mTestRunner.addInstrumentationArg(
+                "listener", STUB_BASE_COLLECTOR + "," + SCHEDULED_COLLECTOR);
+        mTestRunner.addInstrumentationArg("metrics-proto", "file");
+        mTestRunner.setClassName("android.device.collectors.BaseMetricListenerInstrumentedTest");
+        CollectingTestListener listener = new CollectingTestListener();
+        assertTrue(getDevice().runInstrumentationTests(mTestRunner, listener));
+        Collection<TestRunResult> results = listener.getRunResults();
+        assertEquals(1, results.size());
+        TestRunResult result = results.iterator().next();
+        assertFalse(result.isRunFailure());
+        assertFalse(result.hasFailedTests());
+
+        assertEquals(2, result.getRunMetrics().size());
+        Map<String, String> baseMetrics =
+                pullMetricsProto(result.getRunMetrics(), STUB_BASE_COLLECTOR);
+        assertEquals("run_end", baseMetrics.get("run_end"));
+        Map<String, String> scheduledMetrics =
+                pullMetricsProto(result.getRunMetrics(), SCHEDULED_COLLECTOR);
+        assertTrue(scheduledMetrics.containsKey("collect0"));
+    }
+
     /**
      * Test that our base scheduled listener can output metrics periodically.
      */
@@ -258,4 +322,19 @@ public class DeviceCollectorsTest extends BaseHostJUnit4Test {
             assertTrue(testResult.getValue().getMetrics().isEmpty());
         }
     }
+
+    /** Pull the metrics proto file reported by the listener in the metrics and decode it. */
+    private Map<String, String> pullMetricsProto(Map<String, String> metrics, String listener)
+            throws Exception {
+        String tag = listener.substring(listener.lastIndexOf('.') + 1);
+        String protoPath = metrics.get(tag + "_metrics_proto_file");
+        assertNotNull(protoPath);
+        File protoFile = getDevice().pullFile(protoPath);
+        try {
+            return MetricsProtoDecoder.decode(Files.readAllBytes(protoFile.toPath()))
+                    .getStringMetrics();
+        } finally {
+            protoFile.delete();
+        }
+    }
 }
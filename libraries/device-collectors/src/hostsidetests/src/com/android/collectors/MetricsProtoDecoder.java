@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.collectors;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the MetricsRecord protobuf reported by the device collectors with the "metrics-proto"
+ * option, see android.device.collectors.MetricsProtoWriter for the format.
+ *
+ * <p>{@link #getStringMetrics()} reconstructs the metrics as they are reported without the
+ * option, numeric values being formatted the same way as on the device.
+ */
+public class MetricsProtoDecoder {
+
+    private static final int RECORD_TOKENS = 1;
+    private static final int RECORD_METRICS = 2;
+
+    private static final int METRIC_KEY_TOKENS = 1;
+    private static final int METRIC_STRING_VALUE = 2;
+    private static final int METRIC_BINARY_VALUE = 3;
+    private static final int METRIC_LONG_VALUES = 4;
+    private static final int METRIC_DOUBLE_VALUES = 5;
+    private static final int METRIC_REPEATED = 6;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private static final String KEY_SEPARATOR = "_";
+    private static final String VALUE_SEPARATOR = ",";
+
+    private final Map<String, String> mStringMetrics = new LinkedHashMap<>();
+    private final Map<String, long[]> mLongMetrics = new LinkedHashMap<>();
+    private final Map<String, double[]> mDoubleMetrics = new LinkedHashMap<>();
+    private final Map<String, byte[]> mBinaryMetrics = new LinkedHashMap<>();
+
+    private MetricsProtoDecoder() {}
+
+    /** Decode an encoded MetricsRecord. */
+    public static MetricsProtoDecoder decode(byte[] proto) throws IOException {
+        MetricsProtoDecoder decoder = new MetricsProtoDecoder();
+        // Tokens are written first but are collected before decoding the keys to allow any order.
+        List<String> tokens = new ArrayList<>();
+        List<Input> metrics = new ArrayList<>();
+        Input input = new Input(proto, 0, proto.length);
+        while (input.hasMore()) {
+            long tag = input.readVarint();
+            int field = (int) (tag >>> 3);
+            if (field == RECORD_TOKENS) {
+                tokens.add(input.readString());
+            } else if (field == RECORD_METRICS) {
+                metrics.add(input.readMessage());
+            } else {
+                input.skip((int) (tag & 0x7));
+            }
+        }
+        for (Input metric : metrics) {
+            decoder.decodeMetric(metric, tokens);
+        }
+        return decoder;
+    }
+
+    /** Returns all the metrics but the binary ones in their string form. */
+    public Map<String, String> getStringMetrics() {
+        Map<String, String> metrics = new LinkedHashMap<>(mStringMetrics);
+        for (Map.Entry<String, long[]> entry : mLongMetrics.entrySet()) {
+            StringBuilder builder = new StringBuilder();
+            for (long value : entry.getValue()) {
+                if (builder.length() > 0) {
+                    builder.append(VALUE_SEPARATOR);
+                }
+                builder.append(value);
+            }
+            metrics.put(entry.getKey(), builder.toString());
+        }
+        for (Map.Entry<String, double[]> entry : mDoubleMetrics.entrySet()) {
+            StringBuilder builder = new StringBuilder();
+            for (double value : entry.getValue()) {
+                if (builder.length() > 0) {
+                    builder.append(VALUE_SEPARATOR);
+                }
+                builder.append(value);
+            }
+            metrics.put(entry.getKey(), builder.toString());
+        }
+        return metrics;
+    }
+
+    /** Returns the numeric metrics reported as long values. */
+    public Map<String, long[]> getLongMetrics() {
+        return mLongMetrics;
+    }
+
+    /** Returns the numeric metrics reported as double values. */
+    public Map<String, double[]> getDoubleMetrics() {
+        return mDoubleMetrics;
+    }
+
+    /** Returns the binary metrics. */
+    public Map<String, byte[]> getBinaryMetrics() {
+        return mBinaryMetrics;
+    }
+
+    private void decodeMetric(Input input, List<String> tokens) throws IOException {
+        StringBuilder key = new StringBuilder();
+        String stringValue = null;
+        byte[] binaryValue = null;
+        long[] longValues = null;
+        double[] doubleValues = null;
+        while (input.hasMore()) {
+            long tag = input.readVarint();
+            int field = (int) (tag >>> 3);
+            switch (field) {
+                case METRIC_KEY_TOKENS:
+                    Input keyTokens = input.readMessage();
+                    boolean first = true;
+                    while (keyTokens.hasMore()) {
+                        int token = (int) keyTokens.readVarint();
+                        if (token >= tokens.size()) {
+                            throw new IOException("Unknown key token " + token);
+                        }
+                        if (!first) {
+                            key.append(KEY_SEPARATOR);
+                        }
+                        key.append(tokens.get(token));
+                        first = false;
+                    }
+                    break;
+                case METRIC_STRING_VALUE:
+                    stringValue = input.readString();
+                    break;
+                case METRIC_BINARY_VALUE:
+                    binaryValue = input.readBytes();
+                    break;
+                case METRIC_LONG_VALUES:
+                    longValues = readLongs(input.readMessage());
+                    break;
+                case METRIC_DOUBLE_VALUES:
+                    doubleValues = readDoubles(input.readMessage());
+                    break;
+                case METRIC_REPEATED:
+                    // Repeated and single values are reconstructed the same way.
+                    input.readVarint();
+                    break;
+                default:
+                    input.skip((int) (tag & 0x7));
+                    break;
+            }
+        }
+        String name = key.toString();
+        if (stringValue != null) {
+            mStringMetrics.put(name, stringValue);
+        } else if (binaryValue != null) {
+            mBinaryMetrics.put(name, binaryValue);
+        } else if (longValues != null) {
+            mLongMetrics.put(name, longValues);
+        } else if (doubleValues != null) {
+            mDoubleMetrics.put(name, doubleValues);
+        }
+    }
+
+    private static long[] readLongs(Input packed) throws IOException {
+        long[] values = new long[16];
+        int size = 0;
+        while (packed.hasMore()) {
+            long zigzag = packed.readVarint();
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    private static double[] readDoubles(Input packed) throws IOException {
+        double[] values = new double[(packed.mEnd - packed.mPos) / 8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Double.longBitsToDouble(packed.readFixed64());
+        }
+        return values;
+    }
+
+    /** Reader of the protobuf primitives over a range of a byte array. */
+    private static final class Input {
+        private final byte[] mBuffer;
+        private final int mEnd;
+        private int mPos;
+
+        Input(byte[] buffer, int start, int end) {
+            mBuffer = buffer;
+            mPos = start;
+            mEnd = end;
+        }
+
+        boolean hasMore() {
+            return mPos < mEnd;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readFixed64() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (readByte() & 0xffL) << (8 * i);
+            }
+            return value;
+        }
+
+        Input readMessage() throws IOException {
+            int length = readLength();
+            Input message = new Input(mBuffer, mPos, mPos + length);
+            mPos += length;
+            return message;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(mBuffer, mPos, mPos + length);
+            mPos += length;
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String value = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        void skip(int wireType) throws IOException {
+            switch (wireType) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    readFixed64();
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    mPos += readLength();
+                    break;
+                case WIRE_FIXED32:
+                    mPos += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported wire type " + wireType);
+            }
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > mEnd - mPos) {
+                throw new IOException("Truncated metrics proto");
+            }
+            return (int) length;
+        }
+
+        private byte readByte() throws IOException {
+            if (mPos >= mEnd) {
+                throw new IOException("Truncated metrics proto");
+            }
+            return mBuffer[mPos++];
+        }
+    }
+}
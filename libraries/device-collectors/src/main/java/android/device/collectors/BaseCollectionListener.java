@@ -128,7 +128,16 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
     protected void collectMetrics(DataRecord data) {
         Map<String, T> metrics = mHelper.getMetrics();
         for (Map.Entry<String, T> entry : metrics.entrySet()) {
-            data.addStringMetric(entry.getKey(), entry.getValue().toString());
+            T value = entry.getValue();
+            // Keep integral and double values as primitives, the record formats them the same way
+            // as toString() unless the typed bundle is requested.
+            if (value instanceof Long || value instanceof Integer) {
+                data.addLongMetric(entry.getKey(), ((Number) value).longValue());
+            } else if (value instanceof Double) {
+                data.addDoubleMetric(entry.getKey(), (Double) value);
+            } else {
+                data.addStringMetric(entry.getKey(), value.toString());
+            }
         }
     }
 
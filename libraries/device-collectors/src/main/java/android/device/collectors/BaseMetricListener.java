@@ -27,11 +27,12 @@ import android.util.Log;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.internal.runner.listener.InstrumentationRunListener;
 
+import com.android.helpers.ShellCommandExecutor;
+
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -87,6 +88,17 @@ public class BaseMetricListener extends InstrumentationRunListener {
     // to 3. Metric will not be collected for 1st,2nd and 3rd iteration.
     public static final String SKIP_METRIC_UNTIL_ITERATION = "skip_metric_until_iteration";
 
+    // Report numeric metrics as long, double and arrays in the result bundle instead of strings.
+    public static final String TYPED_METRICS = "typed-metrics";
+
+    // Report all the metrics of a test or run as a single protobuf, either as a binary status
+    // value ("status") or written to a file whose path is reported ("file"), under a key starting
+    // with the simple name of the listener class.
+    public static final String METRICS_PROTO = "metrics-proto";
+    public static final String METRICS_PROTO_STATUS = "status";
+    public static final String METRICS_PROTO_FILE = "file";
+    private static final String METRICS_PROTO_DIR = "run_listeners/metrics_proto/";
+
     private static final String NAMESPACE_SEPARATOR = ":";
 
     private DataRecord mRunData;
@@ -100,6 +112,10 @@ public class BaseMetricListener extends InstrumentationRunListener {
     private Map<String, Integer> mTestIdInvocationCount = new HashMap<>();
     private int mCollectIterationInterval = 1;
     private int mSkipMetricUntilIteration = 0;
+    private boolean mTypedMetrics = false;
+    private String mMetricsProto = null;
+    private File mMetricsProtoDir = null;
+    private int mMetricsProtoCount = 0;
 
     public BaseMetricListener() {
         mIncludeFilters = new ArrayList<>();
@@ -210,7 +226,23 @@ public class BaseMetricListener extends InstrumentationRunListener {
      */
     @VisibleForTesting
     DataRecord createDataRecord() {
-        return new DataRecord();
+        DataRecord record = new DataRecord();
+        record.setTypedBundle(mTypedMetrics);
+        // The protos of the listeners are told apart by the listener class.
+        String protoTag = getClass().getSimpleName();
+        if (METRICS_PROTO_STATUS.equals(mMetricsProto)) {
+            record.setProtoTransport(true, protoTag, null);
+        } else if (METRICS_PROTO_FILE.equals(mMetricsProto)) {
+            if (mMetricsProtoDir == null) {
+                mMetricsProtoDir = createAndEmptyDirectory(METRICS_PROTO_DIR + protoTag);
+            }
+            // Without a directory the metrics are reported as strings.
+            if (mMetricsProtoDir != null) {
+                record.setProtoTransport(true, protoTag,
+                        new File(mMetricsProtoDir, "metrics_" + mMetricsProtoCount++ + ".pb"));
+            }
+        }
+        return record;
     }
 
     // ---------- Interfaces that can be implemented to take action on each test state.
@@ -275,15 +307,9 @@ public class BaseMetricListener extends InstrumentationRunListener {
     public byte[] executeCommandBlocking(String command) {
         try (
                 InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(
-                        getInstrumentation().getUiAutomation().executeShellCommand(command));
-                ByteArrayOutputStream out = new ByteArrayOutputStream()
+                        getInstrumentation().getUiAutomation().executeShellCommand(command))
         ) {
-            byte[] buf = new byte[BUFFER_SIZE];
-            int length;
-            while ((length = is.read(buf)) >= 0) {
-                out.write(buf, 0, length);
-            }
-            return out.toByteArray();
+            return ShellCommandExecutor.readFully(is);
         } catch (IOException e) {
             Log.e(getTag(), "Error executing: " + command, e);
             return null;
@@ -371,6 +397,8 @@ public class BaseMetricListener extends InstrumentationRunListener {
         if (logOnly != null) {
             mLogOnly = Boolean.parseBoolean(logOnly);
         }
+        mTypedMetrics = Boolean.parseBoolean(args.getString(TYPED_METRICS));
+        mMetricsProto = args.getString(METRICS_PROTO);
     }
 
     /**
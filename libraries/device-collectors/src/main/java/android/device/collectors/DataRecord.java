@@ -16,20 +16,107 @@
 package android.device.collectors;
 
 import android.os.Bundle;
+import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 
+import com.android.helpers.MetricUtility;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Object to hold all the data collected by metric collectors.
+ *
+ * Numeric metrics are kept as primitives until the {@link Bundle} is created. By default they are
+ * reported as strings, repeated values joined with {@link MetricUtility#METRIC_SEPARATOR}, like
+ * the metrics added with {@link #addStringMetric}. With {@link #setTypedBundle(boolean)} they are
+ * reported as long, double, long[] and double[] values instead.
+ *
+ * With {@link #setProtoTransport(boolean, String, File)} all the metrics are encoded in a single
+ * protobuf (see {@link MetricsProtoWriter}), reported either as one binary value or written to a
+ * file whose path is reported. The file metrics are still reported as one string key each, next
+ * to the protobuf, so the host can pull the files they point to.
  */
 public class DataRecord {
+    private static final String TAG = DataRecord.class.getSimpleName();
+
+    // Suffixes of the keys of the encoded metrics when the proto transport is enabled. The keys
+    // start with the tag of the listener, as the bundles of all the listeners are merged.
+    public static final String METRICS_PROTO_KEY = "metrics_proto";
+    public static final String METRICS_PROTO_FILE_KEY = "metrics_proto_file";
+
     // TODO: expend type supports to more complex type: Object,etc.
     private LinkedHashMap<String, String> mCurrentStringMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, File> mCurrentFileMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, byte[]> mCurrentBinaryMetrics = new LinkedHashMap<>();
+    private LinkedHashMap<String, LongValues> mCurrentLongMetrics = new LinkedHashMap<>();
+    private LinkedHashMap<String, DoubleValues> mCurrentDoubleMetrics = new LinkedHashMap<>();
+    private boolean mTypedBundle = false;
+    private boolean mProtoTransport = false;
+    private String mProtoTag = null;
+    private File mProtoFile = null;
+
+    /** Growable array of primitive long values. */
+    static final class LongValues {
+        long[] values = new long[1];
+        int size = 0;
+        boolean repeated = false;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        String format() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    builder.append(MetricUtility.METRIC_SEPARATOR);
+                }
+                builder.append(values[i]);
+            }
+            return builder.toString();
+        }
+    }
+
+    /** Growable array of primitive double values. */
+    static final class DoubleValues {
+        double[] values = new double[1];
+        int size = 0;
+        boolean repeated = false;
+
+        void add(double value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        double[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        String format() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    builder.append(MetricUtility.METRIC_SEPARATOR);
+                }
+                builder.append(values[i]);
+            }
+            return builder.toString();
+        }
+    }
 
     /**
      * Add a metric to be tracked by a key.
@@ -41,6 +128,92 @@ public class DataRecord {
         mCurrentStringMetrics.put(key, value);
     }
 
+    /**
+     * Add a numeric metric to be tracked by a key, replacing any previous value.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addLongMetric(String key, long value) {
+        LongValues values = new LongValues();
+        values.add(value);
+        mCurrentLongMetrics.put(key, values);
+    }
+
+    /**
+     * Add a numeric metric to be tracked by a key, replacing any previous value.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addDoubleMetric(String key, double value) {
+        DoubleValues values = new DoubleValues();
+        values.add(value);
+        mCurrentDoubleMetrics.put(key, values);
+    }
+
+    /**
+     * Append a value to a repeated numeric metric tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value to append to the values associated with the key
+     */
+    public void addRepeatedLongMetric(String key, long value) {
+        LongValues values = mCurrentLongMetrics.get(key);
+        if (values == null) {
+            values = new LongValues();
+            mCurrentLongMetrics.put(key, values);
+        }
+        values.repeated = true;
+        values.add(value);
+    }
+
+    /**
+     * Append a value to a repeated numeric metric tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value to append to the values associated with the key
+     */
+    public void addRepeatedDoubleMetric(String key, double value) {
+        DoubleValues values = mCurrentDoubleMetrics.get(key);
+        if (values == null) {
+            values = new DoubleValues();
+            mCurrentDoubleMetrics.put(key, values);
+        }
+        values.repeated = true;
+        values.add(value);
+    }
+
+    /**
+     * Whether numeric metrics are put in the {@link Bundle} with their type instead of as
+     * strings.
+     */
+    public void setTypedBundle(boolean typedBundle) {
+        mTypedBundle = typedBundle;
+    }
+
+    /**
+     * Report all the metrics as a single protobuf instead of a key per metric.
+     *
+     * @param protoTransport whether to encode the metrics as a protobuf.
+     * @param tag tag of the listener reporting the metrics, see {@link #getProtoKey}.
+     * @param protoFile file to write the protobuf to, or null to put it in the {@link Bundle}
+     *     itself.
+     */
+    public void setProtoTransport(boolean protoTransport, String tag, File protoFile) {
+        mProtoTransport = protoTransport;
+        mProtoTag = tag;
+        mProtoFile = protoFile;
+    }
+
+    /**
+     * Returns the key of the protobuf reported by the listener with the tag, under
+     * {@link #METRICS_PROTO_FILE_KEY} if it was written to a file, or {@link #METRICS_PROTO_KEY}.
+     */
+    public static String getProtoKey(String tag, boolean file) {
+        return MetricUtility.constructKey(tag, file ? METRICS_PROTO_FILE_KEY : METRICS_PROTO_KEY);
+    }
+
     /**
      * Add a metric file to be tracked under a key. It will be reported in the instrumentation
      * results as the key and absolute path to the file.
@@ -67,29 +240,70 @@ public class DataRecord {
      */
     public boolean hasMetrics() {
         return (mCurrentStringMetrics.size() + mCurrentFileMetrics.size()
-                + mCurrentBinaryMetrics.size()) > 0;
+                + mCurrentBinaryMetrics.size() + mCurrentLongMetrics.size()
+                + mCurrentDoubleMetrics.size()) > 0;
     }
 
     /**
      * Returns all the string and file data received so far to the map of metrics that will be
-     * reported.
+     * reported, including the string form of the numeric metrics if {@code includeNumeric}.
      */
-    private Map<String, String> getStringMetrics() {
+    private Map<String, String> getStringMetrics(boolean includeNumeric) {
         Map<String, String> res = new LinkedHashMap<>();
         for (Map.Entry<String, File> entry : mCurrentFileMetrics.entrySet()) {
             res.put(entry.getKey(), entry.getValue().getAbsolutePath());
         }
+        if (includeNumeric) {
+            for (Map.Entry<String, LongValues> entry : mCurrentLongMetrics.entrySet()) {
+                res.put(entry.getKey(), entry.getValue().format());
+            }
+            for (Map.Entry<String, DoubleValues> entry : mCurrentDoubleMetrics.entrySet()) {
+                res.put(entry.getKey(), entry.getValue().format());
+            }
+        }
         res.putAll(mCurrentStringMetrics);
         return res;
     }
 
+    /**
+     * Returns all the metrics, other than the binary ones, in their string form as they are
+     * reported when the typed bundle is not enabled.
+     */
+    public Map<String, String> getStringMetrics() {
+        return getStringMetrics(true);
+    }
+
     /**
      * Create a {@link Bundle} and populate it with the metrics, or return null if no metrics are
      * available.
      */
     final Bundle createBundleFromMetrics() {
-        Map<String, String> map = getStringMetrics();
+        if (mProtoTransport) {
+            Bundle b = createProtoBundle();
+            if (b != null) {
+                return b;
+            }
+        }
+        Map<String, String> map = getStringMetrics(!mTypedBundle);
         Bundle b = createBundle();
+        if (mTypedBundle) {
+            for (Map.Entry<String, LongValues> entry : mCurrentLongMetrics.entrySet()) {
+                LongValues values = entry.getValue();
+                if (values.repeated) {
+                    b.putLongArray(entry.getKey(), values.toArray());
+                } else {
+                    b.putLong(entry.getKey(), values.values[0]);
+                }
+            }
+            for (Map.Entry<String, DoubleValues> entry : mCurrentDoubleMetrics.entrySet()) {
+                DoubleValues values = entry.getValue();
+                if (values.repeated) {
+                    b.putDoubleArray(entry.getKey(), values.toArray());
+                } else {
+                    b.putDouble(entry.getKey(), values.values[0]);
+                }
+            }
+        }
         for (String key : map.keySet()) {
             b.putString(key, map.get(key));
         }
@@ -99,6 +313,54 @@ public class DataRecord {
         return b;
     }
 
+    /** Returns all the metrics but the file ones encoded as a MetricsRecord protobuf. */
+    byte[] toProto() {
+        MetricsProtoWriter writer = new MetricsProtoWriter();
+        for (Map.Entry<String, String> entry : mCurrentStringMetrics.entrySet()) {
+            writer.addString(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, LongValues> entry : mCurrentLongMetrics.entrySet()) {
+            LongValues values = entry.getValue();
+            writer.addLongs(entry.getKey(), values.values, values.size, values.repeated);
+        }
+        for (Map.Entry<String, DoubleValues> entry : mCurrentDoubleMetrics.entrySet()) {
+            DoubleValues values = entry.getValue();
+            writer.addDoubles(entry.getKey(), values.values, values.size, values.repeated);
+        }
+        for (Map.Entry<String, byte[]> entry : mCurrentBinaryMetrics.entrySet()) {
+            writer.addBinary(entry.getKey(), entry.getValue());
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Returns a {@link Bundle} holding the encoded metrics and the file metrics, or null if they
+     * could not be written to the proto file.
+     */
+    private Bundle createProtoBundle() {
+        byte[] proto = toProto();
+        Bundle b = createBundle();
+        // Host side file pullers match on the keys of the file metrics, keep them as strings.
+        for (Map.Entry<String, File> entry : mCurrentFileMetrics.entrySet()) {
+            if (!mCurrentStringMetrics.containsKey(entry.getKey())) {
+                b.putString(entry.getKey(), entry.getValue().getAbsolutePath());
+            }
+        }
+        if (mProtoFile == null) {
+            b.putByteArray(getProtoKey(mProtoTag, false), proto);
+            return b;
+        }
+        try (FileOutputStream out = new FileOutputStream(mProtoFile)) {
+            out.write(proto);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Failed to write the metrics to %s, reporting them as "
+                    + "strings.", mProtoFile), e);
+            return null;
+        }
+        b.putString(getProtoKey(mProtoTag, true), mProtoFile.getAbsolutePath());
+        return b;
+    }
+
     /**
      * Create a {@link Bundle} that will hold the metrics. Exposed for testing.
      */
@@ -111,5 +373,7 @@ public class DataRecord {
         mCurrentStringMetrics.clear();
         mCurrentFileMetrics.clear();
         mCurrentBinaryMetrics.clear();
+        mCurrentLongMetrics.clear();
+        mCurrentDoubleMetrics.clear();
     }
 }
@@ -17,6 +17,7 @@ package android.device.collectors;
 
 import android.device.collectors.annotations.OptionClass;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
@@ -27,6 +28,7 @@ import org.junit.runner.Result;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -35,6 +37,13 @@ import java.text.SimpleDateFormat;
 /**
  * A {@link LogcatCollector} that captures logcat after each test.
  *
+ * <p>By default the logcat of each test is read again from the device when the test ends. If
+ * {@link #STORE_SIZE_MB} is set, a single logcat reader runs for the whole test run instead and
+ * feeds a bounded on-disk {@link LogcatRecordStore}, from which the logcat of each test is copied
+ * by time range. This keeps the logcat of a test even if the device buffer wraps before the test
+ * ends, at the cost of a logcat process and up to that much storage for the whole run. If the
+ * reader stops or falls behind, the logcat is read again from the device.
+ *
  * This class needs external storage permission. See {@link BaseMetricListener} how to grant
  * external storage permission, especially at install time.
  *
@@ -51,9 +60,14 @@ public class LogcatCollector extends BaseMetricListener {
     @VisibleForTesting static final String COLLECT_ON_FAILURE_ONLY = "collect-on-failure-only";
     @VisibleForTesting static final String RETURN_LOGCAT_DIR = "return-logcat-directory";
     @VisibleForTesting static final String DEFAULT_DIR = "run_listeners/logcats";
+    @VisibleForTesting static final String STORE_SIZE_MB = "logcat-store-size-mb";
+    @VisibleForTesting static final String STORE_DIR = "run_listeners/logcat_store";
 
     private static final int BUFFER_SIZE = 16 * 1024;
-
+    private static final int STORE_SEGMENTS = 16;
+    // Maximum time to wait for the reader to catch up with the logcat of a test.
+    private static final long READER_SYNC_TIMEOUT_MS = 2000;
+    private static final String READER_SYNC_MARKER = "Collecting logcat #";
 
     private File mDestDir;
     private String mStartTime = null;
@@ -67,9 +81,21 @@ public class LogcatCollector extends BaseMetricListener {
     // The final directory which contains all the logcat files will be <DEFAULT_DIR>_all.
     private boolean mReturnLogcatDir = false;
 
+    // Maximum size of the logcat kept on disk during the run, 0 to read logcat after each test.
+    private long mStoreSizeMb = 0;
+
     // Map to keep track of test iterations for multiple test iterations.
     private HashMap<Description, Integer> mTestIterations = new HashMap<>();
 
+    // The logcat read since the start of the run, if the reader could be started.
+    private LogcatRecordStore mStore;
+    private Process mLogcatProcess;
+    private Thread mReaderThread;
+    // Guards the marker logged to know when the reader has caught up.
+    private final Object mReaderLock = new Object();
+    private byte[] mPendingMarker;
+    private int mMarkerCount = 0;
+
     public LogcatCollector() {
         super();
     }
@@ -90,6 +116,7 @@ public class LogcatCollector extends BaseMetricListener {
         // Capture the start time in case onTestStart() is never called due to failure during
         // @BeforeClass.
         mStartTime = getLogcatStartTime();
+        startLogcatReader(mStartTime);
     }
 
     @Override
@@ -155,15 +182,34 @@ public class LogcatCollector extends BaseMetricListener {
 
     @Override
     public void onTestRunEnd(DataRecord runData, Result result) {
+        stopLogcatReader();
         if (mReturnLogcatDir) {
             runData.addStringMetric(getTag(), mDestDir.getAbsolutePath().toString());
         }
     }
 
-    /** @hide */
+    /**
+     * Save the logcat from the start time until now. The logcat is copied from the store once the
+     * reader has caught up, or read again from the device if the reader is not running or could
+     * not catch up.
+     *
+     * @hide
+     */
     @VisibleForTesting
     protected void getLogcatSince(String startTime, File saveTo)
             throws IOException, InterruptedException {
+        if (mStore != null && mReaderThread.isAlive() && waitForReader()) {
+            int lines =
+                    mStore.copyRange(
+                            LogcatRecordStore.parseTimestamp(startTime),
+                            LogcatRecordStore.parseTimestamp(getLogcatEndTime()),
+                            saveTo);
+            Log.i(getTag(), String.format("Saved %d logcat lines to %s.", lines, saveTo));
+            return;
+        }
+        if (mStore != null) {
+            Log.w(getTag(), "The logcat reader is behind or stopped, reading logcat again.");
+        }
         // ProcessBuilder is used here in favor of UiAutomation.executeShellCommand() because the
         // logcat command requires the timestamp to be quoted which in Java requires
         // Runtime.exec(String[]) or ProcessBuilder to work properly, and UiAutomation does not
@@ -175,6 +221,173 @@ public class LogcatCollector extends BaseMetricListener {
         proc.waitFor();
     }
 
+    /**
+     * Start a logcat process printing the logcat from the start time onwards, and returns its
+     * output. Tests can return a file of logcat lines instead.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    protected InputStream openLogcatStream(String startTime) throws IOException {
+        ProcessBuilder pb =
+                new ProcessBuilder(Arrays.asList("logcat", "-v", "threadtime", "-T", startTime));
+        pb.redirectErrorStream(true);
+        mLogcatProcess = pb.start();
+        return mLogcatProcess.getInputStream();
+    }
+
+    /**
+     * Start reading logcat into the store for the whole run if enabled, or leave it null on
+     * failure.
+     */
+    private void startLogcatReader(String startTime) {
+        if (mStoreSizeMb <= 0) {
+            return;
+        }
+        File storeDir = createAndEmptyDirectory(STORE_DIR);
+        if (storeDir == null) {
+            return;
+        }
+        InputStream logcat;
+        try {
+            logcat = openLogcatStream(startTime);
+        } catch (IOException e) {
+            Log.e(getTag(), "Unable to start reading logcat, it will be read after each test.", e);
+            return;
+        }
+        long storeBytes = mStoreSizeMb * 1024 * 1024;
+        mStore = new LogcatRecordStore(storeDir, storeBytes / STORE_SEGMENTS, STORE_SEGMENTS);
+        mReaderThread = new Thread(() -> readLogcat(logcat, mStore), getTag() + "-reader");
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    /** Append the lines of the logcat stream to the store until the stream ends. */
+    private void readLogcat(InputStream logcat, LogcatRecordStore store) {
+        byte[] chunk = new byte[BUFFER_SIZE];
+        byte[] line = new byte[BUFFER_SIZE];
+        int lineLength = 0;
+        try (InputStream in = logcat) {
+            for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                for (int i = 0; i < read; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n') {
+                        store.append(line, 0, lineLength);
+                        checkMarker(line, lineLength);
+                        lineLength = 0;
+                    } else if (b != '\r') {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, lineLength * 2);
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+            if (lineLength > 0) {
+                store.append(line, 0, lineLength);
+            }
+        } catch (IOException e) {
+            // The stream is closed when the run ends.
+            Log.i(getTag(), "Stopped reading logcat: " + e.getMessage());
+        } finally {
+            synchronized (mReaderLock) {
+                mReaderLock.notifyAll();
+            }
+        }
+    }
+
+    /** Wake up the collection waiting for the line if it holds the pending marker. */
+    private void checkMarker(byte[] line, int length) {
+        synchronized (mReaderLock) {
+            if (mPendingMarker != null && contains(line, length, mPendingMarker)) {
+                mPendingMarker = null;
+                mReaderLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Log a marker and wait until the reader has stored it, so that the store holds all the lines
+     * logged before the collection. Gives up after a timeout, or if the reader has stopped.
+     *
+     * @return whether the reader has stored the marker.
+     */
+    private boolean waitForReader() throws InterruptedException {
+        // The trailing period keeps marker 1 from matching marker 10.
+        String marker = READER_SYNC_MARKER + ++mMarkerCount + ".";
+        synchronized (mReaderLock) {
+            mPendingMarker = marker.getBytes();
+        }
+        logReaderMarker(marker);
+        long deadline = SystemClock.uptimeMillis() + READER_SYNC_TIMEOUT_MS;
+        synchronized (mReaderLock) {
+            while (mPendingMarker != null && mReaderThread.isAlive()) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    Log.w(getTag(), "Timed out waiting for the logcat reader to catch up.");
+                    break;
+                }
+                mReaderLock.wait(remaining);
+            }
+            boolean stored = mPendingMarker == null;
+            mPendingMarker = null;
+            return stored;
+        }
+    }
+
+    /**
+     * Log the marker waited for by the collection. Tests can write it to their logcat stream
+     * instead.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    protected void logReaderMarker(String marker) {
+        Log.i(getTag(), marker);
+    }
+
+    /** Stop the reader and delete the logcat kept on disk. */
+    private void stopLogcatReader() {
+        if (mStore == null) {
+            return;
+        }
+        if (mLogcatProcess != null) {
+            mLogcatProcess.destroy();
+            mLogcatProcess = null;
+        }
+        try {
+            mReaderThread.join(READER_SYNC_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mStore.close();
+        } catch (IOException e) {
+            Log.e(getTag(), "Unable to delete the logcat store.", e);
+        }
+        mStore = null;
+        mReaderThread = null;
+    }
+
+    private static boolean contains(byte[] line, int length, byte[] pattern) {
+        for (int start = 0; start + pattern.length <= length; start++) {
+            int i = 0;
+            while (i < pattern.length && line[start + i] == pattern[i]) {
+                i++;
+            }
+            if (i == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the time up to which the logcat of a test is saved, i.e. now. */
+    @VisibleForTesting
+    protected String getLogcatEndTime() {
+        return DATE_FORMATTER.format(new Date(System.currentTimeMillis()));
+    }
+
     @VisibleForTesting
     protected String getLogcatStartTime() {
         Date date = new Date(System.currentTimeMillis());
@@ -206,5 +419,9 @@ public class LogcatCollector extends BaseMetricListener {
                     .parseBoolean(args.getString(RETURN_LOGCAT_DIR));
         }
 
+        if (args.getString(STORE_SIZE_MB) != null) {
+            mStoreSizeMb = Long.parseLong(args.getString(STORE_SIZE_MB));
+        }
+
     }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A bounded on-disk ring of logcat lines in the threadtime format, indexed by timestamp so that
+ * the lines of a time range can be copied out without reading logcat again.
+ *
+ * <p>Lines are appended to segment files of about {@code segmentBytes}. Once there are more than
+ * {@code maxSegments} segments, the oldest one is deleted. Each segment keeps a sparse in-memory
+ * index of the running maximum timestamp, one entry per {@link #INDEX_INTERVAL_BYTES} bytes. The
+ * index stays sorted even though the lines of the different logcat buffers are slightly out of
+ * order. Lines without a timestamp, such as the "beginning of" banners, take the timestamp of the
+ * line before them.
+ *
+ * <p>Timestamps have no year, as in logcat, so a range spanning the new year is not supported.
+ */
+public class LogcatRecordStore implements Closeable {
+    private static final String LOG_TAG = LogcatRecordStore.class.getSimpleName();
+
+    static final int INDEX_INTERVAL_BYTES = 4 * 1024;
+    private static final String SEGMENT_PREFIX = "logcat-segment-";
+
+    private final File mDirectory;
+    private final long mSegmentBytes;
+    private final int mMaxSegments;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private OutputStream mOutput;
+    private int mNextSegmentId = 0;
+    // Timestamp of the last line with one, and the largest timestamp so far.
+    private long mLastTimestamp = 0;
+    private long mMaxTimestamp = 0;
+    // Largest timestamp of the deleted segments, to tell when a range is incomplete.
+    private long mEvictedTimestamp = -1;
+
+    /** A segment file and the sparse index of its lines. */
+    private static class Segment {
+        final File mFile;
+        long mLength = 0;
+        // Offset of every indexed block, timestamp of the line before it and largest timestamp
+        // up to the end of the block.
+        long[] mOffsets = new long[16];
+        long[] mPrecedingTimestamps = new long[16];
+        long[] mMaxTimestamps = new long[16];
+        int mIndexSize = 0;
+
+        Segment(File file) {
+            mFile = file;
+        }
+    }
+
+    public LogcatRecordStore(File directory, long segmentBytes, int maxSegments) {
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = maxSegments;
+    }
+
+    /** Append a line, given without its line break. */
+    public synchronized void append(byte[] buffer, int offset, int length) throws IOException {
+        long precedingTimestamp = mLastTimestamp;
+        long timestamp = parseTimestamp(buffer, offset, length);
+        if (timestamp >= 0) {
+            mLastTimestamp = timestamp;
+        }
+        mMaxTimestamp = Math.max(mMaxTimestamp, mLastTimestamp);
+
+        Segment segment = mSegments.peekLast();
+        if (segment == null || segment.mLength >= mSegmentBytes) {
+            segment = rollSegment();
+        }
+        int lastEntry = segment.mIndexSize - 1;
+        if (lastEntry < 0
+                || segment.mLength - segment.mOffsets[lastEntry] >= INDEX_INTERVAL_BYTES) {
+            if (segment.mIndexSize == segment.mOffsets.length) {
+                segment.mOffsets = Arrays.copyOf(segment.mOffsets, segment.mIndexSize * 2);
+                segment.mPrecedingTimestamps =
+                        Arrays.copyOf(segment.mPrecedingTimestamps, segment.mIndexSize * 2);
+                segment.mMaxTimestamps =
+                        Arrays.copyOf(segment.mMaxTimestamps, segment.mIndexSize * 2);
+            }
+            lastEntry = segment.mIndexSize++;
+            segment.mOffsets[lastEntry] = segment.mLength;
+            segment.mPrecedingTimestamps[lastEntry] = precedingTimestamp;
+        }
+        segment.mMaxTimestamps[lastEntry] = mMaxTimestamp;
+
+        mOutput.write(buffer, offset, length);
+        mOutput.write('\n');
+        segment.mLength += length + 1;
+    }
+
+    /**
+     * Copy the lines with a timestamp between {@code from} and {@code to}, both included, to the
+     * file, in the order they were appended.
+     *
+     * <p>The lines appended after the running maximum timestamp has gone past {@code to} are not
+     * copied, even if they are out of order and within the range.
+     *
+     * @return the number of lines copied.
+     */
+    public synchronized int copyRange(long from, long to, File saveTo) throws IOException {
+        if (mOutput != null) {
+            mOutput.flush();
+        }
+        if (from <= mEvictedTimestamp) {
+            Log.w(
+                    LOG_TAG,
+                    "Some of the logcat requested was dropped to keep the store within its size.");
+        }
+        int lines = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(saveTo))) {
+            for (Segment segment : mSegments) {
+                if (segment.mIndexSize == 0
+                        || segment.mMaxTimestamps[segment.mIndexSize - 1] < from) {
+                    continue;
+                }
+                // The first block which can hold a line from the range.
+                int block =
+                        Arrays.binarySearch(segment.mMaxTimestamps, 0, segment.mIndexSize, from);
+                if (block < 0) {
+                    block = -block - 1;
+                }
+                while (block > 0 && segment.mMaxTimestamps[block - 1] >= from) {
+                    block--;
+                }
+                lines += copySegment(segment, block, from, to, out);
+                if (segment.mMaxTimestamps[segment.mIndexSize - 1] > to) {
+                    return lines;
+                }
+            }
+        }
+        return lines;
+    }
+
+    /** Close the current segment and delete all the segment files. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+        }
+        for (Segment segment : mSegments) {
+            segment.mFile.delete();
+        }
+        mSegments.clear();
+    }
+
+    /** Copy the lines of the range from the block onwards, up to the block past the range. */
+    private int copySegment(Segment segment, int block, long from, long to, OutputStream out)
+            throws IOException {
+        long end = segment.mLength;
+        for (int i = block + 1; i < segment.mIndexSize; i++) {
+            if (segment.mMaxTimestamps[i - 1] > to) {
+                end = segment.mOffsets[i];
+                break;
+            }
+        }
+        long timestamp = segment.mPrecedingTimestamps[block];
+        int lines = 0;
+        byte[] chunk = new byte[16 * 1024];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        try (InputStream in = new FileInputStream(segment.mFile)) {
+            long position = skipFully(in, segment.mOffsets[block]);
+            while (position < end) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, end - position));
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] != '\n') {
+                        continue;
+                    }
+                    // Lines split over chunks are assembled in the line buffer.
+                    byte[] lineBytes = chunk;
+                    int lineOffset = lineStart;
+                    int length = i - lineStart;
+                    if (lineLength > 0) {
+                        line = append(line, lineLength, chunk, lineStart, length);
+                        lineBytes = line;
+                        lineOffset = 0;
+                        length += lineLength;
+                        lineLength = 0;
+                    }
+                    long lineTimestamp = parseTimestamp(lineBytes, lineOffset, length);
+                    if (lineTimestamp >= 0) {
+                        timestamp = lineTimestamp;
+                    }
+                    if (timestamp >= from && timestamp <= to) {
+                        out.write(lineBytes, lineOffset, length);
+                        out.write('\n');
+                        lines++;
+                    }
+                    lineStart = i + 1;
+                }
+                line = append(line, lineLength, chunk, lineStart, read - lineStart);
+                lineLength += read - lineStart;
+            }
+        }
+        return lines;
+    }
+
+    /** Returns the buffer holding {@code length} bytes followed by the bytes of the chunk. */
+    private static byte[] append(byte[] buffer, int length, byte[] chunk, int offset, int count) {
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+        System.arraycopy(chunk, offset, buffer, length, count);
+        return buffer;
+    }
+
+    private Segment rollSegment() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+        }
+        while (mSegments.size() >= mMaxSegments) {
+            Segment oldest = mSegments.removeFirst();
+            if (oldest.mIndexSize > 0) {
+                mEvictedTimestamp = oldest.mMaxTimestamps[oldest.mIndexSize - 1];
+            }
+            oldest.mFile.delete();
+        }
+        Segment segment = new Segment(new File(mDirectory, SEGMENT_PREFIX + mNextSegmentId++));
+        mOutput = new BufferedOutputStream(new FileOutputStream(segment.mFile));
+        mSegments.addLast(segment);
+        return segment;
+    }
+
+    private static long skipFully(InputStream in, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = in.skip(count - skipped);
+            if (n <= 0) {
+                break;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the timestamp of a threadtime logcat line, or of a {@link
+     * LogcatCollector#DATE_FORMATTER} date, as milliseconds since the start of the year in
+     * calendar units, or -1 if the line does not start with a timestamp.
+     */
+    static long parseTimestamp(byte[] line, int offset, int length) {
+        // MM-dd HH:mm:ss.SSS
+        if (length < 18
+                || line[offset + 2] != '-'
+                || line[offset + 5] != ' '
+                || line[offset + 8] != ':'
+                || line[offset + 11] != ':'
+                || line[offset + 14] != '.') {
+            return -1;
+        }
+        int month = digits(line, offset, 2);
+        int day = digits(line, offset + 3, 2);
+        int hours = digits(line, offset + 6, 2);
+        int minutes = digits(line, offset + 9, 2);
+        int seconds = digits(line, offset + 12, 2);
+        int millis = digits(line, offset + 15, 3);
+        if ((month | day | hours | minutes | seconds | millis) < 0) {
+            return -1;
+        }
+        return ((((month * 32L + day) * 24 + hours) * 60 + minutes) * 60 + seconds) * 1000
+                + millis;
+    }
+
+    /** Returns the timestamp of a {@link LogcatCollector#DATE_FORMATTER} date. */
+    static long parseTimestamp(String date) {
+        byte[] bytes = date.getBytes();
+        return parseTimestamp(bytes, 0, bytes.length);
+    }
+
+    private static int digits(byte[] line, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
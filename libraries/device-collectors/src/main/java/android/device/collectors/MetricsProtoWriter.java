@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the metrics of a {@link DataRecord} in the protobuf wire format, without depending on
+ * the protobuf runtime. The host side counterpart is MetricsProtoDecoder in the hostsidetests.
+ *
+ * <p>Metric keys are split on '_' and every distinct token is written once, the metrics refer to
+ * their key as a list of token indexes. Numeric values are packed.
+ *
+ * <pre>
+ * message MetricsRecord {
+ *   repeated string tokens = 1;
+ *   repeated Metric metrics = 2;
+ * }
+ * message Metric {
+ *   repeated uint32 key_tokens = 1 [packed = true];
+ *   optional string string_value = 2;
+ *   optional bytes binary_value = 3;
+ *   repeated sint64 long_values = 4 [packed = true];
+ *   repeated double double_values = 5 [packed = true];
+ *   optional bool repeated = 6;
+ * }
+ * </pre>
+ */
+final class MetricsProtoWriter {
+
+    static final int RECORD_TOKENS = 1;
+    static final int RECORD_METRICS = 2;
+
+    static final int METRIC_KEY_TOKENS = 1;
+    static final int METRIC_STRING_VALUE = 2;
+    static final int METRIC_BINARY_VALUE = 3;
+    static final int METRIC_LONG_VALUES = 4;
+    static final int METRIC_DOUBLE_VALUES = 5;
+    static final int METRIC_REPEATED = 6;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private static final char KEY_SEPARATOR = '_';
+
+    private final Map<String, Integer> mTokenIds = new HashMap<>();
+    private final Output mTokens = new Output();
+    private final Output mMetrics = new Output();
+    // Scratch buffers reused for every metric.
+    private final Output mMetric = new Output();
+    private final Output mPacked = new Output();
+
+    /** Add a string metric. */
+    void addString(String key, String value) {
+        beginMetric(key);
+        mMetric.writeBytesField(METRIC_STRING_VALUE, value.getBytes(StandardCharsets.UTF_8));
+        endMetric();
+    }
+
+    /** Add a binary metric. */
+    void addBinary(String key, byte[] value) {
+        beginMetric(key);
+        mMetric.writeBytesField(METRIC_BINARY_VALUE, value);
+        endMetric();
+    }
+
+    /** Add the first {@code size} values of a numeric metric. */
+    void addLongs(String key, long[] values, int size, boolean repeated) {
+        beginMetric(key);
+        mPacked.reset();
+        for (int i = 0; i < size; i++) {
+            // sint64 zigzag encoding, so small negative values stay small.
+            mPacked.writeVarint((values[i] << 1) ^ (values[i] >> 63));
+        }
+        mMetric.writeBytesField(METRIC_LONG_VALUES, mPacked.mBuffer, mPacked.mSize);
+        writeRepeated(repeated);
+        endMetric();
+    }
+
+    /** Add the first {@code size} values of a numeric metric. */
+    void addDoubles(String key, double[] values, int size, boolean repeated) {
+        beginMetric(key);
+        mPacked.reset();
+        for (int i = 0; i < size; i++) {
+            mPacked.writeFixed64(Double.doubleToRawLongBits(values[i]));
+        }
+        mMetric.writeBytesField(METRIC_DOUBLE_VALUES, mPacked.mBuffer, mPacked.mSize);
+        writeRepeated(repeated);
+        endMetric();
+    }
+
+    /** Returns the encoded MetricsRecord. */
+    byte[] toByteArray() {
+        byte[] result = new byte[mTokens.mSize + mMetrics.mSize];
+        System.arraycopy(mTokens.mBuffer, 0, result, 0, mTokens.mSize);
+        System.arraycopy(mMetrics.mBuffer, 0, result, mTokens.mSize, mMetrics.mSize);
+        return result;
+    }
+
+    private void beginMetric(String key) {
+        mMetric.reset();
+        mPacked.reset();
+        int start = 0;
+        while (true) {
+            int end = key.indexOf(KEY_SEPARATOR, start);
+            mPacked.writeVarint(tokenId(key.substring(start, end < 0 ? key.length() : end)));
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        mMetric.writeBytesField(METRIC_KEY_TOKENS, mPacked.mBuffer, mPacked.mSize);
+    }
+
+    private void writeRepeated(boolean repeated) {
+        if (repeated) {
+            mMetric.writeTag(METRIC_REPEATED, WIRE_VARINT);
+            mMetric.writeVarint(1);
+        }
+    }
+
+    private void endMetric() {
+        mMetrics.writeBytesField(RECORD_METRICS, mMetric.mBuffer, mMetric.mSize);
+    }
+
+    private int tokenId(String token) {
+        Integer id = mTokenIds.get(token);
+        if (id == null) {
+            id = mTokenIds.size();
+            mTokenIds.put(token, id);
+            mTokens.writeBytesField(RECORD_TOKENS, token.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    /** Growable byte buffer with the protobuf primitives. */
+    private static final class Output {
+        byte[] mBuffer = new byte[256];
+        int mSize = 0;
+
+        void reset() {
+            mSize = 0;
+        }
+
+        void writeTag(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                mBuffer[mSize++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        void writeFixed64(long value) {
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++) {
+                mBuffer[mSize++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void writeBytesField(int field, byte[] value) {
+            writeBytesField(field, value, value.length);
+        }
+
+        void writeBytesField(int field, byte[] value, int length) {
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(length);
+            ensureCapacity(length);
+            System.arraycopy(value, 0, mBuffer, mSize, length);
+            mSize += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mSize + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+            }
+        }
+    }
+}
@@ -24,7 +24,9 @@ import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import com.android.helpers.PerfettoHelper;
+import com.android.helpers.PerfettoTraceSummarizer;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -76,6 +78,21 @@ public class PerfettoListener extends BaseMetricListener {
     public static final String PERFETTO_START_WAIT_TIME_ARG = "perfetto_start_wait_time_ms";
     // Default wait time before starting the perfetto trace.
     public static final String DEFAULT_START_WAIT_TIME_MSECS = "3000";
+    // Trace all the tests in one perfetto session started with the run, and save the trace of
+    // each test cut out of it, instead of starting perfetto for every test. The wait time is
+    // then the max time to wait for the trace of a test to be written by the session. The session
+    // output grows on /data for the whole run, so the config must set max_file_size_bytes; the
+    // trace of the tests run after the output reached that size is lost.
+    public static final String CONTINUOUS_SESSION = "perfetto_continuous_session";
+    // Stop only the perfetto process started by the listener, with SIGINT to its pid, instead of
+    // all the perfetto processes of the device, e.g. when other perfetto sessions are running.
+    public static final String STOP_BY_PID = "perfetto_stop_by_pid";
+    // Report summary metrics of each saved trace (cpu time per thread, slice durations and
+    // counter values) next to the trace file. The whole trace is read on the device when the test
+    // ends, so the next test starts later by the time it takes to read the trace.
+    public static final String SUMMARIZE_TRACE = "perfetto_summarize_trace";
+    // Max number of summary metrics reported per trace.
+    public static final String SUMMARIZE_MAX_METRICS = "perfetto_summarize_max_metrics";
 
     private final WakeLockContext mWakeLockContext;
     private final Supplier<WakeLock> mWakelockSupplier;
@@ -98,10 +115,13 @@ public class PerfettoListener extends BaseMetricListener {
     private boolean mPerfettoStartSuccess = false;
     private boolean mIsConfigTextProto = false;
     private boolean mIsCollectPerRun;
+    private boolean mIsContinuousSession;
+    private boolean mSummarizeTrace;
     private boolean mSkipTestFailureMetrics;
     private boolean mIsTestFailed = false;
 
     private PerfettoHelper mPerfettoHelper = new PerfettoHelper();
+    private PerfettoTraceSummarizer mTraceSummarizer = new PerfettoTraceSummarizer();
 
     // For USB disconnected cases you may want this option to be true. This option makes sure
     // the device does not go to sleep while collecting.
@@ -147,6 +167,10 @@ public class PerfettoListener extends BaseMetricListener {
         // Whether to collect the for the entire test run or per test.
         mIsCollectPerRun = Boolean.parseBoolean(args.getString(COLLECT_PER_RUN));
 
+        // Whether to slice the trace of every test out of a session tracing the run.
+        mIsContinuousSession =
+                !mIsCollectPerRun && Boolean.parseBoolean(args.getString(CONTINUOUS_SESSION));
+
         // Root directory path containing the perfetto config file.
         mConfigRootDir = args.getString(PERFETTO_CONFIG_ROOT_DIR_ARG,
                 DEFAULT_PERFETTO_CONFIG_ROOT_DIR);
@@ -155,6 +179,9 @@ public class PerfettoListener extends BaseMetricListener {
         }
         mPerfettoHelper.setPerfettoConfigRootDir(mConfigRootDir);
 
+        // Whether to stop only the perfetto process started by the listener.
+        mPerfettoHelper.setStopByPid(Boolean.parseBoolean(args.getString(STOP_BY_PID)));
+
         // Whether the config is text proto or not. By default set to false.
         mIsConfigTextProto = Boolean.parseBoolean(args.getString(PERFETTO_CONFIG_TEXT_PROTO));
 
@@ -183,10 +210,18 @@ public class PerfettoListener extends BaseMetricListener {
         // Defaulted to /sdcard/test_results if test_output_root is not passed.
         mTestOutputRoot = args.getString(TEST_OUTPUT_ROOT, DEFAULT_OUTPUT_ROOT);
 
+        // Whether to summarize the saved traces.
+        mSummarizeTrace = Boolean.parseBoolean(args.getString(SUMMARIZE_TRACE));
+        mTraceSummarizer.setMaxMetrics(
+                Integer.parseInt(
+                        args.getString(
+                                SUMMARIZE_MAX_METRICS,
+                                String.valueOf(PerfettoTraceSummarizer.DEFAULT_MAX_METRICS))));
+
         // By default this flag is set to false to collect the metrics on test failure.
         mSkipTestFailureMetrics = "true".equals(args.getString(SKIP_TEST_FAILURE_METRICS));
 
-        if (!mIsCollectPerRun) {
+        if (!mIsCollectPerRun && !mIsContinuousSession) {
             return;
         }
 
@@ -211,6 +246,15 @@ public class PerfettoListener extends BaseMetricListener {
             return;
         }
 
+        if (mIsContinuousSession) {
+            mTestIdInvocationCount.compute(
+                    getTestFileName(description), (key, value) -> (value == null) ? 1 : value + 1);
+            if (mPerfettoStartSuccess) {
+                mPerfettoHelper.markTestStart(getTestFileName(description));
+            }
+            return;
+        }
+
         Runnable task =
                 () -> {
                     mTestIdInvocationCount.compute(
@@ -247,9 +291,17 @@ public class PerfettoListener extends BaseMetricListener {
             return;
         }
 
+        if (mIsContinuousSession) {
+            mPerfettoHelper.markTestEnd(getTestFileName(description));
+        }
+
         Runnable task = null;
         if (mSkipTestFailureMetrics && mIsTestFailed) {
             Log.i(getTag(), "Skipping the metric collection due to test failure.");
+            if (mIsContinuousSession) {
+                // The session keeps running for the next tests.
+                return;
+            }
             // Stop the existing perfetto trace collection.
             try {
                 if (!mPerfettoHelper.stopPerfetto()) {
@@ -288,6 +340,24 @@ public class PerfettoListener extends BaseMetricListener {
 
     @Override
     public void onTestRunEnd(DataRecord runData, Result result) {
+        if (mIsContinuousSession) {
+            if (mPerfettoStartSuccess) {
+                Runnable task =
+                        () -> {
+                            Log.i(getTag(), "Stopping the perfetto session after test run ended.");
+                            if (!mPerfettoHelper.stopContinuousCollecting(null)) {
+                                Log.e(getTag(), "Failed to stop the perfetto session.");
+                            }
+                        };
+                if (mHoldWakelockWhileCollecting) {
+                    Log.d(getTag(), "Holding a wakelock at onTestRunEnd.");
+                    mWakeLockContext.run(task);
+                } else {
+                    task.run();
+                }
+            }
+            return;
+        }
         if (!mIsCollectPerRun) {
             return;
         }
@@ -381,8 +451,11 @@ public class PerfettoListener extends BaseMetricListener {
      */
     private void startPerfettoTracing() {
         SystemClock.sleep(mWaitStartTimeInMs);
-        mPerfettoStartSuccess = mPerfettoHelper.startCollecting(mConfigFileName,
-                mIsConfigTextProto);
+        mPerfettoStartSuccess =
+                mIsContinuousSession
+                        ? mPerfettoHelper.startContinuousCollecting(
+                                mConfigFileName, mIsConfigTextProto)
+                        : mPerfettoHelper.startCollecting(mConfigFileName, mIsConfigTextProto);
         if (!mPerfettoStartSuccess) {
             Log.e(getTag(), "Perfetto did not start successfully.");
         }
@@ -393,10 +466,29 @@ public class PerfettoListener extends BaseMetricListener {
      * record with the path to the trace file.
      */
     private void stopPerfettoTracing(Path path, DataRecord record) {
-        if (!mPerfettoHelper.stopCollecting(mWaitTimeInMs, path.toString())) {
+        boolean success =
+                mIsContinuousSession
+                        ? mPerfettoHelper.saveTestSlice(mWaitTimeInMs, path.toString())
+                        : mPerfettoHelper.stopCollecting(mWaitTimeInMs, path.toString());
+        if (!success) {
             Log.e(getTag(), "Failed to collect the perfetto output.");
         } else {
             record.addStringMetric(PERFETTO_FILE_PATH, path.toString());
+            if (mSummarizeTrace) {
+                summarizeTrace(path, record);
+            }
+        }
+    }
+
+    /** Add the summary metrics of the trace to the record. */
+    private void summarizeTrace(Path path, DataRecord record) {
+        try {
+            Map<String, Double> metrics = mTraceSummarizer.summarize(new File(path.toString()));
+            for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+                record.addDoubleMetric(metric.getKey(), metric.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(getTag(), "Failed to summarize the perfetto trace.", e);
         }
     }
 
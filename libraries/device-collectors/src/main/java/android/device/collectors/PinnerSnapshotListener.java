@@ -28,6 +28,8 @@ public class PinnerSnapshotListener extends BaseCollectionListener<String> {
 
     @VisibleForTesting
     static final String OUTPUT_DIR_KEY = "output-dir";
+    @VisibleForTesting
+    static final String DELTA_SNAPSHOTS_KEY = "delta-snapshots";
 
     private PinnerHelper mPinnerHelper = new PinnerHelper();
 
@@ -54,5 +56,7 @@ public class PinnerSnapshotListener extends BaseCollectionListener<String> {
         Bundle args = getArgsBundle();
         String testOutputDir = args.getString(OUTPUT_DIR_KEY, DEFAULT_OUTPUT_DIR);
         mPinnerHelper.setUp(testOutputDir);
+        mPinnerHelper.setDeltaSnapshots(
+                Boolean.parseBoolean(args.getString(DELTA_SNAPSHOTS_KEY, "false")));
     }
 }
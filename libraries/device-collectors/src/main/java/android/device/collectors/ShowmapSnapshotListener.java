@@ -34,6 +34,11 @@ import java.util.Map;
  * -e test-output-dir [path] : path to the output directory
  * -e metric-index [rss:2,pss:3,privatedirty:7] : memory metric name corresponding
  *  to index in the showmap output.
+ * -e collect-shell-latency [true | false] : report the shell command latencies
+ * -e use-procfs [true | false] : read smaps from procfs instead of running showmap
+ * -e store-raw-dumps [true | false] : store the raw memory dumps, compressed in procfs mode
+ * -e delta-snapshots [true | false] : store the dumps as a baseline plus changed mappings,
+ *  instead of the raw memory dumps
  */
 @OptionClass(alias = "showmapsnapshot-collector")
 public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
@@ -45,6 +50,10 @@ public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
   @VisibleForTesting static final String METRIC_NAME_INDEX = "metric-name-index";
   @VisibleForTesting static final String DROP_CACHE_KEY = "drop-cache";
   @VisibleForTesting static final String OUTPUT_DIR_KEY = "test-output-dir";
+  @VisibleForTesting static final String COLLECT_SHELL_LATENCY_KEY = "collect-shell-latency";
+  @VisibleForTesting static final String USE_PROCFS_KEY = "use-procfs";
+  @VisibleForTesting static final String STORE_RAW_DUMPS_KEY = "store-raw-dumps";
+  @VisibleForTesting static final String DELTA_SNAPSHOTS_KEY = "delta-snapshots";
 
   private ShowmapSnapshotHelper mShowmapSnapshotHelper = new ShowmapSnapshotHelper();
   private final Map<String, Integer> dropCacheValues = new HashMap<String, Integer>() {
@@ -106,6 +115,14 @@ public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
 
 
     mShowmapSnapshotHelper.setUp(testOutputDir, procs);
+    mShowmapSnapshotHelper.setCollectShellLatency(
+        Boolean.parseBoolean(args.getString(COLLECT_SHELL_LATENCY_KEY, "false")));
+    mShowmapSnapshotHelper.setUseProcfs(
+        Boolean.parseBoolean(args.getString(USE_PROCFS_KEY, "false")));
+    mShowmapSnapshotHelper.setStoreRawDumps(
+        Boolean.parseBoolean(args.getString(STORE_RAW_DUMPS_KEY, "true")));
+    mShowmapSnapshotHelper.setDeltaSnapshots(
+        Boolean.parseBoolean(args.getString(DELTA_SNAPSHOTS_KEY, "false")));
 
     String dropCacheValue = args.getString(DROP_CACHE_KEY);
     if (dropCacheValue != null) {
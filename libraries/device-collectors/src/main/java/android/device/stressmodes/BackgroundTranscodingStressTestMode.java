@@ -20,6 +20,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.media.ApplicationMediaCapabilities;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.media.MediaFormat;
 import android.media.MediaTranscodingManager;
@@ -29,15 +31,16 @@ import android.media.MediaTranscodingManager.VideoTranscodingRequest;
 import static org.junit.Assert.assertNotNull;
 
 import androidx.test.InstrumentationRegistry;
-import androidx.test.internal.runner.listener.InstrumentationRunListener;
-
-import org.junit.runner.Description;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-public class BackgroundTranscodingStressTestMode extends InstrumentationRunListener {
+public class BackgroundTranscodingStressTestMode extends BaseStressTestMode {
     private static final String TAG = BackgroundTranscodingStressTestMode.class.getSimpleName();
     private Context mContext;
     private MediaTranscodingManager mMediaTranscodingManager = null;
@@ -47,8 +50,10 @@ public class BackgroundTranscodingStressTestMode extends InstrumentationRunListe
     private static final int BIT_RATE = 20000000; // 20Mbps
     private static final int WIDTH = 1920;
     private static final int HEIGHT = 1080;
+    // How often to check if the burst is over while transcoding.
+    private static final long POLL_INTERVAL_MS = 100;
 
-    private TranscodingSession mTranscodingSession = null;
+    private final Executor mListenerExecutor = Executors.newSingleThreadExecutor();
 
     public BackgroundTranscodingStressTestMode() {
         mContext = InstrumentationRegistry.getInstrumentation().getContext();
@@ -60,8 +65,36 @@ public class BackgroundTranscodingStressTestMode extends InstrumentationRunListe
     }
 
     @Override
-    public final void testStarted(Description description) throws Exception {
-        Log.i(TAG, "BackgroundTranscodingStressTestMode stress started");
+    protected List<StressEngine.LoadSpec> createLoads(Bundle args) {
+        // Transcode the file once per test, the session is cancelled if the test ends first.
+        LoadGenerator transcode =
+                new LoadGenerator() {
+                    @Override
+                    public long generate(StressEngine.Burst burst) throws Exception {
+                        return doTranscode(burst);
+                    }
+
+                    @Override
+                    public String getUnit() {
+                        return "sessions";
+                    }
+                };
+        return Collections.singletonList(
+                new StressEngine.LoadSpec(
+                        "background_transcoding",
+                        transcode,
+                        /* threads */ 1,
+                        /* dutyCycle */ 1,
+                        /* periodMs */ 1));
+    }
+
+    /**
+     * Transcode the file once, then wait for the burst to be over. The burst of the continuous
+     * load lasts for the whole test, so there is only one session per test.
+     *
+     * @return 1 if the transcoding completed, 0 if it was cancelled.
+     */
+    private long doTranscode(StressEngine.Burst burst) throws Exception {
         String path = "/data/local/tmp/testHevc.mp4";
         final File file = new File(path);
 
@@ -94,26 +127,33 @@ public class BackgroundTranscodingStressTestMode extends InstrumentationRunListe
                         .setClientPid(pid)
                         .setClientUid(uid);
         TranscodingRequest request = builder.build();
-        Executor listenerExecutor = Executors.newSingleThreadExecutor();
 
         Log.d(TAG, "transcoding to format: " + videoTrackFormat);
 
-        mTranscodingSession =
+        CountDownLatch completed = new CountDownLatch(1);
+        TranscodingSession session =
                 mMediaTranscodingManager.enqueueRequest(
                         request,
-                        listenerExecutor,
+                        mListenerExecutor,
                         transcodingSession -> {
                             Log.d(
                                     TAG,
                                     "Transcoding completed with result: "
                                             + transcodingSession.getResult());
+                            completed.countDown();
                         });
-        assertNotNull(mTranscodingSession);
-    }
-
-    @Override
-    public final void testFinished(Description description) throws Exception {
-        Log.i(TAG, "BackgroundTranscodingStressTestMode stress finished");
-        mTranscodingSession.cancel();
+        assertNotNull(session);
+
+        while (!burst.isOver()) {
+            if (completed.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                // Don't enqueue another session before the end of the test.
+                while (!burst.isOver()) {
+                    SystemClock.sleep(POLL_INTERVAL_MS);
+                }
+                return 1;
+            }
+        }
+        session.cancel();
+        return 0;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.internal.runner.listener.InstrumentationRunListener;
+
+import org.junit.runner.Description;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the stress modes running their load with a {@link StressEngine}.
+ *
+ * <p>The load runs from the start to the end of every test, and the achieved load is reported
+ * under the "status in progress" of the test. The random generators of the loads are seeded with
+ * the "stress-seed" argument, or a logged random seed, so that a run can be replayed.
+ */
+public abstract class BaseStressTestMode extends InstrumentationRunListener {
+    private static final String TAG = BaseStressTestMode.class.getSimpleName();
+
+    public static final String SEED_ARG = "stress-seed";
+
+    @VisibleForTesting static final int INST_STATUS_IN_PROGRESS = 2;
+
+    private StressEngine mEngine;
+
+    /** Returns the loads of the stress mode, from the instrumentation arguments. */
+    protected abstract List<StressEngine.LoadSpec> createLoads(Bundle args) throws Exception;
+
+    @Override
+    public void testRunStarted(Description description) throws Exception {
+        super.testRunStarted(description);
+        Bundle args = InstrumentationRegistry.getArguments();
+        String seed = args.getString(SEED_ARG);
+        mEngine =
+                new StressEngine(
+                        createLoads(args),
+                        seed != null ? Long.parseLong(seed) : System.nanoTime());
+        Log.i(TAG, String.format("%s seed: %d", getClass().getSimpleName(), mEngine.getSeed()));
+    }
+
+    @Override
+    public void testStarted(Description description) throws Exception {
+        mEngine.start();
+        super.testStarted(description);
+    }
+
+    @Override
+    public void testFinished(Description description) throws Exception {
+        mEngine.stop();
+        super.testFinished(description);
+        Bundle metrics = new Bundle();
+        for (Map.Entry<String, Double> metric : mEngine.getMetrics().entrySet()) {
+            metrics.putDouble(metric.getKey(), metric.getValue());
+        }
+        Log.d(TAG, String.format("Achieved load: %s", metrics));
+        sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
+
+    /** Returns the engine of the current run. */
+    @VisibleForTesting
+    StressEngine getEngine() {
+        return mEngine;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+/**
+ * Keeps system_server busy with binder transactions, by querying the memory state from the
+ * activity manager, which is not cached on the client side.
+ */
+public class BinderLoadGenerator implements LoadGenerator {
+    private final Context mContext;
+
+    public BinderLoadGenerator(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public long generate(StressEngine.Burst burst) {
+        ActivityManager activityManager = mContext.getSystemService(ActivityManager.class);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        long transactions = 0;
+        while (!burst.isOver()) {
+            activityManager.getMemoryInfo(memoryInfo);
+            transactions++;
+        }
+        return transactions;
+    }
+
+    @Override
+    public String getUnit() {
+        return "transactions";
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+/** Keeps a CPU busy with integer arithmetic. The work is counted in blocks of iterations. */
+public class CpuLoadGenerator implements LoadGenerator {
+    private static final int ITERATIONS_PER_BLOCK = 10000;
+
+    // Keeps the computation from being optimized away.
+    private volatile long mSink;
+
+    @Override
+    public long generate(StressEngine.Burst burst) {
+        long blocks = 0;
+        long value = burst.getRandom().nextLong();
+        while (!burst.isOver()) {
+            for (int i = 0; i < ITERATIONS_PER_BLOCK; i++) {
+                // xorshift, cheap and not foldable.
+                value ^= value << 13;
+                value ^= value >>> 7;
+                value ^= value << 17;
+            }
+            blocks++;
+        }
+        mSink = value;
+        return blocks;
+    }
+
+    @Override
+    public String getUnit() {
+        return "blocks";
+    }
+}
@@ -23,31 +23,27 @@ import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaMuxer;
 import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 import android.media.MediaFormat;
 
 import androidx.test.InstrumentationRegistry;
-import androidx.test.internal.runner.listener.InstrumentationRunListener;
-
-import org.junit.runner.Description;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
 
 /**
  * This stressor test read file from a mp4 file and write to a new file to simulate the IO
  * contention.
  */
-public class IOContentionStressTestMode extends InstrumentationRunListener {
+public class IOContentionStressTestMode extends BaseStressTestMode {
     private static final String TAG = IOContentionStressTestMode.class.getSimpleName();
     private Context mContext;
     private static final int MAX_SAMPLE_SIZE = 256 * 1024;
     private ContentResolver mContentResolver;
-    private boolean mStop = false;
-    private ExecutorService mExecutorService = null;
 
     public IOContentionStressTestMode() {
         mContext = InstrumentationRegistry.getInstrumentation().getContext();
@@ -55,10 +51,38 @@ public class IOContentionStressTestMode extends InstrumentationRunListener {
                 .getUiAutomation()
                 .adoptShellPermissionIdentity("android.permission.WRITE_MEDIA_STORAGE");
         mContentResolver = mContext.getContentResolver();
-        mExecutorService = Executors.newSingleThreadExecutor();
     }
 
-    public final void doCopyFile() throws Exception {
+    @Override
+    protected List<StressEngine.LoadSpec> createLoads(Bundle args) {
+        // Copy the file over and over, from the start to the end of a test.
+        LoadGenerator copyFile =
+                new LoadGenerator() {
+                    @Override
+                    public long generate(StressEngine.Burst burst) throws Exception {
+                        return doCopyFile(burst);
+                    }
+
+                    @Override
+                    public String getUnit() {
+                        return "frames";
+                    }
+                };
+        return Collections.singletonList(
+                new StressEngine.LoadSpec(
+                        "io_contention",
+                        copyFile,
+                        /* threads */ 1,
+                        /* dutyCycle */ 1,
+                        /* periodMs */ 1));
+    }
+
+    /**
+     * Copy the file until the end of the file or the burst.
+     *
+     * @return the number of frames copied.
+     */
+    public final long doCopyFile(StressEngine.Burst burst) throws Exception {
         Log.i(TAG, "doCopyFile");
         String path = "/data/local/tmp/testHevc.mp4";
         final File file = new File(path);
@@ -111,7 +135,7 @@ public class IOContentionStressTestMode extends InstrumentationRunListener {
             MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
 
             muxer.start();
-            while (!sawEOS && !mStop) {
+            while (!sawEOS && !burst.isOver()) {
                 bufferInfo.offset = offset;
                 bufferInfo.size = extractor.readSampleData(dstBuf, offset);
 
@@ -141,34 +165,6 @@ public class IOContentionStressTestMode extends InstrumentationRunListener {
                 srcFd.close();
             }
         }
-    }
-
-    @Override
-    public final void testStarted(Description description) throws Exception {
-        mExecutorService = Executors.newSingleThreadExecutor();
-        mStop = false;
-        Log.i(TAG, "IOContentionStressTestMode stress started");
-        mExecutorService.submit(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        while (!mStop) {
-                            try {
-                                doCopyFile();
-                            } catch (Exception ex) {
-                                Log.e(TAG, "Copy file get exception: " + ex);
-                            }
-                        }
-                    }
-                });
-    }
-
-    @Override
-    public final void testFinished(Description description) throws Exception {
-        Log.i(TAG, "IOContentionStressTestMode stress finished");
-        mStop = true;
-        if (mExecutorService != null) {
-            mExecutorService.shutdown();
-        }
+        return frameCount;
     }
 }
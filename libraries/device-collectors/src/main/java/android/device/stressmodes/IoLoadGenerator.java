@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes blocks of {@code blockKb} to random offsets of a {@code fileMb} file and reads others
+ * back, syncing the file after every write so that the writes reach the storage.
+ */
+public class IoLoadGenerator implements LoadGenerator {
+    private final File mDirectory;
+    private final int mFileMb;
+    private final int mBlockKb;
+    private File mFile;
+
+    public IoLoadGenerator(File directory, int fileMb, int blockKb) {
+        if (fileMb < 1 || blockKb < 1 || blockKb > fileMb * 1024) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid file size %d MB or block size %d kB", fileMb, blockKb));
+        }
+        mDirectory = directory;
+        mFileMb = fileMb;
+        mBlockKb = blockKb;
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("stress_io", ".bin", mDirectory);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(mFileMb * 1024L * 1024L);
+        }
+    }
+
+    @Override
+    public long generate(StressEngine.Burst burst) throws IOException {
+        int blockSize = mBlockKb * 1024;
+        int blocks = mFileMb * 1024 / mBlockKb;
+        byte[] buffer = new byte[blockSize];
+        long bytes = 0;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            while (!burst.isOver()) {
+                burst.getRandom().nextBytes(buffer);
+                file.seek((long) burst.getRandom().nextInt(blocks) * blockSize);
+                file.write(buffer);
+                file.getFD().sync();
+                file.seek((long) burst.getRandom().nextInt(blocks) * blockSize);
+                file.readFully(buffer);
+                bytes += 2L * blockSize;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void tearDown() {
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+    @Override
+    public String getUnit() {
+        return "bytes";
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+/**
+ * A kind of background load driven by the {@link StressEngine}, e.g. CPU, memory or I/O.
+ *
+ * <p>The engine calls {@link #generate} for every busy part of the duty cycle, from as many
+ * threads as configured, so implementations must be thread safe.
+ */
+public interface LoadGenerator {
+
+    /** Prepare the load before the stress starts, e.g. allocate buffers or create files. */
+    default void setUp() throws Exception {}
+
+    /**
+     * Generate load until {@link StressEngine.Burst#isOver()}.
+     *
+     * @return the amount of work done, in {@link #getUnit()}.
+     */
+    long generate(StressEngine.Burst burst) throws Exception;
+
+    /** Release what was prepared in {@link #setUp()}. */
+    default void tearDown() throws Exception {}
+
+    /** Returns the unit of the work reported by {@link #generate}, e.g. "bytes". */
+    String getUnit();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import android.app.ActivityManager;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.view.WindowManager;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Creates lock contention in system_server by holding one of its global locks for random
+ * durations: after every pause, the lock is held with the given probability for up to
+ * {@code maxHoldingLockTimeMs}.
+ */
+public class LockContentionLoadGenerator implements LoadGenerator {
+    /** The service whose lock is held. */
+    public enum Target {
+        PM,
+        WM,
+        AM,
+    }
+
+    private final Instrumentation mInstrumentation;
+    private final BiConsumer<IBinder, Integer> mHoldLockMethod;
+    private final int mPauseBetweenAttemptsMs;
+    private final double mProbabilityOfHoldingLock;
+    private final int mMaxHoldingLockTimeMs;
+    private volatile IBinder mHoldLockToken;
+
+    public LockContentionLoadGenerator(
+            Instrumentation instrumentation,
+            Target target,
+            int pauseBetweenAttemptsMs,
+            double probabilityOfHoldingLock,
+            int maxHoldingLockTimeMs) {
+        mInstrumentation = instrumentation;
+        Context context = instrumentation.getContext();
+        switch (target) {
+            case PM:
+                mHoldLockMethod = context.getPackageManager()::holdLock;
+                break;
+            case WM:
+                mHoldLockMethod = context.getSystemService(WindowManager.class)::holdLock;
+                break;
+            default:
+                mHoldLockMethod = context.getSystemService(ActivityManager.class)::holdLock;
+                break;
+        }
+        mPauseBetweenAttemptsMs = pauseBetweenAttemptsMs;
+        mProbabilityOfHoldingLock = probabilityOfHoldingLock;
+        mMaxHoldingLockTimeMs = maxHoldingLockTimeMs;
+    }
+
+    @Override
+    public void setUp() {
+        mInstrumentation.getUiAutomation().adoptShellPermissionIdentity();
+        try {
+            PackageManager pm = mInstrumentation.getContext().getPackageManager();
+            mHoldLockToken = pm.getHoldLockToken();
+        } finally {
+            mInstrumentation.getUiAutomation().dropShellPermissionIdentity();
+        }
+    }
+
+    @Override
+    public long generate(StressEngine.Burst burst) {
+        long holds = 0;
+        while (!burst.isOver()) {
+            SystemClock.sleep(mPauseBetweenAttemptsMs);
+            if (burst.getRandom().nextDouble() < mProbabilityOfHoldingLock) {
+                mHoldLockMethod.accept(
+                        mHoldLockToken,
+                        (int) (burst.getRandom().nextDouble() * mMaxHoldingLockTimeMs));
+                holds++;
+            }
+        }
+        return holds;
+    }
+
+    @Override
+    public void tearDown() {
+        mHoldLockToken = null;
+    }
+
+    @Override
+    public String getUnit() {
+        return "holds";
+    }
+}
@@ -16,129 +16,81 @@
 
 package android.device.stressmodes;
 
-import android.app.ActivityManager;
-import android.content.Context;
-import android.content.pm.PackageManager;
+import android.app.Instrumentation;
 import android.os.Bundle;
-import android.os.IBinder;
-import android.os.SystemClock;
 import android.util.Log;
-import android.view.WindowManager;
 
 import androidx.test.InstrumentationRegistry;
-import androidx.test.internal.runner.listener.InstrumentationRunListener;
 
-import org.junit.runner.Description;
-
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.function.BiConsumer;
+import java.util.Arrays;
+import java.util.List;
 
 // TODO(b/169588447): Consider converting to @Rule
-public class LockContentionStressMode extends InstrumentationRunListener {
+public class LockContentionStressMode extends BaseStressTestMode {
     private static final String TAG = LockContentionStressMode.class.getSimpleName();
-    private int mPauseBetweenAttemptsMs;
-    private double mProbabilityOfHoldingLock;
-    private int mMaxHoldingLockTimeMs;
-    private final CyclicBarrier mEnterStress = new CyclicBarrier(4);
-    private final CyclicBarrier mLeaveStress = new CyclicBarrier(4);
-    private IBinder mHoldLockToken;
-
-    public LockContentionStressMode() {
-        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
-
-        final PackageManager pm = context.getPackageManager();
-        createLockContentionThread("Contention-PM", pm::holdLock);
-
-        final WindowManager wm = context.getSystemService(WindowManager.class);
-        createLockContentionThread("Contention-WM", wm::holdLock);
-
-        final ActivityManager am = context.getSystemService(ActivityManager.class);
-        createLockContentionThread("Contention-AM", am::holdLock);
-    }
-
-    private void createLockContentionThread(
-            String threadName, BiConsumer<IBinder, Integer> holdLockMethod) {
-        new Thread(
-                        () -> {
-                            while (true) {
-                                lockContentionUntilToldToLeave(holdLockMethod);
-                            }
-                        },
-                        threadName)
-                .start();
-    }
-
-    // Creates a lock contention for a single invocation of the test.
-    private void lockContentionUntilToldToLeave(BiConsumer<IBinder, Integer> holdLockMethod) {
-        try {
-            // Sync with the main thread before entering stress mode.
-            mEnterStress.await();
-
-            // While the main thread doesn't indicate that it wants to leave the stress mode...
-            while (mLeaveStress.getNumberWaiting() == 0) {
-                SystemClock.sleep(mPauseBetweenAttemptsMs);
-                if (Math.random() < mProbabilityOfHoldingLock) {
-                    holdLockMethod.accept(
-                            mHoldLockToken, (int) (Math.random() * mMaxHoldingLockTimeMs));
-                }
-            }
-
-            // Sync with the main thread after leaving stress mode.
-            mLeaveStress.await();
-        } catch (InterruptedException | BrokenBarrierException e) {
-            throw new RuntimeException(e);
-        }
-    }
 
     @Override
-    public void testRunStarted(Description description) throws Exception {
-        super.testRunStarted(description);
-        final Bundle args = InstrumentationRegistry.getArguments();
+    protected List<StressEngine.LoadSpec> createLoads(Bundle args) {
         final String intensity = args.getString("lock-stress-intensity", "P50");
         Log.e(TAG, "lock-stress-intensity: " + intensity);
+        final int pauseBetweenAttemptsMs;
+        final double probabilityOfHoldingLock;
+        final int maxHoldingLockTimeMs;
         switch (intensity) {
             case "P50":
-                mPauseBetweenAttemptsMs = 5;
-                mProbabilityOfHoldingLock = 0.5;
-                mMaxHoldingLockTimeMs = 100;
+                pauseBetweenAttemptsMs = 5;
+                probabilityOfHoldingLock = 0.5;
+                maxHoldingLockTimeMs = 100;
                 break;
             case "P95":
-                mPauseBetweenAttemptsMs = 0;
-                mProbabilityOfHoldingLock = 1;
-                mMaxHoldingLockTimeMs = 100;
+                pauseBetweenAttemptsMs = 0;
+                probabilityOfHoldingLock = 1;
+                maxHoldingLockTimeMs = 100;
                 break;
             default:
                 throw new IllegalArgumentException(
                         "lock-stress-intensity: incorrect value: " + intensity);
         }
-    }
-
-    @Override
-    public final void testStarted(Description description) throws Exception {
         Log.d(
                 TAG,
-                "LockContentionStressMode.testStarted: entering lock contention mode: "
-                        + "mPauseBetweenAttemptsMs="
-                        + mPauseBetweenAttemptsMs
+                "LockContentionStressMode: mPauseBetweenAttemptsMs="
+                        + pauseBetweenAttemptsMs
                         + ", mProbabilityOfHoldingLock="
-                        + mProbabilityOfHoldingLock
+                        + probabilityOfHoldingLock
                         + ", mMaxHoldingLockTimeMs="
-                        + mMaxHoldingLockTimeMs);
-
-        getInstrumentation().getUiAutomation().adoptShellPermissionIdentity();
-        mHoldLockToken = getInstrumentation().getContext().getPackageManager().getHoldLockToken();
-        getInstrumentation().getUiAutomation().dropShellPermissionIdentity();
-
-        mEnterStress.await(); // Sync with stress threads before entering stress mode.
-        super.testStarted(description);
+                        + maxHoldingLockTimeMs);
+
+        // One thread contending for each lock, continuously from the start to the end of a test.
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        return Arrays.asList(
+                createLoad("contention_pm", LockContentionLoadGenerator.Target.PM,
+                        instrumentation, pauseBetweenAttemptsMs, probabilityOfHoldingLock,
+                        maxHoldingLockTimeMs),
+                createLoad("contention_wm", LockContentionLoadGenerator.Target.WM,
+                        instrumentation, pauseBetweenAttemptsMs, probabilityOfHoldingLock,
+                        maxHoldingLockTimeMs),
+                createLoad("contention_am", LockContentionLoadGenerator.Target.AM,
+                        instrumentation, pauseBetweenAttemptsMs, probabilityOfHoldingLock,
+                        maxHoldingLockTimeMs));
     }
 
-    @Override
-    public final void testFinished(Description description) throws Exception {
-        mLeaveStress.await(); // Sync with stress threads before leaving stress mode.
-        mHoldLockToken = null;
-        super.testFinished(description);
-        Log.d(TAG, "LockContentionStressMode.testFinished: leaving lock contention mode");
+    private static StressEngine.LoadSpec createLoad(
+            String name,
+            LockContentionLoadGenerator.Target target,
+            Instrumentation instrumentation,
+            int pauseBetweenAttemptsMs,
+            double probabilityOfHoldingLock,
+            int maxHoldingLockTimeMs) {
+        return new StressEngine.LoadSpec(
+                name,
+                new LockContentionLoadGenerator(
+                        instrumentation,
+                        target,
+                        pauseBetweenAttemptsMs,
+                        probabilityOfHoldingLock,
+                        maxHoldingLockTimeMs),
+                /* threads */ 1,
+                /* dutyCycle */ 1,
+                /* periodMs */ 1);
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+/**
+ * Keeps {@code sizeMb} of memory resident and dirty by writing to random pages of it, which
+ * stresses the memory bandwidth and, for large sizes, the memory reclaim.
+ */
+public class MemoryLoadGenerator implements LoadGenerator {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    private final int mSizeMb;
+    private byte[][] mChunks;
+
+    public MemoryLoadGenerator(int sizeMb) {
+        if (sizeMb < 1) {
+            throw new IllegalArgumentException("Invalid memory size " + sizeMb);
+        }
+        mSizeMb = sizeMb;
+    }
+
+    @Override
+    public void setUp() {
+        mChunks = new byte[mSizeMb][];
+        for (int i = 0; i < mSizeMb; i++) {
+            mChunks[i] = new byte[CHUNK_SIZE];
+            // Touch every page so the whole buffer is resident from the start.
+            for (int offset = 0; offset < CHUNK_SIZE; offset += PAGE_SIZE) {
+                mChunks[i][offset] = 1;
+            }
+        }
+    }
+
+    @Override
+    public long generate(StressEngine.Burst burst) {
+        byte[][] chunks = mChunks;
+        long pages = 0;
+        while (!burst.isOver()) {
+            byte[] chunk = chunks[burst.getRandom().nextInt(chunks.length)];
+            int start = burst.getRandom().nextInt(PAGES_PER_CHUNK) * PAGE_SIZE;
+            byte value = (byte) pages;
+            for (int i = start; i < start + PAGE_SIZE; i++) {
+                chunk[i] = value;
+            }
+            pages++;
+        }
+        return pages;
+    }
+
+    @Override
+    public void tearDown() {
+        mChunks = null;
+    }
+
+    @Override
+    public String getUnit() {
+        return "pages";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * Stress mode generating the mix of background load described by the "stress-profile" argument,
+ * see {@link StressProfile} for the format. e.g. "cpu:threads=2,duty=0.5;io:duty=0.2".
+ */
+public class ProfileStressTestMode extends BaseStressTestMode {
+    public static final String PROFILE_ARG = "stress-profile";
+
+    @Override
+    protected List<StressEngine.LoadSpec> createLoads(Bundle args) {
+        String profile = args.getString(PROFILE_ARG);
+        if (profile == null) {
+            throw new IllegalArgumentException(
+                    String.format("Please supply the load to generate with %s.", PROFILE_ARG));
+        }
+        return StressProfile.parse(profile);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StressEngine runs a mix of {@link LoadGenerator}s in the background, each one from its own
+ * threads with its own duty cycle.
+ *
+ * <p>Every thread of a load is busy for {@code dutyCycle * periodMs} at the start of each period
+ * and idles for the rest of it. Periods are scheduled on absolute deadlines so the duty cycle does
+ * not drift, and a period which overran is skipped rather than caught up. A load with a duty
+ * cycle of 1 gets a single burst lasting until the engine is stopped.
+ *
+ * <p>Each thread has its own {@link Random} seeded from the engine seed, the load index and the
+ * thread index, so a run can be replayed with the same seed. The achieved duty cycle and amount
+ * of work of every load are available from {@link #getMetrics()} once stopped.
+ */
+public class StressEngine {
+    private static final String TAG = StressEngine.class.getSimpleName();
+
+    public static final String METRIC_PREFIX = "stress";
+    public static final String DUTY_CYCLE_SUFFIX = "duty_cycle";
+    public static final String BUSY_TIME_SUFFIX = "busy_ms";
+    public static final String RATE_SUFFIX = "per_sec";
+    public static final String ERRORS_SUFFIX = "errors";
+
+    private static final long STOP_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    // Pause after a failed burst, so a failing generator does not spin.
+    private static final long ERROR_BACKOFF_MS = 100;
+
+    /** A load of the stress profile. */
+    public static final class LoadSpec {
+        private final String mName;
+        private final LoadGenerator mGenerator;
+        private final int mThreads;
+        private final double mDutyCycle;
+        private final long mPeriodMs;
+
+        // Achieved load, reset when the engine starts.
+        private final AtomicLong mBusyTimeMs = new AtomicLong();
+        private final AtomicLong mWork = new AtomicLong();
+        private final AtomicInteger mErrors = new AtomicInteger();
+
+        /**
+         * @param name name of the load in the metrics.
+         * @param generator the load to generate.
+         * @param threads number of threads generating the load.
+         * @param dutyCycle fraction of every period the threads are busy, in (0, 1].
+         * @param periodMs length of a period.
+         */
+        public LoadSpec(
+                String name, LoadGenerator generator, int threads, double dutyCycle,
+                long periodMs) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Invalid thread count for " + name);
+            }
+            if (!(dutyCycle > 0 && dutyCycle <= 1)) {
+                throw new IllegalArgumentException("Invalid duty cycle for " + name);
+            }
+            if (periodMs < 1) {
+                throw new IllegalArgumentException("Invalid period for " + name);
+            }
+            mName = name;
+            mGenerator = generator;
+            mThreads = threads;
+            mDutyCycle = dutyCycle;
+            mPeriodMs = periodMs;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public LoadGenerator getGenerator() {
+            return mGenerator;
+        }
+
+        public int getThreads() {
+            return mThreads;
+        }
+
+        public double getDutyCycle() {
+            return mDutyCycle;
+        }
+
+        public long getPeriodMs() {
+            return mPeriodMs;
+        }
+    }
+
+    /** The busy part of a period, given to {@link LoadGenerator#generate}. */
+    public final class Burst {
+        private final Random mRandom;
+        private final long mDeadlineMs;
+
+        private Burst(Random random, long deadlineMs) {
+            mRandom = random;
+            mDeadlineMs = deadlineMs;
+        }
+
+        /** Returns the random generator of the thread, seeded from the engine seed. */
+        public Random getRandom() {
+            return mRandom;
+        }
+
+        /** Returns true once the burst should end, or the engine is stopping. */
+        public boolean isOver() {
+            return !mRunning || uptimeMillis() >= mDeadlineMs;
+        }
+
+        /** Returns the time left in the burst, {@link Long#MAX_VALUE} if not bounded. */
+        public long getRemainingMs() {
+            if (!mRunning) {
+                return 0;
+            }
+            return mDeadlineMs == Long.MAX_VALUE
+                    ? Long.MAX_VALUE
+                    : Math.max(0, mDeadlineMs - uptimeMillis());
+        }
+    }
+
+    private final List<LoadSpec> mLoads;
+    private final long mSeed;
+    private final Object mStopLock = new Object();
+
+    private volatile boolean mRunning = false;
+    private ExecutorService mExecutorService;
+    private long mStartTimeMs;
+    private long mStopTimeMs;
+
+    public StressEngine(List<LoadSpec> loads, long seed) {
+        mLoads = Collections.unmodifiableList(new ArrayList<>(loads));
+        mSeed = seed;
+    }
+
+    /** Returns the loads of the engine. */
+    public List<LoadSpec> getLoads() {
+        return mLoads;
+    }
+
+    /** Returns the seed of the random generators. */
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /** Set up the generators and start generating the load. */
+    public synchronized void start() throws Exception {
+        if (mRunning) {
+            return;
+        }
+        int threadCount = 0;
+        for (LoadSpec load : mLoads) {
+            load.mGenerator.setUp();
+            load.mBusyTimeMs.set(0);
+            load.mWork.set(0);
+            load.mErrors.set(0);
+            threadCount += load.mThreads;
+        }
+        Log.i(TAG, String.format("Starting %d loads on %d threads with seed %d.",
+                mLoads.size(), threadCount, mSeed));
+        mRunning = true;
+        mStartTimeMs = uptimeMillis();
+        mExecutorService = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        for (int i = 0; i < mLoads.size(); i++) {
+            LoadSpec load = mLoads.get(i);
+            for (int thread = 0; thread < load.mThreads; thread++) {
+                Random random = new Random(mSeed + 1000003L * i + thread);
+                mExecutorService.execute(() -> runLoad(load, random));
+            }
+        }
+    }
+
+    /** Stop generating the load, wait for the threads to end and tear down the generators. */
+    public synchronized void stop() throws Exception {
+        if (!mRunning) {
+            return;
+        }
+        synchronized (mStopLock) {
+            mRunning = false;
+            mStopLock.notifyAll();
+        }
+        mExecutorService.shutdown();
+        if (!mExecutorService.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            Log.w(TAG, "Timed out waiting for the stress threads to end.");
+            mExecutorService.shutdownNow();
+        }
+        mExecutorService = null;
+        mStopTimeMs = uptimeMillis();
+        for (LoadSpec load : mLoads) {
+            load.mGenerator.tearDown();
+        }
+    }
+
+    /** Returns true while the engine is generating load. */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the achieved load of the last run, keyed as stress_[name]_duty_cycle,
+     * stress_[name]_busy_ms, stress_[name]_[unit], stress_[name]_[unit]_per_sec and
+     * stress_[name]_errors.
+     */
+    public Map<String, Double> getMetrics() {
+        long elapsedMs = (mRunning ? uptimeMillis() : mStopTimeMs) - mStartTimeMs;
+        Map<String, Double> metrics = new HashMap<>();
+        for (LoadSpec load : mLoads) {
+            String unit = load.mGenerator.getUnit();
+            long busyTimeMs = load.mBusyTimeMs.get();
+            long work = load.mWork.get();
+            metrics.put(key(load, BUSY_TIME_SUFFIX), (double) busyTimeMs);
+            metrics.put(key(load, unit), (double) work);
+            metrics.put(key(load, ERRORS_SUFFIX), (double) load.mErrors.get());
+            if (elapsedMs > 0) {
+                metrics.put(key(load, DUTY_CYCLE_SUFFIX),
+                        (double) busyTimeMs / (elapsedMs * load.mThreads));
+                metrics.put(key(load, unit + "_" + RATE_SUFFIX), work * 1000.0 / elapsedMs);
+            }
+        }
+        return metrics;
+    }
+
+    private static String key(LoadSpec load, String suffix) {
+        return String.join("_", METRIC_PREFIX, load.mName, suffix);
+    }
+
+    /** Run the periods of a load on the current thread until the engine is stopped. */
+    private void runLoad(LoadSpec load, Random random) {
+        long busyMs = (long) (load.mPeriodMs * load.mDutyCycle);
+        boolean continuous = load.mDutyCycle >= 1;
+        long periodStart = uptimeMillis();
+        while (mRunning) {
+            Burst burst = new Burst(random, continuous ? Long.MAX_VALUE : periodStart + busyMs);
+            long burstStart = uptimeMillis();
+            try {
+                load.mWork.addAndGet(load.mGenerator.generate(burst));
+            } catch (Exception e) {
+                load.mErrors.incrementAndGet();
+                Log.e(TAG, String.format("Failed to generate the %s load.", load.mName), e);
+                load.mBusyTimeMs.addAndGet(uptimeMillis() - burstStart);
+                waitUntil(uptimeMillis() + ERROR_BACKOFF_MS);
+                periodStart = uptimeMillis();
+                continue;
+            }
+            load.mBusyTimeMs.addAndGet(uptimeMillis() - burstStart);
+            if (continuous) {
+                continue;
+            }
+            periodStart += load.mPeriodMs;
+            long now = uptimeMillis();
+            if (now >= periodStart + busyMs) {
+                // The burst overran the next one, start a new period instead of catching up.
+                periodStart = now;
+                continue;
+            }
+            waitUntil(periodStart);
+        }
+    }
+
+    private void waitUntil(long timeMs) {
+        synchronized (mStopLock) {
+            long remaining;
+            while (mRunning && (remaining = timeMs - uptimeMillis()) > 0) {
+                try {
+                    mStopLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns the clock of the scheduler. */
+    @VisibleForTesting
+    protected long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.device.stressmodes;
+
+import androidx.test.InstrumentationRegistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses a declarative stress profile into the loads of a {@link StressEngine}.
+ *
+ * <p>A profile is a ';' separated list of loads, each being a generator type followed by optional
+ * ',' separated parameters, e.g. {@code cpu:threads=2,duty=0.5;io:duty=0.2,block_kb=128}.
+ * Parameters common to all the loads are:
+ *
+ * <ul>
+ *   <li>{@code name}: name of the load in the metrics, the type by default.
+ *   <li>{@code threads}: number of threads generating the load, 1 by default.
+ *   <li>{@code duty}: fraction of each period the threads are busy, 1 by default.
+ *   <li>{@code period_ms}: length of a period, 100 ms by default.
+ * </ul>
+ *
+ * The other parameters are passed to the generator. New generators are plugged in with {@link
+ * #registerGenerator}.
+ */
+public final class StressProfile {
+
+    public static final String NAME_PARAM = "name";
+    public static final String THREADS_PARAM = "threads";
+    public static final String DUTY_CYCLE_PARAM = "duty";
+    public static final String PERIOD_PARAM = "period_ms";
+
+    private static final long DEFAULT_PERIOD_MS = 100;
+
+    /** Creates a generator from the parameters of a load of the profile. */
+    public interface GeneratorFactory {
+        LoadGenerator create(Params params);
+    }
+
+    private static final Map<String, GeneratorFactory> sFactories = new HashMap<>();
+
+    static {
+        registerGenerator("cpu", params -> new CpuLoadGenerator());
+        registerGenerator("memory", params -> new MemoryLoadGenerator(params.getInt("mb", 64)));
+        registerGenerator("io", params -> new IoLoadGenerator(
+                new File(params.getString("dir", InstrumentationRegistry.getInstrumentation()
+                        .getContext().getCacheDir().getAbsolutePath())),
+                params.getInt("file_mb", 16),
+                params.getInt("block_kb", 64)));
+        registerGenerator("binder", params -> new BinderLoadGenerator(
+                InstrumentationRegistry.getInstrumentation().getContext()));
+        registerGenerator("lock", params -> new LockContentionLoadGenerator(
+                InstrumentationRegistry.getInstrumentation(),
+                LockContentionLoadGenerator.Target.valueOf(
+                        params.getString("target", "pm").toUpperCase(Locale.ROOT)),
+                params.getInt("pause_ms", 5),
+                params.getDouble("probability", 0.5),
+                params.getInt("max_hold_ms", 100)));
+    }
+
+    private StressProfile() {}
+
+    /** Register the factory of a generator type, replacing any previous one. */
+    public static synchronized void registerGenerator(String type, GeneratorFactory factory) {
+        sFactories.put(type, factory);
+    }
+
+    /** Parse the profile into loads, throws IllegalArgumentException if it is malformed. */
+    public static synchronized List<StressEngine.LoadSpec> parse(String profile) {
+        List<StressEngine.LoadSpec> loads = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String load : profile.split(";")) {
+            load = load.trim();
+            if (load.isEmpty()) {
+                continue;
+            }
+            int separator = load.indexOf(':');
+            String type = (separator < 0 ? load : load.substring(0, separator)).trim();
+            Params params = new Params(separator < 0 ? "" : load.substring(separator + 1));
+            GeneratorFactory factory = sFactories.get(type);
+            if (factory == null) {
+                throw new IllegalArgumentException(
+                        String.format("Unknown load \"%s\", expected one of %s.", type,
+                                sFactories.keySet()));
+            }
+            String name = params.getString(NAME_PARAM, type);
+            if (!names.add(name)) {
+                throw new IllegalArgumentException(String.format(
+                        "Duplicate load name \"%s\", set a different name=.", name));
+            }
+            loads.add(new StressEngine.LoadSpec(
+                    name,
+                    factory.create(params),
+                    params.getInt(THREADS_PARAM, 1),
+                    params.getDouble(DUTY_CYCLE_PARAM, 1),
+                    params.getLong(PERIOD_PARAM, DEFAULT_PERIOD_MS)));
+        }
+        return loads;
+    }
+
+    /** The key=value parameters of a load. */
+    public static final class Params {
+        private final Map<String, String> mValues = new HashMap<>();
+
+        Params(String params) {
+            for (String param : params.split(",")) {
+                param = param.trim();
+                if (param.isEmpty()) {
+                    continue;
+                }
+                int separator = param.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException(
+                            String.format("Malformed parameter \"%s\", expected key=value.",
+                                    param));
+                }
+                mValues.put(param.substring(0, separator).trim(),
+                        param.substring(separator + 1).trim());
+            }
+        }
+
+        public String getString(String key, String defaultValue) {
+            return mValues.getOrDefault(key, defaultValue);
+        }
+
+        public int getInt(String key, int defaultValue) {
+            String value = mValues.get(key);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        public long getLong(String key, long defaultValue) {
+            String value = mValues.get(key);
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+
+        public double getDouble(String key, double defaultValue) {
+            String value = mValues.get(key);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+    }
+}
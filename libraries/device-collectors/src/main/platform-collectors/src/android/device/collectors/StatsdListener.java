@@ -50,7 +50,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -60,6 +66,9 @@ public class StatsdListener extends BaseMetricListener {
 
     static final String OPTION_CONFIGS_RUN_LEVEL = "statsd-configs-run-level";
     static final String OPTION_CONFIGS_TEST_LEVEL = "statsd-configs-test-level";
+    // Time in ms after which the reports which have not been retrieved yet are given up on, and
+    // their configs removed. The reports are waited for as long as needed by default.
+    static final String OPTION_REPORT_PULL_TIMEOUT_MS = "statsd-report-pull-timeout-ms";
 
     // Sub-directory within the test APK's assets/ directory to look for configs.
     static final String CONFIG_SUB_DIRECTORY = "statsd-configs";
@@ -85,6 +94,8 @@ public class StatsdListener extends BaseMetricListener {
     static final int TEST_EVENT_LABEL = 11;
     // A short delay after pushing the AppBreadcrumbReported event so that metrics can be dumped.
     static final long METRIC_PULL_DELAY = TimeUnit.SECONDS.toMillis(1);
+    // Maximum number of reports retrieved from statsd at the same time.
+    static final int MAX_REPORT_PULL_THREADS = 4;
 
     // Configs used for the test run and each test, respectively.
     private Map<String, StatsdConfigProto.StatsdConfig> mRunLevelConfigs =
@@ -102,6 +113,9 @@ public class StatsdListener extends BaseMetricListener {
     // Cached stats manager instance.
     private StatsManager mStatsManager;
 
+    // Time to wait for the reports, 0 to wait for as long as needed.
+    private long mReportPullTimeoutMs = 0;
+
     /** Register the test run configs with {@link StatsManager} before the test run starts. */
     @Override
     public void onTestRunStart(DataRecord runData, Description description) {
@@ -109,6 +123,8 @@ public class StatsdListener extends BaseMetricListener {
         // registered when the constructor of this class is called.
         mRunLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_RUN_LEVEL));
         mTestLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_TEST_LEVEL));
+        mReportPullTimeoutMs =
+                Long.parseLong(getArguments().getString(OPTION_REPORT_PULL_TIMEOUT_MS, "0"));
 
         mRunLevelConfigIds = registerConfigsWithStatsManager(mRunLevelConfigs);
 
@@ -202,9 +218,14 @@ public class StatsdListener extends BaseMetricListener {
     }
 
     /**
-     * For a set of statsd config ids, retrieve the config reports from {@link StatsManager}, remove
-     * the config and dump the reports into the designated directory on the device's external
-     * storage.
+     * For a set of statsd config ids, retrieve the config reports from {@link StatsManager}, dump
+     * the reports into the designated directory on the device's external storage and remove the
+     * configs.
+     *
+     * <p>The reports are retrieved on a bounded pool so that the collection time does not grow
+     * with every config, and each report is written as it arrives once it parsed, without being
+     * serialized again. The configs are removed once all the retrievals are done or timed out,
+     * including those which failed.
      *
      * @param configIds Map of (config name, config Id)
      * @param directory relative directory on external storage to dump the report in. Each report
@@ -215,60 +236,149 @@ public class StatsdListener extends BaseMetricListener {
      */
     private Map<String, File> pullReportsAndRemoveConfigs(
             final Map<String, Long> configIds, Path directory, String suffix) {
+        Map<String, File> savedConfigFiles = new HashMap<String, File>();
+        if (configIds.isEmpty()) {
+            return savedConfigFiles;
+        }
         File externalStorage = Environment.getExternalStorageDirectory();
         File saveDirectory = new File(externalStorage, directory.toString());
         if (!saveDirectory.isDirectory()) {
             saveDirectory.mkdirs();
         }
-        Map<String, File> savedConfigFiles = new HashMap<String, File>();
+        ExecutorService pullExecutor =
+                Executors.newFixedThreadPool(Math.min(configIds.size(), MAX_REPORT_PULL_THREADS));
+        // The shell permission identity applies to the whole process, so it is held for all the
+        // pulls rather than adopted and dropped by each of them.
         adoptShellPermissionIdentity();
-        for (String configName : configIds.keySet()) {
-            // Dump the metric report to external storage.
-            com.android.os.nano.StatsLog.ConfigMetricsReportList reportList;
-            try {
-                Log.i(
-                        LOG_TAG,
-                        String.format(
-                                "Pulling metrics for config %s with ID %d.",
-                                configName, configIds.get(configName)));
-                reportList =
-                        com.android.os.nano.StatsLog.ConfigMetricsReportList.parseFrom(
-                                getStatsReports(configIds.get(configName)));
-                Log.i(
-                        LOG_TAG,
-                        String.format(
-                                "Found %d metric %s from config %s.",
-                                reportList.reports.length,
-                                reportList.reports.length == 1 ? "report" : "reports",
-                                configName));
+        Map<String, Future<File>> pulls = new HashMap<String, Future<File>>();
+        Map<String, File> reportFiles = new HashMap<String, File>();
+        Map<String, AtomicBoolean> abandonedPulls = new HashMap<String, AtomicBoolean>();
+        try {
+            for (String configName : configIds.keySet()) {
                 File reportFile =
                         new File(
                                 saveDirectory,
                                 REPORT_FILENAME_PREFIX + configName + suffix + PROTO_EXTENSION);
-                writeToFile(reportFile, serialize(reportList));
-                savedConfigFiles.put(configName, reportFile);
-            } catch (StatsUnavailableException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Failed to retrieve metrics for config %s due to %s.",
-                                configName, e.toString()));
-            } catch (InvalidProtocolBufferNanoException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Unable to parse report for config %s. Details: %s.",
-                                configName, e.toString()));
-            } catch (IOException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Failed to write metric report for config %s to device. "
-                                        + "Details: %s.",
-                                configName, e.toString()));
+                AtomicBoolean abandoned = new AtomicBoolean(false);
+                reportFiles.put(configName, reportFile);
+                abandonedPulls.put(configName, abandoned);
+                pulls.put(
+                        configName,
+                        pullExecutor.submit(
+                                () ->
+                                        pullReport(
+                                                configName,
+                                                configIds.get(configName),
+                                                reportFile,
+                                                abandoned)));
             }
+            long deadline = SystemClock.uptimeMillis() + mReportPullTimeoutMs;
+            for (String configName : pulls.keySet()) {
+                try {
+                    Future<File> pull = pulls.get(configName);
+                    File reportFile =
+                            mReportPullTimeoutMs > 0
+                                    ? pull.get(
+                                            Math.max(0, deadline - SystemClock.uptimeMillis()),
+                                            TimeUnit.MILLISECONDS)
+                                    : pull.get();
+                    if (reportFile != null) {
+                        savedConfigFiles.put(configName, reportFile);
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Failed to retrieve metrics for config %s due to %s.",
+                                    configName, e.toString()));
+                } catch (TimeoutException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Gave up on the metrics for config %s after %d ms.",
+                                    configName, mReportPullTimeoutMs));
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "Interrupted while retrieving the metric reports.", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            // Delete what the unfinished pulls wrote before removing their configs. The pulls
+            // delete what they write later.
+            for (String configName : pulls.keySet()) {
+                if (!pulls.get(configName).isDone()) {
+                    abandonedPulls.get(configName).set(true);
+                    reportFiles.get(configName).delete();
+                }
+            }
+            pullExecutor.shutdownNow();
+            removeConfigs(configIds);
+            dropShellPermissionIdentity();
+        }
+        return savedConfigFiles;
+    }
 
-            // Remove the statsd config.
+    /**
+     * Retrieve the report of a config from {@link StatsManager} and write it to the report file,
+     * unless the pull is abandoned or the report can't be parsed. A report written while the pull
+     * is abandoned is deleted.
+     *
+     * @return the report file, or null if the report could not be retrieved, parsed or written.
+     */
+    private File pullReport(
+            String configName, long configId, File reportFile, AtomicBoolean abandoned) {
+        try {
+            Log.i(
+                    LOG_TAG,
+                    String.format(
+                            "Pulling metrics for config %s with ID %d.", configName, configId));
+            byte[] reports = getStatsReports(configId);
+            // Only parsed to check the report, which is written as retrieved.
+            com.android.os.nano.StatsLog.ConfigMetricsReportList reportList =
+                    com.android.os.nano.StatsLog.ConfigMetricsReportList.parseFrom(reports);
+            Log.i(
+                    LOG_TAG,
+                    String.format(
+                            "Found %d metric %s from config %s.",
+                            reportList.reports.length,
+                            reportList.reports.length == 1 ? "report" : "reports",
+                            configName));
+            if (abandoned.get()) {
+                return null;
+            }
+            return writeToFile(reportFile, reports);
+        } catch (StatsUnavailableException e) {
+            Log.e(
+                    LOG_TAG,
+                    String.format(
+                            "Failed to retrieve metrics for config %s due to %s.",
+                            configName, e.toString()));
+        } catch (InvalidProtocolBufferNanoException e) {
+            Log.e(
+                    LOG_TAG,
+                    String.format(
+                            "Unable to parse report for config %s. Details: %s.",
+                            configName, e.toString()));
+        } catch (IOException e) {
+            Log.e(
+                    LOG_TAG,
+                    String.format(
+                            "Failed to write metric report for config %s to device. "
+                                    + "Details: %s.",
+                            configName, e.toString()));
+        } finally {
+            if (abandoned.get()) {
+                // The report is not used, delete what was written of it.
+                reportFile.delete();
+            }
+        }
+        return null;
+    }
+
+    /** Remove a set of statsd configs from {@link StatsManager}. */
+    private void removeConfigs(final Map<String, Long> configIds) {
+        for (String configName : configIds.keySet()) {
             try {
                 Log.i(
                         LOG_TAG,
@@ -283,8 +393,6 @@ public class StatsdListener extends BaseMetricListener {
                                 "Unable to remove config %s due to %s.", configName, e.toString()));
             }
         }
-        dropShellPermissionIdentity();
-        return savedConfigFiles;
     }
 
     /**
@@ -358,7 +466,7 @@ public class StatsdListener extends BaseMetricListener {
      */
     @VisibleForTesting
     protected void removeStatsConfig(long configKey) throws StatsUnavailableException {
-        mStatsManager.removeConfig(configKey);
+        getStatsManager().removeConfig(configKey);
     }
 
     /**
@@ -368,7 +476,7 @@ public class StatsdListener extends BaseMetricListener {
      */
     @VisibleForTesting
     protected byte[] getStatsReports(long configKey) throws StatsUnavailableException {
-        return mStatsManager.getReports(configKey);
+        return getStatsManager().getReports(configKey);
     }
 
     /**
@@ -15,16 +15,37 @@
  */
 package android.device.collectors;
 
+import android.os.Bundle;
+
+import androidx.annotation.VisibleForTesting;
+
 import com.android.helpers.UiActionLatencyHelper;
 
 /**
  * A listener that captures latency for various system actions.
  *
+ * <p>The latencies of each action are reported as a repeated metric, kept as primitives until the
+ * results are built.
+ *
  * <p>Do NOT throw exception anywhere in this class. We don't want to halt the test when metrics
  * collection fails.
  */
 public class UiActionLatencyListener extends BaseCollectionListener<StringBuilder> {
+    private UiActionLatencyHelper mLatencyHelper;
+
     public UiActionLatencyListener() {
-        createHelperInstance(new UiActionLatencyHelper());
+        mLatencyHelper = new UiActionLatencyHelper();
+        createHelperInstance(mLatencyHelper);
+    }
+
+    @VisibleForTesting
+    UiActionLatencyListener(Bundle args, UiActionLatencyHelper helper) {
+        super(args, helper);
+        mLatencyHelper = helper;
+    }
+
+    @Override
+    protected void collectMetrics(DataRecord data) {
+        mLatencyHelper.collectLatencies(data::addRepeatedLongMetric);
     }
 }
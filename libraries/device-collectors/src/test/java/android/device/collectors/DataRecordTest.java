@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Android Unit tests for {@link DataRecord}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.DataRecordTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataRecordTest {
+
+    /** Test numeric metrics are reported as strings by default. */
+    @Test
+    public void testNumericMetricsAsStrings() {
+        DataRecord record = new DataRecord();
+        record.addLongMetric("count", 42);
+        record.addDoubleMetric("ratio", 0.5);
+        record.addRepeatedLongMetric("samples", 1);
+        record.addRepeatedLongMetric("samples", 2);
+        record.addRepeatedLongMetric("samples", 3);
+        record.addStringMetric("name", "value");
+        assertTrue(record.hasMetrics());
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals("42", bundle.getString("count"));
+        assertEquals("0.5", bundle.getString("ratio"));
+        assertEquals("1,2,3", bundle.getString("samples"));
+        assertEquals("value", bundle.getString("name"));
+    }
+
+    /** Test numeric metrics keep their type when the typed bundle is enabled. */
+    @Test
+    public void testTypedBundle() {
+        DataRecord record = new DataRecord();
+        record.setTypedBundle(true);
+        record.addLongMetric("count", 42);
+        record.addDoubleMetric("ratio", 0.5);
+        record.addRepeatedDoubleMetric("latency", 1.5);
+        record.addRepeatedDoubleMetric("latency", 2.5);
+        record.addStringMetric("name", "value");
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(42L, bundle.getLong("count"));
+        assertEquals(0.5, bundle.getDouble("ratio"), 0);
+        assertArrayEquals(new double[] {1.5, 2.5}, bundle.getDoubleArray("latency"), 0);
+        assertEquals("value", bundle.getString("name"));
+        // The string form is still available to the listeners.
+        assertEquals("1.5,2.5", record.getStringMetrics().get("latency"));
+    }
+
+    /** Test a single metric replaces the previous value and clear drops the numeric metrics. */
+    @Test
+    public void testReplaceAndClear() {
+        DataRecord record = new DataRecord();
+        record.addLongMetric("count", 1);
+        record.addLongMetric("count", 2);
+        assertEquals("2", record.createBundleFromMetrics().getString("count"));
+
+        record.clear();
+        assertFalse(record.hasMetrics());
+    }
+
+    /** Test the proto transport reports the encoded metrics under a single binary key. */
+    @Test
+    public void testProtoStatusKey() {
+        DataRecord record = new DataRecord();
+        record.setProtoTransport(true, "ShowmapSnapshotListener", null);
+        record.addLongMetric("showmap_pss_bytes_system_server", 1024);
+        record.addStringMetric("showmap_name", "value");
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(1, bundle.size());
+        assertNotNull(bundle.getByteArray("ShowmapSnapshotListener_metrics_proto"));
+    }
+
+    /** Test the protos of several listeners are kept apart once their bundles are merged. */
+    @Test
+    public void testProtoKeysOfListeners() {
+        DataRecord showmap = new DataRecord();
+        showmap.setProtoTransport(true, "ShowmapSnapshotListener", null);
+        showmap.addLongMetric("showmap_pss_bytes_system_server", 1024);
+        DataRecord statsd = new DataRecord();
+        statsd.setProtoTransport(true, "StatsdListener", null);
+        statsd.addStringMetric("statsd_config", "config");
+
+        Bundle bundle = new Bundle();
+        bundle.putAll(showmap.createBundleFromMetrics());
+        bundle.putAll(statsd.createBundleFromMetrics());
+        assertEquals(2, bundle.size());
+        assertArrayEquals(showmap.toProto(),
+                bundle.getByteArray(DataRecord.getProtoKey("ShowmapSnapshotListener", false)));
+        assertArrayEquals(statsd.toProto(),
+                bundle.getByteArray(DataRecord.getProtoKey("StatsdListener", false)));
+    }
+
+    /** Test the file metrics are still reported as string keys with the proto transport. */
+    @Test
+    public void testProtoKeepsFileMetrics() {
+        DataRecord record = new DataRecord();
+        record.setProtoTransport(true, "PerfettoListener", null);
+        record.addFileMetric("perfetto_file_path", new File("/data/local/tmp/trace.pb"));
+        record.addLongMetric("perfetto_trace_size", 1024);
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(2, bundle.size());
+        assertEquals("/data/local/tmp/trace.pb", bundle.getString("perfetto_file_path"));
+        assertArrayEquals(record.toProto(),
+                bundle.getByteArray(DataRecord.getProtoKey("PerfettoListener", false)));
+    }
+
+    /** Test the proto transport writes the encoded metrics to the given file. */
+    @Test
+    public void testProtoFile() throws IOException {
+        File protoFile = File.createTempFile("metrics", ".pb");
+        try {
+            DataRecord record = new DataRecord();
+            record.setProtoTransport(true, "StubTestMetricListener", protoFile);
+            record.addRepeatedDoubleMetric("latency", 1.5);
+            record.addBinaryMetric("binary", new byte[] {1, 2, 3});
+
+            Bundle bundle = record.createBundleFromMetrics();
+            assertEquals(1, bundle.size());
+            assertEquals(protoFile.getAbsolutePath(),
+                    bundle.getString("StubTestMetricListener_metrics_proto_file"));
+            assertArrayEquals(record.toProto(), Files.readAllBytes(protoFile.toPath()));
+        } finally {
+            protoFile.delete();
+        }
+    }
+}
@@ -38,8 +38,15 @@ import org.mockito.Mockito;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -365,6 +372,126 @@ public final class LogcatCollectorTest {
         }
     }
 
+    /** Test that the logcat of each test is sliced out of the logcat read during the run. */
+    @Test
+    public void testLogcatSlicedFromStream() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(LogcatCollector.STORE_SIZE_MB, "1");
+        LogcatCollector listener = initListener(args);
+        // A pipe in place of the logcat process, which also gets the markers of the collector.
+        PipedOutputStream logcat = new PipedOutputStream();
+        Mockito.doReturn(new PipedInputStream(logcat))
+                .when(listener)
+                .openLogcatStream(Mockito.anyString());
+        writeLines(
+                logcat,
+                "--------- beginning of main",
+                "01-02 10:00:00.500  100  100 I Tag: Before the run",
+                "01-02 10:00:01.500  100  100 I Tag: Test 1",
+                "01-02 10:00:02.500  100  100 I Tag: Between the tests",
+                "01-02 10:00:03.500  100  100 I Tag: Test 2",
+                "01-02 10:00:04.500  100  100 I Tag: After the tests");
+        Mockito.doAnswer(
+                        invocation -> {
+                            writeLines(
+                                    logcat,
+                                    "01-02 10:00:09.000  100  100 I LogcatCollector: "
+                                            + invocation.getArgument(0));
+                            return null;
+                        })
+                .when(listener)
+                .logReaderMarker(Mockito.anyString());
+        Mockito.doReturn(
+                        "01-02 10:00:00.000",
+                        "01-02 10:00:01.000",
+                        "01-02 10:00:02.000",
+                        "01-02 10:00:03.000",
+                        "01-02 10:00:04.000")
+                .when(listener)
+                .getLogcatStartTime();
+        Mockito.doReturn("01-02 10:00:02.000", "01-02 10:00:04.000")
+                .when(listener)
+                .getLogcatEndTime();
+
+        listener.testRunStarted(RUN_DESCRIPTION);
+        listener.testStarted(TEST_DESCRIPTION);
+        listener.testFinished(TEST_DESCRIPTION);
+        listener.testStarted(TEST_2_DESCRIPTION);
+        listener.testFinished(TEST_2_DESCRIPTION);
+        logcat.close();
+        listener.testRunFinished(new Result());
+        listener.instrumentationRunFinished(System.out, new Bundle(), new Result());
+
+        Mockito.verify(listener, Mockito.times(2)).logReaderMarker(Mockito.anyString());
+        ArgumentCaptor<Bundle> capture = ArgumentCaptor.forClass(Bundle.class);
+        Mockito.verify(mMockInstrumentation, Mockito.times(2))
+                .sendStatus(
+                        Mockito.eq(SendToInstrumentation.INST_STATUS_IN_PROGRESS),
+                        capture.capture());
+        List<Bundle> capturedBundles = capture.getAllValues();
+        assertEquals(
+                Arrays.asList("01-02 10:00:01.500  100  100 I Tag: Test 1"),
+                readLogcatMetric(capturedBundles.get(0)));
+        assertEquals(
+                Arrays.asList("01-02 10:00:03.500  100  100 I Tag: Test 2"),
+                readLogcatMetric(capturedBundles.get(1)));
+    }
+
+    /** Test that the logcat is read again from the device once the reader has stopped. */
+    @Test
+    public void testLogcatReadAgainAfterReaderStopped() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(LogcatCollector.STORE_SIZE_MB, "1");
+        LogcatCollector listener = initListener(args);
+        // A logcat process that dies as soon as it is read.
+        Mockito.doReturn(
+                        new InputStream() {
+                            @Override
+                            public int read() throws IOException {
+                                throw new IOException("logcat died");
+                            }
+                        })
+                .when(listener)
+                .openLogcatStream(Mockito.anyString());
+
+        listener.testRunStarted(RUN_DESCRIPTION);
+        listener.testStarted(TEST_DESCRIPTION);
+        SystemClock.sleep(10);
+        String logTag = this.getClass().getSimpleName() + "_testLogcatReadAgainAfterReaderStopped";
+        Log.i(logTag, "Message 1");
+        SystemClock.sleep(10);
+        listener.testFinished(TEST_DESCRIPTION);
+        listener.testRunFinished(new Result());
+        listener.instrumentationRunFinished(System.out, new Bundle(), new Result());
+
+        ArgumentCaptor<Bundle> capture = ArgumentCaptor.forClass(Bundle.class);
+        Mockito.verify(mMockInstrumentation)
+                .sendStatus(
+                        Mockito.eq(SendToInstrumentation.INST_STATUS_IN_PROGRESS),
+                        capture.capture());
+        String messageRegex = String.format(LOGCAT_REGEX_TEMPLATE, "I", logTag, "Message 1");
+        boolean hasMessage = false;
+        for (String line : readLogcatMetric(capture.getValue())) {
+            hasMessage |= line.matches(messageRegex);
+        }
+        assertTrue(hasMessage);
+    }
+
+    /** Writes the lines to the fake logcat stream. */
+    private static void writeLines(OutputStream logcat, String... lines) throws IOException {
+        for (String line : lines) {
+            logcat.write((line + "\n").getBytes());
+        }
+        logcat.flush();
+    }
+
+    /** Returns the lines of the only logcat file of the metrics. */
+    private static List<String> readLogcatMetric(Bundle metrics) throws Exception {
+        assertEquals(1, metrics.size());
+        String logPath = metrics.getString(metrics.keySet().iterator().next());
+        return Files.readAllLines(new File(logPath).toPath());
+    }
+
     /** Test that the logcat retrieved are within the time bounds of the test. */
     @Ignore
     @Test
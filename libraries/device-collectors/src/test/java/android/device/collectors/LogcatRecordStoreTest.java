@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link LogcatRecordStore}. */
+@RunWith(AndroidJUnit4.class)
+public final class LogcatRecordStoreTest {
+
+    private File mStoreDir;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        mStoreDir = Files.createTempDirectory("logcat-store").toFile();
+        mOutput = File.createTempFile("logcat", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mStoreDir.listFiles()) {
+            file.delete();
+        }
+        mStoreDir.delete();
+        mOutput.delete();
+    }
+
+    /** Test that the lines of the range are copied, with the lines without timestamps. */
+    @Test
+    public void testCopyRange() throws Exception {
+        LogcatRecordStore store = new LogcatRecordStore(mStoreDir, 1024 * 1024, 4);
+        append(store, "--------- beginning of main");
+        append(store, "01-02 10:00:00.000  100  100 I Tag: before");
+        append(store, "01-02 10:00:01.000  100  100 I Tag: first");
+        append(store, "--------- beginning of system");
+        // Slightly out of order, as the lines of the different buffers can be.
+        append(store, "01-02 10:00:00.999  200  200 I Tag: system");
+        append(store, "01-02 10:00:02.000  100  100 I Tag: last");
+        append(store, "01-02 10:00:03.000  100  100 I Tag: after");
+
+        int lines =
+                store.copyRange(
+                        LogcatRecordStore.parseTimestamp("01-02 10:00:01.000"),
+                        LogcatRecordStore.parseTimestamp("01-02 10:00:02.000"),
+                        mOutput);
+
+        assertEquals(
+                Arrays.asList(
+                        "01-02 10:00:01.000  100  100 I Tag: first",
+                        "--------- beginning of system",
+                        "01-02 10:00:02.000  100  100 I Tag: last"),
+                Files.readAllLines(mOutput.toPath()));
+        assertEquals(3, lines);
+        store.close();
+    }
+
+    /** Test that a range spanning many index blocks and segments matches a scan of all lines. */
+    @Test
+    public void testCopyRangeAcrossSegments() throws Exception {
+        // Segments of a few index blocks each.
+        LogcatRecordStore store =
+                new LogcatRecordStore(
+                        mStoreDir, LogcatRecordStore.INDEX_INTERVAL_BYTES * 3, Integer.MAX_VALUE);
+        List<String> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String line =
+                    String.format(
+                            "03-04 11:%02d:%02d.%03d  100  100 I Tag: line %d",
+                            i / 6000, i / 100 % 60, i % 100 * 10, i);
+            all.add(line);
+            append(store, line);
+        }
+        assertTrue(mStoreDir.listFiles().length > 10);
+
+        store.copyRange(
+                LogcatRecordStore.parseTimestamp(all.get(1234).substring(0, 18)),
+                LogcatRecordStore.parseTimestamp(all.get(3456).substring(0, 18)),
+                mOutput);
+
+        assertEquals(all.subList(1234, 3457), Files.readAllLines(mOutput.toPath()));
+        store.close();
+    }
+
+    /** Test that the oldest segments are deleted to keep the store within its size. */
+    @Test
+    public void testOldestSegmentsEvicted() throws Exception {
+        LogcatRecordStore store = new LogcatRecordStore(mStoreDir, 1024, 3);
+        for (int i = 0; i < 1000; i++) {
+            append(store, String.format("05-06 12:00:%02d.%03d  1  1 I Tag: %d", i / 100, i, i));
+        }
+        assertEquals(3, mStoreDir.listFiles().length);
+        long totalBytes = 0;
+        for (File file : mStoreDir.listFiles()) {
+            totalBytes += file.length();
+        }
+        assertTrue(totalBytes < 4 * 1024);
+
+        store.copyRange(0, Long.MAX_VALUE, mOutput);
+        List<String> lines = Files.readAllLines(mOutput.toPath());
+        assertTrue(lines.size() < 1000);
+        assertTrue(lines.get(lines.size() - 1).endsWith("Tag: 999"));
+
+        store.close();
+        assertEquals(0, mStoreDir.listFiles().length);
+    }
+
+    /** Test the parsing of the logcat timestamps. */
+    @Test
+    public void testParseTimestamp() {
+        assertEquals(-1, LogcatRecordStore.parseTimestamp("--------- beginning of main"));
+        assertEquals(-1, LogcatRecordStore.parseTimestamp("01-02 10:0a:00.000"));
+        assertTrue(
+                LogcatRecordStore.parseTimestamp("01-31 23:59:59.999")
+                        < LogcatRecordStore.parseTimestamp("02-01 00:00:00.000"));
+        assertEquals(
+                LogcatRecordStore.parseTimestamp("01-02 10:00:00.000") + 1001,
+                LogcatRecordStore.parseTimestamp("01-02 10:00:01.001  1  1 I Tag: message"));
+    }
+
+    private static void append(LogcatRecordStore store, String line) throws IOException {
+        byte[] bytes = line.getBytes();
+        store.append(bytes, 0, bytes.length);
+    }
+}
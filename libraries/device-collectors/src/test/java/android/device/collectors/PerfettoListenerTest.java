@@ -23,6 +23,7 @@ import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -260,6 +261,42 @@ public class PerfettoListenerTest {
         verify(mPerfettoHelper, times(1)).stopCollecting(anyLong(), anyString());
     }
 
+    /*
+     * Verify perfetto is started once for the run in a continuous session, and the trace of
+     * each test is saved from the session without stopping it.
+     */
+    @Test
+    public void testPerfettoContinuousSessionFlow() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(PerfettoListener.CONTINUOUS_SESSION, "true");
+        mListener = initListener(b);
+        doReturn(true).when(mPerfettoHelper).startContinuousCollecting(anyString(), anyBoolean());
+        doNothing().when(mPerfettoHelper).markTestStart(anyString());
+        doNothing().when(mPerfettoHelper).markTestEnd(anyString());
+        doReturn(true).when(mPerfettoHelper).saveTestSlice(anyLong(), anyString());
+        doReturn(true).when(mPerfettoHelper).stopContinuousCollecting(any());
+
+        mListener.onTestRunStart(mListener.createDataRecord(), FAKE_DESCRIPTION);
+        verify(mPerfettoHelper, times(1)).startContinuousCollecting(anyString(), anyBoolean());
+
+        mListener.testStarted(mTest1Desc);
+        verify(mPerfettoHelper, times(1)).markTestStart(anyString());
+        mListener.onTestEnd(mDataRecord, mTest1Desc);
+        verify(mPerfettoHelper, times(1)).markTestEnd(anyString());
+        verify(mPerfettoHelper, times(1)).saveTestSlice(anyLong(), anyString());
+        assertTrue(mDataRecord.hasMetrics());
+
+        mListener.testStarted(mTest2Desc);
+        mListener.onTestEnd(mListener.createDataRecord(), mTest2Desc);
+        verify(mPerfettoHelper, times(2)).saveTestSlice(anyLong(), anyString());
+
+        verify(mPerfettoHelper, never()).startCollecting(anyString(), anyBoolean());
+        verify(mPerfettoHelper, never()).stopCollecting(anyLong(), anyString());
+        verify(mPerfettoHelper, never()).stopContinuousCollecting(any());
+        mListener.onTestRunEnd(mListener.createDataRecord(), new Result());
+        verify(mPerfettoHelper, times(1)).stopContinuousCollecting(any());
+    }
+
     @Test
     public void testRunWithWakeLockHoldsAndReleasesAWakelock() {
         Bundle b = new Bundle();
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.stressmodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Android Unit tests for {@link StressEngine} and {@link StressProfile}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.stressmodes.StressEngineTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StressEngineTest {
+
+    private static final long RUN_TIME_MS = 1000;
+
+    /** Test the threads are busy for about the duty cycle of every period. */
+    @Test
+    public void testDutyCycle() throws Exception {
+        FakeGenerator generator = new FakeGenerator();
+        StressEngine engine = new StressEngine(
+                Collections.singletonList(
+                        new StressEngine.LoadSpec("fake", generator, 2, 0.25, 40)),
+                /* seed */ 1);
+        engine.start();
+        Thread.sleep(RUN_TIME_MS);
+        engine.stop();
+
+        assertTrue(generator.mSetUp);
+        assertTrue(generator.mTornDown);
+        Map<String, Double> metrics = engine.getMetrics();
+        assertEquals(0.25, metrics.get("stress_fake_duty_cycle"), 0.1);
+        // About 25 periods, 2 threads and a unit of work per millisecond of a 10 ms burst.
+        assertTrue(metrics.get("stress_fake_ticks") > 200);
+        assertTrue(metrics.get("stress_fake_ticks_per_sec") > 200);
+        assertEquals(0.0, metrics.get("stress_fake_errors"), 0);
+    }
+
+    /** Test the same seed replays the same random sequence. */
+    @Test
+    public void testSeedIsDeterministic() throws Exception {
+        assertEquals(firstRandoms(42), firstRandoms(42));
+        assertTrue(!firstRandoms(42).equals(firstRandoms(43)));
+    }
+
+    /** Test a failing generator is counted and keeps being retried. */
+    @Test
+    public void testErrorsAreCounted() throws Exception {
+        FakeGenerator generator = new FakeGenerator();
+        generator.mFail = true;
+        StressEngine engine = new StressEngine(
+                Collections.singletonList(new StressEngine.LoadSpec("fake", generator, 1, 1, 1)),
+                /* seed */ 1);
+        engine.start();
+        Thread.sleep(350);
+        engine.stop();
+
+        double errors = engine.getMetrics().get("stress_fake_errors");
+        // Failures back off for 100 ms.
+        assertTrue(errors >= 2 && errors <= 5);
+    }
+
+    /** Test the common parameters of a profile are parsed. */
+    @Test
+    public void testParseProfile() {
+        StressProfile.registerGenerator("fake", params -> new FakeGenerator());
+        List<StressEngine.LoadSpec> loads = StressProfile.parse(
+                "fake:threads=3,duty=0.5,period_ms=20; fake:name=other");
+        assertEquals(2, loads.size());
+        StressEngine.LoadSpec load = loads.get(0);
+        assertEquals("fake", load.getName());
+        assertEquals(3, load.getThreads());
+        assertEquals(0.5, load.getDutyCycle(), 0);
+        assertEquals(20, load.getPeriodMs());
+        load = loads.get(1);
+        assertEquals("other", load.getName());
+        assertEquals(1, load.getThreads());
+        assertEquals(1, load.getDutyCycle(), 0);
+        assertEquals(100, load.getPeriodMs());
+    }
+
+    /** Test malformed profiles are rejected. */
+    @Test
+    public void testParseInvalidProfile() {
+        StressProfile.registerGenerator("fake", params -> new FakeGenerator());
+        for (String profile :
+                Arrays.asList("unknown", "fake;fake", "fake:duty=0", "fake:threads=0")) {
+            try {
+                StressProfile.parse(profile);
+                fail("Expected " + profile + " to be rejected.");
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    /** Returns the first random numbers the engine gives to a generator with a seed. */
+    private static List<Integer> firstRandoms(long seed) throws Exception {
+        List<Integer> randoms = Collections.synchronizedList(new ArrayList<>());
+        LoadGenerator generator =
+                new LoadGenerator() {
+                    @Override
+                    public long generate(StressEngine.Burst burst) {
+                        while (randoms.size() < 10) {
+                            randoms.add(burst.getRandom().nextInt());
+                        }
+                        return 0;
+                    }
+
+                    @Override
+                    public String getUnit() {
+                        return "randoms";
+                    }
+                };
+        StressEngine engine = new StressEngine(
+                Collections.singletonList(
+                        new StressEngine.LoadSpec("random", generator, 1, 0.5, 10)),
+                seed);
+        engine.start();
+        Thread.sleep(50);
+        engine.stop();
+        return new ArrayList<>(randoms.subList(0, 10));
+    }
+
+    /** Does a unit of work every millisecond of a burst. */
+    private static class FakeGenerator implements LoadGenerator {
+        volatile boolean mSetUp = false;
+        volatile boolean mTornDown = false;
+        volatile boolean mFail = false;
+
+        @Override
+        public void setUp() {
+            mSetUp = true;
+        }
+
+        @Override
+        public long generate(StressEngine.Burst burst) throws Exception {
+            if (mFail) {
+                throw new Exception("Failed");
+            }
+            long ticks = 0;
+            while (!burst.isOver()) {
+                Thread.sleep(1);
+                ticks++;
+            }
+            return ticks;
+        }
+
+        @Override
+        public void tearDown() {
+            mTornDown = true;
+        }
+
+        @Override
+        public String getUnit() {
+            return "ticks";
+        }
+    }
+}
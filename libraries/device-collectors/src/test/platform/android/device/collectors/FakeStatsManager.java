@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.doAnswer;
+
+import android.app.StatsManager.StatsUnavailableException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake of the statsd calls of {@link StatsdListener}, as {@code StatsManager} is final and
+ * cannot be mocked. Keeps the added configs, returns canned reports and records how many reports
+ * are retrieved at the same time.
+ */
+class FakeStatsManager {
+    private final Map<Long, byte[]> mConfigs = new HashMap<>();
+    private final Map<Long, byte[]> mReports = new HashMap<>();
+    private final Set<Long> mUnavailableConfigIds = new HashSet<>();
+    private final List<Long> mRemovedConfigIds = new ArrayList<>();
+    private final Set<Long> mBlockedConfigIds = new HashSet<>();
+    private final CountDownLatch mUnblockLatch = new CountDownLatch(1);
+    private CountDownLatch mReportLatch;
+    private int mPullsInFlight = 0;
+    private int mMaxPullsInFlight = 0;
+
+    /** Route the statsd calls of the listener spy to this fake. */
+    void install(StatsdListener listener) throws StatsUnavailableException {
+        doAnswer(
+                        invocation -> {
+                            addConfig(invocation.getArgument(0), invocation.getArgument(1));
+                            return null;
+                        })
+                .when(listener)
+                .addStatsConfig(anyLong(), any());
+        doAnswer(invocation -> getReports(invocation.getArgument(0)))
+                .when(listener)
+                .getStatsReports(anyLong());
+        doAnswer(
+                        invocation -> {
+                            removeConfig(invocation.getArgument(0));
+                            return null;
+                        })
+                .when(listener)
+                .removeStatsConfig(anyLong());
+    }
+
+    /** Set the report returned for the config. */
+    synchronized void setReports(long configId, byte[] reports) {
+        mReports.put(configId, reports);
+    }
+
+    /** Make the retrieval of the reports of the config fail. */
+    synchronized void setUnavailable(long configId) {
+        mUnavailableConfigIds.add(configId);
+    }
+
+    /**
+     * Hold every retrieval until as many retrievals as the latch count are in flight, or the
+     * timeout expires.
+     */
+    void holdReportsUntilConcurrent(int count) {
+        mReportLatch = new CountDownLatch(count);
+    }
+
+    /**
+     * Hold the retrieval of the reports of the config until {@link #unblockReports} is called,
+     * even if the retrieving thread is interrupted.
+     */
+    synchronized void blockReports(long configId) {
+        mBlockedConfigIds.add(configId);
+    }
+
+    void unblockReports() {
+        mUnblockLatch.countDown();
+    }
+
+    synchronized int getMaxPullsInFlight() {
+        return mMaxPullsInFlight;
+    }
+
+    synchronized List<Long> getRemovedConfigIds() {
+        return new ArrayList<>(mRemovedConfigIds);
+    }
+
+    synchronized Set<Long> getConfigIds() {
+        return Collections.unmodifiableSet(new HashSet<>(mConfigs.keySet()));
+    }
+
+    private synchronized void addConfig(long configId, byte[] config) {
+        mConfigs.put(configId, config);
+    }
+
+    private byte[] getReports(long configId) throws Exception {
+        synchronized (this) {
+            mPullsInFlight++;
+            mMaxPullsInFlight = Math.max(mMaxPullsInFlight, mPullsInFlight);
+        }
+        try {
+            if (mReportLatch != null) {
+                mReportLatch.countDown();
+                mReportLatch.await(5, TimeUnit.SECONDS);
+            }
+            boolean blocked;
+            synchronized (this) {
+                blocked = mBlockedConfigIds.contains(configId);
+            }
+            while (blocked) {
+                try {
+                    mUnblockLatch.await(5, TimeUnit.SECONDS);
+                    blocked = false;
+                } catch (InterruptedException e) {
+                    // Keep blocking like a binder call would.
+                }
+            }
+            synchronized (this) {
+                if (mUnavailableConfigIds.contains(configId)) {
+                    throw new StatsUnavailableException("Fake statsd is unavailable.");
+                }
+                byte[] reports = mReports.get(configId);
+                return reports == null ? new byte[0] : reports;
+            }
+        } finally {
+            synchronized (this) {
+                mPullsInFlight--;
+            }
+        }
+    }
+
+    private synchronized void removeConfig(long configId) {
+        mConfigs.remove(configId);
+        mRemovedConfigIds.add(configId);
+    }
+}
@@ -16,6 +16,7 @@
 package android.device.collectors;
 
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyLong;
@@ -467,6 +468,123 @@ public class StatsdListenerTest {
                                         + StatsdListener.PROTO_EXTENSION));
     }
 
+    /** Test that the reports of the configs are retrieved at the same time. */
+    @Test
+    public void testReportsPulledConcurrently() throws Exception {
+        FakeStatsManager statsManager = new FakeStatsManager();
+        statsManager.install(mListener);
+        // Each retrieval is held until both are in flight, which never happens if the reports are
+        // retrieved one after another.
+        statsManager.holdReportsUntilConcurrent(CONFIG_MAP.size());
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+
+        DataRecord runData = mock(DataRecord.class);
+        mListener.onTestRunStart(runData, Description.createSuiteDescription("TestRun"));
+        mListener.onTestRunEnd(runData, new Result());
+
+        Assert.assertEquals(CONFIG_MAP.size(), statsManager.getMaxPullsInFlight());
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_2), any());
+        Assert.assertTrue(statsManager.getConfigIds().isEmpty());
+    }
+
+    /** Test that the reports are written as retrieved from statsd, without being re-serialized. */
+    @Test
+    public void testReportsWrittenAsRetrieved() throws Exception {
+        FakeStatsManager statsManager = new FakeStatsManager();
+        statsManager.install(mListener);
+        statsManager.setReports(CONFIG_ID_1, serialize(REPORT_1));
+        doReturn(ImmutableMap.of(CONFIG_NAME_1, CONFIG_1))
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+
+        DataRecord runData = mock(DataRecord.class);
+        mListener.onTestRunStart(runData, Description.createSuiteDescription("TestRun"));
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(mListener, times(1)).writeToFile(any(), eq(serialize(REPORT_1)));
+    }
+
+    /** Test that a report which can't be parsed is skipped, and the other reports written. */
+    @Test
+    public void testMalformedReportSkipped() throws Exception {
+        FakeStatsManager statsManager = new FakeStatsManager();
+        statsManager.install(mListener);
+        // A truncated field, with a length past the end of the report.
+        statsManager.setReports(CONFIG_ID_1, new byte[] {0x0a, 0x10, 0x01});
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+
+        DataRecord runData = mock(DataRecord.class);
+        mListener.onTestRunStart(runData, Description.createSuiteDescription("TestRun"));
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(mListener, never())
+                .writeToFile(argThat(file -> file.getName().contains(CONFIG_NAME_1)), any());
+        verify(runData, never())
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_2), any());
+        Assert.assertTrue(statsManager.getConfigIds().isEmpty());
+    }
+
+    /** Test that all the configs are removed even when the report of one cannot be retrieved. */
+    @Test
+    public void testConfigsRemovedWhenReportFails() throws Exception {
+        FakeStatsManager statsManager = new FakeStatsManager();
+        statsManager.install(mListener);
+        statsManager.setUnavailable(CONFIG_ID_1);
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+
+        DataRecord runData = mock(DataRecord.class);
+        mListener.onTestRunStart(runData, Description.createSuiteDescription("TestRun"));
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(runData, never())
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_2), any());
+        Assert.assertTrue(statsManager.getRemovedConfigIds().contains(CONFIG_ID_1));
+        Assert.assertTrue(statsManager.getRemovedConfigIds().contains(CONFIG_ID_2));
+        Assert.assertTrue(statsManager.getConfigIds().isEmpty());
+    }
+
+    /** Test that a report retrieved after the timeout is dropped, and its config removed. */
+    @Test
+    public void testReportPullTimeout() throws Exception {
+        FakeStatsManager statsManager = new FakeStatsManager();
+        statsManager.install(mListener);
+        statsManager.blockReports(CONFIG_ID_2);
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+        Bundle args = new Bundle();
+        args.putString(StatsdListener.OPTION_REPORT_PULL_TIMEOUT_MS, "100");
+        doReturn(args).when(mListener).getArguments();
+
+        DataRecord runData = mock(DataRecord.class);
+        mListener.onTestRunStart(runData, Description.createSuiteDescription("TestRun"));
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+        verify(runData, never())
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_2), any());
+        Assert.assertTrue(statsManager.getConfigIds().isEmpty());
+
+        // The report retrieved once the config is removed is not written.
+        statsManager.unblockReports();
+        verify(mListener, after(1000).never())
+                .writeToFile(argThat(file -> file.getName().contains(CONFIG_NAME_2)), any());
+    }
+
     /** Test that the collector parses the configs from arguments correctly for valid configs. */
     @Test
     public void testParsingConfigFromArguments_validConfig() throws Exception {
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.os.Bundle;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.helpers.UiActionLatencyHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Android Unit tests for {@link UiActionLatencyListener}.
+ *
+ * <p>To run: atest CollectorDeviceLibPlatformTest:android.device.collectors.UiActionLatencyListenerTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class UiActionLatencyListenerTest {
+    private static final Description RUN_DESCRIPTION = Description.createSuiteDescription("run");
+    private static final Description TEST_DESCRIPTION =
+            Description.createTestDescription("class", "method");
+
+    private UiActionLatencyHelper mHelper;
+    private UiActionLatencyListener mListener;
+
+    @Before
+    public void setUp() {
+        mHelper = mock(UiActionLatencyHelper.class);
+        doAnswer(
+                        invocation -> {
+                            ObjLongConsumer<String> consumer = invocation.getArgument(0);
+                            consumer.accept("latency_ACTION_EXPAND_PANEL", 120);
+                            consumer.accept("latency_ACTION_TOGGLE_RECENTS", 45);
+                            consumer.accept("latency_ACTION_EXPAND_PANEL", 98);
+                            return null;
+                        })
+                .when(mHelper)
+                .collectLatencies(any());
+        mListener = new UiActionLatencyListener(new Bundle(), mHelper);
+    }
+
+    /** Test the latencies of each action are reported as one repeated metric. */
+    @Test
+    public void testRepeatedLatencies() {
+        DataRecord testData = runTest();
+
+        Bundle metrics = testData.createBundleFromMetrics();
+        assertEquals(2, metrics.size());
+        assertEquals("120,98", metrics.getString("latency_ACTION_EXPAND_PANEL"));
+        assertEquals("45", metrics.getString("latency_ACTION_TOGGLE_RECENTS"));
+        // The latencies are not formatted by the helper.
+        verify(mHelper, never()).getMetrics();
+    }
+
+    /** Test the latencies keep their type when the typed bundle is enabled. */
+    @Test
+    public void testTypedLatencies() {
+        DataRecord testData = runTest();
+        testData.setTypedBundle(true);
+
+        Bundle metrics = testData.createBundleFromMetrics();
+        assertArrayEquals(
+                new long[] {120, 98}, metrics.getLongArray("latency_ACTION_EXPAND_PANEL"));
+        assertArrayEquals(new long[] {45}, metrics.getLongArray("latency_ACTION_TOGGLE_RECENTS"));
+    }
+
+    /** Run a test through the listener and return the metrics of the test. */
+    private DataRecord runTest() {
+        mListener.onTestRunStart(mListener.createDataRecord(), RUN_DESCRIPTION);
+        DataRecord testData = mListener.createDataRecord();
+        mListener.onTestStart(testData, TEST_DESCRIPTION);
+        mListener.onTestEnd(testData, TEST_DESCRIPTION);
+        return testData;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import com.android.server.wm.traces.common.layers.LayerTraceEntry
+import com.android.server.wm.traces.common.layers.LayersTrace
+import com.android.server.wm.traces.parser.layers.LayersTraceParser
+import org.junit.Rule
+import org.junit.Test
+
+/**
+ * Benchmarks the layer lookups done by the layers assertions over every entry of a real trace.
+ * To run this benchmark: `atest FlickerLibBenchmark:LayerTraceEntryBenchmark`
+ */
+class LayerTraceEntryBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val traceBytes: ByteArray by lazy { readTestFile(TRACE) }
+
+    private fun parseTrace(): LayersTrace = LayersTraceParser.parseFromTrace(traceBytes)
+
+    /** Trace parsing, including the occlusion state and the cached visibility. */
+    @Test
+    fun parseAndComputeVisibility() {
+        benchmarkRule.measureRepeated {
+            parseTrace()
+        }
+    }
+
+    /** Lookups repeated on the same entries, as done by trace-wide assertions. */
+    @Test
+    fun queriesOnParsedTrace() {
+        val trace = parseTrace()
+        benchmarkRule.measureRepeated {
+            trace.entries.forEach { runQueries(it) }
+        }
+    }
+
+    /** Lookups run once on freshly parsed entries, including the cost of building the indexes. */
+    @Test
+    fun firstQueriesAfterParsing() {
+        benchmarkRule.measureRepeated {
+            val trace = runWithTimingDisabled { parseTrace() }
+            trace.entries.forEach { runQueries(it) }
+        }
+    }
+
+    private fun runQueries(entry: LayerTraceEntry) {
+        QUERIES.forEach { name ->
+            entry.getLayersByPartialName(name).any { it.isVisible }
+            entry.getLayerWithBuffer(name)
+            entry.isVisible(name)
+        }
+        entry.getLayersByPartialName(*QUERIES)
+        entry.visibleLayers
+    }
+
+    companion object {
+        private const val TRACE = "layers_trace_emptyregion.pb"
+        private val QUERIES = arrayOf("StatusBar", "NavigationBar0#0", "ImageWallpaper",
+            "NexusLauncherActivity", "ImaginaryLayer")
+    }
+}
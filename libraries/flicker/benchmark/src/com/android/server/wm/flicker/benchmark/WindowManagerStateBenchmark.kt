@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import com.android.server.wm.traces.common.windowmanager.WindowManagerState
+import com.android.server.wm.traces.common.windowmanager.WindowManagerTrace
+import com.android.server.wm.traces.common.windowmanager.windows.Activity
+import com.android.server.wm.traces.parser.windowmanager.WindowManagerTraceParser
+import org.junit.Rule
+import org.junit.Test
+
+/**
+ * Benchmarks the queries done by the window manager assertions over every entry of a real trace.
+ * To run this benchmark: `atest FlickerLibBenchmark:WindowManagerStateBenchmark`
+ */
+class WindowManagerStateBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val traceBytes: ByteArray by lazy { readTestFile(TRACE) }
+
+    private fun parseTrace(): WindowManagerTrace =
+        WindowManagerTraceParser.parseFromTrace(traceBytes)
+
+    /** Queries repeated on the same states, as done by trace-wide assertions. */
+    @Test
+    fun queriesOnParsedTrace() {
+        val trace = parseTrace()
+        val names = trace.entries.map { activityAndWindowNames(it) }
+        benchmarkRule.measureRepeated {
+            trace.entries.forEachIndexed { index, entry -> runQueries(entry, names[index]) }
+        }
+    }
+
+    /** Queries run once on freshly parsed states, including the cost of building the indexes. */
+    @Test
+    fun firstQueriesAfterParsing() {
+        val names = parseTrace().entries.map { activityAndWindowNames(it) }
+        benchmarkRule.measureRepeated {
+            val trace = runWithTimingDisabled { parseTrace() }
+            trace.entries.forEachIndexed { index, entry -> runQueries(entry, names[index]) }
+        }
+    }
+
+    private fun activityAndWindowNames(
+        entry: WindowManagerState
+    ): Pair<List<String>, List<String>> =
+        Pair(entry.windowContainers.filterIsInstance<Activity>().map { it.title }.distinct(),
+            entry.windowStates.map { it.title }.distinct())
+
+    private fun runQueries(entry: WindowManagerState, names: Pair<List<String>, List<String>>) {
+        names.first.forEach { activityName ->
+            entry.containsActivity(activityName)
+            entry.getTaskByActivity(activityName)
+            entry.isActivityVisible(activityName)
+            entry.hasActivityState(activityName, WindowManagerState.STATE_RESUMED)
+        }
+        names.second.forEach { windowName ->
+            entry.isWindowVisible(windowName)
+            entry.containsWindow(windowName)
+            entry.getMatchingVisibleWindowState(windowName)
+        }
+        entry.appWindows
+        entry.visibleWindows
+        entry.pinnedWindows
+        entry.getDefaultDisplay()
+        entry.getRootTask(entry.focusedStackId)
+    }
+
+    companion object {
+        private const val TRACE = "wm_trace_openchrome2.pb"
+    }
+}
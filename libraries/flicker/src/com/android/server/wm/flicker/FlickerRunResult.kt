@@ -29,8 +29,6 @@ import com.android.server.wm.flicker.traces.windowmanager.WindowManagerTraceSubj
 import com.android.server.wm.traces.common.layers.LayerTraceEntry
 import com.android.server.wm.traces.common.layers.LayersTrace
 import com.android.server.wm.traces.common.windowmanager.WindowManagerState
-import com.android.server.wm.traces.parser.layers.LayersTraceParser
-import com.android.server.wm.traces.parser.windowmanager.WindowManagerTraceParser
 import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
@@ -102,11 +100,21 @@ class FlickerRunResult private constructor(
          */
         var wmTraceFile: Path? = null
 
+        /**
+         * Checksum of the WindowManager trace file, calculated when parsing the trace if empty
+         */
+        var wmTraceChecksum: String = ""
+
         /**
          * Path to the SurfaceFlinger trace file, if collected
          */
         var layersTraceFile: Path? = null
 
+        /**
+         * Checksum of the SurfaceFlinger trace file, calculated when parsing the trace if empty
+         */
+        var layersTraceChecksum: String = ""
+
         /**
          * Path to screen recording of the run, if collected
          */
@@ -170,16 +178,14 @@ class FlickerRunResult private constructor(
             if (wmTrace == null && wmTraceFile != null) {
                 Log.v(FLICKER_TAG, "Parsing WM trace")
                 wmTrace = wmTraceFile?.let {
-                    val traceData = Files.readAllBytes(it)
-                    WindowManagerTraceParser.parseFromTrace(traceData)
+                    ParsedTraceCache.getWindowManagerTrace(it, wmTraceChecksum)
                 }
             }
 
             if (layersTrace == null && layersTraceFile != null) {
                 Log.v(FLICKER_TAG, "Parsing Layers trace")
                 layersTrace = layersTraceFile?.let {
-                    val traceData = Files.readAllBytes(it)
-                    LayersTraceParser.parseFromTrace(traceData)
+                    ParsedTraceCache.getLayersTrace(it, layersTraceChecksum)
                 }
             }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker
+
+import com.android.server.wm.flicker.monitor.TraceMonitor
+import com.android.server.wm.traces.common.ITrace
+import com.android.server.wm.traces.common.layers.LayersTrace
+import com.android.server.wm.traces.common.windowmanager.WindowManagerTrace
+import com.android.server.wm.traces.parser.layers.LayersTraceParser
+import com.android.server.wm.traces.parser.windowmanager.WindowManagerTraceParser
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Process-wide cache of the parsed WindowManager and Layers traces, keyed by the SHA-256
+ * checksum of the trace file computed by [TraceMonitor.calculateChecksum].
+ *
+ * The results of a transition are shared by all the tests and assertions run on it, so its traces
+ * are only parsed once. A trace found in the cache for a different file with the same content
+ * shares the parsed entries, but reports [traceFile] as its source.
+ *
+ * The least recently used traces are evicted once the estimated heap size of the cached traces
+ * exceeds [maxHeapBytes].
+ */
+object ParsedTraceCache {
+    // Estimated ratio between the heap used by a parsed trace and the size of its file
+    private const val HEAP_BYTES_PER_FILE_BYTE = 10L
+    private const val WM_TRACE = "wm"
+    private const val LAYERS_TRACE = "layers"
+
+    private class CachedTrace(val trace: ITrace<*>, val heapBytes: Long)
+
+    private val traces = LinkedHashMap<String, CachedTrace>(16, 0.75f, /* accessOrder */ true)
+    private var heapBytes = 0L
+
+    /**
+     * Maximum estimated heap size of the cached traces, by default a quarter of the heap
+     */
+    @JvmStatic
+    var maxHeapBytes: Long = Runtime.getRuntime().maxMemory() / 4
+        @Synchronized set(value) {
+            field = value
+            trimToSize()
+        }
+
+    var hits = 0L
+        @Synchronized get
+        private set
+    var misses = 0L
+        @Synchronized get
+        private set
+    var evictions = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Returns the parsed WindowManager trace from [traceFile]
+     *
+     * @param traceFile Path to the trace file
+     * @param checksum Checksum of the trace file, calculated from the file if empty
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun getWindowManagerTrace(traceFile: Path, checksum: String = ""): WindowManagerTrace =
+        getOrParse(WM_TRACE, traceFile.toAbsolutePath().toString(), traceFile, checksum,
+            parse = { data, sourceChecksum ->
+                WindowManagerTraceParser.parseFromTrace(data, traceFile, sourceChecksum)
+            },
+            rebind = { trace, source -> WindowManagerTrace(trace.entries, source,
+                trace.sourceChecksum) })
+
+    /**
+     * Returns the parsed Layers trace from [traceFile]
+     *
+     * @param traceFile Path to the trace file
+     * @param checksum Checksum of the trace file, calculated from the file if empty
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun getLayersTrace(traceFile: Path, checksum: String = ""): LayersTrace =
+        getOrParse(LAYERS_TRACE, traceFile.toString(), traceFile, checksum,
+            parse = { data, sourceChecksum ->
+                LayersTraceParser.parseFromTrace(data, traceFile, sourceChecksum)
+            },
+            rebind = { trace, source -> LayersTrace(trace.entries, source,
+                trace.sourceChecksum) })
+
+    /**
+     * Removes all the cached traces
+     */
+    @JvmStatic
+    @Synchronized
+    fun clear() {
+        traces.clear()
+        heapBytes = 0
+    }
+
+    private fun <T : ITrace<*>> getOrParse(
+        type: String,
+        source: String,
+        traceFile: Path,
+        checksum: String,
+        parse: (ByteArray, String) -> T,
+        rebind: (T, String) -> T
+    ): T {
+        // Without a checksum the file is read once, both to hash and to parse it
+        var data: ByteArray? = null
+        val traceChecksum = checksum.ifEmpty {
+            TraceMonitor.calculateChecksum(Files.readAllBytes(traceFile).also { data = it })
+        }
+        val key = "$type:$traceChecksum"
+        synchronized(this) {
+            val cached = traces[key]
+            if (cached != null) {
+                hits++
+                @Suppress("UNCHECKED_CAST")
+                val trace = cached.trace as T
+                // The file first parsed may have been moved or deleted since
+                return if (trace.source == source) trace else rebind(trace, source)
+            }
+            misses++
+        }
+
+        // Parsing takes long, don't block the other lookups meanwhile
+        val traceData = data ?: Files.readAllBytes(traceFile)
+        val trace = parse(traceData, traceChecksum)
+        val traceHeapBytes = traceData.size * HEAP_BYTES_PER_FILE_BYTE
+        synchronized(this) {
+            traces.put(key, CachedTrace(trace, traceHeapBytes))?.let { heapBytes -= it.heapBytes }
+            heapBytes += traceHeapBytes
+            trimToSize()
+        }
+        return trace
+    }
+
+    @Synchronized
+    private fun trimToSize() {
+        val iterator = traces.values.iterator()
+        while (heapBytes > maxHeapBytes && iterator.hasNext()) {
+            heapBytes -= iterator.next().heapBytes
+            iterator.remove()
+            evictions++
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counts of the cache
+     */
+    val stats: String
+        @Synchronized get() = "hits=$hits, misses=$misses, evictions=$evictions, " +
+            "traces=${traces.size}, heapBytes=$heapBytes"
+}
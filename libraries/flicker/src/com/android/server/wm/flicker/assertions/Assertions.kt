@@ -33,9 +33,33 @@ open class NamedAssertion<T> (
 ) : Assertion<T> {
     override fun invoke(target: T): Unit = assertion.invoke(target)
 
+    /**
+     * Executes the assertion on [target]
+     *
+     * @return the failure, or null if the assertion passed
+     */
+    open fun evaluate(target: T): Throwable? = try {
+        invoke(target)
+        null
+    } catch (e: Throwable) {
+        e
+    }
+
     override fun toString(): String = "Assertion($name)"
 }
 
+/**
+ * Result of an assertion on the trace entry at [entryIndex]
+ *
+ * @param failure Failure of the assertion, or null if it passed
+ */
+class AssertionResult(
+    val entryIndex: Int,
+    val failure: Throwable?
+) {
+    val passed: Boolean get() = failure == null
+}
+
 /**
  * Utility class to store assertions composed of multiple individual assertions
  */
@@ -54,14 +78,27 @@ class CompoundAssertion<T>(assertion: Assertion<T>, name: String) :
      * Executes all [assertions] on [target]
      */
     override fun invoke(target: T) {
-        val failure = assertions.mapNotNull {
-            kotlin.runCatching { it.invoke(target) }.exceptionOrNull()
-        }.firstOrNull()
+        val failure = evaluate(target)
         if (failure != null) {
             throw failure
         }
     }
 
+    /**
+     * Executes [assertions] on [target] until the first one fails
+     *
+     * @return the first failure, or null if all assertions passed
+     */
+    override fun evaluate(target: T): Throwable? {
+        for (assertion in assertions) {
+            val failure = assertion.evaluate(target)
+            if (failure != null) {
+                return failure
+            }
+        }
+        return null
+    }
+
     override fun toString(): String = name
 
     /**
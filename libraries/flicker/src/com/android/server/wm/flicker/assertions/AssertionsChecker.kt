@@ -17,6 +17,10 @@
 package com.android.server.wm.flicker.assertions
 
 import com.google.common.truth.Fact
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.max
 
 /**
@@ -25,11 +29,17 @@ import kotlin.math.max
  * Starting at the first assertion and first trace entry, executes the assertions iteratively
  * on the trace until all assertions and trace entries succeed.
  *
+ * The entries on which an assertion changes from passing to failing are searched for serially,
+ * in parallel on the common [ForkJoinPool] when enabled with [runInParallel], or by binary search
+ * when the assertions are monotonic, see [assumeMonotonic].
+ *
  * @param <T> trace entry type </T>
  */
 class AssertionsChecker<T : FlickerSubject> {
     private val assertions = mutableListOf<CompoundAssertion<T>>()
     private var skipUntilFirstAssertion = false
+    private var monotonic = false
+    private var parallel = false
 
     fun add(name: String, assertion: Assertion<T>) {
         assertions.add(CompoundAssertion(assertion, name))
@@ -69,39 +79,49 @@ class AssertionsChecker<T : FlickerSubject> {
             return
         }
 
-        val failures = mutableListOf<Throwable>()
         var entryIndex = 0
         var assertionIndex = 0
         var lastPassedAssertionIndex = -1
         while (assertionIndex < assertions.size && entryIndex < entries.size) {
             val currentAssertion = assertions[assertionIndex]
-            val currEntry = entries[entryIndex]
-            try {
-                currentAssertion.invoke(currEntry)
-                lastPassedAssertionIndex = assertionIndex
-                entryIndex++
-            } catch (e: Throwable) {
-                val ignoreFailure = skipUntilFirstAssertion && lastPassedAssertionIndex == -1
-                if (ignoreFailure) {
-                    entryIndex++
-                    continue
-                }
-                if (lastPassedAssertionIndex != assertionIndex) {
-                    val prevEntry = entries[max(entryIndex - 1, 0)]
-                    prevEntry.fail(e)
-                }
-                assertionIndex++
-                if (assertionIndex == assertions.size) {
-                    val prevEntry = entries[max(entryIndex - 1, 0)]
-                    prevEntry.fail(e)
+            val ignoreFailures = skipUntilFirstAssertion && lastPassedAssertionIndex == -1
+            if (ignoreFailures) {
+                val firstPass = findFirst(currentAssertion, entries, entryIndex, passed = true)
+                if (firstPass == null) {
+                    entryIndex = entries.size
+                } else {
+                    lastPassedAssertionIndex = assertionIndex
+                    entryIndex = firstPass.entryIndex + 1
                 }
+                continue
+            }
+
+            val firstFailure = if (monotonic) {
+                binarySearchFirstFailure(currentAssertion, entries, entryIndex)
+            } else {
+                findFirst(currentAssertion, entries, entryIndex, passed = false)
+            }
+            val failureIndex = firstFailure?.entryIndex ?: entries.size
+            if (failureIndex > entryIndex) {
+                lastPassedAssertionIndex = assertionIndex
+                entryIndex = failureIndex
+            }
+            val failure = firstFailure?.failure ?: continue
+            if (lastPassedAssertionIndex != assertionIndex) {
+                val prevEntry = entries[max(entryIndex - 1, 0)]
+                prevEntry.fail(failure)
+            }
+            assertionIndex++
+            if (assertionIndex == assertions.size) {
+                val prevEntry = entries[max(entryIndex - 1, 0)]
+                prevEntry.fail(failure)
             }
         }
-        if (lastPassedAssertionIndex == -1 && assertions.isNotEmpty() && failures.isEmpty()) {
+        if (lastPassedAssertionIndex == -1) {
             entries.first().fail("Assertion never passed", assertions.first())
         }
 
-        if (failures.isEmpty() && assertionIndex != assertions.lastIndex) {
+        if (assertionIndex != assertions.lastIndex) {
             val reason = listOf(
                 Fact.fact("Assertion never became false", assertions[assertionIndex]),
                 Fact.fact("Passed assertions", assertions.take(assertionIndex).joinToString(",")),
@@ -112,6 +132,60 @@ class AssertionsChecker<T : FlickerSubject> {
         }
     }
 
+    /**
+     * Finds the first entry from [fromIndex] on which [assertion] [passed], respectively failed.
+     *
+     * Large ranges are split over the common [ForkJoinPool], entries after a match already found
+     * are not evaluated.
+     *
+     * @return the result of the assertion on the entry, or null if there is no such entry
+     */
+    private fun findFirst(
+        assertion: CompoundAssertion<T>,
+        entries: List<T>,
+        fromIndex: Int,
+        passed: Boolean
+    ): AssertionResult? {
+        val failures = arrayOfNulls<Throwable>(entries.size)
+        val firstMatch = AtomicInteger(entries.size)
+        val search = SearchTask(assertion, entries, fromIndex, entries.size, passed, failures,
+            firstMatch)
+        if (parallel && entries.size - fromIndex > PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(search)
+        } else {
+            search.searchSerially()
+        }
+        val index = firstMatch.get()
+        return if (index < entries.size) AssertionResult(index, failures[index]) else null
+    }
+
+    /**
+     * Finds the first entry from [fromIndex] on which [assertion] fails, assuming that once it
+     * fails it fails on all the following entries.
+     *
+     * @return the result of the assertion on the entry, or null if there is no such entry
+     */
+    private fun binarySearchFirstFailure(
+        assertion: CompoundAssertion<T>,
+        entries: List<T>,
+        fromIndex: Int
+    ): AssertionResult? {
+        var low = fromIndex
+        var high = entries.size
+        var firstFailure: AssertionResult? = null
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            val failure = assertion.evaluate(entries[middle])
+            if (failure == null) {
+                low = middle + 1
+            } else {
+                firstFailure = AssertionResult(middle, failure)
+                high = middle
+            }
+        }
+        return firstFailure
+    }
+
     /**
      * Ignores the first entries in the trace, until the first assertion passes. If it reaches the
      * end of the trace without passing any assertion, return a failure with the name/reason from
@@ -120,4 +194,80 @@ class AssertionsChecker<T : FlickerSubject> {
     fun skipUntilFirstAssertion() {
         skipUntilFirstAssertion = true
     }
+
+    /**
+     * Assumes each assertion passes on a contiguous range of entries and fails on all the
+     * entries after it, so the entries where the assertions change are found by binary search
+     * instead of evaluating every entry.
+     *
+     * The failures reported are only correct if the assumption holds for the trace.
+     */
+    fun assumeMonotonic() {
+        monotonic = true
+    }
+
+    /**
+     * Evaluates the assertions of long traces on the threads of the common [ForkJoinPool],
+     * stopping the remaining work once an earlier change is found.
+     *
+     * Only enable it if the assertions and subjects can be used concurrently.
+     */
+    fun runInParallel() {
+        parallel = true
+    }
+
+    /**
+     * Whether [runInParallel] was enabled
+     */
+    val isParallel: Boolean get() = parallel
+
+    /**
+     * Searches the first entry of [[from], [to]) on which [assertion] [passed], respectively
+     * failed, and stores it in [firstMatch] unless an earlier entry is already there.
+     */
+    private class SearchTask<T>(
+        private val assertion: CompoundAssertion<T>,
+        private val entries: List<T>,
+        private val from: Int,
+        private val to: Int,
+        private val passed: Boolean,
+        private val failures: Array<Throwable?>,
+        private val firstMatch: AtomicInteger
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (from >= firstMatch.get()) {
+                return
+            }
+            if (to - from <= CHUNK_SIZE) {
+                searchSerially()
+                return
+            }
+            val middle = (from + to) ushr 1
+            ForkJoinTask.invokeAll(
+                SearchTask(assertion, entries, from, middle, passed, failures, firstMatch),
+                SearchTask(assertion, entries, middle, to, passed, failures, firstMatch))
+        }
+
+        fun searchSerially() {
+            for (index in from until to) {
+                // Fail fast, a match was found before this entry
+                if (index >= firstMatch.get()) {
+                    return
+                }
+                val failure = assertion.evaluate(entries[index])
+                if ((failure == null) == passed) {
+                    failures[index] = failure
+                    firstMatch.accumulateAndGet(index) { current, found -> minOf(current, found) }
+                    return
+                }
+            }
+        }
+    }
+
+    companion object {
+        // Minimum number of entries to search in parallel.
+        private const val PARALLEL_THRESHOLD = 32
+        // Number of consecutive entries evaluated by a single task.
+        private const val CHUNK_SIZE = 8
+    }
 }
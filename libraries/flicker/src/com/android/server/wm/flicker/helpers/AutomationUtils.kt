@@ -280,9 +280,11 @@ private val splitScreenDividerSelector: BySelector
 /**
  * Drags the split screen divider to the top of the screen to close it
  *
+ * @param wmHelper Helper to wait for the end of the animation, otherwise waits for 2 seconds
  * @throws AssertionError when unable to find the split screen divider
  */
-fun UiDevice.exitSplitScreen() {
+@JvmOverloads
+fun UiDevice.exitSplitScreen(wmHelper: WindowManagerStateHelper? = null) {
     // Quickstep enabled
     val divider = this.wait(Until.findObject(splitScreenDividerSelector), FIND_TIMEOUT)
     assertNotNull("Unable to find Split screen divider", divider)
@@ -294,8 +296,7 @@ fun UiDevice.exitSplitScreen() {
         Point(this.displayWidth / 2, 0)
     }
     divider.drag(dstPoint, 400)
-    // Wait for animation to complete.
-    SystemClock.sleep(2000)
+    waitForAnimation(wmHelper)
 }
 
 /**
@@ -323,9 +324,14 @@ fun UiDevice.exitSplitScreenFromBottom() {
 /**
  * Drags the split screen divider to resize the windows in split screen
  *
+ * @param wmHelper Helper to wait for the end of the animation, otherwise waits for 2 seconds
  * @throws AssertionError when unable to find the split screen divider
  */
-fun UiDevice.resizeSplitScreen(windowHeightRatio: Rational) {
+@JvmOverloads
+fun UiDevice.resizeSplitScreen(
+    windowHeightRatio: Rational,
+    wmHelper: WindowManagerStateHelper? = null
+) {
     val dividerSelector = splitScreenDividerSelector
     val divider = this.wait(Until.findObject(dividerSelector), FIND_TIMEOUT)
     assertNotNull("Unable to find Split screen divider", divider)
@@ -340,8 +346,20 @@ fun UiDevice.resizeSplitScreen(windowHeightRatio: Rational) {
             destHeight,
             10)
     this.wait(Until.findObject(dividerSelector), FIND_TIMEOUT)
-    // Wait for animation to complete.
-    SystemClock.sleep(2000)
+    waitForAnimation(wmHelper)
+}
+
+/**
+ * Waits until the app transition is idle when [wmHelper] is available, otherwise waits for the
+ * longest expected animation
+ */
+private fun waitForAnimation(wmHelper: WindowManagerStateHelper?) {
+    if (wmHelper != null) {
+        wmHelper.waitForAppTransitionIdle()
+    } else {
+        // Wait for animation to complete.
+        SystemClock.sleep(2000)
+    }
 }
 
 /**
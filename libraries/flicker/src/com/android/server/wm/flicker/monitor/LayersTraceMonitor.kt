@@ -59,6 +59,7 @@ open class LayersTraceMonitor(
 
     override fun setResult(flickerRunResultBuilder: FlickerRunResult.Builder, traceFile: Path) {
         flickerRunResultBuilder.layersTraceFile = traceFile
+        flickerRunResultBuilder.layersTraceChecksum = checksum
     }
 
     override fun getTracePath(builder: FlickerRunResult.Builder) = builder.layersTraceFile
@@ -16,15 +16,19 @@
 
 package com.android.server.wm.flicker.monitor
 
+import android.util.Log
 import androidx.annotation.VisibleForTesting
 import com.android.compatibility.common.util.SystemUtil
+import com.android.server.wm.flicker.FLICKER_TAG
 import com.android.server.wm.flicker.FlickerRunResult
 import com.google.common.io.BaseEncoding
-import java.io.FileInputStream
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 
@@ -44,58 +48,162 @@ abstract class TraceMonitor internal constructor(
     abstract fun setResult(flickerRunResultBuilder: FlickerRunResult.Builder, traceFile: Path)
 
     override fun save(testTag: String, flickerRunResultBuilder: FlickerRunResult.Builder) {
-        outputPath.toFile().mkdirs()
-        val savedTrace = outputPath.resolve("${testTag}_${sourceTraceFilePath.fileName}")
-        moveFile(sourceTraceFilePath, savedTrace)
-        require(Files.exists(savedTrace)) { "Unable to save trace file $savedTrace" }
+        val savedTrace = saveTrace(testTag)
 
         setResult(flickerRunResultBuilder, savedTrace)
-
-        checksum = calculateChecksum(savedTrace)
     }
 
     fun save(testTag: String) {
+        saveTrace(testTag)
+    }
+
+    private fun saveTrace(testTag: String): Path {
         outputPath.toFile().mkdirs()
         val savedTrace = outputPath.resolve("${testTag}_${sourceTraceFilePath.fileName}")
-        moveFile(sourceTraceFilePath, savedTrace)
+        checksum = moveFile(sourceTraceFilePath, savedTrace)
         require(Files.exists(savedTrace)) { "Unable to save trace file $savedTrace" }
-
-        checksum = calculateChecksum(savedTrace)
-    }
-
-    private fun moveFile(src: Path, dst: Path) {
-        // Move the  file to the output directory
-        // Note: Due to b/141386109, certain devices do not allow moving the files between
-        //       directories with different encryption policies, so manually copy and then
-        //       remove the original file
-        //       Moreover, the copied trace file may end up with different permissions, resulting
-        //       in b/162072200, to prevent this, ensure the files are readable after copying
-        SystemUtil.runShellCommand("cp $src $dst")
-        SystemUtil.runShellCommand("chmod a+r $dst")
-        SystemUtil.runShellCommand("rm $src")
+        return savedTrace
     }
 
     companion object {
+        private const val BUFFER_SIZE = 1024 * 1024
+
+        /**
+         * Moves [src] to [dst] and calculates the checksum of the file
+         *
+         * Renames the file within the same directory. Otherwise copies it, calculating the
+         * checksum while copying, and removes the original file, so the saved file gets the
+         * owner and SELinux label of its new directory instead of those of the trace directory,
+         * e.g. /data/misc/wmtrace. Falls back to the shell when the test can't access the file
+         * itself.
+         *
+         * @return the SHA-256 checksum of the file
+         */
+        @VisibleForTesting
+        @JvmStatic
+        fun moveFile(src: Path, dst: Path): String {
+            if (src.toAbsolutePath().parent == dst.toAbsolutePath().parent) {
+                try {
+                    Files.move(src, dst, StandardCopyOption.REPLACE_EXISTING)
+                    makeReadable(dst)
+                    return calculateChecksum(dst)
+                } catch (e: IOException) {
+                    Log.v(FLICKER_TAG, "Unable to rename $src, copying it", e)
+                } catch (e: SecurityException) {
+                    Log.v(FLICKER_TAG, "Unable to rename $src, copying it", e)
+                }
+            }
+
+            val checksum = try {
+                copyWithChecksum(src, dst)
+            } catch (e: IOException) {
+                Log.v(FLICKER_TAG, "Unable to copy $src, using the shell", e)
+                null
+            } catch (e: SecurityException) {
+                Log.v(FLICKER_TAG, "Unable to copy $src, using the shell", e)
+                null
+            }
+            if (checksum != null) {
+                makeReadable(dst)
+                deleteFile(src)
+                return checksum
+            }
+
+            // Note: Due to b/141386109, certain devices do not allow moving the files between
+            //       directories with different encryption policies, the rename above fails and
+            //       the file is copied instead. The trace files written by system services may
+            //       also not be readable by the test itself, so copy and then remove the original
+            //       file with the shell. Moreover, the copied trace file may end up with
+            //       different permissions, resulting in b/162072200, to prevent this, ensure the
+            //       files are readable after copying
+            SystemUtil.runShellCommand("cp $src $dst")
+            SystemUtil.runShellCommand("chmod a+r $dst")
+            SystemUtil.runShellCommand("rm $src")
+            return calculateChecksum(dst)
+        }
+
+        /**
+         * Removes the original of a copied trace file, the copy is kept even if this fails
+         */
+        private fun deleteFile(file: Path) {
+            try {
+                Files.delete(file)
+                return
+            } catch (e: IOException) {
+                Log.w(FLICKER_TAG, "Unable to delete $file, using the shell", e)
+            } catch (e: SecurityException) {
+                Log.w(FLICKER_TAG, "Unable to delete $file, using the shell", e)
+            }
+            SystemUtil.runShellCommand("rm $file")
+        }
+
+        private fun makeReadable(file: Path) {
+            // The copied trace file may not be readable by other processes, see b/162072200
+            if (!file.toFile().setReadable(true, /* ownerOnly */ false)) {
+                Log.w(FLICKER_TAG, "Unable to make $file readable")
+            }
+        }
+
+        /**
+         * Copies [src] to [dst] in a single pass, updating the checksum with every block read
+         *
+         * @return the SHA-256 checksum of the file
+         */
+        private fun copyWithChecksum(src: Path, dst: Path): String {
+            val messageDigest = newMessageDigest()
+            FileChannel.open(src, StandardOpenOption.READ).use { input ->
+                FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING).use { output ->
+                    val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                    while (input.read(buffer) != -1) {
+                        buffer.flip()
+                        // Digest a view of the block, so the buffer is still there to write
+                        messageDigest.update(buffer.duplicate())
+                        while (buffer.hasRemaining()) {
+                            output.write(buffer)
+                        }
+                        buffer.clear()
+                    }
+                }
+            }
+            return BaseEncoding.base16().encode(messageDigest.digest()).toLowerCase()
+        }
+
+        private fun newMessageDigest(): MessageDigest {
+            return try {
+                MessageDigest.getInstance("SHA-256")
+            } catch (e: NoSuchAlgorithmException) {
+                throw IllegalArgumentException("Checksum algorithm SHA-256 not found", e)
+            }
+        }
+
         @VisibleForTesting
         @JvmStatic
         fun calculateChecksum(traceFile: Path): String {
             return try {
-                val messageDigest = MessageDigest.getInstance("SHA-256")
-                val inputStream = FileInputStream(traceFile.toFile())
-                val channel = inputStream.channel
-                val buffer = ByteBuffer.allocate(2048)
-                while (channel.read(buffer) != -1) {
-                    buffer.flip()
-                    messageDigest.update(buffer)
-                    buffer.clear()
+                val messageDigest = newMessageDigest()
+                FileChannel.open(traceFile, StandardOpenOption.READ).use { channel ->
+                    val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip()
+                        messageDigest.update(buffer)
+                        buffer.clear()
+                    }
                 }
                 val hash = messageDigest.digest()
                 BaseEncoding.base16().encode(hash).toLowerCase()
-            } catch (e: NoSuchAlgorithmException) {
-                throw IllegalArgumentException("Checksum algorithm SHA-256 not found", e)
             } catch (e: IOException) {
                 throw IllegalArgumentException("File not found", e)
             }
         }
+
+        /**
+         * Calculates the checksum of the contents of a trace file already read into [data]
+         */
+        @JvmStatic
+        fun calculateChecksum(data: ByteArray): String {
+            val hash = newMessageDigest().digest(data)
+            return BaseEncoding.base16().encode(hash).toLowerCase()
+        }
     }
 }
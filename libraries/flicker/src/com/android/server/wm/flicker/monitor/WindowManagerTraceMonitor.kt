@@ -53,6 +53,7 @@ open class WindowManagerTraceMonitor(
 
     override fun setResult(flickerRunResultBuilder: FlickerRunResult.Builder, traceFile: Path) {
         flickerRunResultBuilder.wmTraceFile = traceFile
+        flickerRunResultBuilder.wmTraceChecksum = checksum
     }
 
     override fun getTracePath(builder: FlickerRunResult.Builder) = builder.wmTraceFile
@@ -20,6 +20,7 @@ import com.android.server.wm.flicker.assertions.Assertion
 import com.android.server.wm.flicker.assertions.AssertionsChecker
 import com.android.server.wm.flicker.assertions.FlickerSubject
 import com.google.common.truth.FailureMetadata
+import java.util.stream.Collectors
 
 /**
  * Base subject for flicker trace assertions
@@ -81,11 +82,19 @@ abstract class FlickerTraceSubject<EntrySubject : FlickerSubject>(
     protected fun visibleEntriesShownMoreThanOneConsecutiveTime(
         visibleEntriesProvider: (EntrySubject) -> Set<String>
     ) {
-        var lastVisible = visibleEntriesProvider(subjects.first())
+        // The visible entries are independent for every subject, only the comparison is serial.
+        // They are computed in parallel only when the subject was opted in with runInParallel.
+        val visibleEntries = if (assertionsChecker.isParallel) {
+            subjects.parallelStream()
+                .map { visibleEntriesProvider(it) }
+                .collect(Collectors.toList())
+        } else {
+            subjects.map { visibleEntriesProvider(it) }
+        }
+        var lastVisible = visibleEntries.first()
         val lastNew = lastVisible.toMutableSet()
 
-        subjects.drop(1).forEachIndexed { index, entrySubject ->
-            val currentVisible = visibleEntriesProvider(entrySubject)
+        visibleEntries.drop(1).forEachIndexed { index, currentVisible ->
             val newVisible = currentVisible.filter { it !in lastVisible }
             lastNew.removeAll(currentVisible)
 
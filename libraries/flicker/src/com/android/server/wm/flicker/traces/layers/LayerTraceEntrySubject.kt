@@ -18,7 +18,6 @@ package com.android.server.wm.flicker.traces.layers
 
 import com.android.server.wm.flicker.assertions.Assertion
 import com.android.server.wm.flicker.assertions.FlickerSubject
-import com.android.server.wm.flicker.containsAny
 import com.android.server.wm.flicker.traces.FlickerFailureStrategy
 import com.android.server.wm.flicker.traces.FlickerSubjectException
 import com.android.server.wm.flicker.traces.RegionSubject
@@ -123,8 +122,8 @@ class LayerTraceEntrySubject private constructor(
         vararg partialLayerNames: String,
         useCompositionEngineRegionOnly: Boolean = true
     ): RegionSubject {
-        val selectedLayers = subjects
-            .filter { it.name.containsAny(*partialLayerNames) }
+        val selectedLayers = entry.getLayersByPartialName(*partialLayerNames)
+            .map { LayerSubject.assertThat(it, this) }
 
         if (selectedLayers.isEmpty()) {
             fail("Could not find", partialLayerNames.joinToString(", "))
@@ -147,7 +146,7 @@ class LayerTraceEntrySubject private constructor(
      * @param partialLayerNames Name of the layers to search
      */
     fun contains(vararg partialLayerNames: String): LayerTraceEntrySubject = apply {
-        val found = entry.flattenedLayers.any { it.name.containsAny(*partialLayerNames) }
+        val found = entry.getLayersByPartialName(*partialLayerNames).isNotEmpty()
         if (partialLayerNames.isNotEmpty() && !found) {
             fail("Could not find", partialLayerNames.joinToString(", "))
         }
@@ -159,7 +158,7 @@ class LayerTraceEntrySubject private constructor(
      * @param partialLayerNames Name of the layers to search
      */
     fun notContains(vararg partialLayerNames: String): LayerTraceEntrySubject = apply {
-        val found = entry.flattenedLayers.none { it.name.containsAny(*partialLayerNames) }
+        val found = entry.getLayersByPartialName(*partialLayerNames).isEmpty()
         if (!found) {
             fail("Could find", partialLayerNames)
         }
@@ -173,8 +172,7 @@ class LayerTraceEntrySubject private constructor(
     fun isVisible(vararg partialLayerNames: String): LayerTraceEntrySubject = apply {
         contains(*partialLayerNames)
         var reason: Fact? = null
-        val filteredLayers = entry.flattenedLayers
-            .filter { it.name.containsAny(*partialLayerNames) }
+        val filteredLayers = entry.getLayersByPartialName(*partialLayerNames)
         for (layer in filteredLayers) {
             if (layer.isHiddenByParent) {
                 reason = Fact.fact("Hidden by parent", layer.parent.name)
@@ -222,10 +220,10 @@ class LayerTraceEntrySubject private constructor(
      * [name] and [frameNumber].
      */
     fun layer(name: String, frameNumber: Long): LayerSubject {
-        return subjects.firstOrNull {
-            it.layer?.name?.contains(name) == true &&
-                it.layer.currFrame == frameNumber
-        } ?: LayerSubject.assertThat(name, this)
+        return entry.getLayersByPartialName(name)
+            .firstOrNull { it.currFrame == frameNumber }
+            ?.let { LayerSubject.assertThat(it, this) }
+            ?: LayerSubject.assertThat(name, this)
     }
 
     override fun toString(): String {
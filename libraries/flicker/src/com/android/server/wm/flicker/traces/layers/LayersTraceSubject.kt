@@ -97,6 +97,22 @@ class LayersTraceSubject private constructor(
         startAssertionBlock()
     }
 
+    /**
+     * Assumes each set of assertions passes on a contiguous range of entries and fails on all
+     * the entries after it, so the entries where the assertions change are found by binary search
+     *
+     * @return this subject, to chain further assertions
+     */
+    fun assumeMonotonic(): LayersTraceSubject = apply { assertionsChecker.assumeMonotonic() }
+
+    /**
+     * Evaluates the assertions of long traces in parallel on the common ForkJoinPool. Only use
+     * it if the assertions can run concurrently on other threads
+     *
+     * @return this subject, to chain further assertions
+     */
+    fun runInParallel(): LayersTraceSubject = apply { assertionsChecker.runInParallel() }
+
     fun isEmpty(): LayersTraceSubject = apply {
         check("Trace is empty").that(trace).isEmpty()
     }
@@ -111,6 +127,7 @@ class LayersTraceSubject private constructor(
      */
     fun layer(name: String, frameNumber: Long): LayerSubject {
         return subjects
+            .asSequence()
             .map { it.layer(name, frameNumber) }
             .firstOrNull { it.isNotEmpty }
             ?: LayerSubject.assertThat(null)
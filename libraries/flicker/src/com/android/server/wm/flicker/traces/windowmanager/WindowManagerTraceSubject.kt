@@ -96,6 +96,23 @@ class WindowManagerTraceSubject private constructor(
     fun skipUntilFirstAssertion(): WindowManagerTraceSubject =
         apply { assertionsChecker.skipUntilFirstAssertion() }
 
+    /**
+     * Assumes each set of assertions passes on a contiguous range of entries and fails on all
+     * the entries after it, so the entries where the assertions change are found by binary search
+     *
+     * @return this subject, to chain further assertions
+     */
+    fun assumeMonotonic(): WindowManagerTraceSubject =
+        apply { assertionsChecker.assumeMonotonic() }
+
+    /**
+     * Evaluates the assertions of long traces in parallel on the common ForkJoinPool. Only use
+     * it if the assertions can run concurrently on other threads
+     *
+     * @return this subject, to chain further assertions
+     */
+    fun runInParallel(): WindowManagerTraceSubject = apply { assertionsChecker.runInParallel() }
+
     fun isEmpty(): WindowManagerTraceSubject = apply {
         check("Trace is empty").that(trace).isEmpty()
     }
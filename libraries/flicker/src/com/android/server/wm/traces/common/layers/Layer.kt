@@ -116,17 +116,19 @@ open class Layer(
      * @return
      */
     val isVisible: Boolean
-        get() {
-            return when {
-                isHiddenByParent -> false
-                isHiddenByPolicy -> false
-                isActiveBufferEmpty && !hasEffects -> false
-                !fillsColor -> false
-                occludedBy.isNotEmpty() -> false
-                visibleRegion?.isEmpty ?: false -> false
-                else -> !bounds.isEmpty
-            }
+        get() = cachedIsVisible ?: computeIsVisible()
+
+    private fun computeIsVisible(): Boolean {
+        return when {
+            isHiddenByParent -> false
+            isHiddenByPolicy -> false
+            isActiveBufferEmpty && !hasEffects -> false
+            !fillsColor -> false
+            occludedBy.isNotEmpty() -> false
+            visibleRegion?.isEmpty ?: false -> false
+            else -> !bounds.isEmpty
         }
+    }
 
     val isOpaque: Boolean = if (color.a != 1.0f) false else _isOpaque
 
@@ -221,7 +223,25 @@ open class Layer(
      * @return
      */
     val isHiddenByParent: Boolean
-        get() = !isRootLayer && (parent.isHiddenByPolicy || parent.isHiddenByParent)
+        get() = cachedIsHiddenByParent
+            ?: (!isRootLayer && (parent.isHiddenByPolicy || parent.isHiddenByParent))
+
+    // Set by the [LayerTraceEntry] once the hierarchy, respectively the occlusion state, is
+    // complete. Layers outside of an entry compute the values on every call.
+    private var cachedIsHiddenByParent: Boolean? = null
+    private var cachedIsVisible: Boolean? = null
+
+    /** Caches [isHiddenByParent], the parent must be cached first. */
+    internal fun cacheHiddenByParent() {
+        cachedIsHiddenByParent = null
+        cachedIsHiddenByParent = isHiddenByParent
+    }
+
+    /** Caches [isVisible], once the layers occluding this one are known. */
+    internal fun cacheVisibility() {
+        cachedIsVisible = null
+        cachedIsVisible = computeIsVisible()
+    }
 
     /**
      * Gets a description of why the layer is (in)visible
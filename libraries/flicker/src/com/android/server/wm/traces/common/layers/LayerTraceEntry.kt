@@ -25,6 +25,9 @@ import com.android.server.wm.traces.common.prettyTimestamp
  * This is a generic object that is reused by both Flicker and Winscope and cannot
  * access internal Java/Android functionality
  *
+ * The occlusion state and the visibility of every layer are computed once, when the entry is
+ * created. Lookups by id, name and partial name use indexes built on first use.
+ *
  **/
 open class LayerTraceEntry constructor(
     override val timestamp: Long, // hierarchical representation of layers
@@ -32,17 +35,24 @@ open class LayerTraceEntry constructor(
     val where: String,
     _rootLayers: Array<Layer>
 ) : ITraceEntry {
+    // Layers in z-order, with the top most at the front of the list.
+    val zOrderedLayers: Array<Layer> = _rootLayers.topDownTraversal().reversed().toTypedArray()
     val flattenedLayers: Array<Layer> = fillFlattenedLayers(_rootLayers)
-    val rootLayers: Array<Layer> get() = flattenedLayers.filter { it.isRootLayer }.toTypedArray()
+    val rootLayers: Array<Layer> by lazy {
+        flattenedLayers.filter { it.isRootLayer }.toTypedArray()
+    }
+
+    init {
+        fillOcclusionState()
+    }
 
     private fun fillFlattenedLayers(rootLayers: Array<Layer>): Array<Layer> {
-        val opaqueLayers = mutableListOf<Layer>()
-        val transparentLayers = mutableListOf<Layer>()
         val layers = mutableListOf<Layer>()
-        val roots = rootLayers.fillOcclusionState(
-            opaqueLayers, transparentLayers).toMutableList()
+        val roots = rootLayers.toMutableList()
         while (roots.isNotEmpty()) {
             val layer = roots.removeAt(0)
+            // Parents come before their children, so this is computed in a single pass.
+            layer.cacheHiddenByParent()
             layers.add(layer)
             roots.addAll(layer.children)
         }
@@ -55,8 +65,9 @@ open class LayerTraceEntry constructor(
                 .flatMap { it.topDownTraversal() }
     }
 
-    val visibleLayers: Array<Layer>
-        get() = flattenedLayers.filter { it.isVisible }.toTypedArray()
+    val visibleLayers: Array<Layer> by lazy {
+        flattenedLayers.filter { it.isVisible }.toTypedArray()
+    }
 
     private fun Layer.topDownTraversal(): List<Layer> {
         val traverseList = mutableListOf(this)
@@ -69,13 +80,11 @@ open class LayerTraceEntry constructor(
         return traverseList
     }
 
-    private fun Array<Layer>.fillOcclusionState(
-        opaqueLayers: MutableList<Layer>,
-        transparentLayers: MutableList<Layer>
-    ): Array<Layer> {
-        val traversalList = topDownTraversal().reversed()
+    private fun fillOcclusionState() {
+        val opaqueLayers = mutableListOf<Layer>()
+        val transparentLayers = mutableListOf<Layer>()
 
-        traversalList.forEach { layer ->
+        zOrderedLayers.forEach { layer ->
             val visible = layer.isVisible
 
             if (visible) {
@@ -91,24 +100,98 @@ open class LayerTraceEntry constructor(
                     transparentLayers.add(layer)
                 }
             }
+            // Only the layers above were considered, so the occlusion state is final.
+            layer.cacheVisibility()
         }
+    }
 
-        return this
+    private val layersById: Map<Int, Layer> by lazy {
+        val index = mutableMapOf<Int, Layer>()
+        flattenedLayers.forEach { index.getOrPut(it.id) { it } }
+        index
     }
 
-    fun getLayerWithBuffer(name: String): Layer? {
-        return flattenedLayers.firstOrNull {
-            it.name.contains(name) && it.activeBuffer.isNotEmpty
+    private val layersByName: Map<String, List<Layer>> by lazy {
+        flattenedLayers.groupBy { it.name }
+    }
+
+    // Trigram of the layer names to the ascending indexes in [flattenedLayers] of the layers
+    // whose name contains it.
+    private val layerIndexesByTrigram: Map<Long, IntArray> by lazy {
+        val index = mutableMapOf<Long, MutableList<Int>>()
+        flattenedLayers.forEachIndexed { layerIndex, layer ->
+            val name = layer.name
+            for (i in 0..name.length - TRIGRAM_LENGTH) {
+                val indexes = index.getOrPut(trigram(name, i)) { mutableListOf() }
+                // A trigram repeated in a name is only added once.
+                if (indexes.lastOrNull() != layerIndex) {
+                    indexes.add(layerIndex)
+                }
+            }
         }
+        index.mapValues { it.value.toIntArray() }
+    }
+
+    /** Returns the layer with [id], if any. */
+    fun getLayerById(id: Int): Layer? = layersById[id]
+
+    /** Returns the layers named exactly [name], in the order of [flattenedLayers]. */
+    fun getLayersByName(name: String): List<Layer> = layersByName[name] ?: emptyList()
+
+    /**
+     * Returns the layers whose name contains any of [partialNames], or all the layers when
+     * no name is given, in the order of [flattenedLayers].
+     */
+    fun getLayersByPartialName(vararg partialNames: String): List<Layer> {
+        if (partialNames.isEmpty()) {
+            return flattenedLayers.asList()
+        }
+        if (partialNames.size == 1) {
+            return findLayerIndexes(partialNames[0]).map { flattenedLayers[it] }
+        }
+        return partialNames.flatMap { findLayerIndexes(it) }
+            .distinct()
+            .sorted()
+            .map { flattenedLayers[it] }
+    }
+
+    /** Returns the ascending indexes of the layers whose name contains [partialName]. */
+    private fun findLayerIndexes(partialName: String): List<Int> {
+        if (partialName.length < TRIGRAM_LENGTH) {
+            return flattenedLayers.indices.filter { flattenedLayers[it].name.contains(partialName) }
+        }
+        // Only the layers containing the rarest trigram of the name can match.
+        var candidates: IntArray? = null
+        for (i in 0..partialName.length - TRIGRAM_LENGTH) {
+            val indexes = layerIndexesByTrigram[trigram(partialName, i)] ?: return emptyList()
+            if (candidates == null || indexes.size < candidates.size) {
+                candidates = indexes
+            }
+        }
+        return candidates?.filter { flattenedLayers[it].name.contains(partialName) }
+            ?: emptyList()
+    }
+
+    fun getLayerWithBuffer(name: String): Layer? {
+        return getLayersByPartialName(name).firstOrNull { it.activeBuffer.isNotEmpty }
     }
 
     /**
      * Check if at least one window which matches provided window name is visible.
      */
     fun isVisible(windowName: String): Boolean =
-        visibleLayers.any { it.name == windowName }
+        getLayersByName(windowName).any { it.isVisible }
 
     override fun toString(): String {
         return prettyTimestamp(timestamp)
     }
-}
\ No newline at end of file
+
+    companion object {
+        private const val TRIGRAM_LENGTH = 3
+
+        private fun trigram(value: String, start: Int): Long =
+            (value[start].code.toLong() shl 32) or
+                (value[start + 1].code.toLong() shl 16) or
+                value[start + 2].code.toLong()
+    }
+}
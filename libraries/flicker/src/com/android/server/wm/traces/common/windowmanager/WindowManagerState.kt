@@ -35,6 +35,10 @@ import com.android.server.wm.traces.common.windowmanager.windows.WindowState
  * This is a generic object that is reused by both Flicker and Winscope and cannot
  * access internal Java/Android functionality
  *
+ * The window hierarchy of a state does not change once parsed, so the derived arrays and the
+ * lookup indexes (by display id, task id, activity type, windowing mode, activity name, window
+ * title, token and type) are built lazily on first access and reused by every query.
+ *
  **/
 open class WindowManagerState(
     val where: String,
@@ -54,47 +58,116 @@ open class WindowManagerState(
     val stableId: String get() = this::class.simpleName ?: error("Unable to determine class")
     val name: String get() = prettyTimestamp(timestamp)
 
-    val windowContainers: Array<WindowContainer>
-        get() = root.collectDescendants()
+    val windowContainers: Array<WindowContainer> by lazy {
+        root.collectDescendants<WindowContainer>()
+    }
 
-    val children: Array<WindowContainer>
-        get() = root.children.reversedArray()
+    val children: Array<WindowContainer> by lazy { root.children.reversedArray() }
 
     // Displays in z-order with the top most at the front of the list, starting with primary.
-    val displays: Array<DisplayContent>
-        get() = windowContainers.filterIsInstance<DisplayContent>().toTypedArray()
+    val displays: Array<DisplayContent> by lazy {
+        windowContainers.filterIsInstance<DisplayContent>().toTypedArray()
+    }
 
     // Stacks in z-order with the top most at the front of the list, starting with primary display.
-    val rootTasks: Array<ActivityTask>
-        get() = displays.flatMap { it.rootTasks.toList() }.toTypedArray()
+    val rootTasks: Array<ActivityTask> by lazy {
+        displays.flatMap { it.rootTasks.toList() }.toTypedArray()
+    }
 
     // Windows in z-order with the top most at the front of the list.
-    val windowStates: Array<WindowState>
-        get() = windowContainers.filterIsInstance<WindowState>().toTypedArray()
+    val windowStates: Array<WindowState> by lazy {
+        windowContainers.filterIsInstance<WindowState>().toTypedArray()
+    }
 
     @Deprecated("Please use windowStates instead", replaceWith = ReplaceWith("windowStates"))
     val windows: Array<WindowState>
         get() = windowStates
 
-    val appWindows: Array<WindowState>
-        get() = windowStates.filter { it.isAppWindow }.toTypedArray()
-    val nonAppWindows: Array<WindowState>
-        get() = windowStates.filterNot { it.isAppWindow }.toTypedArray()
-    val aboveAppWindows: Array<WindowState>
-        get() = windowStates.takeWhile { !appWindows.contains(it) }.toTypedArray()
-    val belowAppWindows: Array<WindowState>
-        get() = windowStates
-            .dropWhile { !appWindows.contains(it) }.drop(appWindows.size).toTypedArray()
-    val visibleWindows: Array<WindowState>
-        get() = windowStates.filter { it.isSurfaceShown }.toTypedArray()
-    val topVisibleAppWindow: String
-        get() = appWindows.filter { it.isVisible }
-            .map { it.title }
-            .firstOrNull() ?: ""
-    val pinnedWindows: Array<WindowState>
-        get() = visibleWindows
+    val appWindows: Array<WindowState> by lazy {
+        windowStates.filter { it.isAppWindow }.toTypedArray()
+    }
+    val nonAppWindows: Array<WindowState> by lazy {
+        windowStates.filterNot { it.isAppWindow }.toTypedArray()
+    }
+    val aboveAppWindows: Array<WindowState> by lazy {
+        windowStates.takeWhile { !it.isAppWindow }.toTypedArray()
+    }
+    val belowAppWindows: Array<WindowState> by lazy {
+        windowStates.dropWhile { !it.isAppWindow }.drop(appWindows.size).toTypedArray()
+    }
+    val visibleWindows: Array<WindowState> by lazy {
+        windowStates.filter { it.isSurfaceShown }.toTypedArray()
+    }
+    val topVisibleAppWindow: String by lazy {
+        appWindows.firstOrNull { it.isVisible }?.title ?: ""
+    }
+    val pinnedWindows: Array<WindowState> by lazy {
+        visibleWindows
             .filter { it.windowingMode == WINDOWING_MODE_PINNED }
             .toTypedArray()
+    }
+
+    /**
+     * Activity found by [ActivityTask.getActivity] on [rootTask], and the task returned for it by
+     * [ActivityTask.getTask] on the same root task, if any.
+     */
+    private class ActivityEntry(
+        val rootTask: ActivityTask,
+        val activity: Activity?,
+        val task: ActivityTask?
+    )
+
+    private val displaysById: Map<Int, DisplayContent> by lazy {
+        firstByKey(displays.asIterable()) { it.id }
+    }
+    private val rootTasksById: Map<Int, ActivityTask> by lazy {
+        firstByKey(rootTasks.asIterable()) { it.rootTaskId }
+    }
+    private val rootTasksByActivityType: Map<Int, ActivityTask> by lazy {
+        firstByKey(rootTasks.asIterable()) { it.activityType }
+    }
+    private val rootTasksByWindowingMode: Map<Int, List<ActivityTask>> by lazy {
+        rootTasks.groupBy { it.windowingMode }
+    }
+    private val windowStatesByTitle: Map<String, List<WindowState>> by lazy {
+        windowStates.groupBy { it.title }
+    }
+    private val windowStatesByType: Map<Int, List<WindowState>> by lazy {
+        windowStates.groupBy { it.attributes.type }
+    }
+    private val windowStatesByToken: Map<String, WindowState> by lazy {
+        firstByKey(windowStates.asIterable()) { it.token }
+    }
+
+    // Activity name to one entry per root task containing it, in root task order.
+    private val activitiesByName: Map<String, List<ActivityEntry>> by lazy {
+        val index = mutableMapOf<String, MutableList<ActivityEntry>>()
+        for (rootTask in rootTasks) {
+            val activities = mutableMapOf<String, Activity>()
+            val tasks = mutableMapOf<String, ActivityTask>()
+            val childTasks = rootTask.tasks
+            // Same search order as ActivityTask.getActivity: own activities first, then the
+            // activities of the child tasks.
+            rootTask.activities.forEach { activities.getOrPut(it.title) { it } }
+            childTasks.forEach { task ->
+                task.activities.forEach { activities.getOrPut(it.title) { it } }
+            }
+            // Same search order as ActivityTask.getTask: the first child task whose getActivity
+            // finds the activity, otherwise the root task itself.
+            childTasks.forEach { task ->
+                task.activities.forEach { tasks.getOrPut(it.title) { task } }
+                task.tasks.forEach { grandChild ->
+                    grandChild.activities.forEach { tasks.getOrPut(it.title) { task } }
+                }
+            }
+            activities.keys.forEach { tasks.getOrPut(it) { rootTask } }
+            tasks.forEach { (name, task) ->
+                index.getOrPut(name) { mutableListOf() }
+                    .add(ActivityEntry(rootTask, activities[name], task))
+            }
+        }
+        index
+    }
 
     val focusedDisplay: DisplayContent? get() = getDisplay(focusedDisplayId)
     val focusedStackId: Int get() = focusedDisplay?.focusedRootTaskId ?: -1
@@ -106,10 +179,11 @@ open class WindowManagerState(
             getActivityForWindow(focusedWindow, focusedDisplayId)?.name ?: ""
         }
     }
-    val resumedActivitiesInDisplays: Array<String>
-        get() = displays.flatMap { display ->
+    val resumedActivitiesInDisplays: Array<String> by lazy {
+        displays.flatMap { display ->
             display.rootTasks.flatMap { it.resumedActivities.toList() }
         }.toTypedArray()
+    }
     val defaultPinnedStackBounds: Rect
         get() = displays
             .lastOrNull { it.defaultPinnedStackBounds.isNotEmpty }?.defaultPinnedStackBounds
@@ -122,8 +196,9 @@ open class WindowManagerState(
         get() = getRootTask(focusedStackId)?.activityType ?: ACTIVITY_TYPE_UNDEFINED
     val focusedStackWindowingMode: Int
         get() = getRootTask(focusedStackId)?.windowingMode ?: WINDOWING_MODE_UNDEFINED
-    val resumedActivities: Array<String>
-        get() = rootTasks.flatMap { it.resumedActivities.toList() }.toTypedArray()
+    val resumedActivities: Array<String> by lazy {
+        rootTasks.flatMap { it.resumedActivities.toList() }.toTypedArray()
+    }
     val resumedActivitiesCount: Int get() = resumedActivities.size
     val stackCount: Int get() = rootTasks.size
     val displayCount: Int get() = displays.size
@@ -146,11 +221,9 @@ open class WindowManagerState(
     val inputMethodWindowState: WindowState?
         get() = getWindowStateForAppToken(inputMethodWindowAppToken)
 
-    fun getDefaultDisplay(): DisplayContent? =
-        displays.firstOrNull { it.id == DEFAULT_DISPLAY }
+    fun getDefaultDisplay(): DisplayContent? = getDisplay(DEFAULT_DISPLAY)
 
-    fun getDisplay(displayId: Int): DisplayContent? =
-        displays.firstOrNull { it.id == displayId }
+    fun getDisplay(displayId: Int): DisplayContent? = displaysById[displayId]
 
     fun getTaskDisplayArea(activityName: String): DisplayArea? {
         val result = displays.mapNotNull { it.getTaskDisplayArea(activityName) }
@@ -216,8 +289,7 @@ open class WindowManagerState(
         return count
     }
 
-    fun getRootTask(taskId: Int): ActivityTask? =
-        rootTasks.firstOrNull { it.rootTaskId == taskId }
+    fun getRootTask(taskId: Int): ActivityTask? = rootTasksById[taskId]
 
     fun getRotation(displayId: Int): Int =
             getDisplay(displayId)?.rotation ?: error("Default display not found")
@@ -226,23 +298,19 @@ open class WindowManagerState(
             getDisplay(displayId)?.lastOrientation ?: error("Default display not found")
 
     fun getStackByActivityType(activityType: Int): ActivityTask? =
-        rootTasks.firstOrNull { it.activityType == activityType }
+        rootTasksByActivityType[activityType]
 
     fun getStandardStackByWindowingMode(windowingMode: Int): ActivityTask? =
-        rootTasks.firstOrNull {
-            it.activityType == ACTIVITY_TYPE_STANDARD &&
-                it.windowingMode == windowingMode
-        }
+        rootTasksByWindowingMode[windowingMode]
+            ?.firstOrNull { it.activityType == ACTIVITY_TYPE_STANDARD }
 
     fun getStandardTaskCountByWindowingMode(windowingMode: Int): Int {
         var count = 0
-        for (stack in rootTasks) {
+        for (stack in rootTasksByWindowingMode[windowingMode] ?: emptyList()) {
             if (stack.activityType != ACTIVITY_TYPE_STANDARD) {
                 continue
             }
-            if (stack.windowingMode == windowingMode) {
-                count += if (stack.tasks.isEmpty()) 1 else stack.tasks.size
-            }
+            count += if (stack.tasks.isEmpty()) 1 else stack.tasks.size
         }
         return count
     }
@@ -301,37 +369,23 @@ open class WindowManagerState(
     }
 
     fun containsActivity(activityName: String): Boolean =
-        rootTasks.any { it.containsActivity(activityName) }
+        getActivities(activityName).any()
 
-    fun containsNoneOf(activityNames: Iterable<String>): Boolean {
-        for (activityName in activityNames) {
-            for (stack in rootTasks) {
-                if (stack.containsActivity(activityName)) return false
-            }
-        }
-        return true
-    }
+    fun containsNoneOf(activityNames: Iterable<String>): Boolean =
+        activityNames.none { containsActivity(it) }
 
     fun containsActivityInWindowingMode(
         activityName: String,
         windowingMode: Int
-    ): Boolean {
-        for (stack in rootTasks) {
-            val activity = stack.getActivity(activityName)
-            if (activity != null && activity.windowingMode == windowingMode) {
-                return true
-            }
-        }
-        return false
-    }
+    ): Boolean = getActivities(activityName).any { it.windowingMode == windowingMode }
 
+    // Only the top root task is considered.
     fun isActivityVisible(activityName: String): Boolean =
-        rootTasks.map { it.getActivity(activityName)?.isVisible ?: false }.firstOrNull()
-            ?: false
+        rootTasks.firstOrNull()?.getActivity(activityName)?.isVisible ?: false
 
+    // Only the top root task is considered.
     fun isActivityTranslucent(activityName: String): Boolean =
-        rootTasks.map { it.getActivity(activityName)?.isTranslucent ?: false }.firstOrNull()
-            ?: false
+        rootTasks.firstOrNull()?.getActivity(activityName)?.isTranslucent ?: false
 
     fun isBehindOpaqueActivities(activityName: String): Boolean {
         for (stack in rootTasks) {
@@ -349,17 +403,16 @@ open class WindowManagerState(
         return false
     }
 
-    fun containsStartedActivities(): Boolean = rootTasks.map {
-        it.getActivity { a -> a.state != STATE_STOPPED && a.state != STATE_DESTROYED } != null
-    }.firstOrNull() ?: false
+    // Only the top root task is considered.
+    fun containsStartedActivities(): Boolean = rootTasks.firstOrNull()?.getActivity { a ->
+        a.state != STATE_STOPPED && a.state != STATE_DESTROYED
+    } != null
 
     fun hasActivityState(activityName: String, activityState: String): Boolean =
-        rootTasks.any { it.getActivity(activityName)?.state == activityState }
+        getActivities(activityName).any { it.state == activityState }
 
     fun getActivityProcId(activityName: String): Int =
-        rootTasks.mapNotNull { it.getActivity(activityName)?.procId }
-            .firstOrNull()
-            ?: -1
+        getActivities(activityName).firstOrNull()?.procId ?: -1
 
     fun getStackIdByActivity(activityName: String): Int =
         getTaskByActivity(activityName)?.rootTaskId ?: INVALID_STACK_ID
@@ -367,17 +420,18 @@ open class WindowManagerState(
     fun getTaskByActivity(activityName: String): ActivityTask? =
         getTaskByActivity(activityName, WINDOWING_MODE_UNDEFINED)
 
-    fun getTaskByActivity(activityName: String, windowingMode: Int): ActivityTask? {
-        for (stack in rootTasks) {
-            if (windowingMode == WINDOWING_MODE_UNDEFINED || windowingMode == stack.windowingMode) {
-                val task = stack.getTask { it.getActivity(activityName) != null }
-                if (task != null) {
-                    return task
-                }
-            }
-        }
-        return null
-    }
+    fun getTaskByActivity(activityName: String, windowingMode: Int): ActivityTask? =
+        activitiesByName[activityName]?.firstOrNull {
+            windowingMode == WINDOWING_MODE_UNDEFINED ||
+                windowingMode == it.rootTask.windowingMode
+        }?.task
+
+    /**
+     * Activities named [activityName], the first found in each root task, in root task order.
+     */
+    private fun getActivities(activityName: String): Sequence<Activity> =
+        activitiesByName[activityName]?.asSequence()?.mapNotNull { it.activity }
+            ?: emptySequence()
 
     /**
      * Get the number of activities in the task, with the option to count only activities with
@@ -420,7 +474,7 @@ open class WindowManagerState(
     }
 
     fun getMatchingVisibleWindowState(windowName: String): List<WindowState> {
-        return windowStates.filter { it.isSurfaceShown && it.title == windowName }
+        return windowStatesByTitle[windowName]?.filter { it.isSurfaceShown } ?: emptyList()
     }
 
     fun getWindowByPackageName(packageName: String, windowType: Int): WindowState? =
@@ -437,7 +491,7 @@ open class WindowManagerState(
         }
 
     fun getMatchingWindowType(type: Int): List<WindowState> =
-        windowStates.filter { it.attributes.type == type }
+        windowStatesByType[type] ?: emptyList()
 
     fun getMatchingWindowTokens(windowName: String): List<String> =
         windowStates.filter { it.title === windowName }.map { it.token }
@@ -454,33 +508,24 @@ open class WindowManagerState(
     }
 
     fun getWindowStateForAppToken(appToken: String): WindowState? =
-        windowStates.firstOrNull { it.token == appToken }
+        windowStatesByToken[appToken]
 
     /**
      * Check if there exists a window record with matching windowName.
      */
     fun containsWindow(windowName: String): Boolean =
-        windowStates.any { it.title == windowName }
+        windowStatesByTitle.containsKey(windowName)
 
     /**
      * Check if at least one window which matches the specified name has shown it's surface.
      */
-    fun isWindowSurfaceShown(windowName: String): Boolean {
-        for (window in windowStates) {
-            if (window.title == windowName) {
-                if (window.isSurfaceShown) {
-                    return true
-                }
-            }
-        }
-        return false
-    }
+    fun isWindowSurfaceShown(windowName: String): Boolean =
+        windowStatesByTitle[windowName]?.any { it.isSurfaceShown } ?: false
 
     /**
      * Check if at least one window which matches provided window name is visible.
      */
-    fun isWindowVisible(windowName: String): Boolean =
-        visibleWindows.any { it.title == windowName }
+    fun isWindowVisible(windowName: String): Boolean = isWindowSurfaceShown(windowName)
 
     /**
      * Checks if the state has any window in PIP mode
@@ -507,21 +552,12 @@ open class WindowManagerState(
     }
 
     fun findFirstWindowWithType(type: Int): WindowState? =
-        windowStates.firstOrNull { it.attributes.type == type }
+        windowStatesByType[type]?.firstOrNull()
 
     fun getZOrder(w: WindowState): Int = windowStates.size - windowStates.indexOf(w)
 
-    fun getStandardRootStackByWindowingMode(windowingMode: Int): ActivityTask? {
-        for (task in rootTasks) {
-            if (task.activityType != ACTIVITY_TYPE_STANDARD) {
-                continue
-            }
-            if (task.windowingMode == windowingMode) {
-                return task
-            }
-        }
-        return null
-    }
+    fun getStandardRootStackByWindowingMode(windowingMode: Int): ActivityTask? =
+        getStandardStackByWindowingMode(windowingMode)
 
     fun defaultMinimalTaskSize(displayId: Int): Int =
         dpToPx(DEFAULT_RESIZABLE_TASK_SIZE_DP.toFloat(), getDisplay(displayId)!!.dpi)
@@ -607,5 +643,12 @@ open class WindowManagerState(
         fun dpToPx(dp: Float, densityDpi: Int): Int {
             return (dp * densityDpi / DENSITY_DEFAULT + 0.5f).toInt()
         }
+
+        /** Index [values] by [key], keeping the first value of each key. */
+        private fun <K, V> firstByKey(values: Iterable<V>, key: (V) -> K): Map<K, V> {
+            val index = mutableMapOf<K, V>()
+            values.forEach { index.getOrPut(key(it)) { it } }
+            return index
+        }
     }
 }
\ No newline at end of file
@@ -23,6 +23,10 @@ import android.util.Log
  * The utility class to wait a condition with customized options.
  * The default retry policy is 5 times with interval 1 second.
  *
+ * With [setMinRetryIntervalMs], the condition is first checked at the shorter interval, which
+ * doubles after every retry up to the retry interval, within the same total wait time. This
+ * detects quick state changes early while not loading the device with checks on longer waits.
+ *
  * @param <T> The type of the object to validate.
  *
  * <p>Sample:</p>
@@ -60,6 +64,8 @@ class Condition<T>
     private var retryIntervalMs: Long = DEFAULT_RETRY_INTERVAL_MS
 ) {
     private var returnLastResult: Boolean = false
+    private var minRetryIntervalMs: Long = retryIntervalMs
+    private var onComplete: ((WaitMetrics) -> Unit)? = null
 
     /**
      * It is used when the condition is not a simple boolean expression, such as the caller may
@@ -107,6 +113,19 @@ class Condition<T>
 
     fun setRetryLimit(limit: Int): Condition<T> = apply { retryLimit = limit }
 
+    /**
+     * Interval of the first retry, doubled after each retry up to the retry interval. The total
+     * wait time is still the retry limit times the retry interval.
+     */
+    fun setMinRetryIntervalMs(millis: Long): Condition<T> =
+        apply { minRetryIntervalMs = millis }
+
+    /**
+     * Executes the action with the latency of the wait once it is satisfied or gave up.
+     */
+    fun setOnComplete(onComplete: (WaitMetrics) -> Unit): Condition<T> =
+        apply { this.onComplete = onComplete }
+
     /**
      * Build the condition by [.mResultSupplier] and [.mResultValidator].
      */
@@ -159,25 +178,33 @@ class Condition<T>
         fun <T> waitFor(condition: Condition<T>): Boolean {
             val satisfier = condition.satisfier ?: condition.prepareSatisfier()
             val startTime = SystemClock.elapsedRealtime()
+            val maxWaitMs = condition.retryLimit * condition.retryIntervalMs
+            var waitedMs = 0L
+            var intervalMs = minOf(condition.minRetryIntervalMs, condition.retryIntervalMs)
+            var attempts = 0
             Log.v(LOG_TAG, "***Waiting for ${condition.message}")
-            for (i in 1..condition.retryLimit) {
+            while (true) {
+                attempts++
                 if (satisfier.invoke()) {
                     Log.v(LOG_TAG, "***Waiting for ${condition.message} ... Success!")
+                    condition.notifyComplete(/* success */ true, attempts, startTime)
                     return true
-                } else {
-                    SystemClock.sleep(condition.retryIntervalMs)
-                    Log.v(LOG_TAG, "***Waiting for ${condition.message} ... retry=$i" +
-                        " elapsed=${SystemClock.elapsedRealtime() - startTime} ms")
-                    val onRetry = condition.onRetry
-                    if (onRetry != null && i < condition.retryLimit) {
-                        onRetry.run()
-                    }
+                }
+                if (waitedMs >= maxWaitMs && attempts > condition.retryLimit) {
+                    break
+                }
+                val sleepMs = minOf(intervalMs, maxWaitMs - waitedMs).coerceAtLeast(0)
+                SystemClock.sleep(sleepMs)
+                waitedMs += sleepMs
+                intervalMs = minOf(intervalMs * 2, condition.retryIntervalMs)
+                Log.v(LOG_TAG, "***Waiting for ${condition.message} ... retry=$attempts" +
+                    " elapsed=${SystemClock.elapsedRealtime() - startTime} ms")
+                val onRetry = condition.onRetry
+                if (onRetry != null && (waitedMs < maxWaitMs || attempts < condition.retryLimit)) {
+                    onRetry.run()
                 }
             }
-            if (satisfier.invoke()) {
-                Log.v(LOG_TAG, "***Waiting for ${condition.message} ... Success!")
-                return true
-            }
+            condition.notifyComplete(/* success */ false, attempts, startTime)
             val onFailure = condition.onFailure
             if (onFailure == null) {
                 Log.e(LOG_TAG, "***Waiting for ${condition.message} ... Failed!")
@@ -189,6 +216,17 @@ class Condition<T>
             return false
         }
 
+        private fun <T> Condition<T>.notifyComplete(
+            success: Boolean,
+            attempts: Int,
+            startTime: Long
+        ) {
+            val metrics = WaitMetrics(message, success, attempts,
+                SystemClock.elapsedRealtime() - startTime)
+            Log.d(LOG_TAG, "***Waited for $message: $metrics")
+            onComplete?.invoke(metrics)
+        }
+
         /**
          * @see .waitForResult
          */
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.traces.parser
+
+/**
+ * Latency of a [Condition] wait
+ */
+data class WaitMetrics(
+    /**
+     * What was waited for
+     */
+    val message: String,
+    /**
+     * If the condition was satisfied within the time limit
+     */
+    val success: Boolean,
+    /**
+     * Number of times the condition was checked
+     */
+    val attempts: Int,
+    /**
+     * Time from the start of the wait until the condition was satisfied or the wait gave up
+     */
+    val elapsedMs: Long
+)
@@ -34,10 +34,12 @@ import com.android.server.wm.traces.common.windowmanager.windows.ConfigurationCo
 import com.android.server.wm.traces.common.windowmanager.windows.WindowContainer
 import com.android.server.wm.traces.common.windowmanager.windows.WindowState
 import com.android.server.wm.traces.parser.Condition
+import com.android.server.wm.traces.parser.FLAG_STATE_DUMP_FLAG_WM
 import com.android.server.wm.traces.parser.LOG_TAG
 import com.android.server.wm.traces.parser.toActivityName
 import com.android.server.wm.traces.parser.toAndroidRegion
 import com.android.server.wm.traces.parser.toWindowName
+import com.android.server.wm.traces.parser.WaitMetrics
 
 open class WindowManagerStateHelper @JvmOverloads constructor(
     /**
@@ -62,8 +64,24 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     /**
      * Interval between wait for state dumps during wait conditions
      */
-    private val retryIntervalMs: Long = 500L
+    private val retryIntervalMs: Long = 500L,
+    /**
+     * Interval of the first retry of the wait conditions, doubled after each retry up to
+     * [retryIntervalMs], so short transitions don't wait for a full [retryIntervalMs]
+     */
+    private val minRetryIntervalMs: Long = 50L,
+    /**
+     * Supplier of the WM state alone, e.g. [wmStateDumpSupplier]. When set, the conditions that
+     * only read the WM state use it instead of [deviceDumpSupplier], so they don't dump the
+     * layers. Otherwise they use the WM state of [deviceDumpSupplier]
+     */
+    private val wmStateSupplier: (() -> WindowManagerState)? = null
 ) {
+    /**
+     * Called with the latency of every wait condition
+     */
+    var onWaitComplete: ((WaitMetrics) -> Unit)? = null
+
     /**
      * Fetches the current device state
      */
@@ -73,22 +91,44 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     /**
      * Queries the supplier for a new device state
      *
-     * @param ignoreInvalidStates If false, retries up to [numRetries] times (with a sleep
-     * interval of [retryIntervalMs] ms to obtain a complete WM state, otherwise returns the
-     * first state
+     * @param ignoreInvalidStates If false, retries for up to [numRetries] + 1 times
+     * [retryIntervalMs] ms, starting with an interval of [minRetryIntervalMs] ms, to obtain a
+     * complete WM state, otherwise returns the first state
      */
-    protected open fun computeState(ignoreInvalidStates: Boolean = false): Dump {
-        var newState = deviceDumpSupplier.invoke()
-        for (retryNr in 0..numRetries) {
-            val wmState = newState.wmState
-            if (!ignoreInvalidStates && wmState.isIncomplete()) {
-                Log.w(LOG_TAG, "***Incomplete AM state: ${wmState.getIsIncompleteReason()}" +
-                    " Waiting ${retryIntervalMs}ms and retrying ($retryNr/$numRetries)...")
-                SystemClock.sleep(retryIntervalMs)
-                newState = deviceDumpSupplier.invoke()
-            } else {
-                break
-            }
+    protected open fun computeState(ignoreInvalidStates: Boolean = false): Dump =
+        retryWhileIncomplete(ignoreInvalidStates, deviceDumpSupplier) { it.wmState }
+
+    /**
+     * Queries [wmStateSupplier], if set, or otherwise [computeState] for a new WM state
+     *
+     * @param ignoreInvalidStates See [computeState]
+     */
+    protected open fun computeWmState(ignoreInvalidStates: Boolean = false): WindowManagerState {
+        val supplier = wmStateSupplier ?: return computeState(ignoreInvalidStates).wmState
+        return retryWhileIncomplete(ignoreInvalidStates, supplier) { it }
+    }
+
+    private fun <T> retryWhileIncomplete(
+        ignoreInvalidStates: Boolean,
+        supplier: () -> T,
+        wmStateOf: (T) -> WindowManagerState
+    ): T {
+        var newState = supplier.invoke()
+        val maxWaitMs = (numRetries + 1) * retryIntervalMs
+        var waitedMs = 0L
+        var intervalMs = minOf(minRetryIntervalMs, retryIntervalMs)
+        var retryNr = 0
+        while (!ignoreInvalidStates && wmStateOf(newState).isIncomplete() &&
+            (waitedMs < maxWaitMs || retryNr <= numRetries)) {
+            val sleepMs = minOf(intervalMs, maxWaitMs - waitedMs).coerceAtLeast(0)
+            Log.w(LOG_TAG, "***Incomplete AM state: " +
+                "${wmStateOf(newState).getIsIncompleteReason()} Waiting ${sleepMs}ms and " +
+                "retrying ($retryNr/$numRetries)...")
+            SystemClock.sleep(sleepMs)
+            waitedMs += sleepMs
+            intervalMs = minOf(intervalMs * 2, retryIntervalMs)
+            retryNr++
+            newState = supplier.invoke()
         }
 
         return newState
@@ -111,11 +151,9 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
      * @param waitForActivitiesVisible array of activity states to wait for.
      */
     fun waitForValidState(vararg waitForActivitiesVisible: WaitForValidActivityState): Boolean {
-        val success = Condition.waitFor<WindowManagerState>("valid stacks and activities states",
-            retryLimit = numRetries, retryIntervalMs = retryIntervalMs) {
+        val success = waitForWmState("valid stacks and activities states") { state ->
             // TODO: Get state of AM and WM at the same time to avoid mismatches caused by
             // requesting dump in some intermediate state.
-            val state = computeState()
             !(shouldWaitForValidityCheck(state) ||
                 shouldWaitForValidStacks(state) ||
                 shouldWaitForActivities(state, *waitForActivitiesVisible) ||
@@ -137,24 +175,24 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
                             .build())
 
     fun waitForHomeActivityVisible(): Boolean {
-        return waitFor { it.wmState.homeActivity?.isVisible == true } &&
+        return waitForWmState { it.homeActivity?.isVisible == true } &&
             waitForNavBarStatusBarVisible() &&
             waitForAppTransitionIdle()
     }
 
     fun waitForRecentsActivityVisible(): Boolean =
-        waitFor("recents activity to be visible") {
-            it.wmState.isRecentsActivityVisible
+        waitForWmState("recents activity to be visible") {
+            it.isRecentsActivityVisible
         }
 
     fun waitForAodShowing(): Boolean =
-        waitFor("AOD showing") {
-            it.wmState.keyguardControllerState.isAodShowing
+        waitForWmState("AOD showing") {
+            it.keyguardControllerState.isAodShowing
         }
 
     fun waitForKeyguardGone(): Boolean =
-        waitFor("Keyguard gone") {
-            !it.wmState.keyguardControllerState.isKeyguardShowing
+        waitForWmState("Keyguard gone") {
+            !it.keyguardControllerState.isKeyguardShowing
         }
 
     /**
@@ -188,16 +226,16 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
         orientation: Int,
         displayId: Int = Display.DEFAULT_DISPLAY
     ): Boolean =
-        waitFor("LastOrientation: $orientation") {
-            val result = it.wmState.getOrientation(displayId)
+        waitForWmState("LastOrientation: $orientation") {
+            val result = it.getOrientation(displayId)
             Log.v(LOG_TAG, "Current: $result Expected: $orientation")
             result == orientation
         }
 
     fun waitForActivityState(activity: ComponentName, activityState: String): Boolean {
         val activityName = activity.toActivityName()
-        return waitFor("state of $activityName to be $activityState") {
-            it.wmState.hasActivityState(activityName, activityState)
+        return waitForWmState("state of $activityName to be $activityState") {
+            it.hasActivityState(activityName, activityState)
         }
     }
 
@@ -235,11 +273,11 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     fun waitForVisibleWindow(activity: ComponentName): Boolean {
         val activityName = activity.toActivityName()
         val windowName = activity.toWindowName()
-        return waitFor("$activityName to exist") {
-            val containsActivity = it.wmState.containsActivity(activityName)
-            val containsWindow = it.wmState.containsWindow(windowName)
-            val activityVisible = containsActivity && it.wmState.isActivityVisible(activityName)
-            val windowVisible = containsWindow && it.wmState.isWindowSurfaceShown(windowName)
+        return waitForWmState("$activityName to exist") {
+            val containsActivity = it.containsActivity(activityName)
+            val containsWindow = it.containsWindow(windowName)
+            val activityVisible = containsActivity && it.isActivityVisible(activityName)
+            val windowVisible = containsWindow && it.isWindowSurfaceShown(windowName)
             val result = containsActivity &&
                 containsWindow &&
                 activityVisible &&
@@ -258,9 +296,9 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     fun waitForActivityRemoved(activity: ComponentName): Boolean {
         val activityName = activity.toActivityName()
         val windowName = activity.toWindowName()
-        return waitFor("$activityName to be removed") {
-            val containsActivity = it.wmState.containsActivity(activityName)
-            val containsWindow = it.wmState.containsWindow(windowName)
+        return waitForWmState("$activityName to be removed") {
+            val containsActivity = it.containsActivity(activityName)
+            val containsWindow = it.containsWindow(windowName)
             val result = !containsActivity && !containsWindow
 
             Log.v(LOG_TAG, "Current: $result" +
@@ -272,30 +310,30 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
 
     fun waitForPendingActivityContain(activity: ComponentName): Boolean {
         val activityName: String = activity.toActivityName()
-        return waitFor("$activityName in pending list") {
-            it.wmState.pendingActivityContain(activityName)
+        return waitForWmState("$activityName in pending list") {
+            it.pendingActivityContain(activityName)
         }
     }
 
     @JvmOverloads
     fun waitForAppTransitionIdle(displayId: Int = Display.DEFAULT_DISPLAY): Boolean =
-        waitFor("app transition idle on Display $displayId") {
+        waitForWmState("app transition idle on Display $displayId") {
             val result =
-                it.wmState.getDisplay(displayId)?.appTransitionState
+                it.getDisplay(displayId)?.appTransitionState
             Log.v(LOG_TAG, "Current: $result")
             WindowManagerState.APP_STATE_IDLE == result
         }
 
     fun waitForWindowSurfaceDisappeared(componentName: ComponentName): Boolean {
         val windowName = componentName.toWindowName()
-        return waitFor("$windowName's surface is disappeared") {
-            !it.wmState.isWindowSurfaceShown(windowName)
+        return waitForWmState("$windowName's surface is disappeared") {
+            !it.isWindowSurfaceShown(windowName)
         }
     }
 
     fun waitForSurfaceAppeared(surfaceName: String): Boolean {
-        return waitFor("$surfaceName surface is appeared") {
-            it.wmState.isWindowSurfaceShown(surfaceName)
+        return waitForWmState("$surfaceName surface is appeared") {
+            it.isWindowSurfaceShown(surfaceName)
         }
     }
 
@@ -303,39 +341,58 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
         windowingMode: Int,
         topFocus: Boolean,
         message: String
-    ): Boolean = waitFor(message) {
-        val stack = it.wmState.getStandardStackByWindowingMode(windowingMode)
-        (stack != null && topFocus == (it.wmState.focusedStackId == stack.rootTaskId))
+    ): Boolean = waitForWmState(message) {
+        val stack = it.getStandardStackByWindowingMode(windowingMode)
+        (stack != null && topFocus == (it.focusedStackId == stack.rootTaskId))
     }
 
     @JvmOverloads
     fun waitFor(
         message: String = "",
         waitCondition: (Dump) -> Boolean
-    ): Boolean = Condition.waitFor<Dump>(message, retryLimit = numRetries,
-        retryIntervalMs = retryIntervalMs) {
+    ): Boolean = waitForCondition(message) {
         val state = computeState()
         waitCondition.invoke(state)
     }
 
+    /**
+     * Waits for a condition on the WM state only, which doesn't need the layers to be dumped when
+     * [wmStateSupplier] is set
+     */
+    @JvmOverloads
+    fun waitForWmState(
+        message: String = "",
+        waitCondition: (WindowManagerState) -> Boolean
+    ): Boolean = waitForCondition(message) {
+        val state = computeWmState()
+        waitCondition.invoke(state)
+    }
+
+    private fun waitForCondition(message: String, satisfier: () -> Boolean): Boolean {
+        val condition = Condition<Any>(message, satisfier, numRetries, retryIntervalMs)
+            .setMinRetryIntervalMs(minRetryIntervalMs)
+            .setOnComplete { metrics -> onWaitComplete?.invoke(metrics) }
+        return Condition.waitFor(condition)
+    }
+
     /**
      * @return true if should wait for valid stacks state.
      */
-    private fun shouldWaitForValidStacks(state: Dump): Boolean {
-        if (state.wmState.stackCount == 0) {
+    private fun shouldWaitForValidStacks(state: WindowManagerState): Boolean {
+        if (state.stackCount == 0) {
             Log.i(LOG_TAG, "***stackCount=0")
             return true
         }
-        if (!state.wmState.keyguardControllerState.isKeyguardShowing &&
-            state.wmState.resumedActivities.isEmpty()) {
-            if (!state.wmState.keyguardControllerState.isKeyguardShowing) {
+        if (!state.keyguardControllerState.isKeyguardShowing &&
+            state.resumedActivities.isEmpty()) {
+            if (!state.keyguardControllerState.isKeyguardShowing) {
                 Log.i(LOG_TAG, "***resumedActivitiesCount=0")
             } else {
                 Log.i(LOG_TAG, "***isKeyguardShowing=true")
             }
             return true
         }
-        if (state.wmState.focusedActivity.isEmpty()) {
+        if (state.focusedActivity.isEmpty()) {
             Log.i(LOG_TAG, "***focusedActivity=null")
             return true
         }
@@ -346,7 +403,7 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
      * @return true if should wait for some activities to become visible.
      */
     private fun shouldWaitForActivities(
-        state: Dump,
+        state: WindowManagerState,
         vararg waitForActivitiesVisible: WaitForValidActivityState
     ): Boolean {
         if (waitForActivitiesVisible.isEmpty()) {
@@ -358,7 +415,7 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
         var allActivityWindowsVisible = true
         var tasksInCorrectStacks = true
         for (activityState in waitForActivitiesVisible) {
-            val matchingWindowStates = state.wmState.getMatchingVisibleWindowState(
+            val matchingWindowStates = state.getMatchingVisibleWindowState(
                 activityState.windowName ?: "")
             val activityWindowVisible = matchingWindowStates.isNotEmpty()
 
@@ -366,7 +423,7 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
                 Log.i(LOG_TAG, "Activity window not visible: ${activityState.windowName}")
                 allActivityWindowsVisible = false
             } else if (activityState.activityName != null &&
-                !state.wmState.isActivityVisible(activityState.activityName.toActivityName())) {
+                !state.isActivityVisible(activityState.activityName.toActivityName())) {
                 Log.i(LOG_TAG, "Activity not visible: ${activityState.activityName}")
                 allActivityWindowsVisible = false
             } else {
@@ -399,17 +456,17 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     /**
      * @return true if should wait for the valid windows state.
      */
-    private fun shouldWaitForWindows(state: Dump): Boolean {
+    private fun shouldWaitForWindows(state: WindowManagerState): Boolean {
         return when {
-            state.wmState.frontWindow == null -> {
+            state.frontWindow == null -> {
                 Log.i(LOG_TAG, "***frontWindow=null")
                 true
             }
-            state.wmState.focusedWindow.isEmpty() -> {
+            state.focusedWindow.isEmpty() -> {
                 Log.i(LOG_TAG, "***focusedWindow=null")
                 true
             }
-            state.wmState.focusedApp.isEmpty() -> {
+            state.focusedApp.isEmpty() -> {
                 Log.i(LOG_TAG, "***focusedApp=null")
                 true
             }
@@ -417,8 +474,8 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
         }
     }
 
-    private fun shouldWaitForValidityCheck(state: Dump): Boolean {
-        return !state.wmState.isComplete()
+    private fun shouldWaitForValidityCheck(state: WindowManagerState): Boolean {
+        return !state.isComplete()
     }
 
     /**
@@ -470,6 +527,20 @@ open class WindowManagerStateHelper @JvmOverloads constructor(
     }
 
     companion object {
+        /**
+         * Returns a supplier dumping only the WM state of the device, to set as
+         * [wmStateSupplier]
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun wmStateDumpSupplier(
+            instrumentation: Instrumentation = InstrumentationRegistry.getInstrumentation()
+        ): () -> WindowManagerState = {
+            val wmDump = getCurrentStateDump(instrumentation.uiAutomation,
+                FLAG_STATE_DUMP_FLAG_WM)
+            wmDump.wmTrace?.entries?.first() ?: error("Unable to parse WM trace")
+        }
+
         @VisibleForTesting
         const val NAV_BAR_WINDOW_NAME = "NavigationBar0"
         @VisibleForTesting
@@ -24,6 +24,7 @@ import com.android.server.wm.traces.common.ITraceEntry
 import com.google.common.truth.FailureMetadata
 import com.google.common.truth.StandardSubjectBuilder
 import com.google.common.truth.Subject
+import com.google.common.truth.Truth
 import org.junit.FixMethodOrder
 import org.junit.Test
 import org.junit.runners.MethodSorters
@@ -117,6 +118,52 @@ class AssertionsCheckerTest {
         }
     }
 
+    @Test
+    fun canCheckChangingAssertions_inParallel() {
+        val checker = AssertionsChecker<SimpleEntrySubject>()
+        checker.runInParallel()
+        checker.add("isData42") { it.isData42() }
+        checker.add("isData0") { it.isData0() }
+        checker.test(getTestEntries(*IntArray(100) { if (it < 60) 42 else 0 }))
+    }
+
+    @Test
+    fun canFailCheckChangingAssertions_inParallel() {
+        val checker = AssertionsChecker<SimpleEntrySubject>()
+        checker.runInParallel()
+        checker.add("isData42") { it.isData42() }
+        checker.add("isData0") { it.isData0() }
+        val data = IntArray(100) { if (it < 40 || it >= 90) 42 else 0 }
+        val failure = assertThrows(FlickerSubjectException::class.java) {
+            checker.test(getTestEntries(*data))
+        }
+        assertFailure(failure.cause).factValue("expected").isEqualTo("0")
+        assertFailure(failure.cause).factValue("but was").isEqualTo("42")
+    }
+
+    @Test
+    fun canCheckChangingAssertions_withBinarySearch() {
+        val checker = AssertionsChecker<SimpleEntrySubject>()
+        checker.assumeMonotonic()
+        var evaluations = 0
+        checker.add("isData42") { evaluations++; it.isData42() }
+        checker.add("isData0") { evaluations++; it.isData0() }
+        checker.test(getTestEntries(*IntArray(1000) { if (it < 600) 42 else 0 }))
+        Truth.assertThat(evaluations).isLessThan(40)
+    }
+
+    @Test
+    fun canFailCheckChangingAssertions_withBinarySearch() {
+        val checker = AssertionsChecker<SimpleEntrySubject>()
+        checker.assumeMonotonic()
+        checker.add("isData42") { it.isData42() }
+        checker.add("isData0") { it.isData0() }
+        val failure = assertThrows(FlickerSubjectException::class.java) {
+            checker.test(getTestEntries(*IntArray(100) { 0 }))
+        }
+        assertFailure(failure.cause).factValue("expected").isEqualTo("42")
+    }
+
     private class SimpleEntrySubject(
         failureMetadata: FailureMetadata,
         private val entry: SimpleEntry
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker
+
+import com.android.server.wm.traces.parser.Condition
+import com.android.server.wm.traces.parser.WaitMetrics
+import com.google.common.truth.Truth
+import org.junit.FixMethodOrder
+import org.junit.Test
+import org.junit.runners.MethodSorters
+
+/**
+ * Contains [Condition] tests. To run this test: `atest FlickerLibTest:ConditionTest`
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+class ConditionTest {
+    private fun waitFor(
+        satisfiedAtAttempt: Int,
+        retryLimit: Int,
+        retryIntervalMs: Long,
+        minRetryIntervalMs: Long = retryIntervalMs
+    ): WaitMetrics {
+        var attempts = 0
+        var metrics: WaitMetrics? = null
+        val condition = Condition<Any>("attempt $satisfiedAtAttempt",
+            { ++attempts >= satisfiedAtAttempt }, retryLimit, retryIntervalMs)
+            .setMinRetryIntervalMs(minRetryIntervalMs)
+            .setOnComplete { metrics = it }
+        val success = Condition.waitFor(condition)
+        val result = metrics ?: error("Missing wait metrics")
+        Truth.assertThat(result.success).isEqualTo(success)
+        Truth.assertThat(result.attempts).isEqualTo(attempts)
+        return result
+    }
+
+    @Test
+    fun checksRetryLimitPlusOneTimesWithFixedInterval() {
+        val metrics = waitFor(satisfiedAtAttempt = 100, retryLimit = 3, retryIntervalMs = 1)
+        Truth.assertThat(metrics.success).isFalse()
+        Truth.assertThat(metrics.attempts).isEqualTo(4)
+    }
+
+    @Test
+    fun checksRetryLimitPlusOneTimesWithoutInterval() {
+        val metrics = waitFor(satisfiedAtAttempt = 100, retryLimit = 3, retryIntervalMs = 0)
+        Truth.assertThat(metrics.attempts).isEqualTo(4)
+    }
+
+    @Test
+    fun detectsQuickChangesWithBackoff() {
+        val metrics = waitFor(satisfiedAtAttempt = 3, retryLimit = 5, retryIntervalMs = 500,
+            minRetryIntervalMs = 10)
+        Truth.assertThat(metrics.success).isTrue()
+        // 10 + 20 ms of sleep instead of 2 * 500 ms
+        Truth.assertThat(metrics.elapsedMs).isLessThan(500)
+    }
+
+    @Test
+    fun keepsTotalWaitTimeWithBackoff() {
+        // Sleeps 10, 20, 40 and the remaining 10 ms of the 2 * 40 ms wait
+        val metrics = waitFor(satisfiedAtAttempt = 100, retryLimit = 2, retryIntervalMs = 40,
+            minRetryIntervalMs = 10)
+        Truth.assertThat(metrics.success).isFalse()
+        Truth.assertThat(metrics.attempts).isEqualTo(5)
+        Truth.assertThat(metrics.elapsedMs).isAtLeast(80)
+    }
+}
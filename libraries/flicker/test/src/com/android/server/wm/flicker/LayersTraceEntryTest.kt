@@ -157,4 +157,38 @@ class LayersTraceEntryTest {
             .that(entry.flattenedLayers.map { it.name })
             .doesNotContain(messagesApp)
     }
+
+    @Test
+    fun indexedQueriesMatchLayerScan() {
+        val trace = readLayerTraceFromFile("layers_trace_emptyregion.pb")
+        val queries = arrayOf("StatusBar", "#0", "Activity", "SnapshotStartingWindow for",
+            "ImaginaryLayer", "NavigationBar0#0", "Nav")
+        trace.entries.forEach { entry ->
+            entry.flattenedLayers.forEach { layer ->
+                Truth.assertThat(entry.getLayerById(layer.id)?.id).isEqualTo(layer.id)
+                Truth.assertThat(entry.getLayersByName(layer.name))
+                    .containsExactlyElementsIn(entry.flattenedLayers.filter {
+                        it.name == layer.name
+                    }).inOrder()
+            }
+            queries.forEach { query ->
+                Truth.assertWithMessage(query)
+                    .that(entry.getLayersByPartialName(query))
+                    .containsExactlyElementsIn(entry.flattenedLayers.filter {
+                        it.name.contains(query)
+                    }).inOrder()
+            }
+            Truth.assertThat(entry.getLayersByPartialName(*queries))
+                .containsExactlyElementsIn(entry.flattenedLayers.filter { layer ->
+                    queries.any { layer.name.contains(it) }
+                }).inOrder()
+            Truth.assertThat(entry.getLayersByPartialName())
+                .containsExactlyElementsIn(entry.flattenedLayers).inOrder()
+            entry.flattenedLayers.filter { !it.isRootLayer }.forEach { layer ->
+                Truth.assertWithMessage(layer.name)
+                    .that(layer.isHiddenByParent)
+                    .isEqualTo(layer.parent.isHiddenByPolicy || layer.parent.isHiddenByParent)
+            }
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker
+
+import com.android.server.wm.flicker.monitor.TraceMonitor
+import com.google.common.truth.Truth
+import org.junit.After
+import org.junit.Before
+import org.junit.FixMethodOrder
+import org.junit.Test
+import org.junit.runners.MethodSorters
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Contains [ParsedTraceCache] tests. To run this test: `atest
+ * FlickerLibTest:ParsedTraceCacheTest`
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+class ParsedTraceCacheTest {
+    private val traceFiles = mutableListOf<Path>()
+    private var defaultMaxHeapBytes = 0L
+
+    @Before
+    fun setup() {
+        defaultMaxHeapBytes = ParsedTraceCache.maxHeapBytes
+        ParsedTraceCache.clear()
+    }
+
+    @After
+    fun cleanup() {
+        ParsedTraceCache.maxHeapBytes = defaultMaxHeapBytes
+        ParsedTraceCache.clear()
+        traceFiles.forEach { Files.deleteIfExists(it) }
+    }
+
+    private fun copyTestFile(relativePath: String): Path {
+        val traceFile = Files.createTempFile("trace", ".pb")
+        traceFiles.add(traceFile)
+        Files.write(traceFile, readTestFile(relativePath))
+        return traceFile
+    }
+
+    @Test
+    fun canReuseParsedTraces() {
+        val traceFile = copyTestFile("wm_trace_openchrome.pb")
+        val checksum = TraceMonitor.calculateChecksum(traceFile)
+        val misses = ParsedTraceCache.misses
+        val hits = ParsedTraceCache.hits
+
+        val trace = ParsedTraceCache.getWindowManagerTrace(traceFile, checksum)
+        Truth.assertThat(trace.entries).isNotEmpty()
+        Truth.assertThat(ParsedTraceCache.getWindowManagerTrace(traceFile, checksum))
+            .isSameInstanceAs(trace)
+        // The checksum is calculated when not given
+        Truth.assertThat(ParsedTraceCache.getWindowManagerTrace(traceFile))
+            .isSameInstanceAs(trace)
+        Truth.assertThat(ParsedTraceCache.misses - misses).isEqualTo(1)
+        Truth.assertThat(ParsedTraceCache.hits - hits).isEqualTo(2)
+    }
+
+    @Test
+    fun canCalculateChecksumOfReadTrace() {
+        val traceFile = copyTestFile("wm_trace_openchrome.pb")
+        Truth.assertThat(TraceMonitor.calculateChecksum(Files.readAllBytes(traceFile)))
+            .isEqualTo(TraceMonitor.calculateChecksum(traceFile))
+    }
+
+    @Test
+    fun canReuseTracesWithSameContent() {
+        val traceFile = copyTestFile("layers_trace_emptyregion.pb")
+        val sameTraceFile = copyTestFile("layers_trace_emptyregion.pb")
+        val trace = ParsedTraceCache.getLayersTrace(traceFile)
+        val sameTrace = ParsedTraceCache.getLayersTrace(sameTraceFile)
+        Truth.assertThat(sameTrace.entries).isSameInstanceAs(trace.entries)
+        Truth.assertThat(sameTrace.source).isEqualTo(sameTraceFile.toString())
+        Truth.assertThat(trace.source).isEqualTo(traceFile.toString())
+    }
+
+    @Test
+    fun canRebindSourceOfCachedTrace() {
+        val traceFile = copyTestFile("wm_trace_openchrome.pb")
+        val sameTraceFile = copyTestFile("wm_trace_openchrome.pb")
+        val trace = ParsedTraceCache.getWindowManagerTrace(traceFile)
+        Files.delete(traceFile)
+        val sameTrace = ParsedTraceCache.getWindowManagerTrace(sameTraceFile)
+        Truth.assertThat(sameTrace.entries).isSameInstanceAs(trace.entries)
+        Truth.assertThat(sameTrace.source)
+            .isEqualTo(sameTraceFile.toAbsolutePath().toString())
+        Truth.assertThat(sameTrace.sourceChecksum).isEqualTo(trace.sourceChecksum)
+    }
+
+    @Test
+    fun canEvictLeastRecentlyUsedTraces() {
+        val wmTraceFile = copyTestFile("wm_trace_openchrome.pb")
+        val layersTraceFile = copyTestFile("layers_trace_emptyregion.pb")
+        val evictions = ParsedTraceCache.evictions
+        // Room for the largest of the traces only, estimated at 10 heap bytes per file byte
+        ParsedTraceCache.maxHeapBytes = 10 * maxOf(Files.size(wmTraceFile),
+            Files.size(layersTraceFile))
+
+        val wmTrace = ParsedTraceCache.getWindowManagerTrace(wmTraceFile)
+        val layersTrace = ParsedTraceCache.getLayersTrace(layersTraceFile)
+        Truth.assertThat(ParsedTraceCache.evictions - evictions).isEqualTo(1)
+        Truth.assertThat(ParsedTraceCache.getLayersTrace(layersTraceFile))
+            .isSameInstanceAs(layersTrace)
+        Truth.assertThat(ParsedTraceCache.getWindowManagerTrace(wmTraceFile))
+            .isNotSameInstanceAs(wmTrace)
+    }
+}
@@ -340,4 +340,23 @@ class WindowManagerStateHelperTest {
             .assertThat(helper.wmState)
             .isRecentsActivityVisible()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun canWaitForWmStateWithoutLayers() {
+        val trace = readWmTraceFromFile("wm_trace_ime.pb")
+        val wmStates = trace.entries.iterator()
+        var layerDumps = 0
+        val helper = WindowManagerStateHelper(InstrumentationRegistry.getInstrumentation(),
+            deviceDumpSupplier = {
+                layerDumps++
+                error("The layers should not be dumped")
+            },
+            numRetries = trace.entries.size,
+            retryIntervalMs = 1,
+            wmStateSupplier = { wmStates.next() })
+        val lastTimestamp = trace.entries.last().timestamp
+        Truth.assertThat(helper.waitForWmState("last entry") { it.timestamp == lastTimestamp })
+            .isTrue()
+        Truth.assertThat(layerDumps).isEqualTo(0)
+    }
+}
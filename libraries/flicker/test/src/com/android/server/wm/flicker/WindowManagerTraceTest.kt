@@ -18,6 +18,7 @@ package com.android.server.wm.flicker
 
 import com.android.server.wm.traces.common.windowmanager.WindowManagerTrace
 import com.android.server.wm.traces.common.windowmanager.WindowManagerState
+import com.android.server.wm.traces.common.windowmanager.windows.Activity
 import com.android.server.wm.traces.common.windowmanager.windows.WindowContainer
 import com.android.server.wm.traces.parser.windowmanager.WindowManagerTraceParser
 import com.google.common.truth.Truth.assertThat
@@ -119,6 +120,46 @@ class WindowManagerTraceTest {
         }
     }
 
+    /**
+     * Checks the indexed queries of [WindowManagerState] return the same results as a scan of
+     * the window hierarchy.
+     */
+    @Test
+    fun indexedQueriesMatchTreeScan() {
+        arrayOf("wm_trace_open_app_cold.pb", "wm_trace_openchrome2.pb").forEach { traceName ->
+            readWmTraceFromFile(traceName).entries.forEach { entry ->
+                val activityNames = entry.windowContainers
+                    .filterIsInstance<Activity>().map { it.title }.toSet() + "not.an/activity"
+                activityNames.forEach { name ->
+                    val message = "$traceName ${entry.timestamp} $name"
+                    assertWithMessage(message).that(entry.containsActivity(name))
+                        .isEqualTo(entry.rootTasks.any { it.containsActivity(name) })
+                    assertWithMessage(message).that(entry.getTaskByActivity(name))
+                        .isSameInstanceAs(entry.rootTasks.asSequence()
+                            .mapNotNull { stack -> stack.getTask { it.getActivity(name) != null } }
+                            .firstOrNull())
+                    assertWithMessage(message).that(entry.getActivityProcId(name))
+                        .isEqualTo(entry.rootTasks
+                            .mapNotNull { it.getActivity(name)?.procId }.firstOrNull() ?: -1)
+                }
+                val windowNames = entry.windowStates.map { it.title }.toSet() + "not a window"
+                windowNames.forEach { name ->
+                    val message = "$traceName ${entry.timestamp} $name"
+                    assertWithMessage(message).that(entry.isWindowVisible(name))
+                        .isEqualTo(entry.windowStates.any { it.isSurfaceShown && it.title == name })
+                    assertWithMessage(message).that(entry.getMatchingVisibleWindowState(name))
+                        .containsExactlyElementsIn(entry.windowStates
+                            .filter { it.isSurfaceShown && it.title == name })
+                        .inOrder()
+                }
+                entry.rootTasks.forEach { rootTask ->
+                    assertThat(entry.getRootTask(rootTask.rootTaskId)).isSameInstanceAs(
+                        entry.rootTasks.first { it.rootTaskId == rootTask.rootTaskId })
+                }
+            }
+        }
+    }
+
     @Test
     fun canDetectValidState() {
         val entry = trace.getEntry(9213763541297)
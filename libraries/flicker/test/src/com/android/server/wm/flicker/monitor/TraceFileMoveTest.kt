@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker.monitor
+
+import com.google.common.truth.Truth
+import org.junit.After
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.random.Random
+
+/**
+ * Contains [TraceMonitor.moveFile] tests. To run this test: `atest
+ * FlickerLibTest:TraceFileMoveTest`
+ */
+class TraceFileMoveTest {
+    private val tempDir: Path = Files.createTempDirectory("traces")
+
+    @After
+    fun teardown() {
+        tempDir.toFile().deleteRecursively()
+    }
+
+    @Test
+    fun canMoveFileAndCalculateChecksum() {
+        // Larger than the copy buffer, to check the checksum over multiple blocks
+        val data = Random(0).nextBytes(3 * 1024 * 1024 + 17)
+        val src = tempDir.resolve("trace.winscope")
+        Files.write(src, data)
+        val expectedChecksum = TraceMonitor.calculateChecksum(src)
+
+        val dst = tempDir.resolve("saved_trace.winscope")
+        val checksum = TraceMonitor.moveFile(src, dst)
+
+        Truth.assertThat(checksum).isEqualTo(expectedChecksum)
+        Truth.assertThat(Files.exists(src)).isFalse()
+        Truth.assertThat(Files.readAllBytes(dst)).isEqualTo(data)
+        Truth.assertThat(dst.toFile().canRead()).isTrue()
+    }
+
+    @Test
+    fun canCopyFileToOtherDirectoryAndCalculateChecksum() {
+        // Larger than the copy buffer, to check the checksum over multiple blocks
+        val data = Random(1).nextBytes(3 * 1024 * 1024 + 17)
+        val src = tempDir.resolve("trace.winscope")
+        Files.write(src, data)
+        val expectedChecksum = TraceMonitor.calculateChecksum(src)
+
+        // Files moved to another directory are copied, not renamed
+        val dst = Files.createDirectory(tempDir.resolve("saved")).resolve("trace.winscope")
+        val checksum = TraceMonitor.moveFile(src, dst)
+
+        Truth.assertThat(checksum).isEqualTo(expectedChecksum)
+        Truth.assertThat(Files.exists(src)).isFalse()
+        Truth.assertThat(Files.readAllBytes(dst)).isEqualTo(data)
+        Truth.assertThat(dst.toFile().canRead()).isTrue()
+    }
+
+    @Test
+    fun canCalculateChecksumOfEmptyFile() {
+        val src = Files.createFile(tempDir.resolve("empty.winscope"))
+        Truth.assertThat(TraceMonitor.calculateChecksum(src))
+            .isEqualTo("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855")
+    }
+}
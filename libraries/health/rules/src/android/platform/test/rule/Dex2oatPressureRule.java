@@ -18,18 +18,30 @@ package android.platform.test.rule;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toSet;
 
+import android.os.Bundle;
 import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
 
 import com.google.common.collect.ImmutableList;
 
 import org.junit.runner.Description;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,6 +50,15 @@ import java.util.concurrent.TimeUnit;
  * <p>The rule takes a list of packages from command-line arguments and compiles them in a loop
  * until the test framework informs it to stop via finished(), using a compilation filter supplied
  * also via command-line args, or {@code speed} by default.
+ *
+ * <p>{@code dex2oat-stressor-concurrency} compilations are kept running at the same time, and each
+ * of them idles after a compilation so that it only compiles {@code dex2oat-stressor-duty-cycle}
+ * of the time. Each package is only compiled by one of them, so the concurrency is capped at the
+ * number of packages. Whether the compilations really overlap depends on the platform, so the pressure
+ * applied is measured from the CPU time and I/O of the processes which dex2oat is forked from
+ * (installd or artd), which include their reaped children, and reported as metrics of the test.
+ * artd is a lazy service, so these counters are only reported when the same processes ran for
+ * the whole test.
  */
 public class Dex2oatPressureRule extends TestWatcher {
     public static final String LOG_TAG = Dex2oatPressureRule.class.getSimpleName();
@@ -55,16 +76,36 @@ public class Dex2oatPressureRule extends TestWatcher {
     public static final String ENABLE_OPTION = "dex2oat-stressor-enable";
     private boolean mEnabled = false;
 
+    // Number of compilations running at the same time.
+    public static final String CONCURRENCY_OPTION = "dex2oat-stressor-concurrency";
+    // Fraction of the time each compilation slot is busy, in (0, 1].
+    public static final String DUTY_CYCLE_OPTION = "dex2oat-stressor-duty-cycle";
+
+    // Metrics of the pressure actually applied during the test.
+    @VisibleForTesting static final String METRIC_PREFIX = "dex2oat_stressor_";
+    @VisibleForTesting static final String COMPILATIONS_METRIC = METRIC_PREFIX + "compilations";
+    @VisibleForTesting static final String BUSY_RATIO_METRIC = METRIC_PREFIX + "busy_ratio";
+    @VisibleForTesting static final String CPU_TIME_METRIC = METRIC_PREFIX + "cpu_time_ms";
+    @VisibleForTesting static final String READ_BYTES_METRIC = METRIC_PREFIX + "read_bytes";
+    @VisibleForTesting static final String WRITE_BYTES_METRIC = METRIC_PREFIX + "write_bytes";
+    // Metrics are reported under the "status in progress" like StopwatchRule.
+    private static final int INST_STATUS_IN_PROGRESS = 2;
+
     @VisibleForTesting public static final String DEX2OAT_RUNNING_CHECK_COMMAND = "pgrep dex2oat";
     public static final String LIST_PACKAGES_COMMAND = "pm list packages";
     private static final String COMPILE_COMMAND_TEMPLATE = "cmd package compile -f -m %s %s";
     private static final String COMPILE_COMMAND_SUCCESS_RESPONSE = "Success";
+    // dex2oat is forked by installd, or by artd on newer releases.
+    private static final String DEX2OAT_PARENT_PIDS_COMMAND = "pidof installd artd";
+    private static final String PROC_COUNTERS_COMMAND_TEMPLATE = "cat /proc/%s/stat /proc/%s/io";
 
     private static final long DEX2OAT_POLLING_INTERVAL = TimeUnit.MILLISECONDS.toMillis(50);
     private static final long DEX2OAT_POLLING_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
 
     private Dex2oatRunnable mDex2oatTask;
-    private Thread mDex2oatThread;
+    private ExecutorService mDex2oatThreads;
+    private Map<String, long[]> mStartCounters;
+    private long mStartTime;
 
     @Override
     protected void starting(Description description) {
@@ -105,9 +146,41 @@ public class Dex2oatPressureRule extends TestWatcher {
                             compilationFilter, String.join(", ", SUPPORTED_FILTERS_LIST)));
         }
 
-        mDex2oatTask = new Dex2oatRunnable(packagesToCompile, compilationFilter);
-        mDex2oatThread = new Thread(mDex2oatTask);
-        mDex2oatThread.start();
+        int concurrency = Integer.parseInt(getArguments().getString(CONCURRENCY_OPTION, "1"));
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Invalid concurrency %d. Please supply a positive %s. Results should "
+                                    + "be discarded.",
+                            concurrency, CONCURRENCY_OPTION));
+        }
+        double dutyCycle = Double.parseDouble(getArguments().getString(DUTY_CYCLE_OPTION, "1"));
+        if (!(dutyCycle > 0 && dutyCycle <= 1)) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Invalid duty cycle %s. Please supply a %s in (0, 1]. Results should "
+                                    + "be discarded.",
+                            dutyCycle, DUTY_CYCLE_OPTION));
+        }
+
+        mStartCounters = readPressureCounters();
+        mStartTime = SystemClock.uptimeMillis();
+        mDex2oatTask =
+                new Dex2oatRunnable(packagesToCompile, compilationFilter, concurrency, dutyCycle);
+        if (mDex2oatTask.getConcurrency() < concurrency) {
+            Log.w(
+                    LOG_TAG,
+                    String.format(
+                            "Only %d packages to compile, running %d compilations at the same "
+                                    + "time instead of %d.",
+                            mDex2oatTask.getConcurrency(),
+                            mDex2oatTask.getConcurrency(),
+                            concurrency));
+        }
+        mDex2oatThreads = Executors.newFixedThreadPool(mDex2oatTask.getConcurrency());
+        for (int i = 0; i < mDex2oatTask.getConcurrency(); i++) {
+            mDex2oatThreads.execute(mDex2oatTask);
+        }
 
         // Wait until dex2oat is running.
         long pollingStartTime = System.currentTimeMillis();
@@ -131,21 +204,137 @@ public class Dex2oatPressureRule extends TestWatcher {
         if (!mEnabled) {
             return;
         }
-        // If the thread is null, dex2oat had never been triggered. No further actions are needed.
-        if (mDex2oatThread == null) {
+        // If the threads are null, dex2oat had never been triggered. No further actions are
+        // needed.
+        if (mDex2oatThreads == null) {
             return;
         }
 
         stopDex2oatAndWaitForFinish();
+        reportMetrics(computeMetrics());
     }
 
     private void stopDex2oatAndWaitForFinish() {
         stopDex2oat();
+        mDex2oatThreads.shutdown();
         try {
-            mDex2oatThread.join();
+            mDex2oatThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            mDex2oatThreads = null;
+        }
+    }
+
+    /** Returns the pressure applied since the rule started, once all compilations ended. */
+    private Bundle computeMetrics() {
+        long elapsedMs = SystemClock.uptimeMillis() - mStartTime;
+        Bundle metrics = new Bundle();
+        metrics.putLong(COMPILATIONS_METRIC, mDex2oatTask.getCompilationCount());
+        if (elapsedMs > 0) {
+            metrics.putDouble(
+                    BUSY_RATIO_METRIC,
+                    (double) mDex2oatTask.getBusyTimeMs()
+                            / (elapsedMs * mDex2oatTask.getConcurrency()));
+        }
+        long[] counters = subtractCounters(mStartCounters, readPressureCounters());
+        if (counters != null) {
+            metrics.putLong(CPU_TIME_METRIC, counters[0]);
+            if (counters[1] >= 0) {
+                metrics.putLong(READ_BYTES_METRIC, counters[1]);
+                metrics.putLong(WRITE_BYTES_METRIC, counters[2]);
+            }
+        }
+        Log.i(LOG_TAG, String.format("Pressure applied by dex2oat: %s", metrics));
+        return metrics;
+    }
+
+    /** Report the metrics of the test. Leaving visible for stubbing. */
+    @VisibleForTesting
+    protected void reportMetrics(Bundle metrics) {
+        InstrumentationRegistry.getInstrumentation().sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
+
+    /**
+     * Returns the sum of the counters accumulated by each process between the two readings, or
+     * null if the processes are not the same at both points, e.g. when artd started or
+     * restarted during the test, as the counters of a new process start from 0.
+     */
+    @VisibleForTesting
+    static long[] subtractCounters(Map<String, long[]> start, Map<String, long[]> end) {
+        if (start == null || end == null || start.isEmpty()) {
+            return null;
         }
+        if (!start.keySet().equals(end.keySet())) {
+            Log.w(
+                    LOG_TAG,
+                    String.format(
+                            "The processes forking dex2oat changed from %s to %s during the "
+                                    + "test, dex2oat is not measured.",
+                            start.keySet(), end.keySet()));
+            return null;
+        }
+        long[] counters = new long[] {0, 0, 0};
+        for (Map.Entry<String, long[]> entry : start.entrySet()) {
+            long[] startCounters = entry.getValue();
+            long[] endCounters = end.get(entry.getKey());
+            counters[0] += endCounters[0] - startCounters[0];
+            if (startCounters[1] < 0 || endCounters[1] < 0) {
+                counters[1] = -1;
+            } else if (counters[1] >= 0) {
+                counters[1] += endCounters[1] - startCounters[1];
+                counters[2] += endCounters[2] - startCounters[2];
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Read the CPU time in ms and the bytes read and written by the reaped children of each of
+     * the processes which fork dex2oat, keyed by pid and start time so that a restarted process
+     * is told apart. The I/O is -1 if /proc/pid/io is not readable. Leaving visible for stubbing.
+     */
+    @VisibleForTesting
+    protected Map<String, long[]> readPressureCounters() {
+        Map<String, long[]> counters = new HashMap<>();
+        String pids = executeShellCommand(DEX2OAT_PARENT_PIDS_COMMAND).trim();
+        if (pids.isEmpty()) {
+            Log.w(LOG_TAG, "Neither installd nor artd is running.");
+            return counters;
+        }
+        long msPerTick = 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+        for (String pid : pids.split("\\s+")) {
+            String output =
+                    executeShellCommand(
+                            String.format(PROC_COUNTERS_COMMAND_TEMPLATE, pid, pid));
+            long[] processCounters = new long[] {0, -1, -1};
+            String startTime = null;
+            for (String line : output.split("\n")) {
+                int commEnd = line.lastIndexOf(')');
+                if (commEnd >= 0) {
+                    // Fields after the command name, starting with the state. cutime, cstime and
+                    // starttime are the 16th, 17th and 22nd fields of the line.
+                    String[] fields = line.substring(commEnd + 2).split(" ");
+                    processCounters[0] =
+                            (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) * msPerTick;
+                    startTime = fields[19];
+                } else if (line.startsWith("read_bytes:")) {
+                    processCounters[1] = parseIoCounter(line);
+                } else if (line.startsWith("write_bytes:")) {
+                    processCounters[2] = parseIoCounter(line);
+                }
+            }
+            if (startTime == null) {
+                // The process exited in between.
+                continue;
+            }
+            counters.put(pid + "@" + startTime, processCounters);
+        }
+        return counters;
+    }
+
+    private static long parseIoCounter(String line) {
+        return Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
     }
 
     /** Get all installed packages on the device. Leaving visible for stubbing. */
@@ -192,23 +381,57 @@ public class Dex2oatPressureRule extends TestWatcher {
         return false;
     }
 
+    /**
+     * Compiles the packages in a loop, shared by all the compilation threads. Each thread compiles
+     * its own share of the packages in order, so that a package is never compiled by two threads
+     * at the same time.
+     */
     private class Dex2oatRunnable implements Runnable {
         private final ImmutableList<String> mPackagesToCompile;
         private final String mCompilationFilter;
-        private AtomicBoolean mShouldContinue = new AtomicBoolean(true);
+        private final int mConcurrency;
+        private final double mDutyCycle;
+        private final AtomicBoolean mShouldContinue = new AtomicBoolean(true);
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+        private final AtomicInteger mNextWorker = new AtomicInteger();
+        private final AtomicInteger mCompilationCount = new AtomicInteger();
+        private final AtomicLong mBusyTimeMs = new AtomicLong();
 
-        public Dex2oatRunnable(List<String> packagesToCompile, String compilationFilter) {
-            mPackagesToCompile = ImmutableList.copyOf(packagesToCompile);
+        public Dex2oatRunnable(
+                List<String> packagesToCompile,
+                String compilationFilter,
+                int concurrency,
+                double dutyCycle) {
+            mPackagesToCompile = ImmutableList.copyOf(new LinkedHashSet<>(packagesToCompile));
             mCompilationFilter = compilationFilter;
+            mConcurrency = Math.min(concurrency, mPackagesToCompile.size());
+            mDutyCycle = dutyCycle;
         }
 
         @Override
         public void run() {
+            // The worker compiles the packages at its index modulo the number of workers.
+            int worker = mNextWorker.getAndIncrement();
+            int nextPackage = worker;
             while (mShouldContinue.get()) {
-                for (String pkg : mPackagesToCompile) {
-                    runCompileCommand(pkg, mCompilationFilter);
-                    if (!mShouldContinue.get()) {
-                        break;
+                String pkg = mPackagesToCompile.get(nextPackage);
+                nextPackage += mConcurrency;
+                if (nextPackage >= mPackagesToCompile.size()) {
+                    nextPackage = worker;
+                }
+                long startTime = SystemClock.uptimeMillis();
+                runCompileCommand(pkg, mCompilationFilter);
+                long busyTimeMs = SystemClock.uptimeMillis() - startTime;
+                mBusyTimeMs.addAndGet(busyTimeMs);
+                mCompilationCount.incrementAndGet();
+                if (mDutyCycle < 1) {
+                    // Idle for long enough that this thread is busy mDutyCycle of the time.
+                    long idleTimeMs = (long) (busyTimeMs * (1 - mDutyCycle) / mDutyCycle);
+                    try {
+                        mStopped.await(idleTimeMs, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
@@ -216,6 +439,19 @@ public class Dex2oatPressureRule extends TestWatcher {
 
         public void pleaseStop() {
             mShouldContinue.set(false);
+            mStopped.countDown();
+        }
+
+        public int getConcurrency() {
+            return mConcurrency;
+        }
+
+        public int getCompilationCount() {
+            return mCompilationCount.get();
+        }
+
+        public long getBusyTimeMs() {
+            return mBusyTimeMs.get();
         }
     }
 }
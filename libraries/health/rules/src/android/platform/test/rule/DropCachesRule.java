@@ -15,11 +15,13 @@
  */
 package android.platform.test.rule;
 
-import android.os.SystemClock;
+import android.os.Bundle;
 import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.platform.app.InstrumentationRegistry;
 
+import com.android.helpers.SystemSettleHelper;
+
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -28,15 +30,24 @@ import java.io.IOException;
 import org.junit.runner.Description;
 
 /**
- * This rule will drop caches before running each test method.
+ * This rule will drop caches before running each test method, then waits for the device to settle
+ * for at most "drop-cache-settle-timeout-ms". The time waited is reported as a metric of the test.
  */
 public class DropCachesRule extends TestWatcher {
 
     private static final String LOG_TAG = DropCachesRule.class.getSimpleName();
 
     @VisibleForTesting static final String KEY_DROP_CACHE = "drop-cache";
+    @VisibleForTesting static final String KEY_SETTLE_TIMEOUT = "drop-cache-settle-timeout-ms";
+    // Used to be a fixed sleep, now the upper bound of the wait.
+    private static final String DEFAULT_SETTLE_TIMEOUT_MS = "3000";
+
+    @VisibleForTesting static final String SETTLE_WAIT_METRIC = "drop_cache_settle_wait_ms";
+    // Metrics are reported under the "status in progress" like StopwatchRule.
+    private static final int INST_STATUS_IN_PROGRESS = 2;
 
     private String mDropCacheScriptPath;
+    private long mSettleWaitMs;
 
     /**
      * Shell equivalent of $(echo 3 > /proc/sys/vm/drop_caches)
@@ -83,8 +94,39 @@ public class DropCachesRule extends TestWatcher {
         }
 
         executeDropCachesImpl();
-        // TODO: b/117868612 to identify the root cause for additional wait.
-        SystemClock.sleep(3000);
+        // b/117868612: the device needs additional time to recover from dropping the caches,
+        // wait until the reads and writeback it causes have settled.
+        long timeoutMs = Long.parseLong(
+                getArguments().getString(KEY_SETTLE_TIMEOUT, DEFAULT_SETTLE_TIMEOUT_MS));
+        if (timeoutMs <= 0) {
+            mSettleWaitMs = 0;
+            return;
+        }
+        SystemSettleHelper settleHelper = createSettleHelper();
+        settleHelper.setTimeoutMs(timeoutMs);
+        settleHelper.waitForSettle();
+        mSettleWaitMs = settleHelper.getMetrics().get(SystemSettleHelper.SETTLE_WAIT_METRIC_KEY)
+                .longValue();
+        Log.i(LOG_TAG, String.format("Waited %d ms after dropping caches.", mSettleWaitMs));
+        Bundle metrics = new Bundle();
+        metrics.putLong(SETTLE_WAIT_METRIC, mSettleWaitMs);
+        reportMetrics(metrics);
+    }
+
+    /** Returns the helper waiting for the device to settle. Override this for unit testing. */
+    protected SystemSettleHelper createSettleHelper() {
+        return new SystemSettleHelper(cmd -> getUiDevice().executeShellCommand(cmd));
+    }
+
+    /** Report the metrics of the test. Leaving visible for stubbing. */
+    @VisibleForTesting
+    protected void reportMetrics(Bundle metrics) {
+        InstrumentationRegistry.getInstrumentation().sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
+
+    /** Returns how long the last test waited for the device to settle, in ms. */
+    public long getSettleWaitMs() {
+        return mSettleWaitMs;
     }
 
     @VisibleForTesting
@@ -37,7 +37,9 @@ public class IorapCompilationRule extends TestWatcher {
     @VisibleForTesting
     static final String IORAP_DUMPSYS_CMD = "dumpsys iorapd";
 
-    private static final int IORAP_COMPILE_CMD_TIMEOUT_SEC = 60;  // in seconds: 1 minutes
+    private static final long IORAP_COMPILE_CMD_TIMEOUT_MS = 60 * 1000;  // 1 minute
+    private static final long IORAP_COMPILE_POLL_MIN_MS = 100;
+    private static final long IORAP_COMPILE_POLL_MAX_MS = 1000;
     private static final int IORAP_COMPILE_MIN_TRACES = 1;  // configure iorapd to need 1 trace.
     private static final int IORAP_COMPILE_RETRIES = 3;  // retry compiler 3 times if it fails.
     private static final int IORAP_TRACE_DURATION_TIMEOUT = 7000; // Allow 7s for trace to complete.
@@ -150,30 +152,35 @@ public class IorapCompilationRule extends TestWatcher {
     /**
      * Compile the app package using iorap.cmd.maintenance and return false
      * if the compilation failed for some reason.
+     *
+     * The compilation status is polled with an interval doubling from
+     * {@code IORAP_COMPILE_POLL_MIN_MS} to {@code IORAP_COMPILE_POLL_MAX_MS}, so a quick
+     * compilation is noticed quickly without polling dumpsys too often for a slow one.
      */
     private boolean compileAppForIorap(String appPkgName) {
         executeShellCommand(String.format(IORAP_COMPILE_CMD, appPkgName));
 
-        int i = 0;
-        for (i = 0; i < IORAP_COMPILE_CMD_TIMEOUT_SEC; ++i) {
+        long waitedMs = 0;
+        long pollMs = IORAP_COMPILE_POLL_MIN_MS;
+        while (true) {
             IorapCompilationStatus status = waitForIorapCompiled(appPkgName);
             if (status == IorapCompilationStatus.COMPLETE) {
-                Log.v(TAG, "compileAppForIorap: success");
-                break;
+                Log.v(TAG, "compileAppForIorap: success after " + waitedMs + " ms");
+                return true;
             } else if (status == IorapCompilationStatus.INSUFFICIENT_TRACES) {
                 Log.e(TAG, "compileAppForIorap: failed due to insufficient traces");
                 throw new IllegalStateException(
                         "compileAppForIorap: failed due to insufficient traces");
             } // else INCOMPLETE. keep asking iorapd if it's done yet.
-            sleep(1000);
-        }
-
-        if (i == IORAP_COMPILE_CMD_TIMEOUT_SEC) {
-            Log.e(TAG, "compileAppForIorap: failed due to timeout");
-            return false;
+            if (waitedMs >= IORAP_COMPILE_CMD_TIMEOUT_MS) {
+                Log.e(TAG, "compileAppForIorap: failed due to timeout");
+                return false;
+            }
+            long delayMs = Math.min(pollMs, IORAP_COMPILE_CMD_TIMEOUT_MS - waitedMs);
+            sleep((int) delayMs);
+            waitedMs += delayMs;
+            pollMs = Math.min(pollMs * 2, IORAP_COMPILE_POLL_MAX_MS);
         }
-
-        return true;
     }
 
     private IorapCompilationStatus waitForIorapCompiled(String appPkgName) {
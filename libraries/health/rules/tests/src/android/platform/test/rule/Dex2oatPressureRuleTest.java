@@ -18,8 +18,10 @@ package android.platform.test.rule;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
@@ -32,6 +34,8 @@ import android.os.Bundle;
 import android.os.SystemClock;
 import androidx.test.InstrumentationRegistry;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Rule;
@@ -52,6 +56,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
@@ -329,6 +335,171 @@ public class Dex2oatPressureRuleTest {
         assertThat(compiledInTest2.stream().allMatch(p -> p.endsWith("test2"))).isTrue();
     }
 
+    @Test
+    public void testKeepsConcurrentCompilationsRunning() throws Throwable {
+        List<String> packages =
+                Arrays.asList("success.300.pkg1", "success.300.pkg2", "success.300.pkg3");
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, String.join(",", packages),
+                                Dex2oatPressureRule.CONCURRENCY_OPTION, "3",
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(packages);
+        fakeWhetherDex2oatIsRunningCheck(0);
+        // All three packages are being compiled while the test runs.
+        Statement testStatement =
+                new Statement() {
+                    @Override
+                    public void evaluate() {
+                        SystemClock.sleep(100L);
+                        for (String pkg : packages) {
+                            verify(rule, times(1)).runCompileCommand(eq(pkg), any(String.class));
+                        }
+                    }
+                };
+        rule.apply(testStatement, TEST_DESCRIPTION).evaluate();
+    }
+
+    @Test
+    public void testNeverCompilesPackageConcurrently() throws Throwable {
+        List<String> packages = Arrays.asList("success.20.pkg1", "success.20.pkg2");
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, String.join(",", packages),
+                                Dex2oatPressureRule.CONCURRENCY_OPTION, "4",
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(packages);
+        fakeWhetherDex2oatIsRunningCheck(0);
+        Set<String> compiling = ConcurrentHashMap.newKeySet();
+        AtomicBoolean compiledConcurrently = new AtomicBoolean();
+        doAnswer(
+                        invocation -> {
+                            String pkg = invocation.getArgument(0);
+                            if (!compiling.add(pkg)) {
+                                compiledConcurrently.set(true);
+                            }
+                            SystemClock.sleep(20L);
+                            compiling.remove(pkg);
+                            return "success";
+                        })
+                .when(rule)
+                .runCompileCommand(any(String.class), any(String.class));
+        ArgumentCaptor<Bundle> metrics = ArgumentCaptor.forClass(Bundle.class);
+        doNothing().when(rule).reportMetrics(metrics.capture());
+
+        rule.apply(createTestStatement(150L), TEST_DESCRIPTION).evaluate();
+
+        assertThat(compiledConcurrently.get()).isFalse();
+        for (String pkg : packages) {
+            verify(rule, atLeast(2)).runCompileCommand(eq(pkg), any(String.class));
+        }
+        // The concurrency is capped at the two packages, which are compiled all the time. Without
+        // the cap, the busy ratio would be measured against four compilations.
+        assertThat(metrics.getValue().getDouble(Dex2oatPressureRule.BUSY_RATIO_METRIC))
+                .isGreaterThan(0.5);
+    }
+
+    @Test
+    public void testIdlesBetweenCompilationsForDutyCycle() throws Throwable {
+        String packageName = "success.100";
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, packageName,
+                                Dex2oatPressureRule.DUTY_CYCLE_OPTION, "0.5",
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(Arrays.asList(packageName));
+        fakeWhetherDex2oatIsRunningCheck(0);
+        // Compiles for 100 ms then idles for 100 ms, so only the first compilation is started
+        // before the middle of the idle time.
+        rule.apply(createTestStatement(150L), TEST_DESCRIPTION).evaluate();
+        verify(rule, times(1)).runCompileCommand(packageName, Dex2oatPressureRule.SPEED_FILTER);
+    }
+
+    @Test
+    public void testInvalidDutyCycleThrows() throws Throwable {
+        expectedException.expectMessage("Invalid duty cycle");
+
+        String packageName = "success.20";
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, packageName,
+                                Dex2oatPressureRule.DUTY_CYCLE_OPTION, "0",
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(Arrays.asList(packageName));
+        rule.apply(createTestStatement(10L), TEST_DESCRIPTION).evaluate();
+    }
+
+    @Test
+    public void testReportsAppliedPressure() throws Throwable {
+        String packageName = "success.20";
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, packageName,
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(Arrays.asList(packageName));
+        fakeWhetherDex2oatIsRunningCheck(0);
+        doReturn(
+                        ImmutableMap.of(
+                                "600@100", new long[] {100, 1000, 2000},
+                                "700@200", new long[] {0, 0, 0}),
+                        ImmutableMap.of(
+                                "600@100", new long[] {300, 4000, 2500},
+                                "700@200", new long[] {50, 1000, 0}))
+                .when(rule)
+                .readPressureCounters();
+        ArgumentCaptor<Bundle> metrics = ArgumentCaptor.forClass(Bundle.class);
+        doNothing().when(rule).reportMetrics(metrics.capture());
+
+        rule.apply(createTestStatement(50L), TEST_DESCRIPTION).evaluate();
+
+        Bundle reported = metrics.getValue();
+        assertThat(reported.getLong(Dex2oatPressureRule.COMPILATIONS_METRIC)).isAtLeast(1L);
+        assertThat(reported.getDouble(Dex2oatPressureRule.BUSY_RATIO_METRIC)).isGreaterThan(0.0);
+        assertThat(reported.getLong(Dex2oatPressureRule.CPU_TIME_METRIC)).isEqualTo(250L);
+        assertThat(reported.getLong(Dex2oatPressureRule.READ_BYTES_METRIC)).isEqualTo(4000L);
+        assertThat(reported.getLong(Dex2oatPressureRule.WRITE_BYTES_METRIC)).isEqualTo(500L);
+    }
+
+    @Test
+    public void testDoesNotReportPressureWhenProcessesChange() throws Throwable {
+        String packageName = "success.20";
+        stubInstrumentationArgs(Dex2oatPressureRule.PACKAGES_OPTION, packageName,
+                                Dex2oatPressureRule.ENABLE_OPTION, String.valueOf(true));
+        stubInstalledPackages(Arrays.asList(packageName));
+        fakeWhetherDex2oatIsRunningCheck(0);
+        // artd restarted during the test, its counters start over.
+        doReturn(
+                        ImmutableMap.of(
+                                "600@100", new long[] {100, 1000, 2000},
+                                "700@200", new long[] {5000, 9000, 9000}),
+                        ImmutableMap.of(
+                                "600@100", new long[] {300, 4000, 2500},
+                                "800@900", new long[] {50, 1000, 0}))
+                .when(rule)
+                .readPressureCounters();
+        ArgumentCaptor<Bundle> metrics = ArgumentCaptor.forClass(Bundle.class);
+        doNothing().when(rule).reportMetrics(metrics.capture());
+
+        rule.apply(createTestStatement(50L), TEST_DESCRIPTION).evaluate();
+
+        Bundle reported = metrics.getValue();
+        assertThat(reported.getLong(Dex2oatPressureRule.COMPILATIONS_METRIC)).isAtLeast(1L);
+        assertThat(reported.containsKey(Dex2oatPressureRule.CPU_TIME_METRIC)).isFalse();
+        assertThat(reported.containsKey(Dex2oatPressureRule.READ_BYTES_METRIC)).isFalse();
+        assertThat(reported.containsKey(Dex2oatPressureRule.WRITE_BYTES_METRIC)).isFalse();
+    }
+
+    @Test
+    public void testSubtractCountersOfSameProcesses() {
+        // Without /proc/pid/io, only the CPU time is measured.
+        long[] counters =
+                Dex2oatPressureRule.subtractCounters(
+                        ImmutableMap.of("600@100", new long[] {100, -1, -1}),
+                        ImmutableMap.of("600@100", new long[] {150, -1, -1}));
+        assertThat(counters[0]).isEqualTo(50L);
+        assertThat(counters[1]).isEqualTo(-1L);
+        // artd was not running when the test started.
+        assertThat(
+                        Dex2oatPressureRule.subtractCounters(
+                                ImmutableMap.of("600@100", new long[] {100, 0, 0}),
+                                ImmutableMap.of(
+                                        "600@100", new long[] {150, 0, 0},
+                                        "700@200", new long[] {50, 0, 0})))
+                .isNull();
+        assertThat(Dex2oatPressureRule.subtractCounters(Collections.emptyMap(),
+                Collections.emptyMap())).isNull();
+    }
+
     @Test
     public void testCompilationCommandCompiles() throws Throwable {
         boolean foundDex2oatPid = false;
@@ -19,6 +19,8 @@ import static com.google.common.truth.Truth.assertThat;
 
 import android.os.Bundle;
 
+import com.android.helpers.SystemSettleHelper;
+
 import org.junit.Test;
 import org.junit.runner.Description;
 import org.junit.runner.RunWith;
@@ -61,9 +63,50 @@ public class DropCachesRuleTest {
             .inOrder();
     }
 
+    /**
+     * Tests the rule waits for the device to settle after dropping caches, within the timeout.
+     */
+    @Test
+    public void testWaitsForSettle() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(DropCachesRule.KEY_SETTLE_TIMEOUT, "1000");
+        TestableDropCachesRule rule = new TestableDropCachesRule(bundle);
+
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getOperations()).containsExactly(
+                rule.getDropCacheScriptPath(), "test")
+            .inOrder();
+        // The fake device is always quiet, so the rule stops after two 250 ms quiet intervals.
+        assertThat(rule.getSettleSamples()).isEqualTo(3);
+        assertThat(rule.getSettleWaitMs()).isEqualTo(500L);
+        assertThat(rule.getMetrics()).hasSize(1);
+        assertThat(rule.getMetrics().get(0).getLong(DropCachesRule.SETTLE_WAIT_METRIC))
+                .isEqualTo(500L);
+    }
+
+    /**
+     * Tests no wait if the settle timeout is 0.
+     */
+    @Test
+    public void testNoSettleWait() throws Throwable {
+        Bundle bundle = new Bundle();
+        bundle.putString(DropCachesRule.KEY_SETTLE_TIMEOUT, "0");
+        TestableDropCachesRule rule = new TestableDropCachesRule(bundle);
+
+        rule.apply(rule.getTestStatement(), Description.createTestDescription("clzz", "mthd"))
+            .evaluate();
+        assertThat(rule.getSettleSamples()).isEqualTo(0);
+        assertThat(rule.getSettleWaitMs()).isEqualTo(0);
+        assertThat(rule.getMetrics()).isEmpty();
+    }
+
     private static class TestableDropCachesRule extends DropCachesRule {
         private List<String> mOperations = new ArrayList<>();
+        private List<Bundle> mMetrics = new ArrayList<>();
         private Bundle mBundle;
+        private int mSettleSamples = 0;
+        private long mNow = 0;
 
         public TestableDropCachesRule(Bundle bundle) {
             mBundle = bundle;
@@ -80,10 +123,43 @@ public class DropCachesRuleTest {
             return mBundle;
         }
 
+        @Override
+        protected void reportMetrics(Bundle metrics) {
+            mMetrics.add(metrics);
+        }
+
+        @Override
+        protected SystemSettleHelper createSettleHelper() {
+            // A device without any activity to report.
+            return new SystemSettleHelper(cmd -> {
+                mSettleSamples++;
+                return "";
+            }) {
+                @Override
+                protected long uptimeMillis() {
+                    return mNow;
+                }
+
+                @Override
+                protected void sleep(long ms) {
+                    // The tests don't need to sleep, only advance the clock.
+                    mNow += ms;
+                }
+            };
+        }
+
         public List<String> getOperations() {
             return mOperations;
         }
 
+        public List<Bundle> getMetrics() {
+            return mMetrics;
+        }
+
+        public int getSettleSamples() {
+            return mSettleSamples;
+        }
+
         public Statement getTestStatement() {
             return new Statement() {
                 @Override
@@ -21,23 +21,35 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Properties;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.Environment;
 
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.support.test.uiautomator.UiAutomatorTestCase;
 import android.test.InstrumentationTestRunner;
 import android.util.Log;
 
+import com.android.helpers.ShellCommandExecutor;
+import com.android.helpers.SystemSettleHelper;
+
 public class PowerTestHelper extends UiAutomatorTestCase {
     private final static String PARAM_CONFIG = "conf";
+    // Opt in to end the sync wait once USB is unplugged and the device settled.
+    private final static String PARAM_ADAPTIVE_SYNC = "adaptive-sync";
     private final static String SD_CARD_PATH =
         Environment.getExternalStorageDirectory().getAbsolutePath() + "/";
     private final static String POWER_OUTPUT = SD_CARD_PATH + "autotester.log";
     private final static String PROPERTY_FILE_NAME = SD_CARD_PATH + "PowerTests.conf";
     private final static long SYNC_DELAY = 10 * 1000; // 10 secs
+    private final static long SYNC_POLL_INTERVAL = 250;
     private final static String TAG = "PowerTestHelper";
 
     private Bundle mParams;
@@ -57,7 +69,47 @@ public class PowerTestHelper extends UiAutomatorTestCase {
         assertNotNull("mParams is null", mParams);
 
         // Wait for USB to be disconnected by the test harness
-        SystemClock.sleep(SYNC_DELAY);
+        if (Boolean.parseBoolean(mParams.getString(PARAM_ADAPTIVE_SYNC))) {
+            waitForSync();
+        } else {
+            SystemClock.sleep(SYNC_DELAY);
+        }
+    }
+
+    /**
+     * Wait for the device to be unplugged by the test harness, then for the device to settle,
+     * for at most {@code SYNC_DELAY} in total.
+     *
+     * <p>The power harness may expect the measurement to start {@code SYNC_DELAY} after the test,
+     * so this is only used when enabled with the {@code adaptive-sync} argument.
+     */
+    protected void waitForSync() {
+        long startTime = SystemClock.uptimeMillis();
+        while (isPluggedIn() && SystemClock.uptimeMillis() - startTime < SYNC_DELAY) {
+            SystemClock.sleep(SYNC_POLL_INTERVAL);
+        }
+        long remainingTime = SYNC_DELAY - (SystemClock.uptimeMillis() - startTime);
+        if (remainingTime > 0) {
+            SystemSettleHelper settleHelper = new SystemSettleHelper(this::executeShellCommand);
+            settleHelper.setTimeoutMs(remainingTime);
+            settleHelper.waitForSettle();
+        }
+        Log.i(TAG, String.format("Waited %d ms for the sync.",
+                SystemClock.uptimeMillis() - startTime));
+    }
+
+    private boolean isPluggedIn() {
+        Intent battery = getInstrumentation().getContext().registerReceiver(
+                null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private String executeShellCommand(String command) throws IOException {
+        ParcelFileDescriptor pfd =
+                getInstrumentation().getUiAutomation().executeShellCommand(command);
+        try (InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            return new String(ShellCommandExecutor.readFully(is), StandardCharsets.UTF_8);
+        }
     }
 
     /**